@@ -8,14 +8,17 @@
  */ 
 package org.dawb.common.ui.util;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
-import java.util.Iterator;
+import java.nio.charset.Charset;
 import java.util.Map;
 import java.util.TreeMap;
 
 import org.dawb.common.ui.monitor.ProgressMonitorWrapper;
+import org.dawb.common.util.io.ColumnWriter;
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -60,23 +63,29 @@ public class CSVUtils {
 		final IFile csv  = EclipseUtils.getUniqueFile(dataFile, conjunctive, "csv");
 		try {
 			
-			final StringBuilder contents = new StringBuilder();
-			final boolean is2D = data.size()==1 && data.values().iterator().next().getShape().length==2;
-			if (is2D) {
-				get2DDataSetCVS(contents, data.values().iterator().next());
-			} else {
-				int maxSize = Integer.MIN_VALUE;
-				for (String name : data.keySet()) {
-					final IDataset set = data.get(name);
-					if (set.getShape()==null)     continue;
-					if (set.getShape().length!=1) continue;
-					maxSize = Math.max(maxSize, set.getSize());
+			final File          tmp    = createTempFile();
+			final ColumnWriter  writer = openWriter(tmp);
+			try {
+				final boolean is2D = data.size()==1 && data.values().iterator().next().getShape().length==2;
+				if (is2D) {
+					get2DDataSetCVS(writer, data.values().iterator().next());
+				} else {
+					int maxSize = Integer.MIN_VALUE;
+					for (String name : data.keySet()) {
+						final IDataset set = data.get(name);
+						if (set.getShape()==null)     continue;
+						if (set.getShape().length!=1) continue;
+						maxSize = Math.max(maxSize, set.getSize());
+					}
+					get1DDataSetCVS(writer, data, maxSize, null);
 				}
-				get1DDataSetCVS(contents, data, maxSize, null);
+			} finally {
+				writer.close();
 			}
 			
-			InputStream stream = new ByteArrayInputStream(contents.toString().getBytes());
-			csv.create(stream, true, new NullProgressMonitor());
+			try (InputStream stream = getTempStream(tmp)) {
+				csv.create(stream, true, new NullProgressMonitor());
+			}
 			csv.getParent().refreshLocal(IResource.DEPTH_INFINITE, new NullProgressMonitor());
 			
 			final String message = "The file '"+dataFile.getName()+"' was converted to '"+csv.getName()+"' and placed in the same folder and project.";
@@ -170,68 +179,92 @@ public class CSVUtils {
 			is1DExport = true;
 		}
 
-		final StringBuilder contents = new StringBuilder();
-		if (is1DExport) {
-            get1DDataSetCVS(contents, sortedData, maxSize, monitor);
-		} else if (sortedData.size()==1){
+		if (!is1DExport && sortedData.size()!=1) {
+			throw new Exception("The data cannot be parsed to csv.");
+		}
+		if (!is1DExport) {
 			final IDataset dataset2d = sortedData.values().iterator().next();
 			if (dataset2d.getShape()[0]*dataset2d.getShape()[1]>120000) {
 			    throw new Exception("The data contains an image "+dataset2d.getShape()[0]+"x"+dataset2d.getShape()[1]+" is too large to be converted to csv.");
 			}
-			get2DDataSetCVS(contents,dataset2d);
-		} else {
-			throw new Exception("The data cannot be parsed to csv.");
+		}
+
+		final File         tmp    = createTempFile();
+		final ColumnWriter writer = openWriter(tmp);
+		try {
+			if (is1DExport) {
+				get1DDataSetCVS(writer, sortedData, maxSize, monitor);
+			} else {
+				get2DDataSetCVS(writer, sortedData.values().iterator().next());
+			}
+		} finally {
+			writer.close();
 		}
 		
-		return new ByteArrayInputStream(contents.toString().getBytes());
+		return getTempStream(tmp);
+
+	}
+
+	/**
+	 * The csv is written to a temporary file rather than held in memory,
+	 * the file is deleted when the stream returned by {@link #getTempStream(File)} is closed.
+	 */
+	private static File createTempFile() throws IOException {
+		final File tmp = File.createTempFile("csv_export", ".csv");
+		tmp.deleteOnExit();
+		return tmp;
+	}
+
+	private static ColumnWriter openWriter(File tmp) throws IOException {
+		// Same encoding as String.getBytes() which was used previously.
+		return ColumnWriter.open(tmp, Charset.defaultCharset().name());
+	}
 
+	private static InputStream getTempStream(final File tmp) throws IOException {
+		return new FileInputStream(tmp) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				tmp.delete();
+			}
+		};
 	}
 
 
-	private static void get2DDataSetCVS(StringBuilder contents, IDataset dataset2d) {
+	private static void get2DDataSetCVS(ColumnWriter writer, IDataset dataset2d) throws IOException {
 
 		final int xSize = dataset2d.getShape()[0];
 		final int ySize = dataset2d.getShape()[1];
 		for (int y = 0; y < ySize; y++) {
 			for (int x = 0; x < xSize; x++) {
-				contents.append(dataset2d.getDouble(x,y));
-				if (x<xSize-1)contents.append(",");
+				writer.writeCell(dataset2d.getDouble(x,y));
 			}
-			contents.append("\r\n"); // Intentionally windows.
+			writer.endRow(); // Intentionally windows.
 		}
 		
 	}
 
 
-	private static void get1DDataSetCVS(final StringBuilder        contents,
+	private static void get1DDataSetCVS(final ColumnWriter         writer,
 			                            final Map<String, ? extends IDataset> sortedData,
 			                            final int                  maxSize,
-			                            final IProgressMonitor     monitor) {
+			                            final IProgressMonitor     monitor) throws IOException {
 		
-		for (Iterator<String> it = sortedData.keySet().iterator(); it.hasNext(); ) {
-			
-			final String name = it.next();
-			contents.append("\"");
-			contents.append(name);
-			contents.append("\"");
-			if (it.hasNext()) contents.append(",");
-		}
-		contents.append("\r\n"); // Intentionally windows.
+		writer.writeNames(null, sortedData.keySet());
 		
 		for (int i = 0; i < maxSize; i++) {
-			for (Iterator<String> it = sortedData.keySet().iterator(); it.hasNext(); ) {
+			for (IDataset set : sortedData.values()) {
 				
-				final String name = it.next();
-
-				final IDataset set = sortedData.get(name);
-				final String     value = (i<set.getSize()) ? String.valueOf(((IDataset)set).getDouble(i)) : " ";
-				contents.append(value);
-				if (it.hasNext()) contents.append(",");
+				if (i<set.getSize()) {
+					writer.writeCell(set.getDouble(i));
+				} else {
+					writer.writeCell(" ");
+				}
 				
 				if (monitor!=null && i>=(maxSize-1))	monitor.worked(1);
 
 			}
-			contents.append("\r\n"); // Intentionally windows.
+			writer.endRow(); // Intentionally windows.
 		}
 	}
 
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawb.common.util.number;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * DoubleFormatter is used in place of String.format(...) when writing many
+ * doubles, so it must give the same text.
+ */
+public class DoubleFormatterTest {
+
+	private static final double[] VALUES = new double[] {
+		0d, -0d, 1d, -1d, 1.5, 0.1, 123.456, 12345678d, 99999999.6, 0.0001, 0.000099999999,
+		0.0012345678, 3.141592653589793, -2.718281828459045, 1e10, 6.02214076e23, 1.602176634e-19,
+		Double.MAX_VALUE, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+	};
+
+	@Test
+	public void testSameAsFormat() {
+		for (int significant : new int[]{1, 3, 8, 12}) {
+			final DoubleFormatter formatter = new DoubleFormatter(significant);
+			for (double value : VALUES) {
+				assertEquals("Formatting "+value, String.format("%."+significant+"g", value), formatter.format(value));
+			}
+		}
+	}
+
+	@Test
+	public void testOffset() {
+		final DoubleFormatter formatter = new DoubleFormatter(8);
+		final char[] buf = new char[DoubleFormatter.MAX_LENGTH+4];
+		final int len = formatter.format(-123.456, buf, 4);
+		assertEquals("-123.45600", new String(buf, 4, len));
+	}
+}
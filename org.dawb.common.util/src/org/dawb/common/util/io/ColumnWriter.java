@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawb.common.util.io;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Iterator;
+
+import org.dawb.common.util.number.DoubleFormatter;
+
+/**
+ * Writes columns of values as text, one row at a time, for the ascii, dat and
+ * csv exports. Nothing is kept in memory other than the buffer of the writer.
+ *
+ * The default layout is csv: names in double quotes, cells separated by commas
+ * and windows line ends, which are read on unix too.
+ *
+ * <pre>
+ * try (ColumnWriter writer = ColumnWriter.open(file, "US-ASCII")) {
+ *     writer.writeNames(null, names);
+ *     for (int i = 0; i &lt; size; i++) {
+ *         for (...) writer.writeCell(value);
+ *         writer.endRow();
+ *     }
+ * }
+ * </pre>
+ */
+public class ColumnWriter implements Closeable, Flushable {
+
+	public static final String WINDOWS_LINE_END = "\r\n";
+
+	private final Writer    out;
+	private final char[]    cell;
+	private String          separator  = ",";
+	private String          lineEnd    = WINDOWS_LINE_END;
+	private boolean         quoteNames = true;
+	private DoubleFormatter formatter;
+	private int             column;
+
+	/**
+	 *
+	 * @param out is buffered by the column writer if it is not already a BufferedWriter.
+	 */
+	public ColumnWriter(Writer out) {
+		this.out  = out instanceof BufferedWriter ? out : new BufferedWriter(out);
+		this.cell = new char[DoubleFormatter.MAX_LENGTH];
+	}
+
+	/**
+	 * Creates or replaces the file.
+	 *
+	 * @param file
+	 * @param encoding
+	 * @return a writer which must be closed.
+	 * @throws IOException
+	 */
+	public static ColumnWriter open(File file, String encoding) throws IOException {
+		return new ColumnWriter(Files.newBufferedWriter(file.toPath(), Charset.forName(encoding)));
+	}
+
+	/**
+	 * @param separator written between cells, default ","
+	 * @return this
+	 */
+	public ColumnWriter setSeparator(String separator) {
+		this.separator = separator;
+		return this;
+	}
+
+	/**
+	 * @param lineEnd written at the end of each row, default windows line end.
+	 * @return this
+	 */
+	public ColumnWriter setLineEnd(String lineEnd) {
+		this.lineEnd = lineEnd;
+		return this;
+	}
+
+	/**
+	 * @param quoteNames true to write the column names in double quotes, default true.
+	 * @return this
+	 */
+	public ColumnWriter setQuoteNames(boolean quoteNames) {
+		this.quoteNames = quoteNames;
+		return this;
+	}
+
+	/**
+	 * @param formatter used to write doubles, if null Double.toString() is used.
+	 * @return this
+	 */
+	public ColumnWriter setFormatter(DoubleFormatter formatter) {
+		this.formatter = formatter;
+		return this;
+	}
+
+	/**
+	 * Writes a line of text, for instance a comment in the header.
+	 *
+	 * @param line
+	 * @throws IOException
+	 */
+	public void writeLine(String line) throws IOException {
+		out.write(line);
+		out.write(lineEnd);
+	}
+
+	/**
+	 * Writes the row of column names.
+	 *
+	 * @param prefix written before the first name, for instance "# ", may be null.
+	 * @param names
+	 * @throws IOException
+	 */
+	public void writeNames(String prefix, Iterable<String> names) throws IOException {
+		if (prefix!=null) out.write(prefix);
+		for (Iterator<String> it = names.iterator(); it.hasNext(); ) {
+			if (quoteNames) out.write('"');
+			out.write(it.next());
+			if (quoteNames) out.write('"');
+			if (it.hasNext()) out.write(separator);
+		}
+		out.write(lineEnd);
+	}
+
+	/**
+	 * Writes the value as the next cell of the current row.
+	 * @param value
+	 * @throws IOException
+	 */
+	public void writeCell(double value) throws IOException {
+		nextCell();
+		if (formatter!=null) {
+			out.write(cell, 0, formatter.format(value, cell, 0));
+		} else {
+			out.write(Double.toString(value));
+		}
+	}
+
+	/**
+	 * Writes the value as the next cell of the current row.
+	 * @param value
+	 * @throws IOException
+	 */
+	public void writeCell(long value) throws IOException {
+		nextCell();
+		if (value==Long.MIN_VALUE) {
+			out.write(Long.toString(value));
+			return;
+		}
+		int pos = cell.length;
+		final boolean neg = value<0;
+		if (neg) value = -value;
+		do {
+			cell[--pos] = (char)('0'+(value%10));
+			value /= 10;
+		} while (value!=0);
+		if (neg) cell[--pos] = '-';
+		out.write(cell, pos, cell.length-pos);
+	}
+
+	/**
+	 * Writes the text as the next cell of the current row, without quotes.
+	 * @param text
+	 * @throws IOException
+	 */
+	public void writeCell(String text) throws IOException {
+		nextCell();
+		out.write(text);
+	}
+
+	private void nextCell() throws IOException {
+		if (column>0) out.write(separator);
+		column++;
+	}
+
+	/**
+	 * Ends the current row.
+	 * @throws IOException
+	 */
+	public void endRow() throws IOException {
+		out.write(lineEnd);
+		column = 0;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawb.common.util.number;
+
+/**
+ * Formats doubles like String.format("%.<i>n</i>g", value) writing the characters
+ * into an array supplied by the caller, so that no objects are created per value.
+ *
+ * The value is rounded with double arithmetic rather than from its shortest decimal
+ * representation, so a value half way between two numbers of n significant figures
+ * or a sub-normal value may differ in the last figure. Instances are immutable and
+ * may be shared between threads.
+ */
+public class DoubleFormatter {
+
+	/**
+	 * The longest string produced, used to size arrays passed to {@link #format(double, char[], int)}
+	 */
+	public static final int MAX_LENGTH = 32;
+
+	private static final double[] POWERS = new double[23];
+	static {
+		POWERS[0] = 1d;
+		for (int i = 1; i < POWERS.length; i++) POWERS[i] = POWERS[i-1]*10d;
+	}
+
+	private static final char[] NAN      = "NaN".toCharArray();
+	private static final char[] INFINITY = "Infinity".toCharArray();
+
+	private final int  significant;
+	private final long low;
+	private final long high;
+
+	/**
+	 *
+	 * @param significant the number of significant figures, 1 to 17.
+	 */
+	public DoubleFormatter(int significant) {
+		if (significant<1 || significant>17) throw new IllegalArgumentException("The number of significant figures must be between 1 and 17!");
+		this.significant = significant;
+		this.low         = (long)POWERS[significant-1];
+		this.high        = (long)POWERS[significant];
+	}
+
+	/**
+	 *
+	 * @return the number of significant figures.
+	 */
+	public int getSignificant() {
+		return significant;
+	}
+
+	/**
+	 * Convenience method which creates a string, use {@link #format(double, char[], int)}
+	 * when formatting many values.
+	 * @param value
+	 * @return the formatted value
+	 */
+	public String format(double value) {
+		final char[] buf = new char[MAX_LENGTH];
+		return new String(buf, 0, format(value, buf, 0));
+	}
+
+	/**
+	 * Writes the formatted value into dest.
+	 *
+	 * @param value
+	 * @param dest must have at least {@link #MAX_LENGTH} characters after offset.
+	 * @param offset
+	 * @return the number of characters written.
+	 */
+	public int format(double value, char[] dest, int offset) {
+
+		int pos = offset;
+		if (Double.isNaN(value)) return copy(NAN, dest, pos);
+		if (Double.doubleToRawLongBits(value)<0) dest[pos++] = '-';
+		if (Double.isInfinite(value)) return pos-offset+copy(INFINITY, dest, pos);
+
+		final double abs = Math.abs(value);
+		long m   = 0;
+		int  exp = 0;
+		if (abs!=0d) {
+			exp = (int)Math.floor(Math.log10(abs));
+			m   = Math.round(scale(abs, significant-1-exp));
+			// log10 may be one out near powers of ten
+			if (m<low) {
+				exp--;
+				m = Math.round(scale(abs, significant-1-exp));
+			}
+			if (m>=high) {
+				exp++;
+				m = Math.round(scale(abs, significant-1-exp));
+				if (m>=high) m = low; // Rounded up to the next power of ten
+			}
+		}
+
+		if (exp>=-4 && exp<significant) {
+			if (exp<0) {
+				dest[pos++] = '0';
+				dest[pos++] = '.';
+				for (int i = -1; i > exp; i--) dest[pos++] = '0';
+				pos = digits(m, significant, dest, pos, -1);
+			} else {
+				pos = digits(m, significant, dest, pos, exp+1);
+			}
+		} else {
+			pos = digits(m, significant, dest, pos, 1);
+			dest[pos++] = 'e';
+			dest[pos++] = exp<0 ? '-' : '+';
+			int aexp = Math.abs(exp);
+			if (aexp>=100) {
+				dest[pos++] = (char)('0'+aexp/100);
+				aexp %= 100;
+			}
+			dest[pos++] = (char)('0'+aexp/10);
+			dest[pos++] = (char)('0'+aexp%10);
+		}
+		return pos-offset;
+	}
+
+	/**
+	 * Writes the count digits of m with a decimal point after the first point digits,
+	 * no point if there are no digits after it.
+	 */
+	private static int digits(long m, int count, char[] dest, int pos, int point) {
+		final boolean hasPoint = point>0 && point<count;
+		final int     end      = pos+count+(hasPoint ? 1 : 0);
+		int i = end;
+		for (int d = count-1; d >= 0; d--) {
+			if (hasPoint && d==point-1) dest[--i] = '.';
+			dest[--i] = (char)('0'+(m%10));
+			m /= 10;
+		}
+		return end;
+	}
+
+	private static double scale(double value, int power) {
+		if (power==0) return value;
+		if (power>0) {
+			if (power<POWERS.length) return value*POWERS[power];
+			if (power>300) return value*1e300*Math.pow(10, power-300); // Sub-normal values
+			return value*Math.pow(10, power);
+		}
+		if (-power<POWERS.length) return value/POWERS[-power];
+		return value/Math.pow(10, -power);
+	}
+
+	private static int copy(char[] src, char[] dest, int pos) {
+		System.arraycopy(src, 0, dest, pos, src.length);
+		return src.length;
+	}
+}
@@ -119,13 +119,13 @@ public class BoofCVImageTransformImpl<T extends ImageSingleBand<?>, TD extends T
 	public ILazyDataset align(ILazyDataset lazydata, DetectionAlgoParameters detectParams, HessianRegParameters hessianParams, IMonitor monitor) throws Exception {
 		if (lazydata.getShape().length != 3)
 			throw new Exception("Supported Lazy data is 3D, please provide a 3D dataset");
-		// save on a temp file
-		String file = System.getProperty("java.io.tmpdir") + File.separator + "tmp_aligned.h5";
+		// save on a temp file, unique so that alignments run at the same time do not share it
+		File tmpFile = File.createTempFile("tmp_aligned", ".h5");
+		tmpFile.delete();
+		tmpFile.deleteOnExit();
+		String file = tmpFile.getAbsolutePath();
 		String path = "/entry/data/";
 		String name = "aligned";
-		File tmpFile = new File(file);
-		if (tmpFile.exists())
-			tmpFile.delete();
 		IDataset firstSlice = lazydata.getSlice(new Slice(1)).squeeze();
 		ILazyWriteableDataset lazy = HDF5Utils.createLazyDataset(file, path, name, lazydata.getShape(), null,
 				lazydata.getShape(), Dataset.FLOAT32, null, false);
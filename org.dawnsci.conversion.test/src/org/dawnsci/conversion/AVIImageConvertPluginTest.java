@@ -8,8 +8,11 @@
  */
 package org.dawnsci.conversion;
 
+import static org.junit.Assert.assertArrayEquals;
+
 import java.awt.Dimension;
 import java.io.File;
+import java.nio.file.Files;
 
 import org.dawb.common.services.ServiceManager;
 import org.dawb.common.ui.image.PaletteFactory;
@@ -48,6 +51,46 @@ public class AVIImageConvertPluginTest {
 	@Test
 	public void testAVISimple() throws Exception {
 		
+		final File avi = File.createTempFile("test_video", ".avi");
+		avi.deleteOnExit();
+		convert(avi);
+        
+        // Check avi file
+        final AVIReader reader = new AVIReader(avi);
+        int trackCount = reader.getTrackCount();
+        if (trackCount!=1) throw new Exception("Incorrect number of tracks!");
+        Dimension d = reader.getVideoDimension();
+        if (d.width!=1024) throw new Exception("Incorrect downsampling applied!");
+        if (d.height!=1024) throw new Exception("Incorrect downsampling applied!");
+        
+        // Done
+        System.out.println("Test passed, avi file written!");
+   	}
+	
+	/**
+	 * The frames rendered ahead on several threads must make the same video
+	 * as rendering each frame on the conversion thread.
+	 */
+	@Test
+	public void testRenderThreads() throws Exception {
+		
+		final File single   = File.createTempFile("test_video_single", ".avi");
+		final File threaded = File.createTempFile("test_video_threaded", ".avi");
+		single.deleteOnExit();
+		threaded.deleteOnExit();
+		try {
+			System.setProperty(AVIImageConverter.RENDER_THREADS, "0");
+			convert(single);
+			System.setProperty(AVIImageConverter.RENDER_THREADS, "4");
+			convert(threaded);
+		} finally {
+			System.clearProperty(AVIImageConverter.RENDER_THREADS);
+		}
+		assertArrayEquals(Files.readAllBytes(single.toPath()), Files.readAllBytes(threaded.toPath()));
+	}
+	
+	private void convert(File avi) throws Exception {
+		
 		IConversionService service = new ConversionServiceImpl();
 		
 		// Not sure of this will work...
@@ -60,8 +103,6 @@ public class AVIImageConvertPluginTest {
 		final String path = getTestFilePath("export.h5");
 		
 		final IConversionContext context = service.open(path);
-		final File avi = File.createTempFile("test_video", ".avi");
-		avi.deleteOnExit();
         context.setOutputPath(avi.getAbsolutePath());
         context.setConversionScheme(scheme);
         context.setDatasetName("/entry/edf/data");
@@ -74,18 +115,7 @@ public class AVIImageConvertPluginTest {
         context.setUserObject(info);
         
         service.process(context);
-        
-        // Check avi file
-        final AVIReader reader = new AVIReader(avi);
-        int trackCount = reader.getTrackCount();
-        if (trackCount!=1) throw new Exception("Incorrect number of tracks!");
-        Dimension d = reader.getVideoDimension();
-        if (d.width!=1024) throw new Exception("Incorrect downsampling applied!");
-        if (d.height!=1024) throw new Exception("Incorrect downsampling applied!");
-        
-        // Done
-        System.out.println("Test passed, avi file written!");
-   	}
+	}
 	
 	private ImageServiceBean createTestingBean() {
 		ImageServiceBean imageServiceBean = new ImageServiceBean();
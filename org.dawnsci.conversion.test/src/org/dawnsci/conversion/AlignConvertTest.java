@@ -60,7 +60,16 @@ public class AlignConvertTest {
 	@Test
 	public void testDir() throws Exception {
 		System.out.println("starting align image conversion test from directory with image files");
-		doTestDir();
+		doTestDir(false);
+	}
+
+	@Test
+	public void testDirStreamed() throws Exception {
+		System.out.println("starting align image conversion test aligning each image as it is read");
+		if (transformer == null)
+			transformer = BoofCVImageTransformCreator.createTransformService();
+		ServiceLoader.setImageTransform(transformer);
+		doTestDir(true);
 	}
 
 	@After
@@ -95,7 +104,8 @@ public class AlignConvertTest {
 		ConversionAlignBean bean = new ConversionAlignBean();
 
 		List<IDataset> aligned = getAlignedImages(data);
-		bean.setAligned(aligned);
+		// Otherwise the converter aligns the images
+		if (!streamed) bean.setAligned(aligned);
 		context.setUserObject(bean);
 
 		service.process(context);
@@ -121,7 +131,7 @@ public class AlignConvertTest {
 		}
 	}
 
-	private void doTestDir() throws Exception {
+	private void doTestDir(boolean streamed) throws Exception {
 
 		final File sourcedir = new File("testfiles/27099_drifted_png");
 		org.apache.commons.io.FileUtils.copyDirectory(sourcedir, dir);
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.dawnsci.conversion.converters.util.AsyncImageWriter;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.IDataset;
+import org.junit.Test;
+
+public class AsyncImageWriterTest {
+
+	@Test
+	public void testWriteAndFlush() throws Exception {
+
+		final File tmp = File.createTempFile("whatever", ".unknown");
+		tmp.deleteOnExit();
+		final File dir = new File(tmp.getParent(), "async_writer"+System.currentTimeMillis());
+		dir.deleteOnExit();
+
+		// A queue of one so that writing blocks until the previous image is written.
+		final AsyncImageWriter writer = new AsyncImageWriter("Test", 2, 1);
+		try {
+			for (int i = 0; i < 8; i++) {
+				final IDataset image = DatasetFactory.createRange(64*64).reshape(64, 64);
+				image.setName("image"+i);
+				writer.write(new File(dir, "image"+i+".tif").getAbsolutePath(), "tiff", 16, image, null);
+			}
+			writer.flush();
+		} finally {
+			writer.close();
+		}
+
+		final File[] files = dir.listFiles();
+		assertEquals(8, files.length);
+		for (File file : files) {
+			file.deleteOnExit();
+			assertTrue(file.length()>0);
+		}
+	}
+
+	@Test
+	public void testErrorThrownOnce() throws Exception {
+
+		// The parent is a file so the image cannot be written.
+		final File tmp = File.createTempFile("whatever", ".unknown");
+		tmp.deleteOnExit();
+
+		final AsyncImageWriter writer = new AsyncImageWriter("Test", 1, 1);
+		final IDataset image = DatasetFactory.createRange(16).reshape(4, 4);
+		image.setName("image");
+		writer.write(new File(tmp, "image.tif").getAbsolutePath(), "tiff", 16, image, null);
+		try {
+			writer.flush();
+			fail("The failure to write was not thrown");
+		} catch (Exception expected) {
+			// The error is reported to the conversion
+		}
+		writer.close(); // Must not hide the original error
+	}
+
+	@Test
+	public void testErrorReported() throws Exception {
+
+		final File tmp = File.createTempFile("whatever", ".unknown");
+		tmp.deleteOnExit();
+		final File dir = new File(tmp.getParent(), "async_error"+System.currentTimeMillis());
+		dir.deleteOnExit();
+
+		final AsyncImageWriter writer = new AsyncImageWriter("Test", 1, 1);
+		final IDataset image = DatasetFactory.createRange(16).reshape(4, 4);
+		image.setName("image");
+		final File file = new File(dir, "image.tif");
+		file.deleteOnExit();
+		final Error thrown = new AssertionError("Not an exception");
+		writer.write(file.getAbsolutePath(), "tiff", 16, image, null, new Runnable() {
+			@Override
+			public void run() {
+				throw thrown;
+			}
+		});
+		try {
+			writer.flush();
+			fail("The error on the writing thread was not thrown");
+		} catch (Exception expected) {
+			assertSame(thrown, expected.getCause());
+		}
+		writer.close();
+	}
+}
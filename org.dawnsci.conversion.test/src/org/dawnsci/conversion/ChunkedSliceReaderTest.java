@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.dawnsci.conversion.converters.util.ChunkedSliceReader;
+import org.dawnsci.conversion.converters.util.FrameBatchWriter;
+import org.dawnsci.conversion.converters.util.LocalServiceManager;
+import org.eclipse.dawnsci.analysis.dataset.slicer.SliceViewIterator;
+import org.eclipse.dawnsci.analysis.dataset.slicer.Slicer;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.IDataset;
+import org.eclipse.january.dataset.ILazyDataset;
+import org.eclipse.january.dataset.SliceND;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.io.LoaderServiceImpl;
+
+public class ChunkedSliceReaderTest {
+
+	@Before
+	public void before() {
+		LocalServiceManager.setLoaderService(new LoaderServiceImpl());
+	}
+
+	@Test
+	public void testSameSlices() throws Exception {
+
+		final Dataset data = DatasetFactory.createRange(6*10*4*4, Dataset.FLOAT64).reshape(6, 10, 4, 4);
+		final Map<Integer, String> dims = new HashMap<Integer, String>();
+		dims.put(0, "all");
+		dims.put(1, "all");
+
+		final SliceND slice = Slicer.getSliceNDFromSliceDimensions(dims, data.getShape());
+		final int[]   axes  = Slicer.getDataDimensions(data.getShape(), dims);
+
+		// Chunks three deep in both slice dimensions, read as chunk-rows of three by ten images
+		final ChunkedSliceReader reader = ChunkedSliceReader.create(data, slice, axes, new int[]{3, 3, 4, 4}, Long.MAX_VALUE);
+		assertNotNull(reader);
+
+		final SliceViewIterator it = new SliceViewIterator(data, slice, axes);
+		int count = 0;
+		while (it.hasNext()) {
+			final ILazyDataset view = it.next();
+			final IDataset expected = view.getSlice().squeeze();
+			final IDataset actual   = reader.read(view).squeeze();
+			assertEquals(expected, actual);
+			count++;
+		}
+		assertEquals(60, count);
+		assertEquals(2, reader.getBlockReads());
+	}
+
+	/**
+	 * Slices read on several threads, as the parallel iteration does, are served from
+	 * the blocks read by the other threads.
+	 */
+	@Test(timeout=30000)
+	public void testConcurrentSlices() throws Exception {
+
+		final Dataset data = DatasetFactory.createRange(12*4*4, Dataset.FLOAT64).reshape(12, 4, 4);
+		final Map<Integer, String> dims = new HashMap<Integer, String>();
+		dims.put(0, "all");
+		final SliceND slice = Slicer.getSliceNDFromSliceDimensions(dims, data.getShape());
+		final int[]   axes  = Slicer.getDataDimensions(data.getShape(), dims);
+
+		final ChunkedSliceReader reader = ChunkedSliceReader.create(data, slice, axes, new int[]{4, 4, 4}, Long.MAX_VALUE);
+		final ExecutorService    pool   = Executors.newFixedThreadPool(4);
+		try {
+			final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			final SliceViewIterator it = new SliceViewIterator(data, slice, axes);
+			while (it.hasNext()) {
+				final ILazyDataset view = it.next();
+				results.add(pool.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						return view.getSlice().squeeze().equals(reader.read(view).squeeze());
+					}
+				}));
+			}
+			for (Future<Boolean> result : results) assertTrue(result.get());
+		} finally {
+			pool.shutdown();
+		}
+		// A block may be read again if a thread is held up behind the others
+		assertTrue(reader.getBlockReads()>=3 && reader.getBlockReads()<12);
+	}
+
+	@Test
+	public void testBudget() throws Exception {
+
+		final Dataset data = DatasetFactory.zeros(new int[]{16, 4, 4}, Dataset.FLOAT64);
+		final Map<Integer, String> dims = new HashMap<Integer, String>();
+		dims.put(0, "all");
+		final SliceND slice = Slicer.getSliceNDFromSliceDimensions(dims, data.getShape());
+		final int[]   axes  = Slicer.getDataDimensions(data.getShape(), dims);
+
+		// One image is 128 bytes, a block of 8 is 1024
+		assertNotNull(ChunkedSliceReader.create(data, slice, axes, new int[]{8, 4, 4}, 1024));
+		assertNull(ChunkedSliceReader.create(data, slice, axes, new int[]{8, 4, 4}, 1023));
+		// Already one chunk per slice
+		assertNull(ChunkedSliceReader.create(data, slice, axes, new int[]{1, 4, 4}, Long.MAX_VALUE));
+		assertNull(ChunkedSliceReader.create(data, slice, axes, null, Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testChunkingFromFile() throws Exception {
+
+		final File output = File.createTempFile("ChunkedSliceReaderTest", ".h5");
+		output.delete();
+		output.deleteOnExit();
+
+		final FrameBatchWriter writer = new FrameBatchWriter(output.getAbsolutePath(), "/entry/data", "data");
+		writer.setChunkFrames(8);
+		for (int i = 0; i < 16; i++) writer.append(DatasetFactory.zeros(new int[]{4, 4}, Dataset.FLOAT32));
+		writer.close();
+
+		assertArrayEquals(new int[]{8, 4, 4}, ChunkedSliceReader.getChunking(output.getAbsolutePath(), "/entry/data/data", 3));
+		assertNull(ChunkedSliceReader.getChunking(output.getAbsolutePath(), "/entry/data/missing", 3));
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import org.dawb.common.util.io.FileUtils;
+import org.dawnsci.conversion.converters.IExtendedConversionContext;
+import org.dawnsci.conversion.converters.util.ConversionJournal;
+import org.dawnsci.conversion.converters.util.FrameBatchWriter;
+import org.dawnsci.conversion.converters.util.LocalServiceManager;
+import org.dawnsci.conversion.schemes.ImageConverterScheme;
+import org.dawnsci.conversion.schemes.ImagesToHDFConverterScheme;
+import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
+import org.eclipse.dawnsci.analysis.api.conversion.IConversionService;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.DatasetUtils;
+import org.eclipse.january.dataset.ILazyDataset;
+import org.junit.Before;
+import org.junit.Test;
+
+import hdf.hdf5lib.H5;
+import hdf.hdf5lib.HDF5Constants;
+import uk.ac.diamond.scisoft.analysis.io.DataHolder;
+import uk.ac.diamond.scisoft.analysis.io.JavaImageSaver;
+import uk.ac.diamond.scisoft.analysis.io.LoaderServiceImpl;
+
+public class ConversionJournalTest {
+
+	@Before
+	public void before() {
+		LocalServiceManager.setLoaderService(new LoaderServiceImpl());
+	}
+
+	@Test
+	public void testReopen() throws Exception {
+
+		final File file = File.createTempFile("ConversionJournalTest", ".checkpoint");
+		file.delete();
+		file.deleteOnExit();
+
+		ConversionJournal journal = ConversionJournal.open(file);
+		journal.fileDone("/data/a.nxs");
+		journal.sliceDone("/data/b.nxs", "/entry/data", 0);
+		journal.sliceDone("/data/b.nxs", "/entry/data", 1);
+		journal.sliceDone("/data/b.nxs", "/entry/data", 3);
+		journal.close();
+
+		// A line cut short when the process stopped
+		try (FileWriter out = new FileWriter(file, true)) {
+			out.write("S\t/data/b.nxs\t/entry/da");
+		}
+
+		journal = ConversionJournal.open(file);
+		try {
+			assertTrue(journal.isFileDone("/data/a.nxs"));
+			assertFalse(journal.isFileDone("/data/b.nxs"));
+			assertTrue(journal.isSliceDone("/data/b.nxs", "/entry/data", 1));
+			assertFalse(journal.isSliceDone("/data/b.nxs", "/entry/data", 2));
+			assertFalse(journal.isSliceDone("/data/b.nxs", "/entry/other", 0));
+			assertEquals(2, journal.getSlicesDone("/data/b.nxs", "/entry/data"));
+		} finally {
+			journal.delete();
+		}
+		assertFalse(file.exists());
+	}
+
+	/**
+	 * Lines cut short are not read, even when they could be, and entries appended
+	 * after them are.
+	 */
+	@Test
+	public void testTornLines() throws Exception {
+
+		final File file = File.createTempFile("ConversionJournalTest", ".checkpoint");
+		file.delete();
+		file.deleteOnExit();
+
+		ConversionJournal journal = ConversionJournal.open(file);
+		journal.sliceDone("/data/b.nxs", "/entry/data", 0);
+		journal.sliceDone("/data/b.nxs", "/entry/data", 1);
+		journal.close();
+
+		// Slice 12 cut after its first digit
+		try (FileWriter out = new FileWriter(file, true)) {
+			out.write("S\t/data/b.nxs\t/entry/data\t1");
+		}
+		journal = ConversionJournal.open(file);
+		journal.sliceDone("/data/b.nxs", "/entry/data", 2);
+		journal.fileDone("/data/c.nxs");
+		journal.close();
+
+		// A file cut in its path
+		try (FileWriter out = new FileWriter(file, true)) {
+			out.write("F\t/data/d");
+		}
+		journal = ConversionJournal.open(file);
+		journal.sliceDone("/data/e.nxs", "/entry/data", 12);
+		journal.close();
+
+		journal = ConversionJournal.open(file);
+		try {
+			assertEquals(3, journal.getSlicesDone("/data/b.nxs", "/entry/data"));
+			assertFalse(journal.isSliceDone("/data/b.nxs", "/entry/data", 12));
+			assertTrue(journal.isFileDone("/data/c.nxs"));
+			assertFalse(journal.isFileDone("/data/d"));
+			assertTrue(journal.isSliceDone("/data/e.nxs", "/entry/data", 12));
+		} finally {
+			journal.delete();
+		}
+	}
+
+	@Test
+	public void testResumeImages() throws Exception {
+
+		final IConversionService service = new ConversionServiceImpl();
+		final IConversionContext context = service.open(new File("testfiles/export.h5").getAbsolutePath());
+		final File tmp = File.createTempFile("whatever", ".unknown");
+		tmp.deleteOnExit();
+		final File dir = new File(tmp.getParent(), "resume_export"+System.currentTimeMillis());
+		dir.mkdirs();
+		dir.deleteOnExit();
+		context.setOutputPath(dir.getAbsolutePath());
+		context.setConversionScheme(new ImageConverterScheme());
+		context.setDatasetName("/entry/edf/data");
+		context.addSliceDimension(0, "all");
+
+		// An earlier run wrote the first two of the four images
+		final IExtendedConversionContext ext = (IExtendedConversionContext)context;
+		ext.setCheckpointing(true);
+		final File checkpoint = ext.getCheckpointFile();
+		final ConversionJournal journal = ConversionJournal.open(checkpoint);
+		journal.sliceDone(new File("testfiles/export.h5").getAbsolutePath(), "/entry/edf/data", 0);
+		journal.sliceDone(new File("testfiles/export.h5").getAbsolutePath(), "/entry/edf/data", 1);
+		journal.close();
+
+		service.process(context);
+
+		final File[] images = new File(dir, "export").listFiles();
+		for (File image : images) image.deleteOnExit();
+		assertEquals(2, images.length);
+		assertEquals(2, ext.getMetrics().getSlices());
+		assertFalse("The journal must be deleted once the conversion completes", checkpoint.exists());
+	}
+
+	/**
+	 * A stack of images which an earlier run wrote part of is finished from the frames
+	 * recorded, and must be the same as the stack written in one run.
+	 */
+	@Test
+	public void testResumeStack() throws Exception {
+
+		final File tmp = File.createTempFile("whatever", ".unknown");
+		tmp.delete();
+		final File dir = new File(tmp.getParent(), "resume_stack"+System.currentTimeMillis());
+		final File images = new File(dir, "images");
+		images.mkdirs();
+		try {
+			for (int i = 0; i < 8; i++) {
+				final Dataset image = DatasetFactory.createRange(32*32, Dataset.INT32).iadd(i*100).reshape(32, 32);
+				final DataHolder dh = new DataHolder();
+				dh.addDataset("image", image);
+				new JavaImageSaver(new File(images, "image_"+i+".tif").getAbsolutePath(), "tiff", 16, true).saveFile(dh);
+			}
+
+			final File full = new File(dir, "full.h5");
+			new ConversionServiceImpl().process(openStack(images, full));
+
+			// An earlier run wrote the first three frames and recorded them
+			final File resumed = new File(dir, "resumed.h5");
+			final FrameBatchWriter writer = new FrameBatchWriter(resumed.getAbsolutePath(), "/entry/data", "data");
+			for (int i = 0; i < 3; i++) {
+				writer.append(LocalServiceManager.getLoaderService().getData(new File(images, "image_"+i+".tif").getAbsolutePath(), null).getDataset(0));
+			}
+			writer.close();
+			final ConversionJournal journal = ConversionJournal.open(new File(resumed.getAbsolutePath()+".checkpoint"));
+			for (int i = 0; i < 3; i++) journal.sliceDone("", "Folder Stack", i);
+			journal.close();
+
+			// Written in small compressed batches, which the context passes to the writer
+			final IExtendedConversionContext context = openStack(images, resumed);
+			context.setCheckpointing(true);
+			context.setChunkFrames(1);
+			context.setBatchFrames(2);
+			context.setDeflateLevel(6);
+			new ConversionServiceImpl().process(context);
+			assertEquals("Only the frames not recorded must be converted", 5, context.getMetrics().getSlices());
+			assertFalse("The frames moved aside must be deleted", new File(resumed.getAbsolutePath()+".resume").exists());
+			assertFalse("The journal must be deleted once the conversion completes", context.getCheckpointFile().exists());
+
+			final ILazyDataset expected = LocalServiceManager.getLoaderService().getData(full.getAbsolutePath(), null).getLazyDataset("/entry/data/data");
+			final ILazyDataset actual   = LocalServiceManager.getLoaderService().getData(resumed.getAbsolutePath(), null).getLazyDataset("/entry/data/data");
+			assertEquals(DatasetUtils.convertToDataset(expected.getSlice()), DatasetUtils.convertToDataset(actual.getSlice()));
+
+			final long fid = H5.H5Fopen(resumed.getAbsolutePath(), HDF5Constants.H5F_ACC_RDONLY, HDF5Constants.H5P_DEFAULT);
+			try {
+				final long dataset = H5.H5Dopen(fid, "/entry/data/data", HDF5Constants.H5P_DEFAULT);
+				final long plist   = H5.H5Dget_create_plist(dataset);
+				final long[] chunk = new long[3];
+				H5.H5Pget_chunk(plist, 3, chunk);
+				assertEquals("One frame per chunk", 1, chunk[0]);
+				H5.H5Pclose(plist);
+				H5.H5Dclose(dataset);
+			} finally {
+				H5.H5Fclose(fid);
+			}
+
+			// The context opens a new journal for another conversion
+			final ConversionJournal again = context.getJournal();
+			assertFalse(again.isClosed());
+			again.delete();
+
+		} finally {
+			FileUtils.recursiveDelete(dir);
+		}
+	}
+
+	private static IExtendedConversionContext openStack(File images, File output) throws Exception {
+		final IConversionContext context = new ConversionServiceImpl().open(images.getAbsolutePath()+"/image_.*tif");
+		context.setOutputPath(output.getAbsolutePath());
+		context.setDatasetName("/entry/data/data");
+		context.setConversionScheme(new ImagesToHDFConverterScheme());
+		return (IExtendedConversionContext)context;
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import org.dawb.common.util.io.FileUtils;
+import org.dawnsci.conversion.converters.IExtendedConversionContext;
+import org.dawnsci.conversion.converters.util.ConversionManifest;
+import org.dawnsci.conversion.converters.util.LocalServiceManager;
+import org.dawnsci.conversion.schemes.ImageConverterScheme;
+import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
+import org.eclipse.dawnsci.analysis.api.conversion.IConversionService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.io.LoaderServiceImpl;
+
+public class ConversionManifestTest {
+
+	private File dir;
+
+	@Before
+	public void before() throws Exception {
+		LocalServiceManager.setLoaderService(new LoaderServiceImpl());
+		final File tmp = File.createTempFile("whatever", ".unknown");
+		tmp.delete();
+		dir = new File(tmp.getParent(), "incremental_"+System.currentTimeMillis());
+		new File(dir, "input").mkdirs();
+		new File(dir, "output").mkdirs();
+	}
+
+	@After
+	public void after() {
+		FileUtils.recursiveDelete(dir);
+	}
+
+	@Test
+	public void testRecord() throws Exception {
+
+		final File input  = new File(dir, "input/a.dat");
+		final File output = new File(dir, "output/a.tif");
+		Files.write(input.toPath(), new byte[]{1, 2, 3, 4});
+		Files.write(output.toPath(), new byte[]{5});
+		final File file = new File(dir, "output/.conversion.manifest");
+
+		ConversionManifest manifest = ConversionManifest.open(file, "settings");
+		assertFalse(manifest.isUnchanged(input));
+		manifest.record(input, Arrays.asList(output));
+		manifest.save();
+
+		manifest = ConversionManifest.open(file, "settings");
+		assertTrue(manifest.isUnchanged(input));
+
+		// Touched but not changed
+		input.setLastModified(input.lastModified()-10000);
+		assertTrue(manifest.isUnchanged(input));
+
+		// Changed without changing its size
+		try (RandomAccessFile out = new RandomAccessFile(input, "rw")) {
+			out.write(9);
+		}
+		input.setLastModified(input.lastModified()-20000);
+		assertFalse(manifest.isUnchanged(input));
+
+		// Other settings
+		manifest.record(input, Arrays.asList(output));
+		manifest.save();
+		assertFalse(ConversionManifest.open(file, "other settings").isUnchanged(input));
+
+		// The output is missing
+		assertTrue(ConversionManifest.open(file, "settings").isUnchanged(input));
+		output.delete();
+		assertFalse(ConversionManifest.open(file, "settings").isUnchanged(input));
+	}
+
+	/**
+	 * A change between the parts sampled of a large file is only noticed when the
+	 * whole file is hashed, which is the default.
+	 */
+	@Test
+	public void testChangedInMiddle() throws Exception {
+
+		final File input  = new File(dir, "input/large.dat");
+		final File output = new File(dir, "output/large.tif");
+		Files.write(input.toPath(), new byte[8*1024*1024]);
+		Files.write(output.toPath(), new byte[]{5});
+
+		final ConversionManifest full    = ConversionManifest.open(new File(dir, "output/full.manifest"), "settings");
+		final ConversionManifest sampled = ConversionManifest.open(new File(dir, "output/sampled.manifest"), "settings", true);
+		full.record(input, Arrays.asList(output));
+		sampled.record(input, Arrays.asList(output));
+
+		try (RandomAccessFile out = new RandomAccessFile(input, "rw")) {
+			out.seek(2*1024*1024);
+			out.write(9);
+		}
+		input.setLastModified(input.lastModified()-20000);
+		assertFalse(full.isUnchanged(input));
+		assertTrue("Only the start, middle and end are sampled", sampled.isUnchanged(input));
+	}
+
+	@Test
+	public void testIncrementalImages() throws Exception {
+
+		final File input = new File(dir, "input/export.h5");
+		Files.copy(new File("testfiles/export.h5").toPath(), input.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+
+		IExtendedConversionContext context = convert();
+		assertEquals(1, context.getMetrics().getFiles());
+		assertEquals(4, new File(dir, "output/export").list().length);
+		assertTrue(context.getManifestFile().exists());
+
+		context = convert();
+		assertEquals("An unchanged input must be skipped", 0, context.getMetrics().getFiles());
+
+		input.setLastModified(input.lastModified()+10000);
+		context = convert();
+		assertEquals("An input which is only touched must be skipped", 0, context.getMetrics().getFiles());
+
+		FileUtils.recursiveDelete(new File(dir, "output/export"));
+		context = convert();
+		assertEquals("An input must be converted if its output is missing", 1, context.getMetrics().getFiles());
+		assertEquals(4, new File(dir, "output/export").list().length);
+	}
+
+	private IExtendedConversionContext convert() throws Exception {
+
+		final IConversionService service = new ConversionServiceImpl();
+		final IConversionContext context = service.open(new File(dir, "input").getAbsolutePath()+"/.*\\.h5");
+		context.setOutputPath(new File(dir, "output").getAbsolutePath());
+		context.setConversionScheme(new ImageConverterScheme());
+		context.setDatasetName("/entry/edf/data");
+		context.addSliceDimension(0, "all");
+
+		final IExtendedConversionContext ext = (IExtendedConversionContext)context;
+		ext.setIncremental(true);
+		service.process(context);
+		return ext;
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.dawnsci.conversion.converters.IExtendedConversionContext;
+import org.dawnsci.conversion.converters.util.ConversionMetrics;
+import org.dawnsci.conversion.converters.util.ConversionMetrics.Phase;
+import org.dawnsci.conversion.converters.util.LocalServiceManager;
+import org.dawnsci.conversion.schemes.ImageConverterScheme;
+import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
+import org.eclipse.dawnsci.analysis.api.conversion.IConversionService;
+import org.eclipse.january.IMonitor;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.io.LoaderServiceImpl;
+
+public class ConversionMetricsTest {
+
+	@Before
+	public void before() {
+		LocalServiceManager.setLoaderService(new LoaderServiceImpl());
+	}
+
+	@Test
+	public void testRecord() throws Exception {
+		final ConversionMetrics metrics = new ConversionMetrics();
+		final long start = System.nanoTime()-TimeUnit.MILLISECONDS.toNanos(2);
+		metrics.record(Phase.READ, start);
+		metrics.record(Phase.READ, System.nanoTime());
+		metrics.addBytesRead(100);
+
+		assertEquals(2, metrics.getCount(Phase.READ));
+		assertEquals(0, metrics.getCount(Phase.WRITE));
+		assertEquals(100, metrics.getBytesRead());
+		assertTrue(metrics.getMaxTime(Phase.READ, TimeUnit.MILLISECONDS)>=2);
+		assertTrue(metrics.getPercentile(Phase.READ, 1d)>=TimeUnit.MILLISECONDS.toNanos(2));
+
+		metrics.reset();
+		assertEquals(0, metrics.getCount(Phase.READ));
+		assertEquals(0, metrics.getBytesRead());
+	}
+
+	@Test
+	public void testImageConversion() throws Exception {
+
+		final IConversionService service = new ConversionServiceImpl();
+		final IConversionContext context = createContext(service, "metrics_export");
+
+		service.process(context);
+
+		final ConversionMetrics metrics = ((IExtendedConversionContext)context).getMetrics();
+		assertEquals(1, metrics.getFiles());
+		assertEquals(4, metrics.getSlices());
+		assertEquals(4, metrics.getCount(Phase.READ));
+		assertEquals(4, metrics.getCount(Phase.WRITE));
+		assertTrue(metrics.getBytesRead()>=4L*2048*2048);
+		assertTrue(metrics.getBytesWritten()>0);
+
+		// The recording for each slice must cost less than 1% of converting it
+		final ConversionMetrics bench = new ConversionMetrics();
+		final int  records = 1000000;
+		final long start   = System.nanoTime();
+		long time = start;
+		for (int i = 0; i < records; i++) time = bench.record(Phase.READ, time);
+		final double recordNanos = (System.nanoTime()-start)/(double)records;
+
+		final double sliceNanos = (double)(metrics.getTime(Phase.READ, TimeUnit.NANOSECONDS)+metrics.getTime(Phase.CONVERT, TimeUnit.NANOSECONDS))/metrics.getSlices();
+		// Each slice records read, convert and write
+		assertTrue("Recording costs "+recordNanos+"ns, a slice takes "+sliceNanos+"ns", 3*recordNanos<sliceNanos/100);
+	}
+
+	@Test
+	public void testPublished() throws Exception {
+
+		final ObjectName pattern = new ObjectName("org.dawnsci.conversion:*");
+		final IConversionService service = new ConversionServiceImpl();
+		final IConversionContext context = createContext(service, "metrics_published");
+		final int[] published = new int[1];
+		context.setMonitor(new IMonitor.Stub() {
+			@Override
+			public void worked(int amount) {
+				final Set<ObjectName> names = ManagementFactory.getPlatformMBeanServer().queryNames(pattern, null);
+				if (!names.isEmpty()) published[0]++;
+			}
+		});
+
+		System.setProperty(ConversionServiceImpl.PUBLISH_METRICS, "true");
+		try {
+			service.process(context);
+		} finally {
+			System.clearProperty(ConversionServiceImpl.PUBLISH_METRICS);
+		}
+
+		assertTrue("The metrics must be published while the conversion runs", published[0]>0);
+		assertTrue("The metrics must be withdrawn once the conversion ends", ManagementFactory.getPlatformMBeanServer().queryNames(pattern, null).isEmpty());
+	}
+
+	private static IConversionContext createContext(IConversionService service, String name) throws Exception {
+		final IConversionContext context = service.open(new File("testfiles/export.h5").getAbsolutePath());
+		final File tmp = File.createTempFile("whatever", ".unknown");
+		tmp.deleteOnExit();
+		final File dir = new File(tmp.getParent(), name+System.currentTimeMillis());
+		dir.mkdirs();
+		dir.deleteOnExit();
+		context.setOutputPath(dir.getAbsolutePath());
+		context.setConversionScheme(new ImageConverterScheme());
+		context.setDatasetName("/entry/edf/data");
+		context.addSliceDimension(0, "all");
+		return context;
+	}
+}
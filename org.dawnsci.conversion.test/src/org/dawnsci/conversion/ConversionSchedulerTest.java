@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dawnsci.conversion.IConversionScheduler.Priority;
+import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * The conversions are stand-ins which sleep, named by their user object.
+ */
+public class ConversionSchedulerTest {
+
+	private final List<String>   converted  = Collections.synchronizedList(new ArrayList<String>());
+	private final AtomicInteger  concurrent = new AtomicInteger();
+	private final AtomicInteger  maxConcurrent = new AtomicInteger();
+	private final CountDownLatch gate = new CountDownLatch(1);
+	private ConversionSchedulerImpl scheduler;
+
+	@After
+	public void after() {
+		gate.countDown();
+		if (scheduler!=null) scheduler.shutdown();
+	}
+
+	@Test
+	public void testFairness() throws Exception {
+
+		scheduler = new ConversionSchedulerImpl(new SleepingService(1), 1);
+		final Future<IConversionContext> blocked = scheduler.submit(createContext("gate"), Priority.NORMAL, "gate");
+
+		// One submitter queues many conversions before the others
+		final List<Future<IConversionContext>> jobs = Collections.synchronizedList(new ArrayList<Future<IConversionContext>>());
+		jobs.addAll(submit("a", 20, Priority.NORMAL));
+		final List<Thread> submitters = new ArrayList<Thread>();
+		for (final String name : new String[]{"b", "c"}) {
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					jobs.addAll(submit(name, 5, Priority.NORMAL));
+				}
+			});
+			submitters.add(thread);
+			thread.start();
+		}
+		for (Thread thread : submitters) thread.join();
+		assertEquals(30, scheduler.getQueueDepth());
+
+		gate.countDown();
+		blocked.get();
+		for (Future<IConversionContext> job : new ArrayList<Future<IConversionContext>>(jobs)) job.get();
+
+		// The conversions are taken from each submitter in turn
+		final List<String> first = converted.subList(1, 16);
+		System.out.println("Converted "+converted);
+		for (String name : new String[]{"a", "b", "c"}) {
+			assertEquals(name+" must have a third of the first conversions", 5, Collections.frequency(prefixes(first), name));
+		}
+		assertEquals(0, scheduler.getQueueDepth());
+		assertEquals(31, scheduler.getCompletedCount());
+	}
+
+	@Test
+	public void testPriority() throws Exception {
+
+		scheduler = new ConversionSchedulerImpl(new SleepingService(1), 1);
+		final Future<IConversionContext> blocked = scheduler.submit(createContext("gate"), Priority.NORMAL, "gate");
+		final List<Future<IConversionContext>> jobs = new ArrayList<Future<IConversionContext>>();
+		jobs.addAll(submit("batch", 3, Priority.BATCH));
+		jobs.addAll(submit("normal", 3, Priority.NORMAL));
+		jobs.addAll(submit("interactive", 3, Priority.INTERACTIVE));
+		assertEquals(3, scheduler.getQueueDepth(Priority.BATCH));
+
+		gate.countDown();
+		blocked.get();
+		for (Future<IConversionContext> job : jobs) job.get();
+
+		final List<String> order = prefixes(converted.subList(1, converted.size()));
+		assertEquals(Collections.nCopies(3, "interactive"), order.subList(0, 3));
+		assertEquals(Collections.nCopies(3, "normal"),      order.subList(3, 6));
+		assertEquals(Collections.nCopies(3, "batch"),       order.subList(6, 9));
+		assertTrue(scheduler.getMeanWait(Priority.BATCH, TimeUnit.NANOSECONDS)>scheduler.getMeanWait(Priority.INTERACTIVE, TimeUnit.NANOSECONDS));
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+
+		scheduler = new ConversionSchedulerImpl(new SleepingService(1), 1);
+		final Future<IConversionContext> running = scheduler.submit(createContext("gate"), Priority.NORMAL, "gate");
+		final Future<IConversionContext> queued  = scheduler.submit(createContext("queued"), Priority.NORMAL, "test");
+		assertEquals(1, scheduler.getQueueDepth());
+
+		assertTrue(queued.cancel(true));
+		assertEquals(0, scheduler.getQueueDepth());
+
+		// The running conversion sees its monitor cancelled
+		assertTrue(running.cancel(true));
+		final long start = System.currentTimeMillis();
+		while (scheduler.getRunningCount()>0 && System.currentTimeMillis()-start<5000) Thread.sleep(10);
+		assertEquals(0, scheduler.getRunningCount());
+		assertFalse(converted.contains("queued"));
+		assertEquals(0, scheduler.getCompletedCount());
+	}
+
+	@Test
+	public void testThroughput() throws Exception {
+
+		final int  workers = 4;
+		final int  jobsPer = 25;
+		final long sleep   = 10;
+		scheduler = new ConversionSchedulerImpl(new SleepingService(sleep), workers);
+		gate.countDown();
+
+		final List<Future<IConversionContext>> jobs = Collections.synchronizedList(new ArrayList<Future<IConversionContext>>());
+		final List<Thread> submitters = new ArrayList<Thread>();
+		final long start = System.nanoTime();
+		for (int i = 0; i < 8; i++) {
+			final String   name     = "submitter"+i;
+			final Priority priority = i%2==0 ? Priority.NORMAL : Priority.BATCH;
+			final Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					jobs.addAll(submit(name, jobsPer, priority));
+				}
+			});
+			submitters.add(thread);
+			thread.start();
+		}
+		for (Thread thread : submitters) thread.join();
+		for (Future<IConversionContext> job : new ArrayList<Future<IConversionContext>>(jobs)) job.get();
+		final long time = System.nanoTime()-start;
+
+		final int total = 8*jobsPer;
+		final double serial = total*sleep*1e6;
+		System.out.println(String.format("%d conversions in %.0fms, %.0f/s, %.1f times faster than one at a time",
+				                          total, time/1e6, total/(time/1e9), serial/time));
+		for (Priority priority : Priority.values()) {
+			System.out.println(priority+" mean wait "+scheduler.getMeanWait(priority, TimeUnit.MILLISECONDS)+"ms, 95% within "+
+		                       scheduler.getWaitPercentile(priority, 0.95, TimeUnit.MILLISECONDS)+"ms");
+		}
+
+		assertEquals(total, scheduler.getCompletedCount());
+		assertTrue("No more conversions than the budget may run at once", maxConcurrent.get()<=workers);
+		assertTrue("The workers must be used concurrently", serial/time>workers/2d);
+	}
+
+	private List<Future<IConversionContext>> submit(String name, int count, Priority priority) {
+		final List<Future<IConversionContext>> jobs = new ArrayList<Future<IConversionContext>>(count);
+		for (int i = 0; i < count; i++) jobs.add(scheduler.submit(createContext(name+" "+i), priority, name));
+		return jobs;
+	}
+
+	private static List<String> prefixes(List<String> names) {
+		final List<String> prefixes = new ArrayList<String>(names.size());
+		for (String name : names) prefixes.add(name.split(" ")[0]);
+		return prefixes;
+	}
+
+	private static IConversionContext createContext(String name) {
+		final ConversionContext context = new ConversionContext();
+		context.setUserObject(name);
+		return context;
+	}
+
+	/**
+	 * Sleeps instead of converting. The gate conversion waits for the gate to open,
+	 * or its monitor to be cancelled.
+	 */
+	private final class SleepingService extends ConversionServiceImpl {
+
+		private final long sleep;
+
+		SleepingService(long sleep) {
+			this.sleep = sleep;
+		}
+
+		@Override
+		public void process(IConversionContext context) throws Exception {
+			final int now = concurrent.incrementAndGet();
+			try {
+				int max;
+				while (now>(max = maxConcurrent.get()) && !maxConcurrent.compareAndSet(max, now));
+				if ("gate".equals(context.getUserObject())) {
+					while (!gate.await(10, TimeUnit.MILLISECONDS)) {
+						if (context.getMonitor().isCancelled()) throw new Exception("Cancelled");
+					}
+				}
+				Thread.sleep(sleep);
+				converted.add((String)context.getUserObject());
+			} finally {
+				concurrent.decrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+
+import org.dawnsci.conversion.converters.util.DataHolderCache;
+import org.dawnsci.conversion.converters.util.LocalServiceManager;
+import org.eclipse.dawnsci.analysis.api.io.IDataHolder;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.io.LoaderServiceImpl;
+import uk.ac.diamond.scisoft.analysis.utils.FileUtils;
+
+public class DataHolderCacheTest {
+
+	@Before
+	public void before() {
+		LocalServiceManager.setLoaderService(new LoaderServiceImpl());
+	}
+
+	@Test
+	public void testHitAndMiss() throws Exception {
+
+		final DataHolderCache cache = new DataHolderCache();
+		final String path = new File("testfiles/MoKedge_1_15.nxs").getAbsolutePath();
+
+		final IDataHolder first = cache.getData(path, null);
+		cache.getDataNames(path);
+		final IDataHolder second = cache.getData(path, null);
+
+		assertSame(first, second);
+		assertEquals(1, cache.getMisses());
+		assertEquals(2, cache.getHits());
+
+		cache.clear();
+		cache.getData(path, null);
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testModifiedFileReloaded() throws Exception {
+
+		final File tmp = File.createTempFile("DataHolderCacheTest", ".nxs");
+		tmp.deleteOnExit();
+		FileUtils.copyNio(new File("testfiles/MoKedge_1_15.nxs"), tmp);
+
+		final DataHolderCache cache = new DataHolderCache();
+		cache.getData(tmp.getAbsolutePath(), null);
+		tmp.setLastModified(tmp.lastModified()-10000);
+		cache.getData(tmp.getAbsolutePath(), null);
+
+		assertEquals(2, cache.getMisses());
+		assertEquals(0, cache.getHits());
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.dawnsci.conversion.converters.util.FileExpander;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileExpanderTest {
+
+	private File dir;
+
+	@Before
+	public void before() throws Exception {
+		final File tmp = File.createTempFile("whatever", ".unknown");
+		tmp.deleteOnExit();
+		dir = new File(tmp.getParent(), "expander_test"+System.currentTimeMillis());
+		dir.mkdirs();
+		dir.deleteOnExit();
+		for (String name : new String[]{"image_10.tif", "image_2.tif", "image_1.tif", "notes.txt"}) {
+			createFile(dir, name);
+		}
+		final File sub = new File(dir, "sub");
+		sub.mkdir();
+		sub.deleteOnExit();
+		createFile(sub, "image_3.tif");
+	}
+
+	private static void createFile(File parent, String name) throws Exception {
+		final File file = new File(parent, name);
+		file.createNewFile();
+		file.deleteOnExit();
+	}
+
+	@Test
+	public void testRegexSorted() throws Exception {
+		final List<File> files = new FileExpander(dir.getAbsolutePath()+"/image_.*\\.tif").setSorted(true).list();
+		assertEquals(Arrays.asList("image_1.tif", "image_2.tif", "image_10.tif"), names(files));
+	}
+
+	@Test
+	public void testGlobRecursive() throws Exception {
+		final List<File> files = new FileExpander(dir.getAbsolutePath()+"/glob:*.tif").setRecursive(true).setSorted(true).list();
+		assertEquals(Arrays.asList("image_1.tif", "image_2.tif", "image_3.tif", "image_10.tif"), names(files));
+	}
+
+	@Test
+	public void testStreamed() throws Exception {
+		int count = 0;
+		try (FileExpander.Expansion files = new FileExpander(dir.getAbsolutePath()+"/").open()) {
+			for (File file : files) {
+				assertTrue(file.exists());
+				count++;
+			}
+		}
+		// Without recursion the sub-directory is returned like the files.
+		assertEquals(5, count);
+	}
+
+	/**
+	 * Files created while a snapshot is converted, as output written to the same
+	 * directory would be, are not returned.
+	 */
+	@Test
+	public void testSnapshot() throws Exception {
+		final FileExpander expander = new FileExpander(dir.getAbsolutePath()+"/.*\\.tif");
+		assertTrue(expander.isExpanded(new File(dir, "output.tif").getAbsolutePath()));
+		assertFalse(expander.isExpanded(new File(dir, "sub/output.tif").getAbsolutePath()));
+		assertTrue(expander.setRecursive(true).isExpanded(new File(dir, "sub/output.tif").getAbsolutePath()));
+		expander.setRecursive(false);
+
+		int count = 0;
+		try (FileExpander.Expansion files = expander.setSnapshot(true).open()) {
+			for (File file : files) {
+				createFile(dir, "converted_"+file.getName());
+				count++;
+			}
+		}
+		assertEquals(3, count);
+	}
+
+	@Test
+	public void testMissingDirectory() throws Exception {
+		final List<File> files = new FileExpander(new File(dir, "missing").getAbsolutePath()+"/.*").list();
+		assertTrue(files.isEmpty());
+	}
+
+	private static List<String> names(List<File> files) {
+		final List<String> names = new ArrayList<String>(files.size());
+		for (File file : files) names.add(file.getName());
+		return names;
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.dawnsci.conversion.converters.IExtendedConversionContext;
+import org.dawnsci.conversion.converters.util.FrameBatchWriter;
+import org.dawnsci.conversion.converters.util.GrowingDataset;
+import org.dawnsci.conversion.converters.util.LocalServiceManager;
+import org.dawnsci.conversion.schemes.ImageConverterScheme;
+import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
+import org.eclipse.dawnsci.analysis.api.conversion.IConversionService;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import hdf.hdf5lib.H5;
+import hdf.hdf5lib.HDF5Constants;
+import uk.ac.diamond.scisoft.analysis.io.LoaderServiceImpl;
+
+/**
+ * A file is written by another thread while it is converted, as a detector would
+ * during a scan. The frames written after the conversion starts must be converted.
+ */
+public class FollowConversionTest {
+
+	@Before
+	public void before() {
+		LocalServiceManager.setLoaderService(new LoaderServiceImpl());
+	}
+
+	@Test
+	public void testFollowToEnd() throws Exception {
+
+		final File file = createFile("testFollowToEnd");
+		final FrameBatchWriter writer = createWriter(file, "data");
+		append(writer, 0);
+		append(writer, 1);
+
+		// The scan carries on while the file is converted
+		final ExecutorService scan = Executors.newSingleThreadExecutor();
+		final Future<Void> scanning = scan.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				for (int i = 2; i < 10; i++) {
+					Thread.sleep(50);
+					append(writer, i);
+				}
+				writer.close();
+				final FrameBatchWriter end = createWriter(file, "finished");
+				append(end, 1);
+				end.close();
+				return null;
+			}
+		});
+
+		try {
+			final IConversionContext context = createContext(file, 30000);
+			final long start = System.currentTimeMillis();
+			new ConversionServiceImpl().process(context);
+			scanning.get();
+
+			assertTrue("The end path must stop the conversion", System.currentTimeMillis()-start<30000);
+			assertEquals(10, getImages(context, file).length);
+		} finally {
+			scan.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testIdleTimeout() throws Exception {
+
+		final File file = createFile("testIdleTimeout");
+		final FrameBatchWriter writer = createWriter(file, "data");
+		for (int i = 0; i < 3; i++) append(writer, i);
+		writer.close();
+
+		// Without an end path the conversion stops once the file has not grown for the timeout
+		final IConversionContext context = createContext(file, 200);
+		((IExtendedConversionContext)context).setFollowEndPath(null);
+		new ConversionServiceImpl().process(context);
+
+		assertEquals(3, getImages(context, file).length);
+	}
+
+	/**
+	 * The writer opens the file itself rather than through the file factory, so the
+	 * reader does not share its handle and must open the file again to see it grow.
+	 * The reader closes the file between intervals, as the conversion does, so that
+	 * the writer may open it again.
+	 */
+	@Test
+	public void testSeparateWriter() throws Exception {
+
+		final File file = createFile("testSeparateWriter");
+		final String path = file.getAbsolutePath();
+		long fid = H5.H5Fcreate(path, HDF5Constants.H5F_ACC_TRUNC, HDF5Constants.H5P_DEFAULT, HDF5Constants.H5P_DEFAULT);
+		try {
+			H5.H5Gclose(H5.H5Gcreate(fid, "/entry", HDF5Constants.H5P_DEFAULT, HDF5Constants.H5P_DEFAULT, HDF5Constants.H5P_DEFAULT));
+			final long space = H5.H5Screate_simple(3, new long[]{0, 8, 8}, new long[]{HDF5Constants.H5S_UNLIMITED, 8, 8});
+			final long plist = H5.H5Pcreate(HDF5Constants.H5P_DATASET_CREATE);
+			H5.H5Pset_chunk(plist, 3, new long[]{1, 8, 8});
+			H5.H5Dclose(H5.H5Dcreate(fid, "/entry/data", HDF5Constants.H5T_NATIVE_INT32, space, HDF5Constants.H5P_DEFAULT, plist, HDF5Constants.H5P_DEFAULT));
+			H5.H5Pclose(plist);
+			H5.H5Sclose(space);
+			appendFrame(fid, 0);
+		} finally {
+			H5.H5Fclose(fid);
+		}
+
+		final GrowingDataset growing = new GrowingDataset(path, "/entry/data");
+		try {
+			assertArrayEquals(new int[]{1, 8, 8}, growing.refreshShape());
+			growing.close();
+
+			// Read while the writer has the file open
+			fid = H5.H5Fopen(path, HDF5Constants.H5F_ACC_RDWR, HDF5Constants.H5P_DEFAULT);
+			try {
+				appendFrame(fid, 1);
+				appendFrame(fid, 2);
+				H5.H5Fflush(fid, HDF5Constants.H5F_SCOPE_GLOBAL);
+				assertArrayEquals(new int[]{3, 8, 8}, growing.refreshShape());
+				growing.close();
+			} finally {
+				H5.H5Fclose(fid);
+			}
+
+			// Read after the writer has closed the file
+			fid = H5.H5Fopen(path, HDF5Constants.H5F_ACC_RDWR, HDF5Constants.H5P_DEFAULT);
+			try {
+				appendFrame(fid, 3);
+			} finally {
+				H5.H5Fclose(fid);
+			}
+			assertFalse(growing.exists("/entry/finished"));
+			assertArrayEquals(new int[]{4, 8, 8}, growing.refreshShape());
+			assertEquals(3, growing.getLazyDataset().getSlice(new int[]{3, 0, 0}, new int[]{4, 8, 8}, null).getInt(0, 4, 4));
+		} finally {
+			growing.close();
+		}
+	}
+
+	private static void appendFrame(long fid, int value) throws Exception {
+		final long dataset = H5.H5Dopen(fid, "/entry/data", HDF5Constants.H5P_DEFAULT);
+		try {
+			long space = H5.H5Dget_space(dataset);
+			final long[] dims = new long[3];
+			H5.H5Sget_simple_extent_dims(space, dims, null);
+			H5.H5Sclose(space);
+
+			H5.H5Dset_extent(dataset, new long[]{dims[0]+1, 8, 8});
+			space = H5.H5Dget_space(dataset);
+			H5.H5Sselect_hyperslab(space, HDF5Constants.H5S_SELECT_SET, new long[]{dims[0], 0, 0}, null, new long[]{1, 8, 8}, null);
+			final long memory = H5.H5Screate_simple(3, new long[]{1, 8, 8}, null);
+			final int[] frame = new int[64];
+			Arrays.fill(frame, value);
+			H5.H5Dwrite(dataset, HDF5Constants.H5T_NATIVE_INT32, memory, space, HDF5Constants.H5P_DEFAULT, frame);
+			H5.H5Sclose(memory);
+			H5.H5Sclose(space);
+		} finally {
+			H5.H5Dclose(dataset);
+		}
+	}
+
+	private static IConversionContext createContext(File file, long timeout) throws Exception {
+
+		final IConversionService service = new ConversionServiceImpl();
+		final IConversionContext context = service.open(file.getAbsolutePath());
+		final File dir = new File(file.getParentFile(), file.getName()+"_images");
+		dir.mkdirs();
+		dir.deleteOnExit();
+		context.setOutputPath(dir.getAbsolutePath());
+		context.setConversionScheme(new ImageConverterScheme());
+		context.setDatasetName("/entry/data/data");
+		context.addSliceDimension(0, "all");
+
+		final IExtendedConversionContext ext = (IExtendedConversionContext)context;
+		ext.setFollowInterval(20);
+		ext.setFollowTimeout(timeout);
+		ext.setFollowEndPath("/entry/finished");
+		return context;
+	}
+
+	private static File[] getImages(IConversionContext context, File file) {
+		final String name   = file.getName().substring(0, file.getName().lastIndexOf('.'));
+		final File[] images = new File(context.getOutputPath(), name).listFiles();
+		for (File image : images) image.deleteOnExit();
+		return images;
+	}
+
+	private static File createFile(String name) throws Exception {
+		final File file = File.createTempFile("FollowConversionTest_"+name, ".nxs");
+		file.delete();
+		file.deleteOnExit();
+		return file;
+	}
+
+	private static FrameBatchWriter createWriter(File file, String name) {
+		return new FrameBatchWriter(file.getAbsolutePath(), name.equals("data") ? "/entry/data" : "/entry", name)
+				      .setChunkFrames(1)
+				      .setBatchFrames(1);
+	}
+
+	private static void append(FrameBatchWriter writer, int value) throws Exception {
+		final Dataset frame = DatasetFactory.zeros(new int[]{64, 64}, Dataset.INT32);
+		frame.fill(value);
+		writer.append(frame);
+	}
+}
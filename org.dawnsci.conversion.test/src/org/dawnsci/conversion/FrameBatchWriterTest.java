@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.dawnsci.conversion.converters.util.FrameBatchWriter;
+import org.dawnsci.conversion.converters.util.LocalServiceManager;
+import org.eclipse.dawnsci.hdf.object.HierarchicalDataFactory;
+import org.eclipse.dawnsci.hdf.object.IHierarchicalDataFile;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.IDataset;
+import org.eclipse.january.dataset.ILazyDataset;
+import org.eclipse.january.dataset.Maths;
+import org.junit.Before;
+import org.junit.Test;
+
+import hdf.hdf5lib.H5;
+import hdf.hdf5lib.HDF5Constants;
+import uk.ac.diamond.scisoft.analysis.io.LoaderServiceImpl;
+
+/**
+ * Checks the batched writer produces the same stack as appending
+ * frame by frame and compares the time taken by each.
+ */
+public class FrameBatchWriterTest {
+
+	private static final int FRAMES = 500;
+	private static final int SIZE   = 256;
+
+	@Before
+	public void before() {
+		LocalServiceManager.setLoaderService(new LoaderServiceImpl());
+	}
+
+	@Test
+	public void testPartialBatch() throws Exception {
+
+		final File output = createOutput("partial");
+		final FrameBatchWriter writer = new FrameBatchWriter(output.getAbsolutePath(), "/entry/data", "data");
+		writer.setChunkFrames(2).setBatchFrames(4);
+		for (int i = 0; i < 7; i++) writer.append(createFrame(i));
+		writer.close();
+
+		assertEquals(7, writer.getWritten());
+		final ILazyDataset set = LocalServiceManager.getLoaderService().getData(output.getAbsolutePath(), null).getLazyDataset("/entry/data/data");
+		assertArrayEquals(new int[]{7, SIZE, SIZE}, set.getShape());
+		final IDataset last = set.getSlice(new int[]{6,0,0}, new int[]{7,SIZE,SIZE}, null).squeeze();
+		assertEquals(6d, last.getDouble(0, 0), 0d);
+	}
+
+	@Test
+	public void testDeflate() throws Exception {
+
+		final File plain      = createOutput("plain");
+		final File compressed = createOutput("deflate");
+		for (File output : new File[]{plain, compressed}) {
+			final FrameBatchWriter writer = new FrameBatchWriter(output.getAbsolutePath(), "/entry/data", "data");
+			writer.setChunkFrames(2).setBatchFrames(4);
+			if (output==compressed) writer.setDeflateLevel(6);
+			for (int i = 0; i < 7; i++) writer.append(createFrame(i));
+			writer.close();
+		}
+
+		final ILazyDataset set = LocalServiceManager.getLoaderService().getData(compressed.getAbsolutePath(), null).getLazyDataset("/entry/data/data");
+		assertArrayEquals(new int[]{7, SIZE, SIZE}, set.getShape());
+		for (int i = 0; i < 7; i++) {
+			assertEquals(i, set.getSlice(new int[]{i,0,0}, new int[]{i+1,SIZE,SIZE}, null).squeeze().getDouble(SIZE-1, SIZE-1), 0d);
+		}
+
+		final long fid = H5.H5Fopen(compressed.getAbsolutePath(), HDF5Constants.H5F_ACC_RDONLY, HDF5Constants.H5P_DEFAULT);
+		try {
+			final long dataset = H5.H5Dopen(fid, "/entry/data/data", HDF5Constants.H5P_DEFAULT);
+			final long plist   = H5.H5Dget_create_plist(dataset);
+			assertEquals(1, H5.H5Pget_nfilters(plist));
+			H5.H5Pclose(plist);
+			H5.H5Dclose(dataset);
+		} finally {
+			H5.H5Fclose(fid);
+		}
+		assertTrue("Frames of one value must compress", compressed.length()<plain.length()/10);
+	}
+
+	@Test
+	public void testBatchedAgainstAppend() throws Exception {
+
+		final File appended = createOutput("append");
+		long start = System.currentTimeMillis();
+		final IHierarchicalDataFile hFile = HierarchicalDataFactory.getWriter(appended.getAbsolutePath());
+		try {
+			final String group = hFile.group("data", hFile.group("entry"));
+			for (int i = 0; i < FRAMES; i++) hFile.appendDataset("data", createFrame(i), group);
+		} finally {
+			hFile.close();
+		}
+		final long appendTime = System.currentTimeMillis()-start;
+
+		final File batched = createOutput("batched");
+		start = System.currentTimeMillis();
+		final FrameBatchWriter writer = new FrameBatchWriter(batched.getAbsolutePath(), "/entry/data", "data");
+		for (int i = 0; i < FRAMES; i++) writer.append(createFrame(i));
+		writer.close();
+		final long batchTime = System.currentTimeMillis()-start;
+
+		System.out.println("Appending "+FRAMES+" frames took "+appendTime+"ms, batched writing took "+batchTime+"ms");
+
+		final ILazyDataset a = LocalServiceManager.getLoaderService().getData(appended.getAbsolutePath(), null).getLazyDataset("/entry/data/data");
+		final ILazyDataset b = LocalServiceManager.getLoaderService().getData(batched.getAbsolutePath(), null).getLazyDataset("/entry/data/data");
+		assertArrayEquals(a.getShape(), b.getShape());
+
+		final int[] stop = new int[]{FRAMES, SIZE, SIZE};
+		final int[] from = new int[]{FRAMES-1, 0, 0};
+		assertEquals(0d, ((Number)Maths.subtract(a.getSlice(from, stop, null), b.getSlice(from, stop, null)).max()).doubleValue(), 0d);
+	}
+
+	private static Dataset createFrame(int i) {
+		final Dataset frame = DatasetFactory.zeros(new int[]{SIZE, SIZE}, Dataset.FLOAT32);
+		frame.fill(i);
+		return frame;
+	}
+
+	private static File createOutput(String name) throws Exception {
+		final File output = File.createTempFile("FrameBatchWriterTest_"+name, ".h5");
+		output.delete();
+		output.deleteOnExit();
+		return output;
+	}
+}
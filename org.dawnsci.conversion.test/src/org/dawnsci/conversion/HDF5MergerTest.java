@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.dawnsci.conversion.converters.util.FrameBatchWriter;
+import org.dawnsci.conversion.converters.util.HDF5Merger;
+import org.dawnsci.conversion.converters.util.LocalServiceManager;
+import org.eclipse.dawnsci.analysis.api.io.IDataHolder;
+import org.eclipse.dawnsci.hdf.object.HierarchicalDataFactory;
+import org.eclipse.dawnsci.hdf.object.IHierarchicalDataFile;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.IDataset;
+import org.eclipse.january.dataset.ILazyDataset;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.io.LoaderServiceImpl;
+
+/**
+ * The original data added to processed output by copying or
+ * linking must be read with the same paths as in the input.
+ */
+public class HDF5MergerTest {
+
+	@Before
+	public void before() {
+		LocalServiceManager.setLoaderService(new LoaderServiceImpl());
+	}
+
+	@Test
+	public void testCopy() throws Exception {
+		final File original  = createFile("original", "/entry1/instrument", 1);
+		final File processed = createFile("processed", "/entry1/result", 2);
+		HDF5Merger.copy(original.getAbsolutePath(), processed.getAbsolutePath());
+		checkMerged(processed);
+	}
+
+	/**
+	 * The processed data written over a copy of the original replaces what it clashes with,
+	 * as when it is written to the copy directly.
+	 */
+	@Test
+	public void testOverlay() throws Exception {
+		final File original  = createFile("original", "/entry1/instrument", 1);
+		final File processed = createFile("processed", "/entry1/result", 2);
+		final File clash     = createFile("clash", "/entry1/instrument", 3);
+		final IHierarchicalDataFile file = HierarchicalDataFactory.getWriter(clash.getAbsolutePath());
+		try {
+			file.setAttribute("/entry1", "default", "result");
+		} finally {
+			file.close();
+		}
+		HDF5Merger.copy(processed.getAbsolutePath(), clash.getAbsolutePath());
+		HDF5Merger.overlay(clash.getAbsolutePath(), original.getAbsolutePath());
+
+		final IDataHolder holder = LocalServiceManager.getLoaderService().getData(original.getAbsolutePath(), null);
+		checkData(holder.getLazyDataset("/entry1/instrument/data"), 3);
+		checkData(holder.getLazyDataset("/entry1/result/data"), 2);
+		assertEquals("result", holder.getMetadata().getMetaValue("/entry1@default"));
+	}
+
+	@Test
+	public void testLink() throws Exception {
+		final File original  = createFile("original", "/entry1/instrument", 1);
+		final File processed = createFile("processed", "/entry1/result", 2);
+		final long size = processed.length();
+		HDF5Merger.link(original.getAbsolutePath(), processed.getAbsolutePath());
+		checkMerged(processed);
+		// The links must not copy the data
+		assertTrue(processed.length()-size<original.length()/2);
+	}
+
+	private static void checkMerged(File merged) throws Exception {
+		final IDataHolder holder = LocalServiceManager.getLoaderService().getData(merged.getAbsolutePath(), null);
+		checkData(holder.getLazyDataset("/entry1/instrument/data"), 1);
+		checkData(holder.getLazyDataset("/entry1/result/data"), 2);
+	}
+
+	private static void checkData(ILazyDataset lazy, int value) throws Exception {
+		assertArrayEquals(new int[]{10, 64, 64}, lazy.getShape());
+		final IDataset last = lazy.getSlice(new int[]{9, 0, 0}, new int[]{10, 64, 64}, null).squeeze();
+		assertEquals(value, last.getDouble(10, 10), 0d);
+	}
+
+	private static File createFile(String name, String group, int value) throws Exception {
+		final File file = File.createTempFile("HDF5MergerTest_"+name, ".nxs");
+		file.delete();
+		file.deleteOnExit();
+		final FrameBatchWriter writer = new FrameBatchWriter(file.getAbsolutePath(), group, "data");
+		for (int i = 0; i < 10; i++) {
+			final Dataset frame = DatasetFactory.zeros(new int[]{64, 64}, Dataset.FLOAT64);
+			frame.fill(value);
+			writer.append(frame);
+		}
+		writer.close();
+		return file;
+	}
+}
@@ -11,6 +11,7 @@ package org.dawnsci.conversion;
 import java.io.File;
 
 import org.dawnsci.conversion.converters.ConversionInfoBean;
+import org.dawnsci.conversion.converters.IExtendedConversionContext;
 import org.dawnsci.conversion.converters.util.LocalServiceManager;
 import org.dawnsci.conversion.schemes.ImageConverterScheme;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
@@ -137,6 +138,57 @@ public class ImageConvertTest {
  	}
 
 
+	@Test
+	public void testPNGParallel() throws Exception {
+		
+		IConversionService service = new ConversionServiceImpl();
+		
+		// Determine path to test file
+		final String path = getTestFilePath("export.h5");
+		
+		final IConversionContext context = service.open(path);
+		final File tmp = File.createTempFile("whatever", ".unknown");
+		tmp.deleteOnExit();
+		File dir = new File(tmp.getParent(), "tiff_export"+System.currentTimeMillis());
+		dir.mkdirs();
+		dir.deleteOnExit();
+        context.setOutputPath(dir.getAbsolutePath());
+        context.setConversionScheme(scheme);
+        context.setDatasetName("/entry/edf/data");
+        context.addSliceDimension(0, "all");
+        ((IExtendedConversionContext)context).setSliceThreadCount(4);
+        
+        ConversionInfoBean bean = new ConversionInfoBean();
+        bean.setExtension("png");
+        bean.setBits(16);
+        bean.setAlternativeNamePrefix("Export");
+        context.setUserObject(bean);
+        
+        service.process(context);
+        
+        dir = new File(dir, "export");
+        final File[] fa = dir.listFiles();
+        for (File file : fa) file.deleteOnExit();
+        
+        // Check that 4 datasets were exported and named in slice order
+        if (fa.length!=4) {
+        	String msg = "The directory: "+dir.getAbsolutePath()+" does not contain 4 images!";
+        	System.out.println(msg);
+        	throw new Exception(msg);
+        }
+        for (int i = 0; i < 4; i++) {
+        	final File file = new File(dir, "Export00"+i+".png");
+        	if (!file.exists()) throw new Exception("Slice "+i+" was not written to "+file.getName());
+        	
+        	final IDataHolder holder = LocalServiceManager.getLoaderService().getData(file.getAbsolutePath(),null);
+        	final IDataset   set    = holder.getDataset(0);
+        	if (set.getShape()[0]!=2048 || set.getShape()[1]!=2048) {
+        		throw new Exception("Incorrect shape of exported dataset!");
+        	}
+        }
+ 	}
+
+
 	private String getTestFilePath(String fileName) {
 		
 		final File test = new File("testfiles/"+fileName);
@@ -227,6 +227,48 @@ public class NCDConvertTest {
 		}
    	}
 	
+	@Test
+	public void testNCDMultiFileParallel() throws Exception {
+		
+		IConversionService service = new ConversionServiceImpl();
+		
+		final String path  = getTestFilePath("results_i22-118040_Pilatus2M_010513_125108.nxs");
+		final String path1 = getTestFilePath("results_i22-102527_Pilatus2M_280313_112434.nxs");
+		final String path2 = getTestFilePath("results_i22-114346_Pilatus2M_220313_090939.nxs");
+		
+		final File tmp = File.createTempFile("NCDtestSimple", ".dat");
+		tmp.deleteOnExit();
+		final File serial   = new File(tmp.getParent(), "NCD_export_serial"+System.currentTimeMillis());
+		final File parallel = new File(tmp.getParent(), "NCD_export_parallel"+System.currentTimeMillis());
+		
+		for (File dir : new File[]{serial, parallel}) {
+			dir.mkdirs();
+			dir.deleteOnExit();
+			
+			final ConversionContext context = (ConversionContext)service.open(path);
+			context.setFilePaths(path,path1,path2);
+			context.setFileThreadCount(dir==parallel ? 3 : 1);
+			context.setOutputPath(dir.getAbsolutePath());
+			context.setConversionScheme(scheme);
+			context.setDatasetNames(Arrays.asList(new String[] {"/entry1/Pilatus2M_result/data","/entry1/Pilatus2M_processing/Normalisation/data"}));
+			context.setAxisDatasetName("/entry1/Pilatus2M_result/q");
+			context.addSliceDimension(0, "all");
+			context.setUserObject(SAS_FORMAT.ASCII);
+			service.process(context);
+		}
+		
+		final String[] expected = serial.list();
+		final String[] actual   = parallel.list();
+		Arrays.sort(expected);
+		Arrays.sort(actual);
+		assertEquals(27, actual.length);
+		assertEquals(Arrays.asList(expected), Arrays.asList(actual));
+		
+		for (File dir : new File[]{serial, parallel}) {
+			for (File file : dir.listFiles()) file.deleteOnExit();
+		}
+	}
+	
 	private String getTestFilePath(String fileName) {
 		final File test = new File("testfiles/"+fileName);
 		return test.getAbsolutePath();
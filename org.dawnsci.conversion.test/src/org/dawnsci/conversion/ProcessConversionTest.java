@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.dawb.common.util.io.FileUtils;
+import org.dawnsci.conversion.converters.IExtendedConversionContext;
+import org.dawnsci.conversion.converters.OriginalDataMode;
+import org.dawnsci.conversion.converters.util.FrameBatchWriter;
+import org.dawnsci.conversion.converters.util.LocalServiceManager;
+import org.dawnsci.conversion.schemes.ProcessConversionScheme;
+import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
+import org.eclipse.dawnsci.analysis.api.conversion.IConversionService;
+import org.eclipse.dawnsci.analysis.api.conversion.IProcessingConversionInfo;
+import org.eclipse.dawnsci.analysis.api.conversion.ProcessingOutputType;
+import org.eclipse.dawnsci.analysis.api.io.IDataHolder;
+import org.eclipse.dawnsci.analysis.api.processing.Atomic;
+import org.eclipse.dawnsci.analysis.api.processing.ExecutionType;
+import org.eclipse.dawnsci.analysis.api.processing.IExecutionVisitor;
+import org.eclipse.dawnsci.analysis.api.processing.IOperation;
+import org.eclipse.dawnsci.analysis.api.processing.OperationData;
+import org.eclipse.dawnsci.analysis.api.processing.OperationException;
+import org.eclipse.dawnsci.analysis.api.processing.OperationRank;
+import org.eclipse.dawnsci.analysis.api.processing.model.EmptyModel;
+import org.eclipse.dawnsci.analysis.dataset.operations.AbstractOperation;
+import org.eclipse.dawnsci.hdf.object.HierarchicalDataFactory;
+import org.eclipse.dawnsci.hdf.object.IHierarchicalDataFile;
+import org.eclipse.january.IMonitor;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.DatasetUtils;
+import org.eclipse.january.dataset.IDataset;
+import org.eclipse.january.dataset.ILazyDataset;
+import org.eclipse.january.dataset.Maths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.io.LoaderServiceImpl;
+import uk.ac.diamond.scisoft.analysis.processing.OperationServiceImpl;
+import uk.ac.diamond.scisoft.analysis.processing.visitor.NexusFileExecutionVisitor;
+
+/**
+ * Processing which keeps the original data must give output which reads the same
+ * whichever way the original data is added to it.
+ */
+public class ProcessConversionTest {
+
+	private File dir;
+	private File input;
+
+	@Before
+	public void before() throws Exception {
+		LocalServiceManager.setLoaderService(new LoaderServiceImpl());
+		LocalServiceManager.setOperationService(new OperationServiceImpl());
+
+		final File tmp = File.createTempFile("whatever", ".unknown");
+		tmp.delete();
+		dir = new File(tmp.getParent(), "process_"+System.currentTimeMillis());
+		dir.mkdirs();
+
+		input = new File(dir, "input.nxs");
+		final FrameBatchWriter writer = new FrameBatchWriter(input.getAbsolutePath(), "/entry/data", "data");
+		for (int i = 0; i < 10; i++) {
+			final Dataset frame = DatasetFactory.zeros(new int[]{16, 16}, Dataset.FLOAT64);
+			frame.fill(i);
+			writer.append(frame);
+		}
+		writer.close();
+
+		// Attributes of groups which the processing also writes
+		final IHierarchicalDataFile file = HierarchicalDataFactory.getWriter(input.getAbsolutePath());
+		try {
+			file.setAttribute("/entry", "NX_class", "NXentry");
+			file.setAttribute("/entry", "default", "data");
+		} finally {
+			file.close();
+		}
+	}
+
+	@After
+	public void after() {
+		FileUtils.recursiveDelete(dir);
+	}
+
+	@Test
+	public void testOriginalDataModes() throws Exception {
+
+		final File copy       = process(OriginalDataMode.COPY, new Info());
+		final File background = process(OriginalDataMode.COPY_IN_BACKGROUND, new Info());
+		final File links      = process(OriginalDataMode.EXTERNAL_LINKS, new Info());
+
+		final IDataHolder expected = LocalServiceManager.getLoaderService().getData(copy.getAbsolutePath(), null);
+		assertNotNull("The original data must be in the output", expected.getLazyDataset("/entry/data/data"));
+		for (File output : new File[]{background, links}) {
+			final IDataHolder actual = LocalServiceManager.getLoaderService().getData(output.getAbsolutePath(), null);
+			assertEquals(output.getName(), getSorted(Arrays.asList(expected.getNames())), getSorted(Arrays.asList(actual.getNames())));
+			for (String name : expected.getNames()) {
+				final ILazyDataset e = expected.getLazyDataset(name);
+				final ILazyDataset a = actual.getLazyDataset(name);
+				assertArrayEquals(output.getName()+" "+name, e.getShape(), a.getShape());
+				if (name.startsWith("/entry/data") || name.startsWith("/entry/result")) {
+					assertEquals(output.getName()+" "+name, DatasetUtils.convertToDataset(e.getSlice()), DatasetUtils.convertToDataset(a.getSlice()));
+				}
+			}
+			assertEquals(output.getName(), getSorted(expected.getMetadata().getMetaNames()), getSorted(actual.getMetadata().getMetaNames()));
+			for (String key : Arrays.asList("/entry@NX_class", "/entry@default")) {
+				assertEquals(output.getName()+" "+key, expected.getMetadata().getMetaValue(key), actual.getMetadata().getMetaValue(key));
+			}
+		}
+	}
+
+	/**
+	 * A parallel series with an atomic head and a tail which is not atomic is run in
+	 * stages by the operation service, and must give the frames in order.
+	 */
+	@Test(timeout=60000)
+	public void testParallelStages() throws Exception {
+
+		final File output = process(OriginalDataMode.EXTERNAL_LINKS, new Info(ExecutionType.PARALLEL));
+
+		final IDataHolder holder = LocalServiceManager.getLoaderService().getData(output.getAbsolutePath(), null);
+		final ILazyDataset result = holder.getLazyDataset("/entry/result/data");
+		assertNotNull("The result must be in the output", result);
+		assertArrayEquals(new int[]{10, 16, 16}, result.getShape());
+		final Dataset data = DatasetUtils.convertToDataset(result.getSlice());
+		for (int i = 0; i < 10; i++) {
+			assertEquals("Frame "+i, 2*i+1, data.getDouble(i, 0, 0), 0);
+			assertEquals("Frame "+i, 2*i+1, data.getDouble(i, 15, 15), 0);
+		}
+	}
+
+	private File process(OriginalDataMode mode, Info info) throws Exception {
+
+		final File output = new File(dir, mode.name()+"_"+info.getExecutionType());
+		output.mkdirs();
+
+		final IConversionService service = new ConversionServiceImpl();
+		final IConversionContext context = service.open(input.getAbsolutePath());
+		context.setOutputPath(output.getAbsolutePath());
+		context.setConversionScheme(new ProcessConversionScheme());
+		context.setDatasetName("/entry/data/data");
+		context.addSliceDimension(0, "all");
+		context.setUserObject(info);
+		((IExtendedConversionContext)context).setOriginalDataMode(mode);
+		service.process(context);
+
+		final File[] files = output.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File parent, String name) {
+				return name.endsWith(".nxs");
+			}
+		});
+		assertEquals("Only the output must be left for "+mode, 1, files.length);
+		return files[0];
+	}
+
+	private static List<String> getSorted(Collection<String> names) {
+		final List<String> sorted = new ArrayList<String>(names);
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+	private static class Info implements IProcessingConversionInfo {
+
+		private final ExecutionType type;
+
+		Info() {
+			this(ExecutionType.SERIES);
+		}
+
+		/**
+		 * @param type when parallel, the atomic doubling is followed by an increment
+		 *             which is not atomic.
+		 */
+		Info(ExecutionType type) {
+			this.type = type;
+		}
+
+		@Override
+		public IOperation[] getOperationSeries() {
+			final Doubling op = new Doubling();
+			op.setModel(new EmptyModel());
+			if (type != ExecutionType.PARALLEL) return new IOperation[]{op};
+			final Increment inc = new Increment();
+			inc.setModel(new EmptyModel());
+			return new IOperation[]{op, inc};
+		}
+
+		@Override
+		public IExecutionVisitor getExecutionVisitor(String fileName) {
+			return new NexusFileExecutionVisitor(fileName);
+		}
+
+		@Override
+		public ExecutionType getExecutionType() {
+			return type;
+		}
+
+		@Override
+		public ProcessingOutputType getProcessingOutputType() {
+			return ProcessingOutputType.ORIGINAL_AND_PROCESSED;
+		}
+	}
+
+	@Atomic
+	public static class Doubling extends AbstractOperation<EmptyModel, OperationData> {
+
+		@Override
+		public String getId() {
+			return getClass().getName();
+		}
+
+		@Override
+		public OperationRank getInputRank() {
+			return OperationRank.TWO;
+		}
+
+		@Override
+		public OperationRank getOutputRank() {
+			return OperationRank.TWO;
+		}
+
+		@Override
+		protected OperationData process(IDataset input, IMonitor monitor) throws OperationException {
+			final Dataset doubled = Maths.multiply(input, 2);
+			copyMetadata(input, doubled);
+			return new OperationData(doubled);
+		}
+	}
+
+	/**
+	 * Not atomic, so that it is run in order after the parallel head.
+	 */
+	public static class Increment extends AbstractOperation<EmptyModel, OperationData> {
+
+		@Override
+		public String getId() {
+			return getClass().getName();
+		}
+
+		@Override
+		public OperationRank getInputRank() {
+			return OperationRank.TWO;
+		}
+
+		@Override
+		public OperationRank getOutputRank() {
+			return OperationRank.TWO;
+		}
+
+		@Override
+		protected OperationData process(IDataset input, IMonitor monitor) throws OperationException {
+			final Dataset incremented = Maths.add(input, 1);
+			copyMetadata(input, incremented);
+			return new OperationData(incremented);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.dawnsci.conversion.converters.util.SlicePlan;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.junit.Test;
+
+public class SlicePlanTest {
+
+	@Test
+	public void testWhole() {
+		final SlicePlan plan = SlicePlan.create(new int[]{10, 100, 100}, 8, 10*100*100*8);
+		assertTrue(plan.isWhole());
+		assertNull(plan.getSliceDimensions());
+		assertEquals(1, plan.getBlockCount());
+	}
+
+	@Test
+	public void testImages() {
+		// A stack of 1000 4MB images with a 64MB budget is read an image at a time
+		final SlicePlan plan = SlicePlan.create(new int[]{1000, 1024, 1024}, 4, 64*1024*1024);
+		assertFalse(plan.isWhole());
+		assertFalse(plan.isOverBudget());
+		assertEquals(1000, plan.getBlockCount());
+		assertEquals(4*1024*1024, plan.getBlockBytes());
+
+		final Map<Integer, String> dims = plan.getSliceDimensions();
+		assertEquals(1, dims.size());
+		assertEquals("all", dims.get(0));
+	}
+
+	@Test
+	public void testLeadingDimensions() {
+		final SlicePlan plan = SlicePlan.create(new int[]{20, 50, 1000, 1000}, 8, 16*1024*1024);
+		assertEquals(1000, plan.getBlockCount());
+		assertEquals(2, plan.getSliceDimensions().size());
+	}
+
+	@Test
+	public void testLastDimensionNotSliced() {
+		final SlicePlan plan = SlicePlan.create(new int[]{1000000}, 8, 1024);
+		assertTrue(plan.isWhole());
+		assertTrue(plan.isOverBudget());
+	}
+
+	@Test
+	public void testItemBytes() {
+		assertEquals(8, SlicePlan.getItemBytes(DatasetFactory.zeros(new int[]{2}, Dataset.FLOAT64)));
+		assertEquals(4, SlicePlan.getItemBytes(DatasetFactory.zeros(new int[]{2}, Dataset.INT32)));
+		assertEquals(2, SlicePlan.getItemBytes(DatasetFactory.zeros(new int[]{2}, Dataset.INT16)));
+		assertEquals(16, SlicePlan.getItemBytes(DatasetFactory.zeros(new int[]{2}, Dataset.COMPLEX128)));
+	}
+
+	@Test
+	public void testDefaultBudget() {
+		final SlicePlan plan = SlicePlan.create(new int[]{10}, 8, 0);
+		assertEquals(SlicePlan.getDefaultBudget(), plan.getBudget());
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.dawnsci.conversion.converters.util.StagedExecutionVisitor;
+import org.eclipse.dawnsci.analysis.api.processing.Atomic;
+import org.eclipse.dawnsci.analysis.api.processing.IExecutionVisitor;
+import org.eclipse.dawnsci.analysis.api.processing.IOperation;
+import org.eclipse.dawnsci.analysis.api.processing.OperationData;
+import org.eclipse.dawnsci.analysis.api.processing.OperationException;
+import org.eclipse.dawnsci.analysis.api.processing.OperationRank;
+import org.eclipse.dawnsci.analysis.api.processing.model.EmptyModel;
+import org.eclipse.dawnsci.analysis.dataset.operations.AbstractOperation;
+import org.eclipse.dawnsci.analysis.dataset.slicer.SliceFromSeriesMetadata;
+import org.eclipse.dawnsci.analysis.dataset.slicer.SliceInformation;
+import org.eclipse.dawnsci.analysis.dataset.slicer.SourceInformation;
+import org.eclipse.january.IMonitor;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.IDataset;
+import org.eclipse.january.dataset.ILazyDataset;
+import org.eclipse.january.dataset.SliceND;
+import org.junit.Test;
+
+/**
+ * Runs the head of the series on a pool of threads as the operation service does
+ * when the series is executed in parallel.
+ */
+@SuppressWarnings("rawtypes")
+public class StagedExecutionVisitorTest {
+
+	private static final int SLICES = 200;
+
+	@Test(timeout=30000)
+	public void testOrder() throws Exception {
+		final List<Integer> expected = new ArrayList<Integer>();
+		int failing = 0;
+		for (int i = 0; i < SLICES; i++) {
+			if (Drop.isDropped(i)) continue;
+			if (Drop.isFailed(i)) {
+				failing++;
+			} else {
+				expected.add(i);
+			}
+		}
+
+		final Record record = new Record();
+		final Output output = new Output();
+		final StagedExecutionVisitor stages = new StagedExecutionVisitor(output, new IOperation[]{new Delay(), new Drop(), record}, 2, null);
+		final int failed = run(stages);
+
+		assertEquals("The slices failing must fail", failing, failed);
+		assertEquals("The rest of the series must run in slice order", expected, record.values);
+		assertEquals("The output must be written in slice order", expected, output.values);
+	}
+
+	@Test(timeout=30000)
+	public void testAllDropped() throws Exception {
+		final Output output = new Output();
+		final StagedExecutionVisitor stages = new StagedExecutionVisitor(output, new IOperation[]{new Nothing(), new Record()}, 1, null);
+		run(stages);
+		assertEquals(Collections.emptyList(), output.values);
+	}
+
+	@Test
+	public void testHead() throws Exception {
+		final Delay delay = new Delay();
+		final Drop  drop  = new Drop();
+		delay.setModel(new EmptyModel());
+		final IOperation[] head = new StagedExecutionVisitor(new Output(), new IOperation[]{delay, drop, new Record()}, 2, null).getHead();
+		assertEquals("The head must be the atomic operations", 2, head.length);
+		assertEquals("The service must see atomic operations", head.length, StagedExecutionVisitor.getAtomicCount(head));
+		assertTrue(head[0] instanceof AbstractOperation);
+		assertEquals(delay.getId(), head[0].getId());
+		assertEquals(drop.getId(),  head[1].getId());
+		assertSame(delay.getModel(), head[0].getModel());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNoSliceInformation() throws Exception {
+		final StagedExecutionVisitor stages = new StagedExecutionVisitor(new Output(), new IOperation[]{new Delay(), new Record()}, 2, null);
+		stages.init(stages.getHead(), null);
+		try {
+			stages.executed(new OperationData(DatasetFactory.createFromObject(new int[]{1})), null);
+		} finally {
+			stages.close();
+		}
+	}
+
+	/**
+	 * Executes the head on each slice, on four threads in the order they are submitted,
+	 * and passes the results to the visitor. Failures are counted and the other slices go on.
+	 *
+	 * @return the number of slices which failed.
+	 */
+	private static int run(final StagedExecutionVisitor stages) throws Exception {
+		final IOperation[] head = stages.getHead();
+		stages.init(head, null);
+		final ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < SLICES; i++) {
+				final IDataset slice = createSlice(i);
+				results.add(pool.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						try {
+							OperationData data = new OperationData(slice);
+							for (IOperation op : head) {
+								data = op.execute(data.getData(), null);
+								if (data==null) return true;
+							}
+							stages.executed(data, null);
+							return true;
+						} catch (IllegalStateException ne) {
+							return false;
+						}
+					}
+				}));
+			}
+			int failed = 0;
+			for (Future<Boolean> result : results) if (!result.get()) failed++;
+			return failed;
+		} finally {
+			pool.shutdown();
+			stages.close();
+		}
+	}
+
+	private static IDataset createSlice(int i) {
+		final Dataset slice = DatasetFactory.createFromObject(new int[]{i});
+		final SliceInformation  info   = new SliceInformation(null, null, new SliceND(new int[]{SLICES}), new int[]{0}, SLICES, i);
+		final SourceInformation source = new SourceInformation("test.nxs", "/entry/data", null);
+		slice.setMetadata(new SliceFromSeriesMetadata(source, info));
+		return slice;
+	}
+
+	private static abstract class TestOperation extends AbstractOperation<EmptyModel, OperationData> {
+
+		@Override
+		public String getId() {
+			return getClass().getName();
+		}
+
+		@Override
+		public OperationRank getInputRank() {
+			return OperationRank.ONE;
+		}
+
+		@Override
+		public OperationRank getOutputRank() {
+			return OperationRank.ONE;
+		}
+
+		@Override
+		protected OperationData process(IDataset input, IMonitor monitor) throws OperationException {
+			return new OperationData(input);
+		}
+
+		@Override
+		public OperationData execute(IDataset slice, IMonitor monitor) throws OperationException {
+			return process(slice, monitor);
+		}
+	}
+
+	/**
+	 * Takes a random time, so that the results arrive out of order.
+	 */
+	@Atomic
+	public static class Delay extends TestOperation {
+		private final Random random = new Random(1);
+		@Override
+		protected OperationData process(IDataset input, IMonitor monitor) throws OperationException {
+			try {
+				Thread.sleep(random.nextInt(3));
+			} catch (InterruptedException e) {
+				throw new OperationException(this, e);
+			}
+			return new OperationData(input);
+		}
+	}
+
+	/**
+	 * Gives no result for some slices and fails for others.
+	 */
+	@Atomic
+	public static class Drop extends TestOperation {
+		static boolean isDropped(int i) {
+			return i%7==3;
+		}
+		static boolean isFailed(int i) {
+			return i%11==5;
+		}
+		@Override
+		protected OperationData process(IDataset input, IMonitor monitor) throws OperationException {
+			final int i = input.getInt(0);
+			if (isDropped(i)) return null;
+			if (isFailed(i))  throw new IllegalStateException("Slice "+i+" fails");
+			return new OperationData(input);
+		}
+	}
+
+	@Atomic
+	public static class Nothing extends TestOperation {
+		@Override
+		protected OperationData process(IDataset input, IMonitor monitor) throws OperationException {
+			return null;
+		}
+	}
+
+	/**
+	 * Not atomic, records the slices in the order it is given them.
+	 */
+	public static class Record extends TestOperation {
+		final List<Integer> values = Collections.synchronizedList(new ArrayList<Integer>());
+		@Override
+		protected OperationData process(IDataset input, IMonitor monitor) throws OperationException {
+			values.add(input.getInt(0));
+			return new OperationData(input);
+		}
+	}
+
+	private static class Output implements IExecutionVisitor {
+		final List<Integer> values = Collections.synchronizedList(new ArrayList<Integer>());
+		@Override
+		public void init(IOperation[] series, ILazyDataset data) throws Exception {
+		}
+		@Override
+		public void executed(OperationData result, IMonitor monitor) throws Exception {
+			values.add(result.getData().getInt(0));
+		}
+		@Override
+		public void notify(IOperation intermeadiateData, OperationData data) {
+		}
+		@Override
+		public void close() throws Exception {
+		}
+	}
+}
@@ -35,6 +35,7 @@ import org.eclipse.dawnsci.analysis.dataset.roi.EllipticalROI;
 import org.eclipse.january.IMonitor;
 import org.eclipse.january.dataset.AggregateDataset;
 import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetUtils;
 import org.eclipse.january.dataset.IDataset;
 import org.eclipse.january.dataset.ILazyDataset;
 import org.eclipse.january.dataset.LazyDataset;
@@ -80,6 +81,84 @@ public class StitchingConvertTest {
 		doTestDir();
 	}
 
+	@Test
+	public void testStreamedMosaic() throws Exception {
+		final File sourcedir = new File("testfiles/imagesToStitch");
+		org.apache.commons.io.FileUtils.copyDirectory(sourcedir, dir);
+
+		IConversionService service = new ConversionServiceImpl();
+		final IConversionContext context = service.open(dir.getAbsolutePath());
+		List<File> files = listFiles(dir, new String[] { "tif" }, false);
+		String[] filePaths = new String[files.size()];
+		for (int i = 0; i < filePaths.length; i++) {
+			filePaths[i] = files.get(i).getAbsolutePath();
+		}
+		context.setFilePaths(filePaths);
+		context.setEchoMacro(false);
+		final File mosaic = new File(output, "mosaic.h5");
+		context.setOutputPath(mosaic.getAbsolutePath());
+		context.setConversionScheme(scheme);
+
+		// A field of view which makes a micron one pixel, so that the stitcher places
+		// the tiles on whole pixels and its output can be compared pixel for pixel
+		final int    height = loadLazyData(filePaths).getShape()[1];
+		final double cos    = Math.cos(Math.PI/4);
+		double view = height/cos;
+		for (int i = 0; i < 64 && height/(view*cos)!=1; i++) {
+			view = height/(view*cos)>1 ? Math.nextUp(view) : Math.nextDown(view);
+		}
+		if (height/(view*cos)!=1) fail("Cannot find a field of view of one pixel per micron");
+
+		// Each tile 25 microns right of the one before it in its row and 30 below the row above
+		double[][][] steps = new double[columns][rows][];
+		for (int i = 0; i < columns; i++) {
+			for (int j = 0; j < rows; j++) steps[i][j] = new double[] {25, 30};
+		}
+		ConversionStitchedBean bean = new ConversionStitchedBean();
+		bean.setAngle(0);
+		bean.setRows(rows);
+		bean.setColumns(columns);
+		bean.setFieldOfView(view);
+		bean.setFeatureAssociated(false);
+		bean.setTranslations(steps);
+		context.setUserObject(bean);
+
+		service.process(context);
+
+		final IDataset[] tiles = new IDataset[filePaths.length];
+		for (int i = 0; i < tiles.length; i++) {
+			tiles[i] = DatasetUtils.cast(DatasetUtils.convertToDataset(transformer.rotate(loadData(new String[] { filePaths[i] }).get(0), 0)), Dataset.FLOAT32);
+		}
+		int[] tile = tiles[0].getShape();
+		ILazyDataset stitched = LocalServiceManager.getLoaderService().getData(mosaic.getAbsolutePath(), null).getLazyDataset("/entry/data/stitched");
+		if (!Arrays.equals(new int[] {(rows-1)*30+tile[0], (columns-1)*25+tile[1]}, stitched.getShape())) {
+			fail("The mosaic has shape "+Arrays.toString(stitched.getShape())+" for tiles of shape "+Arrays.toString(tile));
+		}
+
+		// The stitcher given the same bean
+		final IDataset expected = sticher.stitch(new AggregateDataset(true, tiles), rows, columns, view, steps, false, loadLazyData(filePaths).getShape(), new IMonitor.Stub());
+		final IDataset actual   = stitched.getSlice();
+		if (!Arrays.equals(expected.getShape(), actual.getShape())) {
+			fail("The mosaic has shape "+Arrays.toString(actual.getShape())+", the stitcher's "+Arrays.toString(expected.getShape()));
+		}
+
+		// Each tile is kept where no later tile covers it, away from the edges the stitcher interpolates
+		for (int i = 0; i < tiles.length; i++) {
+			final int row = i/columns, column = i%columns;
+			final int bottom = row==rows-1       ? tile[0] : 30;
+			final int right  = column==columns-1 ? tile[1] : 25;
+			for (int y = 2; y < bottom-2; y++) {
+				for (int x = 2; x < right-2; x++) {
+					final int   my = row*30+y, mx = column*25+x;
+					final float value = tiles[i].getFloat(y, x);
+					if (Math.abs(actual.getFloat(my, mx)-value)>1e-3 || Math.abs(expected.getFloat(my, mx)-value)>1e-3) {
+						fail("Tile "+i+" differs at "+my+","+mx+": "+actual.getFloat(my, mx)+" in the mosaic, "+expected.getFloat(my, mx)+" stitched, "+value+" in the tile");
+					}
+				}
+			}
+		}
+	}
+
 	@After
 	public void after() {
 		FileUtils.recursiveDelete(dir);
@@ -9,13 +9,18 @@
 package org.dawnsci.conversion;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
+import org.dawnsci.conversion.converters.IExtendedConversionContext;
+import org.dawnsci.conversion.converters.OriginalDataMode;
+import org.dawnsci.conversion.converters.util.ConversionJournal;
+import org.dawnsci.conversion.converters.util.ConversionManifest;
+import org.dawnsci.conversion.converters.util.ConversionMetrics;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionScheme;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionVisitor;
 import org.eclipse.january.IMonitor;
@@ -24,7 +29,7 @@ import org.eclipse.january.dataset.Slice;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-class ConversionContext implements IConversionContext {
+class ConversionContext implements IExtendedConversionContext {
 
 	// Core data to drive the context (some can still be null)
 	private IConversionScheme   conversionScheme;
@@ -41,9 +46,12 @@ class ConversionContext implements IConversionContext {
 	private String              axisDatasetName;
 	private Map<Integer,String> axesNames;
 
-	// Transient data used during evaluation
-	private Slice[]             selectedSlice;
-	private int[]               selectedShape;
+	// Transient data used during evaluation, the slice and shape are
+	// also held per thread when slices are converted concurrently.
+	private volatile Slice[]    selectedSlice;
+	private volatile int[]      selectedShape;
+	private final ThreadLocal<Slice[]> localSlice = new ThreadLocal<Slice[]>();
+	private final ThreadLocal<int[]>   localShape = new ThreadLocal<int[]>();
 	private File                selectedConversionFile;
 	private String              selectedH5Path;
 
@@ -51,8 +59,72 @@ class ConversionContext implements IConversionContext {
 	private IMonitor            monitor;
 	private int                 workSize=100;
 	private boolean             echoMacro = true;
+	
+	// Execution
+	private int                 sliceThreadCount = 1;
+	private boolean             recursiveExpansion = false;
+	private int                 fileThreadCount = 1;
+	private List<File>          inputFiles;
+	private long                memoryBudget = 0;
+	private int                 chunkFrames  = 0;
+	private int                 batchFrames  = 0;
+	private int                 deflateLevel = 0;
+	private OriginalDataMode    originalDataMode = OriginalDataMode.COPY;
+	private ConversionMetrics   metrics = new ConversionMetrics();
+	private boolean             checkpointing = false;
+	private ConversionJournal   journal;
+	private long                followInterval = 0;
+	private long                followTimeout  = 60000;
+	private String              followEndPath;
+	private boolean             incremental = false;
+	private boolean             sampledHash = false;
+	private ConversionManifest  manifest;
 
 	
+	/**
+	 * Copies the context to convert one of its input files, the output is
+	 * named as it would be converting all the files with this context. The
+	 * slices of the file are converted on its own thread, as the files are
+	 * already converted concurrently.
+	 * 
+	 * @param file
+	 * @return a context for the file, sharing the user object and monitor.
+	 */
+	ConversionContext copy(File file) {
+		final ConversionContext copy = new ConversionContext();
+		copy.conversionScheme   = conversionScheme;
+		copy.filePaths          = filePaths;
+		copy.datasetNames       = datasetNames;
+		copy.outputFolder       = outputFolder;
+		copy.sliceDimensions    = sliceDimensions!=null ? new HashMap<Integer,String>(sliceDimensions) : null;
+		copy.userObject         = userObject;
+		copy.conversionVisitor  = conversionVisitor;
+		copy.expression         = expression;
+		copy.axisDatasetName    = axisDatasetName;
+		copy.axesNames          = axesNames;
+		copy.monitor            = monitor;
+		copy.workSize           = workSize;
+		copy.echoMacro          = false;
+		copy.sliceThreadCount   = 1;
+		copy.recursiveExpansion = recursiveExpansion;
+		copy.memoryBudget       = memoryBudget;
+		copy.chunkFrames        = chunkFrames;
+		copy.batchFrames        = batchFrames;
+		copy.deflateLevel       = deflateLevel;
+		copy.originalDataMode   = originalDataMode;
+		copy.metrics            = metrics;
+		copy.checkpointing      = checkpointing;
+		copy.journal            = journal;
+		copy.followInterval     = followInterval;
+		copy.followTimeout      = followTimeout;
+		copy.followEndPath      = followEndPath;
+		copy.incremental        = incremental;
+		copy.sampledHash        = sampledHash;
+		copy.manifest           = manifest;
+		copy.inputFiles         = Arrays.asList(file);
+		return copy;
+	}
+	
 	public boolean isEchoMacro() {
 		return echoMacro;
 	}
@@ -278,20 +350,205 @@ class ConversionContext implements IConversionContext {
 	}
 	@Override
 	public Slice[] getSelectedSlice() {
-		return selectedSlice;
+		final Slice[] local = localSlice.get();
+		return local!=null ? local : selectedSlice;
 	}
 	@Override
 	public void setSelectedSlice(Slice[] slice) {
+		localSlice.set(slice);
 		selectedSlice = slice;
 	}
 	@Override
 	public int[] getSelectedShape() {
-		return selectedShape;
+		final int[] local = localShape.get();
+		return local!=null ? local : selectedShape;
 	}
 	@Override
 	public void setSelectedShape(int[] shape) {
+		localShape.set(shape);
 		this.selectedShape = shape;
 	}
+	@Override
+	public int getSliceThreadCount() {
+		return sliceThreadCount;
+	}
+	@Override
+	public void setSliceThreadCount(int threads) {
+		this.sliceThreadCount = Math.max(1, threads);
+	}
+	@Override
+	public int getFileThreadCount() {
+		return fileThreadCount;
+	}
+	@Override
+	public void setFileThreadCount(int threads) {
+		this.fileThreadCount = Math.max(1, threads);
+	}
+	@Override
+	public List<File> getInputFiles() {
+		return inputFiles;
+	}
+	@Override
+	public void setInputFiles(List<File> files) {
+		this.inputFiles = files;
+	}
+	@Override
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+	@Override
+	public void setMemoryBudget(long bytes) {
+		this.memoryBudget = Math.max(0, bytes);
+	}
+	@Override
+	public int getChunkFrames() {
+		return chunkFrames;
+	}
+	@Override
+	public void setChunkFrames(int frames) {
+		this.chunkFrames = Math.max(0, frames);
+	}
+	@Override
+	public int getBatchFrames() {
+		return batchFrames;
+	}
+	@Override
+	public void setBatchFrames(int frames) {
+		this.batchFrames = Math.max(0, frames);
+	}
+	@Override
+	public int getDeflateLevel() {
+		return deflateLevel;
+	}
+	@Override
+	public void setDeflateLevel(int level) {
+		if (level<0 || level>9) throw new IllegalArgumentException("The deflate level must be from 0 to 9, not "+level);
+		this.deflateLevel = level;
+	}
+	@Override
+	public ConversionMetrics getMetrics() {
+		return metrics;
+	}
+	@Override
+	public boolean isCheckpointing() {
+		return checkpointing;
+	}
+	@Override
+	public void setCheckpointing(boolean checkpointing) {
+		this.checkpointing = checkpointing;
+	}
+	@Override
+	public File getCheckpointFile() {
+		if (outputFolder==null) return null;
+		final File output = new File(outputFolder);
+		if (output.isDirectory()) return new File(output, ".conversion.checkpoint");
+		return new File(output.getAbsolutePath()+".checkpoint");
+	}
+	@Override
+	public synchronized ConversionJournal getJournal() throws IOException {
+		if (!checkpointing) return null;
+		// The service closes the journal at the end of each conversion, a later one opens it again
+		if (journal!=null && journal.isClosed()) journal = null;
+		if (journal==null) {
+			final File file = getCheckpointFile();
+			if (file==null) throw new IOException("The output path must be set to checkpoint the conversion!");
+			journal = ConversionJournal.open(file);
+		}
+		return journal;
+	}
+	@Override
+	public long getFollowInterval() {
+		return followInterval;
+	}
+	@Override
+	public void setFollowInterval(long millis) {
+		this.followInterval = Math.max(0, millis);
+	}
+	@Override
+	public long getFollowTimeout() {
+		return followTimeout;
+	}
+	@Override
+	public void setFollowTimeout(long millis) {
+		this.followTimeout = Math.max(0, millis);
+	}
+	@Override
+	public String getFollowEndPath() {
+		return followEndPath;
+	}
+	@Override
+	public void setFollowEndPath(String path) {
+		this.followEndPath = path;
+	}
+	@Override
+	public boolean isIncremental() {
+		return incremental;
+	}
+	@Override
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+	@Override
+	public boolean isSampledHash() {
+		return sampledHash;
+	}
+	@Override
+	public void setSampledHash(boolean sampled) {
+		this.sampledHash = sampled;
+	}
+	@Override
+	public File getManifestFile() {
+		if (outputFolder==null) return null;
+		final File output = new File(outputFolder);
+		if (output.isDirectory()) return new File(output, ".conversion.manifest");
+		return new File(output.getAbsolutePath()+".manifest");
+	}
+	@Override
+	public synchronized ConversionManifest getManifest() throws IOException {
+		if (!incremental) return null;
+		if (manifest==null) {
+			final File file = getManifestFile();
+			if (file==null) throw new IOException("The output path must be set to convert incrementally!");
+			manifest = ConversionManifest.open(file, getSettings(), sampledHash);
+		}
+		return manifest;
+	}
+	
+	/**
+	 * 
+	 * @return the settings which change the outputs written for an input.
+	 */
+	private String getSettings() {
+		final StringBuilder buf = new StringBuilder();
+		buf.append(conversionScheme!=null ? conversionScheme.getClass().getName() : null);
+		buf.append(" datasets=").append(datasetNames);
+		buf.append(" slices=").append(sliceDimensions);
+		buf.append(" axes=").append(axesNames);
+		if (userObject!=null) {
+			try {
+				buf.append(" options=").append(new ObjectMapper().writeValueAsString(userObject));
+			} catch (Exception ne) {
+				buf.append(" options=").append(userObject);
+			}
+		}
+		return buf.toString();
+	}
+	@Override
+	public OriginalDataMode getOriginalDataMode() {
+		return originalDataMode;
+	}
+	@Override
+	public void setOriginalDataMode(OriginalDataMode mode) {
+		this.originalDataMode = mode!=null ? mode : OriginalDataMode.COPY;
+	}
+	@Override
+	public boolean isRecursiveExpansion() {
+		return recursiveExpansion;
+	}
+	@Override
+	public void setRecursiveExpansion(boolean recursive) {
+		this.recursiveExpansion = recursive;
+	}
 	
 	@Override
 	public Map<Integer, String> getAxesNames() {
@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.dawnsci.conversion.converters.IExtendedConversionContext;
+import org.dawnsci.conversion.converters.util.ConversionThreads;
+import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
+import org.eclipse.dawnsci.analysis.api.conversion.IConversionService;
+import org.eclipse.january.IMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The queues and the workers in use are guarded by one lock, which is only held to
+ * queue and start conversions. A conversion is started once enough workers are free
+ * for it, so a conversion asking for many threads is not overtaken indefinitely by
+ * smaller ones. It is then run on its own thread, the threads are not the budget.
+ */
+public class ConversionSchedulerImpl implements IConversionScheduler {
+
+	private static final Logger logger = LoggerFactory.getLogger(ConversionSchedulerImpl.class);
+
+	/**
+	 * Histograms have one bucket per power of two nanoseconds.
+	 */
+	private static final int BUCKETS = 48;
+
+	private IConversionService service;
+	private final ExecutorService threads = ConversionThreads.newCachedPool("Conversion scheduler");
+
+	// Guarded by this
+	private final List<Map<String,Deque<Job>>> queues = new ArrayList<Map<String,Deque<Job>>>(Priority.values().length);
+	private final int[]     depth   = new int[Priority.values().length];
+	private final List<Job> running = new ArrayList<Job>();
+	private int             budget  = Runtime.getRuntime().availableProcessors();
+	private int             used    = 0;
+	private boolean         shutdown;
+
+	private final AtomicLong[]      waits     = new AtomicLong[Priority.values().length];
+	private final AtomicLong[]      waitNanos = new AtomicLong[Priority.values().length];
+	private final AtomicLongArray[] buckets   = new AtomicLongArray[Priority.values().length];
+	private final AtomicLong        completed = new AtomicLong();
+
+	/**
+	 * used by OSGI
+	 */
+	public ConversionSchedulerImpl() {
+		this(null, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 *
+	 * @param service which processes the conversions, a new ConversionServiceImpl if null.
+	 * @param workers
+	 */
+	public ConversionSchedulerImpl(IConversionService service, int workers) {
+		this.service = service!=null ? service : new ConversionServiceImpl();
+		for (int i = 0; i < depth.length; i++) {
+			queues.add(new LinkedHashMap<String,Deque<Job>>());
+			waits[i]     = new AtomicLong();
+			waitNanos[i] = new AtomicLong();
+			buckets[i]   = new AtomicLongArray(BUCKETS);
+		}
+		setWorkerBudget(workers);
+	}
+
+	public void setConversionService(IConversionService service) {
+		this.service = service;
+	}
+
+	@Override
+	public Future<IConversionContext> submit(IConversionContext context) {
+		return submit(context, Priority.NORMAL, Thread.currentThread().getName());
+	}
+
+	@Override
+	public Future<IConversionContext> submit(IConversionContext context, Priority priority, String submitter) {
+		if (context==null)  throw new IllegalArgumentException("The context must be set!");
+		if (priority==null) priority = Priority.NORMAL;
+		if (submitter==null) submitter = "";
+
+		final Job job = new Job(context, priority, submitter);
+		synchronized (this) {
+			if (shutdown) throw new RejectedExecutionException("The conversion scheduler is shut down!");
+			final Map<String,Deque<Job>> queue = queues.get(priority.ordinal());
+			Deque<Job> jobs = queue.get(submitter);
+			if (jobs==null) {
+				jobs = new ArrayDeque<Job>();
+				queue.put(submitter, jobs);
+			}
+			jobs.add(job);
+			depth[priority.ordinal()]++;
+			start();
+		}
+		return job;
+	}
+
+	/**
+	 * Starts the conversions at the head of the queue for which there are enough workers.
+	 * Called with the lock held.
+	 */
+	private void start() {
+		for (Map<String,Deque<Job>> queue : queues) {
+			while (!queue.isEmpty()) {
+				final Iterator<Map.Entry<String,Deque<Job>>> it = queue.entrySet().iterator();
+				final Map.Entry<String,Deque<Job>> next = it.next();
+				final Job job = next.getValue().peek();
+				// A conversion may ask for more than the budget, it then runs alone
+				if (used>0 && used+job.cost>budget) return;
+
+				// The submitter goes to the back of the queue
+				next.getValue().remove();
+				it.remove();
+				if (!next.getValue().isEmpty()) queue.put(next.getKey(), next.getValue());
+				depth[job.priority.ordinal()]--;
+
+				used += job.cost;
+				running.add(job);
+				threads.execute(job);
+			}
+		}
+	}
+
+	private synchronized void finished(Job job) {
+		if (running.remove(job)) used -= job.cost;
+		start();
+	}
+
+	private synchronized boolean dequeue(Job job) {
+		final Map<String,Deque<Job>> queue = queues.get(job.priority.ordinal());
+		final Deque<Job> jobs = queue.get(job.submitter);
+		if (jobs==null || !jobs.remove(job)) return false;
+		if (jobs.isEmpty()) queue.remove(job.submitter);
+		depth[job.priority.ordinal()]--;
+		return true;
+	}
+
+	private void recordWait(Priority priority, long nanos) {
+		final int i = priority.ordinal();
+		waits[i].incrementAndGet();
+		waitNanos[i].addAndGet(nanos);
+		buckets[i].incrementAndGet(Math.min(BUCKETS-1, 63-Long.numberOfLeadingZeros(Math.max(1, nanos))));
+	}
+
+	@Override
+	public synchronized int getWorkerBudget() {
+		return budget;
+	}
+
+	@Override
+	public void setWorkerBudget(int workers) {
+		if (workers<1) throw new IllegalArgumentException("The worker budget must be at least one!");
+		synchronized (this) {
+			budget = workers;
+			start();
+		}
+	}
+
+	@Override
+	public synchronized int getQueueDepth() {
+		int total = 0;
+		for (int d : depth) total+=d;
+		return total;
+	}
+
+	@Override
+	public synchronized int getQueueDepth(Priority priority) {
+		return depth[priority.ordinal()];
+	}
+
+	@Override
+	public synchronized int getRunningCount() {
+		return running.size();
+	}
+
+	@Override
+	public long getWaitPercentile(Priority priority, double fraction, TimeUnit unit) {
+		final AtomicLongArray histogram = buckets[priority.ordinal()];
+		final long total = waits[priority.ordinal()].get();
+		if (total==0) return 0;
+		final long target = (long)Math.ceil(total*fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += histogram.get(i);
+			if (seen>=target) return unit.convert(1L<<(i+1), TimeUnit.NANOSECONDS);
+		}
+		return unit.convert(1L<<BUCKETS, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public long getMeanWait(Priority priority, TimeUnit unit) {
+		final long count = waits[priority.ordinal()].get();
+		return count>0 ? unit.convert(waitNanos[priority.ordinal()].get()/count, TimeUnit.NANOSECONDS) : 0;
+	}
+
+	@Override
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	@Override
+	public void shutdown() {
+		final List<Job> jobs = new ArrayList<Job>();
+		synchronized (this) {
+			shutdown = true;
+			for (Map<String,Deque<Job>> queue : queues) {
+				for (Deque<Job> q : queue.values()) jobs.addAll(q);
+			}
+			jobs.addAll(running);
+		}
+		for (Job job : jobs) job.cancel(true);
+		threads.shutdown();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Conversion scheduler "+running.size()+" running using "+used+" of "+budget+" workers, "+getQueueDepth()+" queued";
+	}
+
+	/**
+	 * A queued conversion, which is run on one of the scheduler's threads.
+	 */
+	private final class Job extends FutureTask<IConversionContext> {
+
+		private final IConversionContext context;
+		private final Priority           priority;
+		private final String             submitter;
+		private final int                cost;
+		private final long               submitted = System.nanoTime();
+		private volatile boolean         cancelled, failed;
+
+		Job(final IConversionContext context, Priority priority, String submitter) {
+			super(new Callable<IConversionContext>() {
+				@Override
+				public IConversionContext call() throws Exception {
+					service.process(context);
+					return context;
+				}
+			});
+			this.context   = context;
+			this.priority  = priority;
+			this.submitter = submitter;
+			this.cost      = getCost(context);
+		}
+
+		@Override
+		public void run() {
+			final IMonitor monitor = context.getMonitor();
+			try {
+				if (isDone()) return; // Cancelled before it started
+				recordWait(priority, System.nanoTime()-submitted);
+				context.setMonitor(new JobMonitor(monitor));
+				super.run();
+				if (!cancelled && !failed) completed.incrementAndGet();
+			} finally {
+				context.setMonitor(monitor);
+				finished(this);
+			}
+		}
+
+		@Override
+		protected void setException(Throwable t) {
+			failed = true;
+			if (!cancelled) logger.error("Cannot convert "+context.getFilePaths(), t);
+			super.setException(t);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			// The conversion checks the monitor, it is not interrupted as it may be writing
+			cancelled = true;
+			if (!super.cancel(false)) return false;
+			dequeue(this);
+			return true;
+		}
+
+		/**
+		 * Reports the conversion cancelled if the job is, as well as if the monitor of the context is.
+		 */
+		private final class JobMonitor implements IMonitor {
+
+			private final IMonitor delegate;
+
+			JobMonitor(IMonitor delegate) {
+				this.delegate = delegate;
+			}
+			@Override
+			public void worked(int amount) {
+				if (delegate!=null) delegate.worked(amount);
+			}
+			@Override
+			public boolean isCancelled() {
+				return cancelled || (delegate!=null && delegate.isCancelled());
+			}
+			@Override
+			public void subTask(String taskName) {
+				if (delegate!=null) delegate.subTask(taskName);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param context
+	 * @return the workers used by a conversion, the threads its context asks for. Files
+	 * converted concurrently convert their slices on their own threads, so the file and
+	 * slice threads are not used together.
+	 */
+	private static int getCost(IConversionContext context) {
+		if (!(context instanceof IExtendedConversionContext)) return 1;
+		final IExtendedConversionContext ext = (IExtendedConversionContext)context;
+		return Math.max(1, Math.max(ext.getFileThreadCount(), ext.getSliceThreadCount()));
+	}
+}
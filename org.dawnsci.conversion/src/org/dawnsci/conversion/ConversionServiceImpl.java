@@ -8,23 +8,48 @@
  */
 package org.dawnsci.conversion;
 
+import java.io.File;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.dawnsci.conversion.converters.AbstractConversion;
+import org.dawnsci.conversion.converters.IExtendedConversionContext;
 import org.dawnsci.conversion.converters.VisitorConversion;
+import org.dawnsci.conversion.converters.util.ConversionJournal;
+import org.dawnsci.conversion.converters.util.ConversionManifest;
+import org.dawnsci.conversion.converters.util.ConversionMetrics;
+import org.dawnsci.conversion.converters.util.ConversionThreads;
+import org.dawnsci.conversion.converters.util.FileExpander;
+import org.dawnsci.conversion.schemes.AbstractConversionScheme;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversion;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionScheme;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionService;
 import org.eclipse.dawnsci.macro.api.IMacroService;
 import org.eclipse.dawnsci.macro.api.MacroEventObject;
+import org.eclipse.january.IMonitor;
 import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.swt.widgets.Display;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 public class ConversionServiceImpl implements IConversionService {
 	
+	private static final Logger logger = LoggerFactory.getLogger(ConversionServiceImpl.class);
+
+	/**
+	 * System property which, when true, publishes the metrics of each conversion
+	 * with the platform MBean server while it runs.
+	 */
+	public static final String PUBLISH_METRICS = "org.dawnsci.conversion.publishMetrics";
+	
 	static {
 		System.out.println("Starting conversion service.");
 	
@@ -47,15 +72,86 @@ public class ConversionServiceImpl implements IConversionService {
 
 	@Override
 	public void process(IConversionContext context) throws Exception {
+		
+		final ConversionManifest manifest = context instanceof IExtendedConversionContext
+				                          ? ((IExtendedConversionContext)context).getManifest()
+				                          : null;
+		final ConversionMetrics  metrics  = context instanceof IExtendedConversionContext && Boolean.getBoolean(PUBLISH_METRICS)
+				                          ? ((IExtendedConversionContext)context).getMetrics()
+				                          : null;
+		if (metrics!=null) publish(metrics, context);
+		try {
+			processJournaled(context);
+		} finally {
+			try {
+				// The inputs converted are kept even if the others failed
+				if (manifest!=null) manifest.save();
+			} finally {
+				if (metrics!=null) withdraw(metrics);
+			}
+		}
+	}
+	
+	/**
+	 * The metrics are only there to be watched, the conversion goes on without them.
+	 */
+	private static void publish(ConversionMetrics metrics, IConversionContext context) {
+		try {
+			final IConversionScheme scheme = context.getConversionScheme();
+			metrics.register(scheme!=null ? scheme.getClass().getSimpleName() : "conversion");
+		} catch (Exception ne) {
+			logger.warn("Cannot publish the metrics of the conversion", ne);
+		}
+	}
+	
+	private static void withdraw(ConversionMetrics metrics) {
+		try {
+			metrics.unregister();
+		} catch (Exception ne) {
+			logger.warn("Cannot withdraw the metrics of the conversion", ne);
+		}
+	}
+	
+	private void processJournaled(IConversionContext context) throws Exception {
+		
+		final ConversionJournal journal = context instanceof IExtendedConversionContext
+				                        ? ((IExtendedConversionContext)context).getJournal()
+				                        : null;
+		if (journal==null) {
+			processContext(context);
+			return;
+		}
+		
+		boolean completed = false;
+		try {
+			processContext(context);
+			completed = context.getMonitor()==null || !context.getMonitor().isCancelled();
+		} finally {
+			// The journal is kept to resume the conversion unless it completed
+			if (completed) {
+				journal.delete();
+			} else {
+				journal.close();
+			}
+		}
+	}
+	
+	private void processContext(IConversionContext context) throws Exception {
+		
+		final List<File> files = getParallelFiles(context);
+		if (files!=null) {
+			sendMacroCommands(context);
+			processFiles((ConversionContext)context, files);
+			return;
+		}
+		
 		AbstractConversion delegate=null;
 		try {
 			if (context.getConversionVisitor()!=null) {
 				delegate = new VisitorConversion(context);
 			}
 			if (delegate==null) {
-				IConversionScheme scheme = context.getConversionScheme();
-				Constructor<? extends IConversion> constructor = scheme.getConversion().getConstructor(IConversionContext.class);
-				delegate = (AbstractConversion) constructor.newInstance(context);
+				delegate = createConversion(context);
 			}
 			
 			// We send some macro commands, to tell people how to drive the service with
@@ -67,6 +163,112 @@ public class ConversionServiceImpl implements IConversionService {
 			if (delegate!=null) delegate.close(context);
 		}
 	}
+	
+	private static AbstractConversion createConversion(IConversionContext context) throws Exception {
+		IConversionScheme scheme = context.getConversionScheme();
+		Constructor<? extends IConversion> constructor = scheme.getConversion().getConstructor(IConversionContext.class);
+		return (AbstractConversion) constructor.newInstance(context);
+	}
+	
+	/**
+	 * 
+	 * @param context
+	 * @return the input files in natural order if they should be converted concurrently, otherwise null.
+	 */
+	private static List<File> getParallelFiles(IConversionContext context) throws Exception {
+		
+		if (!(context instanceof ConversionContext)) return null;
+		final ConversionContext ccontext = (ConversionContext)context;
+		if (ccontext.getFileThreadCount()<2)     return null;
+		if (ccontext.getConversionVisitor()!=null || ccontext.getLazyDataset()!=null) return null;
+		if (ccontext.getInputFiles()!=null)      return null;
+		if (ccontext.getOutputPath()==null || !new File(ccontext.getOutputPath()).isDirectory()) return null;
+		
+		final IConversionScheme scheme = ccontext.getConversionScheme();
+		if (!(scheme instanceof AbstractConversionScheme)) return null;
+		if (!((AbstractConversionScheme)scheme).isFileParallelSupported(ccontext)) return null;
+		
+		final List<File> files = new ArrayList<File>(89);
+		for (String path : ccontext.getFilePaths()) {
+			if (path.isEmpty()) continue;
+			files.addAll(new FileExpander(path).setRecursive(ccontext.isRecursiveExpansion()).setSorted(true).list());
+		}
+		return files.size()>1 ? files : null;
+	}
+
+	/**
+	 * Converts each file with its own conversion on a bounded pool of threads.
+	 * The monitor is shared by the conversions so progress and cancellation
+	 * apply to the whole batch. The first failure cancels the monitor, so that
+	 * the running conversions stop where they would stop if the user cancelled,
+	 * and the files not yet converted. It is thrown once the running conversions
+	 * have stopped.
+	 */
+	private void processFiles(final ConversionContext context, final List<File> files) throws Exception {
+		
+		final int             threads = Math.min(context.getFileThreadCount(), files.size());
+		final ExecutorService pool    = ConversionThreads.newFixedPool("Conversion", threads);
+		final SharedMonitor   monitor = new SharedMonitor(context.getMonitor());
+		
+		final LinkedList<Future<Object>> pending = new LinkedList<Future<Object>>();
+		boolean converted = false;
+		try {
+			for (final File file : files) {
+				pending.add(pool.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						if (monitor.isCancelled()) return null;
+						
+						final ConversionContext fileContext = context.copy(file);
+						fileContext.setMonitor(monitor);
+						final AbstractConversion delegate = createConversion(fileContext);
+						try {
+							delegate.process(fileContext);
+						} finally {
+							delegate.close(fileContext);
+						}
+						return null;
+					}
+				}));
+			}
+			while (!pending.isEmpty()) ConversionThreads.get(pending.removeFirst());
+			converted = true;
+		} finally {
+			if (!converted) monitor.cancel();
+			ConversionThreads.cancel(pending);
+			ConversionThreads.shutdown(pool);
+		}
+	}
+	
+	/**
+	 * Monitors are not necessarily thread safe, this one may be used by
+	 * the conversions running at the same time. It may also be cancelled
+	 * when one of them fails, and may have no monitor to delegate to.
+	 */
+	private static final class SharedMonitor implements IMonitor {
+		
+		private final IMonitor delegate;
+		private volatile boolean cancelled;
+		
+		SharedMonitor(IMonitor delegate) {
+			this.delegate = delegate;
+		}
+		void cancel() {
+			cancelled = true;
+		}
+		@Override
+		public synchronized void worked(int amount) {
+			if (delegate!=null) delegate.worked(amount);
+		}
+		@Override
+		public synchronized boolean isCancelled() {
+			return cancelled || (delegate!=null && delegate.isCancelled());
+		}
+		@Override
+		public synchronized void subTask(String taskName) {
+			if (delegate!=null) delegate.subTask(taskName);
+		}
+	}
 
 	/**
 	 * Constructs a macro by mirroring the context into the python layer. 
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
+
+/**
+ * Runs the conversions started by the user interface, scripts and processing on
+ * a shared budget of workers, so that they do not overload the machine together.
+ *
+ * Conversions are queued by priority. Conversions of the same priority are taken
+ * in turn from each submitter, and in the order they were submitted from the same
+ * submitter, so one submitter queuing many conversions does not hold up the others.
+ * A conversion uses as many workers as the threads its context asks for.
+ *
+ * <pre>
+ * final Future&lt;IConversionContext&gt; job = scheduler.submit(context, Priority.INTERACTIVE, "Conversion wizard");
+ * ...
+ * job.get(); // Throws the exception of the conversion if it failed.
+ * </pre>
+ *
+ * Cancelling a queued conversion removes it from the queue, cancelling a running
+ * conversion cancels the monitor of its context.
+ */
+public interface IConversionScheduler {
+
+	/**
+	 * Conversions of a higher priority are always started before those of a lower one.
+	 */
+	public enum Priority {
+		/** A user is waiting for the conversion */
+		INTERACTIVE,
+		/** Conversions run from scripts or macros */
+		NORMAL,
+		/** Processing and other batch conversions */
+		BATCH;
+	}
+
+	/**
+	 * Queues the conversion.
+	 *
+	 * @param context the context to process, it must not be changed until the conversion is done.
+	 * @param priority
+	 * @param submitter the name of the tool or user submitting the conversion, may be null.
+	 * @return the conversion, which returns the context once it has been processed.
+	 */
+	public Future<IConversionContext> submit(IConversionContext context, Priority priority, String submitter);
+
+	/**
+	 * Queues the conversion with normal priority, for the thread calling this method.
+	 *
+	 * @param context
+	 * @return the conversion, which returns the context once it has been processed.
+	 */
+	public Future<IConversionContext> submit(IConversionContext context);
+
+	/**
+	 *
+	 * @return the number of workers which conversions may use at once.
+	 */
+	public int getWorkerBudget();
+
+	/**
+	 * Conversions already running are not stopped if the budget is reduced.
+	 *
+	 * @param workers at least one, by default the number of processors.
+	 */
+	public void setWorkerBudget(int workers);
+
+	/**
+	 *
+	 * @return the number of conversions waiting to run.
+	 */
+	public int getQueueDepth();
+
+	/**
+	 *
+	 * @param priority
+	 * @return the number of conversions of the priority waiting to run.
+	 */
+	public int getQueueDepth(Priority priority);
+
+	/**
+	 *
+	 * @return the number of conversions running.
+	 */
+	public int getRunningCount();
+
+	/**
+	 *
+	 * @param priority
+	 * @param fraction between 0 and 1, for instance 0.95
+	 * @param unit
+	 * @return an upper bound, to within a factor of two, of the time within which that fraction
+	 * of the conversions of the priority started after they were submitted.
+	 */
+	public long getWaitPercentile(Priority priority, double fraction, TimeUnit unit);
+
+	/**
+	 *
+	 * @param priority
+	 * @param unit
+	 * @return the mean time the conversions of the priority which have started waited to start.
+	 */
+	public long getMeanWait(Priority priority, TimeUnit unit);
+
+	/**
+	 *
+	 * @return the number of conversions which have completed, without failing or being cancelled.
+	 */
+	public long getCompletedCount();
+
+	/**
+	 * Cancels the conversions queued and running, and stops accepting conversions.
+	 */
+	public void shutdown();
+}
@@ -19,7 +19,13 @@ import static org.monte.media.VideoFormatKeys.WidthKey;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import org.dawnsci.conversion.converters.util.AsyncImageWriter;
+import org.dawnsci.conversion.converters.util.ConversionThreads;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
 import org.eclipse.dawnsci.plotting.api.IPlottingSystem;
 import org.eclipse.dawnsci.plotting.api.PlotType;
@@ -51,6 +57,11 @@ public class AVIImageConverter extends AbstractImageConversion {
 	
 	private static final Logger logger = LoggerFactory.getLogger(AVIImageConverter.class);
 
+	/**
+	 * System property of the number of threads rendering images ahead of the video.
+	 */
+	public static final String RENDER_THREADS = "org.dawnsci.conversion.avi.renderThreads";
+
 	private static IImageService        imageService;
 	public static void setImageService(IImageService service) {
 		imageService = service;
@@ -105,7 +116,25 @@ public class AVIImageConverter extends AbstractImageConversion {
 	private PlotImageData plotImageData;
 	
 	/**
-	 * This convert cannot be asynchronous. (Like most actually)
+	 * Images are rendered on a pool of threads and written in order by
+	 * the conversion thread, at most two frames per thread are pending.
+	 * {@link #RENDER_THREADS} sets the threads, 0 renders every frame on
+	 * the conversion thread.
+	 * 
+	 * The render threads downsample the slices and convert the images to
+	 * AWT, the SWT images are made one at a time (see {@link #THUMB_LOCK})
+	 * and the JPEG encoding of the frames is done by the AVI writer on the
+	 * conversion thread.
+	 */
+	private ExecutorService                    renderPool;
+	private final LinkedList<Future<BufferedImage>> frames = new LinkedList<Future<BufferedImage>>();
+	private final int                          renderThreads = Integer.getInteger(RENDER_THREADS, AsyncImageWriter.getDefaultThreadCount());
+	
+	/**
+	 * The slices must be written in order, but images may be rendered ahead of
+	 * the writing. The first frame of each video is rendered on this thread as it
+	 * defines the track and the constant colour range of the following frames.
+	 * 
 	 * @param slice
 	 * @throws Exception
 	 */
@@ -122,11 +151,11 @@ public class AVIImageConverter extends AbstractImageConversion {
 			if (context.getMonitor()!=null && context.getMonitor().isCancelled()) {
 				throw new Exception(getClass().getSimpleName()+" is cancelled");
 			}
-			slice = (slice.getRank()==2 && getSliceType() == PlotType.IMAGE) ? getDownsampled(slice) : slice;
 
 			boolean newAVIFile = selected==null || !selected.equals(context.getSelectedConversionFile());
 			if (context.isExpression() && out!=null) newAVIFile=false;
 			if (newAVIFile) {
+				writeFrames(0);
 				if (out!=null) out.close();
 
 				final File outputFile = getAVIFile();
@@ -148,31 +177,92 @@ public class AVIImageConverter extends AbstractImageConversion {
 					plotImageData.setImageServiceBean(imageService.createBeanFromPreferences());
 				}
 			}
-						
-			ImageData       data = getImageData(slice, plotImageData);
-			BufferedImage   img  = imageService.getBufferedImage(data);
 			
-			if (newAVIFile) {
-				Format format = new Format(EncodingKey, ENCODING_AVI_MJPG, DepthKey, 24, QualityKey, 1f);
-				format = format.prepend(MediaTypeKey, MediaType.VIDEO, //
-						FrameRateKey, new Rational(getFrameRate(), 1),// frame rate
-						WidthKey,     img.getWidth(), //
-						HeightKey,    img.getHeight());
-
-				out.addTrack(format);
-	        	out.setPalette(0, img.getColorModel());	       
+			if (newAVIFile || !isRenderedAhead()) {
+				final BufferedImage img = render(slice, plotImageData);
+				if (newAVIFile) {
+					Format format = new Format(EncodingKey, ENCODING_AVI_MJPG, DepthKey, 24, QualityKey, 1f);
+					format = format.prepend(MediaTypeKey, MediaType.VIDEO, //
+							FrameRateKey, new Rational(getFrameRate(), 1),// frame rate
+							WidthKey,     img.getWidth(), //
+							HeightKey,    img.getHeight());
+	
+					out.addTrack(format);
+		        	out.setPalette(0, img.getColorModel());	       
+				}
+				writeFrame(img);
+				
+			} else {
+				if (renderPool==null) renderPool = ConversionThreads.newFixedPool(getClass().getSimpleName()+" render", renderThreads);
+				final IDataset      data  = slice;
+				final PlotImageData pdata = createImageData();
+				frames.add(renderPool.submit(new Callable<BufferedImage>() {
+					@Override
+					public BufferedImage call() throws Exception {
+						return render(data, pdata);
+					}
+				}));
+				writeFrames(renderThreads*2);
 			}
-			
-	        out.write(0, img, 1);
-	        
-	        if (context.getMonitor()!=null) context.getMonitor().worked(1);
 	        
 		} finally {
 			selected = context.getSelectedConversionFile();
 		}
 	}
 	
+	/**
+	 * Images are rendered by the image service alone, plots use the
+	 * plotting system and are rendered on this thread.
+	 */
+	private boolean isRenderedAhead() {
+		return getSliceType()==PlotType.IMAGE && renderThreads>0;
+	}
+	
+	/**
+	 * 
+	 * @return plot data for one frame, with a copy of the image bean holding the colour range of the first frame.
+	 */
+	private PlotImageData createImageData() {
+		final PlotImageData pdata = new PlotImageData();
+		pdata.setConstantRange(true);
+		pdata.setImageServiceBean(plotImageData.getImageServiceBean().clone());
+		return pdata;
+	}
+	
+	private BufferedImage render(IDataset slice, PlotImageData pdata) throws Exception {
+		slice = (slice.getRank()==2 && getSliceType() == PlotType.IMAGE) ? getDownsampled(slice) : slice;
+		ImageData       data = getImageData(slice, pdata);
+		return imageService.getBufferedImage(data);
+	}
+	
+	/**
+	 * Writes the rendered frames in order until no more than pending are left.
+	 * @param pending
+	 * @throws Exception
+	 */
+	private void writeFrames(int pending) throws Exception {
+		try {
+			while (frames.size()>pending) {
+				writeFrame(ConversionThreads.get(frames.removeFirst()));
+			}
+		} catch (Exception ne) {
+			ConversionThreads.cancel(frames);
+			throw ne;
+		}
+	}
+	
+	private void writeFrame(BufferedImage img) throws Exception {
+        out.write(0, img, 1);
+        if (context.getMonitor()!=null) context.getMonitor().worked(1);
+	}
+	
 	private IDisposable plotDisposable;
+
+	/**
+	 * The plot image service makes SWT images and is not known to be safe to call
+	 * from several threads at once, so all converters call it one at a time.
+	 */
+	private static final Object THUMB_LOCK = new Object();
 	
 	private ImageData getImageData(IDataset slice, PlotImageData pdata) throws Exception {
 		
@@ -209,10 +299,14 @@ public class AVIImageConverter extends AbstractImageConversion {
 			}
 		}
 		
-		final Image     image = thumbService.getImage(pdata);
-		final ImageData data  = image.getImageData();
-		image.dispose();
-		return data;
+		synchronized (THUMB_LOCK) {
+			final Image image = thumbService.getImage(pdata);
+			try {
+				return image.getImageData();
+			} finally {
+				image.dispose();
+			}
+		}
 	}
 
 	private File getAVIFile() {
@@ -232,13 +326,27 @@ public class AVIImageConverter extends AbstractImageConversion {
 
 	@Override
 	public void close(IConversionContext context) throws Exception {
-        if (out!=null) out.close();
-        if (plotDisposable!=null && getSliceType()!=PlotType.SURFACE)  {
-        	// Surfaces use the live plotter and are not disposable.
-        	plotDisposable.dispose();
-        }
-        plotImageData = null;
-        super.close(context);
+		try {
+			writeFrames(0);
+		} finally {
+			if (renderPool!=null) renderPool.shutdownNow();
+			renderPool = null;
+			try {
+				if (out!=null) out.close();
+			} finally {
+				out = null;
+				try {
+					if (plotDisposable!=null && getSliceType()!=PlotType.SURFACE)  {
+						// Surfaces use the live plotter and are not disposable.
+						plotDisposable.dispose();
+					}
+				} finally {
+					plotDisposable = null;
+					plotImageData  = null;
+					super.close(context);
+				}
+			}
+		}
 	}
 
 }
@@ -9,14 +9,30 @@
 package org.dawnsci.conversion.converters;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.dawnsci.conversion.ServiceLoader;
+import org.dawnsci.conversion.converters.util.ChunkedSliceReader;
+import org.dawnsci.conversion.converters.util.ConversionJournal;
+import org.dawnsci.conversion.converters.util.ConversionManifest;
+import org.dawnsci.conversion.converters.util.ConversionMetrics;
+import org.dawnsci.conversion.converters.util.ConversionMetrics.Phase;
+import org.dawnsci.conversion.converters.util.ConversionThreads;
+import org.dawnsci.conversion.converters.util.DataHolderCache;
+import org.dawnsci.conversion.converters.util.FileExpander;
+import org.dawnsci.conversion.converters.util.FrameBatchWriter;
+import org.dawnsci.conversion.converters.util.GrowingDataset;
 import org.dawnsci.conversion.converters.util.LocalServiceManager;
+import org.dawnsci.conversion.converters.util.SlicePlan;
 import org.eclipse.dawnsci.analysis.api.EventTracker;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversion;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
@@ -24,12 +40,13 @@ import org.eclipse.dawnsci.analysis.api.conversion.IConversionScheme;
 import org.eclipse.dawnsci.analysis.api.io.IDataHolder;
 import org.eclipse.dawnsci.analysis.dataset.slicer.SliceFromSeriesMetadata;
 import org.eclipse.dawnsci.analysis.dataset.slicer.SliceViewIterator;
-import org.eclipse.dawnsci.analysis.dataset.slicer.SliceVisitor;
 import org.eclipse.dawnsci.analysis.dataset.slicer.Slicer;
 import org.eclipse.january.IMonitor;
 import org.eclipse.january.dataset.IDataset;
 import org.eclipse.january.dataset.ILazyDataset;
 import org.eclipse.january.dataset.SliceND;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * AbstractConversion details converting from hdf/nexus to other
@@ -40,7 +57,41 @@ import org.eclipse.january.dataset.SliceND;
  */
 public abstract class AbstractConversion implements IConversion {
 	
+	private static final Logger logger = LoggerFactory.getLogger(AbstractConversion.class);
+	
 	protected IConversionContext context;
+	
+	/**
+	 * The files opened during this conversion, released in close(...)
+	 */
+	private final DataHolderCache dataCache = new DataHolderCache();
+	
+	/**
+	 * The index of the slice being converted, per thread as slices
+	 * may be converted concurrently.
+	 */
+	private final ThreadLocal<Integer> sliceIndex = new ThreadLocal<Integer>();
+	
+	/**
+	 * The blocks the current dataset is read in if it has no slice dimensions, null otherwise.
+	 */
+	private volatile SlicePlan slicePlan;
+	
+	/**
+	 * Used if the context does not provide metrics.
+	 */
+	private final ConversionMetrics localMetrics = new ConversionMetrics();
+	
+	/**
+	 * The input file and dataset being converted, as recorded in the journal.
+	 */
+	private volatile String checkpointInput, checkpointDataset;
+	
+	/**
+	 * The slices converted before a followed dataset grew, which are skipped, and
+	 * the number of slices of the dataset last iterated.
+	 */
+	private volatile int skipSlices, sliceCount;
 
 	AbstractConversion() {
 		// OSGi
@@ -57,38 +108,282 @@ public abstract class AbstractConversion implements IConversion {
 		// it directly. Ignore file paths.
 		if (context.getLazyDataset()!=null) {
 			final ILazyDataset lz = context.getLazyDataset();
-			if (lz!=null) iterate(lz, lz.getName(), context);
+			if (lz!=null) {
+				setCheckpointKeys(lz.getName(), context);
+				iterate(lz, lz.getName(), context);
+			}
 
+		} else if (getInputFiles(context)!=null) {
+			for (File path : getInputFiles(context)) processFile(path, context);
+			
 		} else {
 			final List<String> filePaths = context.getFilePaths();
 			for (String filePathRegEx : filePaths) {
-				final List<File> paths = expand(filePathRegEx);
-				for (File path : paths) {
-					
-					context.setSelectedConversionFile(path);
-					if (path.isFile()) {
-						final List<String> sets  = getDataNames(path);
-						final List<String> names = context.getDatasetNames();
-						for (String nameRegExp : names) {
-							final List<String> data = getData(sets, nameRegExp);
-							if (data == null) continue;
-							for (String dsPath : data) {
-								final ILazyDataset lz = getLazyDataset(path, dsPath, context);
-								if (lz!=null) iterate(lz, dsPath, context);
-							}
-						}
-					} else { 
-						final ILazyDataset lz = getLazyDataset(path, null, context);
-						iterate(lz, path.getName(), context);
+				if (filePathRegEx.isEmpty()) continue;
+				// The files are converted as they are read from the directory, unless
+				// the output is written to it.
+				final long start = System.nanoTime();
+				try (FileExpander.Expansion paths = getExpander(filePathRegEx).open()) {
+					getMetrics().record(Phase.EXPAND, start);
+					for (File path : paths) processFile(path, context);
+				}
+			}
+		}
+	}
+	
+	private void processFile(File path, IConversionContext context) throws Exception {
+		
+		context.setSelectedConversionFile(path);
+		final ConversionJournal journal = getJournal();
+		if (journal!=null && journal.isFileDone(path.getAbsolutePath())) {
+			logger.debug("Skipping {}, it was converted before", path);
+			return;
+		}
+		final ConversionManifest manifest = getManifest();
+		if (manifest!=null) {
+			if (manifest.isUnchanged(path)) {
+				logger.debug("Skipping {}, it has not changed since it was converted", path);
+				return;
+			}
+			manifest.remove(path);
+		}
+		getMetrics().addFile();
+		if (path.isFile()) {
+			final long         start = System.nanoTime();
+			final List<String> sets  = getDataNames(path);
+			getMetrics().record(Phase.OPEN, start);
+			final List<String> names = context.getDatasetNames();
+			for (String nameRegExp : names) {
+				final List<String> data = getData(sets, nameRegExp);
+				if (data == null) continue;
+				for (String dsPath : data) {
+					setCheckpointKeys(dsPath, context);
+					final ILazyDataset lz = getLazyDataset(path, dsPath, context);
+					if (lz!=null) iterate(lz, dsPath, context);
+					if (lz!=null && isFollowing(path, context)) follow(path, dsPath, lz.getShape(), context);
+				}
+			}
+		} else { 
+			setCheckpointKeys(path.getName(), context);
+			final ILazyDataset lz = getLazyDataset(path, null, context);
+			iterate(lz, path.getName(), context);
+		}
+		if ((journal==null && manifest==null) || isConversionCancelled(context)) return;
+		flush();
+		if (journal!=null) journal.fileDone(path.getAbsolutePath());
+		if (manifest!=null) {
+			final List<File> outputs = getOutputs(path);
+			if (outputs!=null && !outputs.isEmpty()) manifest.record(path, outputs);
+		}
+	}
+	
+	/**
+	 * Override to return the files written for an input file if they are not named after it,
+	 * or null if the outputs of the input are not separate from those of the other inputs.
+	 * 
+	 * @param input
+	 * @return by default the files and directories in the output directory with the name of
+	 * the input without its extension, with or without an extension of their own. null if the
+	 * output is a file.
+	 */
+	protected List<File> getOutputs(File input) {
+		final File output = new File(context.getOutputPath());
+		if (!output.isDirectory()) return null;
+		final String name  = getFileNameNoExtension(input);
+		final File[] files = output.listFiles();
+		if (files==null) return null;
+		final List<File> outputs = new ArrayList<File>(3);
+		for (File file : files) {
+			final String fname = file.getName();
+			if (fname.equals(name) || (fname.startsWith(name+".") && fname.indexOf('.', name.length()+1)<0)) {
+				if (!file.equals(input)) outputs.add(file);
+			}
+		}
+		return outputs;
+	}
+	
+	/**
+	 * 
+	 * @return the manifest of the context if it converts incrementally, otherwise null.
+	 * @throws IOException
+	 */
+	protected ConversionManifest getManifest() throws IOException {
+		if (!(context instanceof IExtendedConversionContext)) return null;
+		return ((IExtendedConversionContext)context).getManifest();
+	}
+	
+	/**
+	 * Override to return false if the conversion cannot add the slices of a dataset
+	 * which is still being written to its output, for instance if it converts the
+	 * whole dataset at once.
+	 * 
+	 * @return true by default
+	 */
+	protected boolean isFollowSupported() {
+		return true;
+	}
+	
+	private boolean isFollowing(File path, IConversionContext context) {
+		if (!(context instanceof IExtendedConversionContext)) return false;
+		if (((IExtendedConversionContext)context).getFollowInterval()<=0) return false;
+		return isFollowSupported() && context.getSliceDimensions()!=null && isH5(path);
+	}
+	
+	/**
+	 * Reads the shape of a dataset still being written at the follow interval and
+	 * converts the slices added, until the end path exists, the dataset stops
+	 * growing for the follow timeout or the conversion is cancelled.
+	 */
+	private void follow(File path, String dsPath, int[] shape, IConversionContext context) throws Exception {
+		
+		final IExtendedConversionContext ext     = (IExtendedConversionContext)context;
+		final String                     endPath = ext.getFollowEndPath();
+		final GrowingDataset             growing = new GrowingDataset(path.getAbsolutePath(), dsPath);
+		logger.info("Following '{}' in {} from shape {}", dsPath, path, Arrays.toString(shape));
+		
+		int  size    = shape.length>0 ? shape[0] : 0;
+		int  slices  = sliceCount;
+		long grown   = System.currentTimeMillis();
+		try {
+			while (!isConversionCancelled(context)) {
+			
+				// Checked before the shape is read so that the last slices written are converted
+				final boolean ended = endPath!=null && growing.exists(endPath);
+				final int[]   current = growing.refreshShape();
+				if (current.length>0 && current[0]>size) {
+					skipSlices = slices;
+					try {
+						iterate(growing.getLazyDataset(), dsPath, context);
+					} finally {
+						skipSlices = 0;
 					}
+					size   = current[0];
+					slices = sliceCount;
+					grown  = System.currentTimeMillis();
+				}
+				if (ended) {
+					logger.info("Finished following '{}', {} exists", dsPath, endPath);
+					return;
+				}
+				if (System.currentTimeMillis()-grown>=ext.getFollowTimeout()) {
+					logger.info("Stopped following '{}', it has not grown for {}ms", dsPath, ext.getFollowTimeout());
+					return;
 				}
+				// So that the writer may open the file again
+				growing.close();
+				Thread.sleep(ext.getFollowInterval());
 			}
+		} finally {
+			growing.close();
 		}
 	}
 	
+	/**
+	 * Override to return true if the conversion can be resumed from the files and
+	 * slices recorded in the journal, when the context asks for checkpoints. The
+	 * conversion must then record the slices once they are written, with {@link #getCheckpoint()},
+	 * and be able to continue its output with the slices not yet recorded.
+	 * 
+	 * @return false by default, the conversion always converts everything.
+	 */
+	protected boolean isResumable() {
+		return false;
+	}
+	
+	/**
+	 * Override to write any output still held by the conversion. Called before an
+	 * input file is recorded as converted in the journal.
+	 * 
+	 * @throws Exception
+	 */
+	protected void flush() throws Exception {
+		// Nothing held by default
+	}
+	
+	/**
+	 * 
+	 * @return the journal of the context if it is checkpointing and this conversion is resumable, otherwise null.
+	 * @throws IOException
+	 */
+	protected ConversionJournal getJournal() throws IOException {
+		if (!isResumable() || !(context instanceof IExtendedConversionContext)) return null;
+		return ((IExtendedConversionContext)context).getJournal();
+	}
+	
+	/**
+	 * 
+	 * @param context
+	 * @return the name of the input being converted in the journal, empty if it is a dataset set on the context.
+	 */
+	protected static String getCheckpointInput(IConversionContext context) {
+		if (context.getLazyDataset()!=null || context.getSelectedConversionFile()==null) return "";
+		return context.getSelectedConversionFile().getAbsolutePath();
+	}
+	
+	private void setCheckpointKeys(String dataset, IConversionContext context) {
+		checkpointInput   = getCheckpointInput(context);
+		checkpointDataset = dataset;
+	}
+	
+	/**
+	 * The slice is only recorded when the task is run, which the conversion
+	 * should do once the output of the slice is written.
+	 * 
+	 * @return a task recording the slice being converted in the journal, null if not checkpointing.
+	 * @throws IOException
+	 */
+	protected Runnable getCheckpoint() throws IOException {
+		final ConversionJournal journal = getJournal();
+		if (journal==null) return null;
+		final String input   = checkpointInput;
+		final String dataset = checkpointDataset;
+		final int    index   = getSliceIndex();
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					journal.sliceDone(input, dataset, index);
+				} catch (IOException ne) {
+					logger.error("Cannot record slice "+index+" of "+dataset+" in "+journal.getFile(), ne);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Records a slice of the dataset being converted in the journal, if checkpointing.
+	 * 
+	 * @param index
+	 * @throws IOException
+	 */
+	protected void checkpoint(int index) throws IOException {
+		final ConversionJournal journal = getJournal();
+		if (journal!=null) journal.sliceDone(checkpointInput, checkpointDataset, index);
+	}
+	
+	/**
+	 * 
+	 * @return true if the slice was converted before, by an earlier run or before the dataset grew.
+	 */
+	private boolean isSliceDone(ConversionJournal journal, int index) {
+		if (index<skipSlices) return true;
+		return journal!=null && journal.isSliceDone(checkpointInput, checkpointDataset, index);
+	}
+	
+	/**
+	 * 
+	 * @param context
+	 * @return the files the context is restricted to, null if the file paths should be expanded.
+	 */
+	protected static List<File> getInputFiles(IConversionContext context) {
+		if (!(context instanceof IExtendedConversionContext)) return null;
+		return ((IExtendedConversionContext)context).getInputFiles();
+	}
+	
 	/**
 	 * Override this method to provide things which should happen after the processing.
-	 * Call super() in the override if the conversion needs to be tracked for analytics purposes.
+	 * Call super() in the override if the conversion needs to be tracked for analytics purposes
+	 * and to release the files opened during the conversion.
 	 * 
 	 * @param context
 	 */
@@ -96,11 +391,70 @@ public abstract class AbstractConversion implements IConversion {
 	public void close(IConversionContext context) throws Exception{
 		// track conversion event
 		trackConversion();
+		releaseDataCache();
 	}
 	
 	protected IConversionContext getContext() {
 		return context;
 	}
+	
+	/**
+	 * 
+	 * @return the metrics of the context if it provides them, otherwise metrics for this conversion only.
+	 */
+	protected ConversionMetrics getMetrics() {
+		if (context instanceof IExtendedConversionContext) return ((IExtendedConversionContext)context).getMetrics();
+		return localMetrics;
+	}
+	
+	/**
+	 * 
+	 * @param filePath
+	 * @param group
+	 * @param name
+	 * @return a writer of a stack of frames with the chunks, batches and compression
+	 *         set on the context if it provides them, recording the metrics of this conversion.
+	 */
+	protected FrameBatchWriter createFrameWriter(String filePath, String group, String name) {
+		final FrameBatchWriter writer = new FrameBatchWriter(filePath, group, name).setMetrics(getMetrics());
+		if (context instanceof IExtendedConversionContext) {
+			final IExtendedConversionContext ext = (IExtendedConversionContext)context;
+			if (ext.getChunkFrames()>0) writer.setChunkFrames(ext.getChunkFrames());
+			if (ext.getBatchFrames()>0) writer.setBatchFrames(ext.getBatchFrames());
+			writer.setDeflateLevel(ext.getDeflateLevel());
+		}
+		return writer;
+	}
+	
+	/**
+	 * Use the cache rather than the loader service directly to read input files,
+	 * to avoid opening the same file several times during the conversion.
+	 * 
+	 * @return the data holders opened during this conversion.
+	 */
+	protected DataHolderCache getDataCache() {
+		return dataCache;
+	}
+	
+	/**
+	 * Reads the whole of a dataset of an input file, through the data cache.
+	 * 
+	 * @param filePath
+	 * @param name of the dataset
+	 * @return the dataset
+	 * @throws Exception naming the file and the dataset if the dataset is not in the file.
+	 */
+	protected IDataset getWholeDataset(String filePath, String name) throws Exception {
+		final IDataHolder  holder = getDataCache().getData(filePath, null);
+		final ILazyDataset lazy   = holder!=null ? holder.getLazyDataset(name) : null;
+		if (lazy==null) throw new Exception("The dataset '"+name+"' cannot be read from "+filePath);
+		return lazy.getSlice();
+	}
+	
+	protected void releaseDataCache() {
+		logger.debug("{} released {}", getClass().getSimpleName(), dataCache);
+		dataCache.clear();
+	}
 
 	/**
 	 * Please implement this method to process a single conversion. The files will have been 
@@ -112,6 +466,39 @@ public abstract class AbstractConversion implements IConversion {
 	 */
 	protected abstract void convert(IDataset slice) throws Exception;
 	
+	/**
+	 * Override to return false if convert(...) may be called concurrently
+	 * and in any order when the context asks for more than one slice thread.
+	 * By default the slices are read concurrently but converted one at a time
+	 * in the order of the slicing, which is needed by conversions writing to
+	 * one output.
+	 * 
+	 * @return true if the slices must be converted in order.
+	 */
+	protected boolean isOrderedConversion() {
+		return true;
+	}
+	
+	/**
+	 * 
+	 * @return the index of the slice being converted in the current dataset,
+	 * valid during convert(...)
+	 */
+	protected int getSliceIndex() {
+		final Integer index = sliceIndex.get();
+		return index!=null ? index : 0;
+	}
+	
+	/**
+	 * 
+	 * @param context
+	 * @return the number of threads to use for slicing, 1 if the context is not an IExtendedConversionContext.
+	 */
+	protected static int getSliceThreadCount(IConversionContext context) {
+		if (!(context instanceof IExtendedConversionContext)) return 1;
+		return Math.max(1, ((IExtendedConversionContext)context).getSliceThreadCount());
+	}
+	
 
 	/**
 	 * This method can be overridden for returning stacks of images from 
@@ -127,25 +514,67 @@ public abstract class AbstractConversion implements IConversion {
 	protected ILazyDataset getLazyDataset(final File                 path, 
 						                  final String               dsPath,
 						                  final IConversionContext   context) throws Exception {
+		slicePlan = null;
 		// if there is a lazydataset, we return it
 		ILazyDataset lazy = context.getLazyDataset();
 		if (lazy != null)
 			return lazy;
 
-		final IDataHolder   dh = LocalServiceManager.getLoaderService().getData(path.getAbsolutePath(), null);
+		final long          open = System.nanoTime();
+		final IDataHolder   dh = dataCache.getData(path.getAbsolutePath(), null);
+		getMetrics().record(Phase.OPEN, open);
 		context.setSelectedH5Path(dsPath);
 		if (context.getSliceDimensions()==null) {
-			// Because the data might be lazy and unloadable. We want to load all the data now.
-			IDataset data = LocalServiceManager.getLoaderService().getDataset(path.getAbsolutePath(),dsPath,(IMonitor)null);
-			data.setName(dsPath);
-			convert(data);
-			return null;
+			final ILazyDataset whole = dh.getLazyDataset(dsPath);
+			final SlicePlan    plan  = whole!=null ? SlicePlan.create(whole, getMemoryBudget(context)) : null;
+			if (plan!=null) logger.debug("Reading '{}' as {}", dsPath, plan);
+			if (plan==null || plan.isWhole()) {
+				if (isSliceDone(getJournal(), 0)) return null;
+				if (plan!=null && plan.isOverBudget()) logger.warn("Reading '{}' whole although it is larger than the memory budget", dsPath);
+				// Because the data might be lazy and unloadable. We want to load all the data now.
+				final long start = System.nanoTime();
+				IDataset data = whole!=null ? whole.getSlice() : LocalServiceManager.getLoaderService().getDataset(path.getAbsolutePath(),dsPath,(IMonitor)null);
+				recordRead(data, start);
+				data.setName(dsPath);
+				sliceIndex.set(0);
+				final long convert = System.nanoTime();
+				convert(data);
+				getMetrics().record(Phase.CONVERT, convert);
+				getMetrics().addSlice();
+				return null;
+			}
+			// Too large to load at once, iterate it in blocks which fit the budget.
+			slicePlan = plan;
 		}
 		if (context.getMonitor()!=null) {
 			context.getMonitor().subTask("Process '"+path.getAbsolutePath() +"''"+dsPath+"'");
 		}
 		return dh.getLazyDataset(dsPath);
 	}
+	
+	/**
+	 * 
+	 * @return the plan used to read the dataset being converted when the context has
+	 * no slice dimensions and the dataset does not fit the memory budget, otherwise null.
+	 */
+	protected SlicePlan getSlicePlan() {
+		return slicePlan;
+	}
+	
+	/**
+	 * 
+	 * @param context
+	 * @return the number of bytes one slice may use, the context's budget shared between
+	 * the slices which may be held at once by the slice threads.
+	 */
+	protected static long getMemoryBudget(IConversionContext context) {
+		long budget = context instanceof IExtendedConversionContext
+				    ? ((IExtendedConversionContext)context).getMemoryBudget()
+				    : 0;
+		if (budget<=0) budget = SlicePlan.getDefaultBudget();
+		final int threads = getSliceThreadCount(context);
+		return threads>1 ? budget/(threads*2) : budget;
+	}
 		
 	protected void iterate(final ILazyDataset         lz, 
 			               final String               nameFrag,
@@ -156,6 +585,7 @@ public abstract class AbstractConversion implements IConversion {
 	
 	/**
 	 * Method tries to get the input datasets with the regular expressions, if any, expanded.
+	 * The selected conversion file is not changed.
 	 * @return
 	 */
 	protected List<String> getExpandedDatasets() throws Exception {
@@ -168,7 +598,6 @@ public abstract class AbstractConversion implements IConversion {
 			final List<File> paths = expand(filePathRegEx);
 			for (File path : paths) {
 				
-				context.setSelectedConversionFile(path);
 				if (path.isFile()) {
 					final List<String> sets   = getDataNames(path);
 					final List<String> dNames = context.getDatasetNames();
@@ -187,29 +616,152 @@ public abstract class AbstractConversion implements IConversion {
 			                       final String               nameFrag,
 		                           final IConversionContext   context) throws Exception {
 		
-		final Map<Integer, String> dims = context.getSliceDimensions();
+		final Map<Integer, String> dims = slicePlan!=null ? slicePlan.getSliceDimensions() : context.getSliceDimensions();
 		
 		SliceND slice = Slicer.getSliceNDFromSliceDimensions(dims, lz.getShape());
 		int[] axes = Slicer.getDataDimensions(lz.getShape(), dims);
 		final SliceViewIterator it = new SliceViewIterator(lz, slice, axes);
 		
-		Slicer.visit(it, new SliceVisitor() {
-
-			@Override
-			public void visit(IDataset slice) throws Exception {
+		// Read whole chunks once if the slices cut across the chunking of the file
+		final ChunkedSliceReader reader = ChunkedSliceReader.create(lz, slice, axes, getChunking(lz, context), getMemoryBudget(context));
+		
+		// Slices recorded in the journal by an earlier run are not read again
+		final ConversionJournal journal = getJournal();
+		
+		final int threads = getSliceThreadCount(context);
+		if (threads>1) {
+			parallelIterate(it, reader, threads, journal, context);
+			
+		} else {
+			int count = 0;
+			while (it.hasNext() && !isConversionCancelled(context)) {
+				if (isSliceDone(journal, count)) {
+					it.next();
+					count++;
+					continue;
+				}
+				final IDataset data = read(it.next(), reader);
 				//no longer squeeze in slicer
-				slice.squeeze();
-				context.setSelectedSlice(slice.getFirstMetadata(SliceFromSeriesMetadata.class).getSliceInOutput());
-				context.setSelectedShape(it.getShape());
-				convert(slice);
+				data.squeeze();
+				convertSlice(data, it.getShape(), count++, context);
 			}
-
-			@Override
-			public boolean isCancelled() {
-				return context.getMonitor()!=null ? context.getMonitor().isCancelled() : false;
+			sliceCount = count;
+		}
+		if (reader!=null) logger.debug("Read {} in {} blocks of whole chunks", nameFrag, reader.getBlockReads());
+	}
+	
+	/**
+	 * 
+	 * @param lz
+	 * @param context
+	 * @return the chunk shape of the dataset being converted if it is read from an HDF5 file, otherwise null.
+	 */
+	protected int[] getChunking(ILazyDataset lz, IConversionContext context) {
+		if (context.getLazyDataset()!=null) return null;
+		final File   file   = context.getSelectedConversionFile();
+		final String h5Path = context.getSelectedH5Path();
+		if (file==null || h5Path==null || !file.isFile() || !isH5(file)) return null;
+		return ChunkedSliceReader.getChunking(file.getAbsolutePath(), h5Path, lz.getRank());
+	}
+	
+	/**
+	 * 
+	 * @param file
+	 * @return true if the file is named as an HDF5 or NeXus file.
+	 */
+	protected static boolean isH5(File file) {
+		final String name = file.getName().toLowerCase();
+		return name.endsWith(".h5") || name.endsWith(".nxs") || name.endsWith(".hdf5") || name.endsWith(".hdf") || name.endsWith(".hd5") || name.endsWith(".nexus");
+	}
+	
+	/**
+	 * Reads the slices on a pool of threads. If the conversion is ordered the slices
+	 * are converted on this thread in the order they were sliced, otherwise each slice is
+	 * converted on the thread which read it. At most two slices per thread are in flight,
+	 * so the memory used is bounded regardless of the number of slices.
+	 */
+	private void parallelIterate(final SliceViewIterator    it,
+			                     final ChunkedSliceReader   reader,
+			                     final int                  threads,
+			                     final ConversionJournal    journal,
+			                     final IConversionContext   context) throws Exception {
+		
+		final boolean ordered = isOrderedConversion();
+		final int     window  = threads*2;
+		
+		final ExecutorService      pool    = ConversionThreads.newFixedPool(getClass().getSimpleName(), threads);
+		final LinkedList<Future<IDataset>> pending = new LinkedList<Future<IDataset>>();
+		final LinkedList<Integer>          indices = new LinkedList<Integer>();
+		try {
+			int index = 0;
+			while (it.hasNext() && !isConversionCancelled(context)) {
+				
+				final ILazyDataset view  = it.next();
+				final int[]        shape = it.getShape();
+				final int          i     = index++;
+				if (isSliceDone(journal, i)) continue;
+				
+				pending.add(pool.submit(new Callable<IDataset>() {
+					@Override
+					public IDataset call() throws Exception {
+						final IDataset slice = read(view, reader);
+						//no longer squeeze in slicer
+						slice.squeeze();
+						if (ordered) return slice;
+						
+						convertSlice(slice, shape, i, context);
+						return null;
+					}
+				}));
+				indices.add(i);
+				
+				if (pending.size()>=window) {
+					convertNext(pending.removeFirst(), ordered, shape, indices.removeFirst(), context);
+				}
 			}
 			
-		});
+			while (!pending.isEmpty()) {
+				convertNext(pending.removeFirst(), ordered, it.getShape(), indices.removeFirst(), context);
+			}
+			sliceCount = index;
+			
+		} finally {
+			ConversionThreads.cancel(pending);
+			pool.shutdownNow();
+		}
+	}
+	
+	private void convertNext(Future<IDataset> future, boolean ordered, int[] shape, int index, IConversionContext context) throws Exception {
+		final IDataset slice = ConversionThreads.get(future);
+		if (!ordered || slice==null) return;
+		convertSlice(slice, shape, index, context);
+	}
+	
+	private IDataset read(ILazyDataset view, ChunkedSliceReader reader) throws Exception {
+		final long     start = System.nanoTime();
+		final IDataset slice = reader!=null ? reader.read(view) : view.getSlice();
+		recordRead(slice, start);
+		return slice;
+	}
+	
+	private void recordRead(IDataset data, long start) {
+		final ConversionMetrics metrics = getMetrics();
+		metrics.record(Phase.READ, start);
+		metrics.addBytesRead((long)data.getSize()*SlicePlan.getItemBytes(data));
+	}
+	
+	private void convertSlice(IDataset slice, int[] shape, int index, IConversionContext context) throws Exception {
+		context.setSelectedSlice(slice.getFirstMetadata(SliceFromSeriesMetadata.class).getSliceInOutput());
+		context.setSelectedShape(shape);
+		sliceIndex.set(index);
+		final long start = System.nanoTime();
+		convert(slice);
+		getMetrics().record(Phase.CONVERT, start);
+		getMetrics().addSlice();
+	}
+	
+	private static boolean isConversionCancelled(IConversionContext context) {
+		return context.getMonitor()!=null ? context.getMonitor().isCancelled() : false;
 	}
 
 	@Override
@@ -249,39 +801,45 @@ public abstract class AbstractConversion implements IConversion {
 	public List<String> getDataNames(File ioFile) throws Exception {
 
 		if (ioFile.isDirectory()) return Collections.emptyList();
-		final IDataHolder   dh    = LocalServiceManager.getLoaderService().getData(ioFile.getAbsolutePath(),null);
-		
-		if (dh == null || dh.getNames() == null) return Collections.emptyList();
-		return Arrays.asList(dh.getNames());
+		return dataCache.getDataNames(ioFile.getAbsolutePath());
 	}
 
 	/**
 	 * expand the regex according to the javadoc for getFilePath().
 	 * @param context
-	 * @return
+	 * @return null if no files match or the directory does not exist.
 	 */
 	@Override
 	public List<File> expand(String path) {
 		
 		if (path.isEmpty()) return null;
 		
-		final List<File> files = new ArrayList<File>(7);
-		path = path.replace('\\', '/');
-		final String dir    = path.substring(0, path.lastIndexOf("/"));
-		final String regexp = path.substring(path.lastIndexOf("/")+1);
-		
-		final File[] fa = new File(dir).listFiles();
-		for (File file : fa) {
-			if (regexp==null || "".equals(regexp)) {
-				files.add(file);
-				continue;
-			}
-			if (file.getName().matches(regexp) || file.getName().equals(regexp)) {
-				files.add(file);
-			}
+		try {
+			final long       start = System.nanoTime();
+			final List<File> files = getExpander(path).list();
+			getMetrics().record(Phase.EXPAND, start);
+			return files.isEmpty() ? null : files;
+		} catch (IOException ne) {
+			logger.error("Cannot expand "+path, ne);
+			return null;
 		}
-		
-		return files.isEmpty() ? null : files;
+	}
+	
+	/**
+	 * 
+	 * @param path of the form "directory/regexp"
+	 * @return an expander for the path, recursive if the context asks for it. The directory
+	 * is listed before converting if the output path is in it, so the output is not converted.
+	 * @throws IOException
+	 */
+	protected FileExpander getExpander(String path) throws IOException {
+		final FileExpander expander = new FileExpander(path);
+		if (context instanceof IExtendedConversionContext) {
+			expander.setRecursive(((IExtendedConversionContext)context).isRecursiveExpansion());
+		}
+		final String output = context!=null ? context.getOutputPath() : null;
+		if (output!=null) expander.setSnapshot(expander.isExpanded(output));
+		return expander;
 	}
 	
 	
@@ -12,10 +12,9 @@ import java.io.File;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
-import org.dawb.common.util.list.SortNatural;
+import org.dawnsci.conversion.converters.util.FileExpander;
 import org.dawnsci.conversion.converters.util.LocalServiceManager;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
 import org.eclipse.dawnsci.analysis.api.downsample.DownsampleMode;
@@ -23,15 +22,17 @@ import org.eclipse.dawnsci.analysis.api.io.IDataHolder;
 import org.eclipse.dawnsci.analysis.dataset.function.Downsample;
 import org.eclipse.dawnsci.plotting.api.histogram.ImageServiceBean;
 import org.eclipse.january.dataset.IDataset;
-import org.eclipse.january.dataset.ILazyDataset;
 import org.eclipse.january.dataset.LazyDataset;
 
 import uk.ac.diamond.scisoft.analysis.io.ImageStackLoader;
 
 public abstract class AbstractImageConversion extends AbstractConversion {
-
-	int imageCounter = 0;
 	
+	/**
+	 * The dataset name used to convert a directory of images as one stack.
+	 */
+	public static final String IMAGE_STACK = "Image Stack";
+
 	AbstractImageConversion() {
 		// OSGi
 	}
@@ -61,7 +62,7 @@ public abstract class AbstractImageConversion extends AbstractConversion {
 					// This fixes being able to convert a directory of images to tiffs.
 					if (sets!=null && sets.size()==1 && names!=null && names.size()==1) {
 						// In this case sets contains something like 'EDF' and names contains Image Stack.
-						if (names.get(0).equals("Image Stack") && !sets.containsAll(names)) {
+						if (names.get(0).equals(IMAGE_STACK) && !sets.containsAll(names)) {
 							images = new ArrayList<String>(89);
 						}
 					}
@@ -75,9 +76,9 @@ public abstract class AbstractImageConversion extends AbstractConversion {
 					}
 					
 					final IDataHolder holder = LocalServiceManager.getLoaderService().getData(images.get(0), context.getMonitor());
-		 		    Collections.sort(images, new SortNatural<String>(true));
+		 		    FileExpander.sortNatural(images);
 					ImageStackLoader loader = new ImageStackLoader(images, holder, context.getMonitor());
-					LazyDataset lazyDataset = new LazyDataset("Image Stack", loader.getDType(), loader.getShape(), loader);
+					LazyDataset lazyDataset = new LazyDataset(IMAGE_STACK, loader.getDType(), loader.getShape(), loader);
 				    context.setLazyDataset(lazyDataset);
 				}
 				
@@ -90,15 +91,6 @@ public abstract class AbstractImageConversion extends AbstractConversion {
 		super.process(context);
 	}
 	
-	protected void iterate(final ILazyDataset         lz, 
-		                   final String               nameFrag,
-		                   final IConversionContext   context) throws Exception {
-		
-		imageCounter = 0;
-		
-		super.iterate(lz, nameFrag, context);
-	}
-
 	/**
 	 * Please override getExtension() if using getFileName(...)
 	 * @return
@@ -136,7 +128,7 @@ public abstract class AbstractImageConversion extends AbstractConversion {
 //					fileName   = namePrefix+format.format(Integer.parseInt(matcher.group(2)))+")";
 //				}
 				final NumberFormat format = new DecimalFormat(bean.getSliceIndexFormat());
-				fileName   = namePrefix+format.format(imageCounter++);
+				fileName   = namePrefix+format.format(getSliceIndex());
 				
 			}
 		}
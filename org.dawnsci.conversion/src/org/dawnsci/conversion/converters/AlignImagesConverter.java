@@ -10,10 +10,12 @@ package org.dawnsci.conversion.converters;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 
-import org.dawb.common.util.list.SortNatural;
+import org.dawnsci.conversion.ServiceLoader;
+import org.dawnsci.conversion.converters.util.FileExpander;
+import org.dawnsci.conversion.converters.util.FrameBatchWriter;
 import org.dawnsci.conversion.converters.util.LocalServiceManager;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
 import org.eclipse.dawnsci.analysis.api.io.IDataHolder;
@@ -30,14 +32,19 @@ import uk.ac.diamond.scisoft.analysis.io.JavaImageSaver;
 /**
  * Aligns a stack or directory of images
  * 
+ * If the images have not already been aligned, each one is registered against the
+ * first as it is read and written straight away, so only the first image and the one
+ * being aligned are held in memory. The images are written to separate files, or to
+ * one stack if the output is an HDF5 file.
+ * 
  * @author Baha El Kassaby
  * 
  */
 public class AlignImagesConverter extends AbstractImageConversion {
 
 	private static final Logger logger = LoggerFactory.getLogger(AlignImagesConverter.class);
-	private List<IDataset> alignedImages;
-	private int idx = 0;
+	private IDataset         reference;
+	private FrameBatchWriter writer;
 
 	public AlignImagesConverter() {
 		super(null);
@@ -45,8 +52,14 @@ public class AlignImagesConverter extends AbstractImageConversion {
 	
 	public AlignImagesConverter(IConversionContext context) throws Exception {
 		super(context);
-		final File dir = new File(context.getOutputPath());
-		dir.mkdirs();
+		if (isStack()) {
+			final File stack = new File(context.getOutputPath());
+			if (stack.exists()) stack.delete();
+			stack.getAbsoluteFile().getParentFile().mkdirs();
+		} else {
+			final File dir = new File(context.getOutputPath());
+			dir.mkdirs();
+		}
 		// We put the many files in one ILazyDataset and set that in the context
 		// as an override.
 		ILazyDataset set = getLazyDataset();
@@ -59,26 +72,68 @@ public class AlignImagesConverter extends AbstractImageConversion {
 		if (context.getMonitor() != null && context.getMonitor().isCancelled()) {
 			throw new Exception(getClass().getSimpleName() + " is cancelled");
 		}
-		ILazyDataset lazy = context.getLazyDataset();
-		// create saving name
-		List<String> dataNames = context.getDatasetNames();
-		String outputPath = context.getOutputPath();
-		File saveFile = new File(dataNames.get(idx));
-		String originalFileName = saveFile.getName();
-		if (originalFileName.contains("."))
-			originalFileName = originalFileName.split("\\.")[0];
-		outputPath += File.separator + "aligned_" + originalFileName;
-
-		ConversionAlignBean conversionBean = (ConversionAlignBean) context.getUserObject();
-		alignedImages = conversionBean.getAligned();
-		saveImage(alignedImages.get(idx), outputPath);
-		idx++;
-		if (idx == lazy.getShape()[0])
-			idx = 0;
+		final int idx = getSliceIndex();
+		final IDataset aligned = getAligned(slice, idx);
+		
+		if (isStack()) {
+			if (writer == null) {
+				writer = createFrameWriter(context.getOutputPath(), "/entry/data", "aligned");
+				writer.setFrameCount(context.getLazyDataset().getShape()[0]);
+			}
+			writer.append(aligned);
+		} else {
+			// create saving name
+			List<String> dataNames = context.getDatasetNames();
+			String outputPath = context.getOutputPath();
+			File saveFile = new File(dataNames.get(idx));
+			String originalFileName = saveFile.getName();
+			if (originalFileName.contains("."))
+				originalFileName = originalFileName.split("\\.")[0];
+			outputPath += File.separator + "aligned_" + originalFileName;
+			saveImage(aligned, outputPath);
+		}
 		if (context.getMonitor() != null)
 			context.getMonitor().worked(1);
 	}
 
+	/**
+	 * 
+	 * @param slice
+	 * @param idx
+	 * @return the image aligned by the user object if it has them, otherwise the slice registered against the first image.
+	 * @throws Exception
+	 */
+	private IDataset getAligned(IDataset slice, int idx) throws Exception {
+		
+		final ConversionAlignBean conversionBean = (ConversionAlignBean) context.getUserObject();
+		if (conversionBean != null && conversionBean.getAligned() != null) return conversionBean.getAligned().get(idx);
+		
+		if (idx == 0 || reference == null) {
+			reference = slice;
+			return slice;
+		}
+		final IDataset aligned = ServiceLoader.getImageTransform().align(Arrays.asList(reference, slice), null).get(1);
+		aligned.setName(slice.getName());
+		return aligned;
+	}
+
+	/**
+	 * 
+	 * @return true if the images are written to one HDF5 dataset rather than separate files.
+	 */
+	private boolean isStack() {
+		return isH5(new File(context.getOutputPath()));
+	}
+
+	@Override
+	public void close(IConversionContext context) throws Exception {
+		try {
+			if (writer != null) writer.close();
+		} finally {
+			super.close(context);
+		}
+	}
+
 	private void saveImage(IDataset data, String outputPath) throws Exception {
 		final File outputFile = new File(outputPath);
 
@@ -129,7 +184,7 @@ public class AlignImagesConverter extends AbstractImageConversion {
 			}
 		}
 		if (paths.size() > 0) {
-			Collections.sort(paths, new SortNatural<String>(true));
+			FileExpander.sortNatural(paths);
 			ImageStackLoader loader = new ImageStackLoader(paths,
 					context.getMonitor());
 			lazyDataset = new LazyDataset("Folder Stack",
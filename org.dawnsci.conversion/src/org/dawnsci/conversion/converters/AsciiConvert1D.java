@@ -14,12 +14,19 @@ import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.text.DecimalFormat;
+import java.text.FieldPosition;
 import java.text.NumberFormat;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
+import org.dawb.common.util.io.ColumnWriter;
+import org.dawb.common.util.number.DoubleFormatter;
+import org.dawnsci.conversion.converters.util.ConversionMetrics.Phase;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetUtils;
 import org.eclipse.january.dataset.IDataset;
 
 /**
@@ -91,9 +98,6 @@ public class AsciiConvert1D extends AbstractConversion {
 			maxSize = Math.max(maxSize, set.getSize());
 		}
 
-		final StringBuilder contents = new StringBuilder();
-        writeData(contents, sortedData, maxSize, context);
-
         if (file.exists()) {
         	file.delete();
         } else {
@@ -101,7 +105,12 @@ public class AsciiConvert1D extends AbstractConversion {
         }
     	file.createNewFile();
 
-        write(file, contents.toString(), "US-ASCII");
+    	final long start = System.nanoTime();
+    	try (ColumnWriter writer = ColumnWriter.open(file, "US-ASCII")) {
+    		writeData(writer, sortedData, maxSize, context);
+    	}
+    	getMetrics().record(Phase.WRITE, start);
+    	getMetrics().addBytesWritten(file.length());
         sortedData.clear();
 	}
 
@@ -122,61 +131,62 @@ public class AsciiConvert1D extends AbstractConversion {
 	}
 
 
-	private void writeData(final StringBuilder        contents,
+	/**
+	 * Default number format of double and float datasets, the same as their getString(...)
+	 */
+	private static final DoubleFormatter DEFAULT_FORMAT = new DoubleFormatter(8);
+
+	private void writeData(final ColumnWriter         writer,
 							final Map<String, ? extends IDataset> sortedData,
 							final int                  maxSize,
-							final IConversionContext   context) {
+							final IConversionContext   context) throws Exception {
 
 		final ConversionInfoBean bean = (ConversionInfoBean)context.getUserObject();
 		
-		if (isDat()) contents.append("# ");
-		for (Iterator<String> it = sortedData.keySet().iterator(); it.hasNext(); ) {
-
-			String name = it.next();
+		final List<String> names = new ArrayList<String>(sortedData.size());
+		for (String name : sortedData.keySet()) {
 			if (bean!=null && bean.getAlernativeNames()!=null && bean.getAlernativeNames().containsKey(name)) {
 				name = bean.getAlernativeNames().get(name);
 			}
-			if (isCsv()) contents.append("\"");
-			contents.append(name);
-			if (isCsv()) contents.append("\"");
-
-			if (it.hasNext()) {
-				if (isCsv()) contents.append(",");
-				contents.append("\t");
-			}
+			names.add(name);
 		}
-		contents.append("\r\n"); // Intentionally windows.
+		writer.setSeparator(isCsv() ? ",\t" : "\t");
+		writer.setQuoteNames(isCsv());
+		writer.setFormatter(DEFAULT_FORMAT);
+		writer.writeNames(isDat() ? "# " : null, names);
 
 		NumberFormat format = null;
 		if (bean!=null && bean.getNumberFormat()!=null) {
 			format = new DecimalFormat(bean.getNumberFormat());
 		}
-		for (int i = 0; i < maxSize; i++) {
-			for (Iterator<String> it = sortedData.keySet().iterator(); it.hasNext(); ) {
+		final StringBuffer  formatted = new StringBuffer();
+		final FieldPosition field     = new FieldPosition(0);
+
+		final Dataset[] sets = new Dataset[sortedData.size()];
+		int c = 0;
+		for (IDataset set : sortedData.values()) sets[c++] = DatasetUtils.convertToDataset(set);
 
-				final String name = it.next();
+		for (int i = 0; i < maxSize; i++) {
+			for (Dataset set : sets) {
 
-				final IDataset set = sortedData.get(name);
-				final String     value;
-				
 				if (format!=null) {
-					value = format.format(set.getDouble(i));
+					formatted.setLength(0);
+					writer.writeCell(format.format(set.getDouble(i), formatted, field).toString());
+				} else if (i>=set.getSize()) {
+					writer.writeCell(0);
+				} else if (set.hasFloatingPointElements() && set.getElementsPerItem()==1) {
+					writer.writeCell(set.getDouble(i));
+				} else if (set.hasIntegerElements() && set.getElementsPerItem()==1) {
+					writer.writeCell(set.getLong(i));
 				} else {
-					value = (i<set.getSize()) ? set.getString(i) : "0";
-				}
-
-				
-				contents.append(value);
-				if (it.hasNext()) {
-					if (isCsv()) contents.append(",");
-					contents.append("\t");
+					writer.writeCell(set.getString(i));
 				}
 
 				if (context.getMonitor()!=null && i>=(maxSize-1))	context.getMonitor().worked(1);
 
 			}
 			if (context.getMonitor()!=null) context.getMonitor().worked(1);
-			contents.append("\r\n"); // Intentionally windows because works on unix too.
+			writer.endRow(); // Intentionally windows because works on unix too.
 		}
 	}
 	
@@ -8,11 +8,14 @@
  */
 package org.dawnsci.conversion.converters;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.dawnsci.conversion.converters.util.FrameBatchWriter;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
 import org.eclipse.dawnsci.hdf.object.HierarchicalDataFactory;
 import org.eclipse.dawnsci.hdf.object.IHierarchicalDataFile;
@@ -32,23 +35,33 @@ import org.eclipse.january.dataset.IndexIterator;
 public class CompareConverter extends AbstractConversion{
 	
 
-	private IHierarchicalDataFile hFile;
-	private Map<String,String>    groups;
-	private Map<String,Boolean>   written;
+	private Map<String,String>           groups;
+	private Map<String,FrameBatchWriter> writers;
+	private Map<String,List<Dataset>>    strings;
 
 	public CompareConverter(IConversionContext context) throws Exception {
 		
 		super(context);
 		
 		// We open the file here, and create the group.
-		hFile   = HierarchicalDataFactory.getWriter(context.getOutputPath());
+		final IHierarchicalDataFile hFile   = HierarchicalDataFactory.getWriter(context.getOutputPath());
+		try {
+			createGroups(hFile);
+		} finally {
+			// The data is written in batches by a FrameBatchWriter for each dataset
+			hFile.close();
+		}
+	}
+	
+	private void createGroups(IHierarchicalDataFile hFile) throws Exception {
 
 		// For each dataset name we make a branch in the conversion file,
 		// to store the data.
 		final List<String> names = context.getDatasetNames();
 		
 		groups  = new HashMap<String, String>(names.size());
-		written = new HashMap<String, Boolean>(names.size());
+		writers = new LinkedHashMap<String, FrameBatchWriter>(names.size());
+		strings = new LinkedHashMap<String, List<Dataset>>(names.size());
 		String group = null;
 		for (String datasetNameStr : names) {
 			
@@ -72,7 +85,6 @@ public class CompareConverter extends AbstractConversion{
 				}
 			}
 			groups.put(datasetNameStr, group);
-			written.put(datasetNameStr, false);
 		}
 	}
 
@@ -95,15 +107,20 @@ public class CompareConverter extends AbstractConversion{
  		int[] requiredShape = getRequiredShape(datasetPath, abs.getShape());
  		abs = resize(abs, requiredShape);
 
-		String d = hFile.appendDataset(name, abs, group);
-		if (!written.get(datasetPath)) {
-			hFile.setNexusAttribute(d, Nexus.SDS);
-			hFile.setAttribute(d, "original_name", datasetPath);
-			written.put(datasetPath, true);
+		if (abs.getDType()==Dataset.STRING) {
+			// Strings are few and are appended one by one when the file is closed.
+			if (!strings.containsKey(datasetPath)) strings.put(datasetPath, new ArrayList<Dataset>());
+			strings.get(datasetPath).add(abs);
+		} else {
+			FrameBatchWriter writer = writers.get(datasetPath);
+			if (writer==null) {
+				writer = createFrameWriter(context.getOutputPath(), group, name);
+				writers.put(datasetPath, writer);
+			}
+			writer.append(abs);
 		}
 		
 		if (context.getMonitor()!=null && context.getMonitor().isCancelled()) {
-			hFile.close();
 			throw new Exception("Conversion is cancelled!");
 		}
 	}
@@ -134,8 +151,37 @@ public class CompareConverter extends AbstractConversion{
  	}
 	
 	public void close(IConversionContext context) throws Exception{
-		hFile.close();
-		super.close(context);
+		try {
+			Exception error = null;
+			for (FrameBatchWriter writer : writers.values()) {
+				try {
+					writer.close();
+				} catch (Exception ne) {
+					if (error==null) error = ne;
+				}
+			}
+			if (error!=null) throw error;
+			
+			final IHierarchicalDataFile hFile = HierarchicalDataFactory.getWriter(context.getOutputPath());
+			try {
+				for (String datasetPath : writers.keySet()) {
+					final String d = writers.get(datasetPath).getPath();
+					hFile.setNexusAttribute(d, Nexus.SDS);
+					hFile.setAttribute(d, "original_name", datasetPath);
+				}
+				for (String datasetPath : strings.keySet()) {
+					final String name = datasetPath.substring(datasetPath.lastIndexOf('/')+1);
+					String d = null;
+					for (Dataset abs : strings.get(datasetPath)) d = hFile.appendDataset(name, abs, groups.get(datasetPath));
+					hFile.setNexusAttribute(d, Nexus.SDS);
+					hFile.setAttribute(d, "original_name", datasetPath);
+				}
+			} finally {
+				hFile.close();
+			}
+		} finally {
+			super.close(context);
+		}
 	}
 
 	
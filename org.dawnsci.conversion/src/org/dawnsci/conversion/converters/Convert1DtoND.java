@@ -9,29 +9,38 @@
 package org.dawnsci.conversion.converters;
 
 import java.io.File;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
-import org.dawnsci.conversion.converters.util.LocalServiceManager;
+import org.dawnsci.conversion.converters.util.ConversionMetrics.Phase;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
 import org.eclipse.dawnsci.hdf.object.HierarchicalDataFactory;
 import org.eclipse.dawnsci.hdf.object.IHierarchicalDataFile;
 import org.eclipse.dawnsci.hdf.object.Nexus;
-import org.eclipse.january.dataset.AggregateDataset;
+import org.eclipse.dawnsci.hdf5.HDF5FileFactory;
+import org.eclipse.dawnsci.hdf5.HDF5Utils;
 import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetUtils;
 import org.eclipse.january.dataset.IDataset;
-import org.eclipse.january.dataset.ILazyDataset;
+import org.eclipse.january.dataset.ILazyWriteableDataset;
+import org.eclipse.january.dataset.SliceND;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Stacks the 1D datasets of many files into 2D datasets or, if a {@link Convert1DInfoBean}
+ * is the user object, into 3D datasets of shape [slowAxis, fastAxis, n].
+ * 
+ * Each slice is written to its position in the output as it is converted so the memory
+ * used does not depend on the number of files. The NeXus attributes are added when the
+ * conversion is closed.
+ */
 public class Convert1DtoND extends AbstractConversion {
 	
 	private final static Logger logger = LoggerFactory.getLogger(Convert1DtoND.class);
 	
-	Map<String, List<ILazyDataset>> dataMap = new HashMap<String, List<ILazyDataset>>();
+	private final Map<String, Stack> stacks = new LinkedHashMap<String, Stack>();
 
 	public Convert1DtoND(IConversionContext context) throws Exception {
 		super(context);
@@ -53,14 +62,26 @@ public class Convert1DtoND extends AbstractConversion {
 
 	@Override
 	protected void convert(IDataset slice) throws Exception {
-		if (!dataMap.containsKey(slice.getName()))dataMap.put(slice.getName(), new ArrayList<ILazyDataset>());
-		dataMap.get(slice.getName()).add(slice);
-
+		
+		Stack stack = stacks.get(slice.getName());
+		if (stack==null) {
+			stack = new Stack(slice.getName(), DatasetUtils.convertToDataset(slice), getInfoBean());
+			stacks.put(slice.getName(), stack);
+		}
+		stack.write(slice);
+	}
+	
+	private Convert1DInfoBean getInfoBean() {
+		if (!(context.getUserObject() instanceof Convert1DInfoBean)) return null;
+		final Convert1DInfoBean bean = (Convert1DInfoBean)context.getUserObject();
+		return bean.fastAxis>0 && bean.slowAxis>0 ? bean : null;
 	}
 	
 	@Override
 	public void close(IConversionContext context) throws Exception {
 
+		if (!stacks.isEmpty()) HDF5FileFactory.releaseFile(context.getOutputPath(), true);
+
 		IHierarchicalDataFile file = null;
 		try {
 			file = HierarchicalDataFactory.getWriter(context.getOutputPath());
@@ -70,54 +91,26 @@ public class Convert1DtoND extends AbstractConversion {
 			String axisName = context.getAxisDatasetName();
 			
 			if (axisName != null) {
-				axis = LocalServiceManager.getLoaderService().getDataset(context.getFilePaths().get(0),axisName,null);
+				axis = getWholeDataset(context.getFilePaths().get(0), axisName);
 				axisLength = axis.getShape()[0];
 				
 			}
 
-			for (String key : dataMap.keySet()) {
-				List<ILazyDataset> out = dataMap.get(key);
-				String[] paths = getNexusPathAndNameFromKey(key);
-
-				String entry = file.group(paths[0]);
-				file.setNexusAttribute(entry, Nexus.ENTRY);
-
-				if (paths.length>2) {
-					for (int i = 1; i < paths.length-1; i++) {
-						final String path = paths[i];
-						entry = file.group(path, entry);
-						if (i<(paths.length-1)) file.setNexusAttribute(entry, Nexus.ENTRY);
-					}
-				}
+			for (Stack stack : stacks.values()) {
+				String[] paths = getNexusPathAndNameFromKey(stack.key);
+				createGroups(file, paths);
 				
-				if (context.getUserObject() == null ||
-					!(context.getUserObject() instanceof Convert1DInfoBean)) {
-					
-					saveTo2DStack(file, entry, out, paths, key,axisLength);
-					
-				} else {
-					
-					Convert1DInfoBean bean = (Convert1DInfoBean)context.getUserObject();
-					
-					if (bean.fastAxis*bean.slowAxis != out.size()) {
-						saveTo2DStack(file, entry, out, paths, key, axisLength);
-					} else {
-						saveTo3DStack(file, entry, out, paths, key, bean,axisLength);
-					}
+				final String d = stack.getPath();
+				if (stack.count!=stack.expected) {
+					logger.warn("{} slices were written to {} which has space for {}", stack.count, d, stack.expected);
 				}
+				if (stack.length == axisLength) file.setAttribute(d,"signal","1");
+				file.setNexusAttribute(d, Nexus.SDS);
+				file.setAttribute(d, "original_name", stack.key);
 			}
 			if (axis != null) {
 				String[] paths = getNexusPathAndNameFromKey(axisName);
-				String entry = file.group(paths[0]);
-				file.setNexusAttribute(entry, Nexus.ENTRY);
-				
-				if (paths.length>2) {
-					for (int i = 1; i < paths.length-1; i++) {
-						final String path = paths[i];
-						entry = file.group(path, entry);
-						if (i<(paths.length-1)) file.setNexusAttribute(entry, Nexus.ENTRY);
-					}
-				}
+				String entry = createGroups(file, paths);
 				saveAxis(file, entry, axis, paths);
 			}
 			
@@ -134,6 +127,25 @@ public class Convert1DtoND extends AbstractConversion {
 		super.close(context);
 	}
 	
+	/**
+	 * Marks the groups holding the dataset as NeXus entries, creating them if required.
+	 * @return the full path of the group which holds the dataset.
+	 */
+	private String createGroups(IHierarchicalDataFile file, String[] paths) throws Exception {
+		
+		String entry = file.group(paths[0]);
+		file.setNexusAttribute(entry, Nexus.ENTRY);
+
+		if (paths.length>2) {
+			for (int i = 1; i < paths.length-1; i++) {
+				final String path = paths[i];
+				entry = file.group(path, entry);
+				if (i<(paths.length-1)) file.setNexusAttribute(entry, Nexus.ENTRY);
+			}
+		}
+		return entry;
+	}
+	
 	private void saveAxis(IHierarchicalDataFile file,String entry, IDataset out, String[] paths) throws Exception {
 		
 		String name = paths[paths.length-1];
@@ -143,50 +155,81 @@ public class Convert1DtoND extends AbstractConversion {
 		file.setAttribute(d,"axis","1");
 	}
 	
-	private void saveTo2DStack(IHierarchicalDataFile file,String entry, List<ILazyDataset> out,String[] paths,String key, int axisLength) throws Exception{
-		
-		String name = paths[paths.length-1];
-		
-		IDataset first = out.get(0).getSlice();
-		
-		String d = file.appendDataset(name, first, entry);
-		
-		if (first.getShape()[0] == axisLength) file.setAttribute(d,"signal","1");
-		
-		file.setNexusAttribute(d, Nexus.SDS);
-		file.setAttribute(d, "original_name", key);				
-		
-		for (int i = 1; i < out.size(); i++) {
-			IDataset a = out.get(i).getSlice();
-			d = file.appendDataset(name, a, entry);
+	/**
+	 * The output dataset for one of the input dataset names. It is created
+	 * from the shape and type of the first slice, with a fixed size if the
+	 * scan shape is known and otherwise unlimited in the first dimension.
+	 */
+	private final class Stack {
+		
+		private final String                key;
+		private final int                   length;
+		private final int                   expected;
+		private final Convert1DInfoBean     bean;
+		private final ILazyWriteableDataset lazy;
+		private final String                parent;
+		private final String                name;
+		private int                         count;
+		
+		Stack(String key, Dataset first, Convert1DInfoBean bean) {
+			
+			this.key    = key;
+			this.bean   = bean;
+			this.length = first.getShape()[0];
+			
+			final String[] paths = getNexusPathAndNameFromKey(key);
+			final StringBuilder buf = new StringBuilder("/");
+			for (int i = 0; i < paths.length-1; i++) buf.append(paths[i]).append('/');
+			this.parent = buf.toString();
+			this.name   = paths[paths.length-1];
+			
+			final int[] shape;
+			final int[] maxShape;
+			if (bean!=null) {
+				expected = bean.slowAxis*bean.fastAxis;
+				shape    = new int[]{bean.slowAxis, bean.fastAxis, length};
+				maxShape = shape;
+			} else {
+				expected = -1;
+				shape    = new int[]{1, length};
+				maxShape = new int[]{ILazyWriteableDataset.UNLIMITED, length};
+			}
+			final int[] chunks = new int[shape.length];
+			Arrays.fill(chunks, 1);
+			chunks[chunks.length-1] = length;
+			
+			this.lazy = HDF5Utils.createLazyDataset(context.getOutputPath(), parent, name, shape, maxShape, chunks, first.getDType(), null, false);
 		}
-	}
-	
-	private void saveTo3DStack(IHierarchicalDataFile file,String entry, List<ILazyDataset> out,String[] paths,String key, Convert1DInfoBean bean,int axisLength) throws Exception{
-		
-		ILazyDataset[] lz = new ILazyDataset[bean.fastAxis];
-		String name = paths[paths.length-1];
-
-		String d = null;
-		
-		IDataset first = out.get(0).getSlice();
 		
-		for (int i = 0; i < bean.slowAxis; i++) {
+		void write(IDataset slice) throws Exception {
 			
-			for (int j = 0; j < bean.fastAxis; j++) {
-				lz[j] = out.get(i*bean.fastAxis + j);
+			if (slice.getShape()[0]!=length) {
+				throw new IllegalArgumentException("Cannot stack "+key+" of length "+slice.getShape()[0]+" with data of length "+length);
 			}
 			
-			ILazyDataset ds = new AggregateDataset(true, lz);
-			IDataset a = ds.getSlice();
-			d = file.appendDataset(name, a, entry);
-			
+			final int[] start;
+			final int[] stop;
+			final Dataset data;
+			if (bean!=null) {
+				if (count>=expected) throw new IllegalArgumentException("There are more than "+expected+" slices of "+key+" for a scan of "+bean.slowAxis+"x"+bean.fastAxis);
+				start = new int[]{count/bean.fastAxis, count%bean.fastAxis, 0};
+				stop  = new int[]{start[0]+1, start[1]+1, length};
+				data  = DatasetUtils.convertToDataset(slice).reshape(1, 1, length);
+			} else {
+				start = new int[]{count, 0};
+				stop  = new int[]{count+1, length};
+				data  = DatasetUtils.convertToDataset(slice).reshape(1, length);
+			}
+			final long time = System.nanoTime();
+			lazy.setSlice(null, data, new SliceND(lazy.getShape(), lazy.getMaxShape(), start, stop, null));
+			getMetrics().record(Phase.WRITE, time);
+			getMetrics().addBytesWritten((long)data.getSize()*data.getItemBytes());
+			count++;
 		}
 		
-		file.setNexusAttribute(d, Nexus.SDS);
-		file.setAttribute(d, "original_name", key);
-		if (first.getShape()[0] == axisLength) file.setAttribute(d,"signal","1");
-		
+		String getPath() {
+			return parent+name;
+		}
 	}
 	
 	private String[] getNexusPathAndNameFromKey(String key) {
@@ -36,7 +36,6 @@ import org.cansas.cansas1d.SASrootType;
 import org.cansas.cansas1d.SASsampleType;
 import org.cansas.cansas1d.SASsourceType;
 import org.cansas.cansas1d.SAStransmissionSpectrumType;
-import org.dawnsci.conversion.converters.util.LocalServiceManager;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
 import org.eclipse.dawnsci.analysis.api.io.IDataHolder;
 import org.eclipse.dawnsci.analysis.api.io.ScanFileHolderException;
@@ -92,6 +91,14 @@ public class CustomNCDConverter extends AbstractConversion  {
 		//we do our convert elsewhere
 	}
 	
+	/**
+	 * The whole dataset is converted at once.
+	 */
+	@Override
+	protected boolean isFollowSupported() {
+		return false;
+	}
+
 	@Override
 	protected void iterate(final ILazyDataset         lz, 
             final String               nameFrag,
@@ -527,12 +534,12 @@ public class CustomNCDConverter extends AbstractConversion  {
 		
 		Dataset data = null;
 		try {
-			data = DatasetUtils.convertToDataset(LocalServiceManager.getLoaderService().getDataset(path.getAbsolutePath(), datasetName, null));
+			data = DatasetUtils.convertToDataset(getWholeDataset(path.getAbsolutePath(), datasetName));
 			//expand so the concatenation works later
 			data.setShape(data.getShape()[0],1);
 			data.setName(getAxisDatasetName(datasetName));
 		} catch (Exception e) {
-			logger.warn("Couldn't get dataset: " + datasetName);
+			logger.warn("Couldn't get dataset: " + datasetName, e);
 		}
 		return data;
 	}
@@ -621,7 +628,7 @@ public class CustomNCDConverter extends AbstractConversion  {
 		if (context.getSelectedConversionFile() != null) {
 			try {
 				outputBean.filepath = context.getSelectedConversionFile().getAbsolutePath();
-				IDataHolder dh = LocalServiceManager.getLoaderService().getData(outputBean.filepath, null);
+				IDataHolder dh = getDataCache().getData(outputBean.filepath, null);
 				Tree tree = dh.getTree();
 				GroupNode rootNode = tree.getGroupNode();
 				outputBean.title = getTitleNodeString(rootNode);
@@ -14,6 +14,7 @@ import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.dawnsci.conversion.converters.util.AsyncImageWriter;
 import org.dawnsci.conversion.converters.util.LocalServiceManager;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
 import org.eclipse.dawnsci.analysis.api.io.IDataHolder;
@@ -29,9 +30,6 @@ import org.eclipse.january.dataset.Slice;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import uk.ac.diamond.scisoft.analysis.io.DataHolder;
-import uk.ac.diamond.scisoft.analysis.io.JavaImageSaver;
-
 /**
  * Custom converter for tomography data.
  * 
@@ -50,9 +48,11 @@ public class CustomTomoConverter extends AbstractConversion {
 	private final static String KEY_LOCATION = "instrument/detector/image_key";
 	private int counter;
 	private int nImages;
+	private final AsyncImageWriter writer;
 	
 	public CustomTomoConverter(IConversionContext context) {
 		super(context);
+		this.writer = new AsyncImageWriter(getClass().getSimpleName()).setMetrics(getMetrics());
 	}
 
 	@Override
@@ -80,13 +80,7 @@ public class CustomTomoConverter extends AbstractConversion {
 		String filename = ((TomoInfoBean)context.getUserObject()).getNextFileName();
 		int nBits = ((TomoInfoBean)context.getUserObject()).getBits();
 
-		File file = new File(filename);
-		file.getParentFile().mkdirs();
-
-		final JavaImageSaver saver = new JavaImageSaver(filename, "tiff", nBits, true);
-		final DataHolder     dh    = new DataHolder();
-		dh.addDataset(slice.getName(), slice);
-		saver.saveFile(dh);
+		writer.write(filename, "tiff", nBits, slice, null);
 
 		if (nImages < 101 || counter%(nImages/100) == 0) {
 			if (context.getMonitor()!=null) context.getMonitor().worked((100)/(nImages));
@@ -95,8 +89,23 @@ public class CustomTomoConverter extends AbstractConversion {
 		counter++;
 	}
 
+	@Override
+	public void process(IConversionContext context) throws Exception {
+		super.process(context);
+		writer.flush();
+	}
+
+	@Override
+	public void close(IConversionContext context) throws Exception {
+		try {
+			writer.close();
+		} finally {
+			super.close(context);
+		}
+	}
+
 	private void processTomoInfoBeanContext(File path, IConversionContext context) throws Exception {
-		if (findGroupContainingDefinition(path.getAbsolutePath()) == null) {
+		if (findGroupContainingDefinition(getDataCache().getData(path.getAbsolutePath(), null)) == null) {
 			throw new IllegalArgumentException("Not a recognised tomography file");
 		}
 		
@@ -114,7 +123,7 @@ public class CustomTomoConverter extends AbstractConversion {
 
 	private IDataset getImageKey(TomoInfoBean bean, File path) {
 		try {
-			IDataHolder dh = LocalServiceManager.getLoaderService().getData(path.getAbsolutePath(), null);
+			IDataHolder dh = getDataCache().getData(path.getAbsolutePath(), null);
 			String nodepath = bean.tomoPath + KEY_LOCATION;
 			//path should start with /
 			nodepath = !nodepath.startsWith("/") ? "/" + nodepath : nodepath;
@@ -130,7 +139,10 @@ public class CustomTomoConverter extends AbstractConversion {
 	}
 
 	private static String findGroupContainingDefinition(String path) throws Exception {
-		IDataHolder dh = LocalServiceManager.getLoaderService().getData(path, null);
+		return findGroupContainingDefinition(LocalServiceManager.getLoaderService().getData(path, null));
+	}
+
+	private static String findGroupContainingDefinition(IDataHolder dh) {
 		try {
 			IFindInTree treefinder = new IFindInTree() {
 				@Override
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion.converters;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.dawnsci.conversion.converters.util.ConversionJournal;
+import org.dawnsci.conversion.converters.util.ConversionManifest;
+import org.dawnsci.conversion.converters.util.ConversionMetrics;
+import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
+
+/**
+ * Options which change how a conversion is executed rather than what it
+ * produces. The context returned by the conversion service implements this
+ * interface, other contexts are run with the defaults.
+ *
+ * Note that {@link IConversionContext#getSelectedSlice()} and
+ * {@link IConversionContext#getSelectedShape()} are thread confined on contexts
+ * implementing this interface, so that slices converted concurrently each see
+ * their own values.
+ */
+public interface IExtendedConversionContext extends IConversionContext {
+
+	/**
+	 *
+	 * @return the number of threads used to read and convert slices of one dataset.
+	 * 1 (the default) means the slices are read and converted on the calling thread.
+	 */
+	public int getSliceThreadCount();
+
+	/**
+	 * Set the number of threads used to read and convert slices of one dataset.
+	 * Conversions which must write their output sequentially still receive their
+	 * slices in order, only the reading is done concurrently.
+	 *
+	 * @param threads
+	 */
+	public void setSliceThreadCount(int threads);
+
+	/**
+	 * 
+	 * @return true if the file path regular expressions should also match files in sub-directories.
+	 */
+	public boolean isRecursiveExpansion();
+
+	/**
+	 * Set whether the file path regular expressions match files in sub-directories. Default is false.
+	 * 
+	 * @param recursive
+	 */
+	public void setRecursiveExpansion(boolean recursive);
+
+	/**
+	 * 
+	 * @return the number of input files converted at the same time, default 1.
+	 */
+	public int getFileThreadCount();
+
+	/**
+	 * Set the number of input files converted at the same time. Each file is
+	 * converted by its own conversion, so this is only used by conversion schemes
+	 * which write separate output for each input file and only when the output
+	 * path is an existing directory. The slices of each file are then converted
+	 * on the thread converting the file, whatever the slice thread count.
+	 * 
+	 * @param threads
+	 */
+	public void setFileThreadCount(int threads);
+
+	/**
+	 * 
+	 * @return the files to convert, or null to convert all the files matched by the file paths.
+	 */
+	public List<File> getInputFiles();
+
+	/**
+	 * Restrict the conversion to these files. The file paths are still used to name
+	 * the output, so the output is the same as if all the files had been converted
+	 * with this context.
+	 * 
+	 * @param files may be null
+	 */
+	public void setInputFiles(List<File> files);
+
+	/**
+	 * 
+	 * @return the number of bytes of a dataset read at once when no slice dimensions
+	 * are set, 0 (the default) for a quarter of the maximum heap.
+	 */
+	public long getMemoryBudget();
+
+	/**
+	 * Set the number of bytes of a dataset read at once when no slice dimensions are set.
+	 * Datasets larger than this are read in blocks, by slicing their leading dimensions,
+	 * rather than loaded whole. The budget is shared by the slice threads.
+	 * 
+	 * @param bytes 0 or less to use a quarter of the maximum heap.
+	 */
+	public void setMemoryBudget(long bytes);
+
+	/**
+	 * 
+	 * @return the frames in one chunk of the stacks written to HDF5, 0 (the default) for about 1MB.
+	 */
+	public int getChunkFrames();
+
+	/**
+	 * Set the number of frames in one chunk of the stacks which conversions to HDF5
+	 * write frame by frame, for instance images to HDF5, compare and align.
+	 * 
+	 * @param frames 0 or less for chunks of about 1MB
+	 */
+	public void setChunkFrames(int frames);
+
+	/**
+	 * 
+	 * @return the frames of a stack buffered before they are written to HDF5, 0 (the default) for about 16MB.
+	 */
+	public int getBatchFrames();
+
+	/**
+	 * Set the number of frames of a stack buffered before they are written to HDF5.
+	 * Frames are recorded in the journal when their batch is written, so smaller
+	 * batches lose less work if the conversion stops.
+	 * 
+	 * @param frames 0 or less for about 16MB
+	 */
+	public void setBatchFrames(int frames);
+
+	/**
+	 * 
+	 * @return the deflate level the chunks of stacks written to HDF5 are compressed with, 0 (the default) for none.
+	 */
+	public int getDeflateLevel();
+
+	/**
+	 * Set the deflate level the chunks of stacks written to HDF5 are compressed with.
+	 * 
+	 * @param level from 1, fastest, to 9, smallest. 0 does not compress.
+	 */
+	public void setDeflateLevel(int level);
+
+	/**
+	 * 
+	 * @return how the original data is added to the output of processing, default {@link OriginalDataMode#COPY}.
+	 */
+	public OriginalDataMode getOriginalDataMode();
+
+	/**
+	 * Set how the original data is added to the output when processing with
+	 * ProcessingOutputType.ORIGINAL_AND_PROCESSED.
+	 * 
+	 * @param mode null for the default
+	 */
+	public void setOriginalDataMode(OriginalDataMode mode);
+
+	/**
+	 * The metrics are shared by the contexts of files converted concurrently
+	 * and may be read while the conversion runs.
+	 * 
+	 * @return the counts and times recorded by the conversion, never null.
+	 */
+	public ConversionMetrics getMetrics();
+
+	/**
+	 * 
+	 * @return true if the files and slices converted are recorded so that the conversion can be resumed.
+	 */
+	public boolean isCheckpointing();
+
+	/**
+	 * Set whether the files and slices converted are recorded in a journal next to
+	 * the output. When the conversion is run again with the same context the work
+	 * recorded is skipped. The journal is deleted once the conversion completes.
+	 * Only conversions which can continue their output from where it stopped use
+	 * the journal, the others convert everything as usual. Default is false.
+	 * 
+	 * @param checkpointing
+	 */
+	public void setCheckpointing(boolean checkpointing);
+
+	/**
+	 * 
+	 * @return the file the journal is written to, the output file with .checkpoint
+	 * appended or .conversion.checkpoint in the output directory. null if there is no output path.
+	 */
+	public File getCheckpointFile();
+
+	/**
+	 * Opens the journal the first time it is called, reading what is recorded by an
+	 * earlier run, and again once the journal has been closed or deleted at the end of
+	 * a conversion. The journal is shared by the contexts of files converted concurrently.
+	 * 
+	 * @return the journal, or null if not checkpointing.
+	 * @throws IOException
+	 */
+	public ConversionJournal getJournal() throws IOException;
+
+	/**
+	 * 
+	 * @return the milliseconds between reads of the shape of datasets which are still being written,
+	 * 0 (the default) if the datasets are converted as they are when opened.
+	 */
+	public long getFollowInterval();
+
+	/**
+	 * Set to follow HDF5 datasets which are still being written, for instance during a scan.
+	 * Once the slices present when the dataset is opened are converted, its shape is read
+	 * again at this interval and the slices added are converted, until the end path
+	 * exists, nothing is added for the follow timeout or the conversion is cancelled.
+	 * The slice dimensions must be set and only the first dimension of the dataset may grow.
+	 * 
+	 * @param millis 0 or less not to follow datasets
+	 */
+	public void setFollowInterval(long millis);
+
+	/**
+	 * 
+	 * @return the milliseconds to wait for a followed dataset to grow before
+	 * its conversion is stopped, default one minute.
+	 */
+	public long getFollowTimeout();
+
+	/**
+	 * 
+	 * @param millis
+	 */
+	public void setFollowTimeout(long millis);
+
+	/**
+	 * 
+	 * @return the path in the file which is written at the end of the scan, null (the default) if there is none.
+	 */
+	public String getFollowEndPath();
+
+	/**
+	 * Set the path of a group, dataset or attribute which the writer adds to the file
+	 * once it has finished, for instance /entry1/end_time or /entry1@scan_finished
+	 * for an attribute. A followed dataset is converted to its end once this exists.
+	 * 
+	 * @param path may be null
+	 */
+	public void setFollowEndPath(String path);
+
+	/**
+	 * 
+	 * @return true if inputs which have not changed since they were last converted are skipped.
+	 */
+	public boolean isIncremental();
+
+	/**
+	 * Set to record the inputs converted to an output directory in a manifest next to the
+	 * outputs. When the conversion is run again with the same settings, the inputs which
+	 * have not changed and whose outputs still exist are skipped. Only conversions which
+	 * write separate outputs for each input file use the manifest. Default is false.
+	 * 
+	 * @param incremental
+	 */
+	public void setIncremental(boolean incremental);
+
+	/**
+	 * 
+	 * @return true if the inputs are hashed by sampling their start, middle and end.
+	 */
+	public boolean isSampledHash();
+
+	/**
+	 * Set to hash only the first, middle and last megabyte of an input whose modification
+	 * time has changed, rather than all of it, when deciding whether it must be converted
+	 * again. This is much faster for large files but does not notice every change to the
+	 * middle of a file which keeps its size. Default is false.
+	 * 
+	 * @param sampled
+	 */
+	public void setSampledHash(boolean sampled);
+
+	/**
+	 * 
+	 * @return the file the manifest is saved to, .conversion.manifest in the output directory
+	 * or the output file with .manifest appended. null if there is no output path.
+	 */
+	public File getManifestFile();
+
+	/**
+	 * Reads the manifest the first time it is called. The manifest is shared by the
+	 * contexts of files converted concurrently.
+	 * 
+	 * @return the manifest, or null if not incremental.
+	 * @throws IOException
+	 */
+	public ConversionManifest getManifest() throws IOException;
+}
@@ -10,12 +10,10 @@ package org.dawnsci.conversion.converters;
 
 import java.io.File;
 
+import org.dawnsci.conversion.converters.util.AsyncImageWriter;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
 import org.eclipse.january.dataset.IDataset;
 
-import uk.ac.diamond.scisoft.analysis.io.DataHolder;
-import uk.ac.diamond.scisoft.analysis.io.JavaImageSaver;
-
 /**
  * Class to save tiff slices out from an hdf file.
  * 
@@ -28,8 +26,14 @@ import uk.ac.diamond.scisoft.analysis.io.JavaImageSaver;
  */
 public class ImageConverter extends AbstractImageConversion {
 
+	/**
+	 * The images are encoded and written while the next slices are read.
+	 */
+	private final AsyncImageWriter writer;
+
 	public ImageConverter(IConversionContext context) {
 		super(context);
+		this.writer = new AsyncImageWriter(getClass().getSimpleName()).setMetrics(getMetrics());
 		
 		final File dir = new File(context.getOutputPath());
 		dir.mkdirs();
@@ -53,19 +57,13 @@ public class ImageConverter extends AbstractImageConversion {
 			slice = getDownsampled(slice);
 
 			final File sliceFile = new File(getFilePath(slice));
-			if (!sliceFile.getParentFile().exists()) sliceFile.getParentFile().mkdirs();
 
 			// JavaImageSaver likes 33 but users don't 
 			int bits = getBits();
 			if (bits==32 && getExtension().toLowerCase().startsWith("tif")) bits = 33;
 
-			final JavaImageSaver saver = new JavaImageSaver(sliceFile.getAbsolutePath(), getExtension(), bits, true);
-			final DataHolder     dh    = new DataHolder();
-			dh.addDataset(slice.getName(), slice);
-			if (context.getSelectedConversionFile()!=null) {
-				dh.setFilePath(context.getSelectedConversionFile().getAbsolutePath());
-			}
-			saver.saveFile(dh);
+			final File source = context.getSelectedConversionFile();
+			writer.write(sliceFile.getAbsolutePath(), getExtension(), bits, slice, source!=null ? source.getAbsolutePath() : null, getCheckpoint());
 		
 		} finally {
 	        if (context.getMonitor()!=null) {
@@ -74,10 +72,44 @@ public class ImageConverter extends AbstractImageConversion {
 		}
 
 	}
+	/**
+	 * Each slice is written to its own file so the slices may be
+	 * encoded concurrently.
+	 */
+	@Override
+	protected boolean isOrderedConversion() {
+		return false;
+	}
+
+	/**
+	 * Each slice is recorded once its image is written, a conversion which
+	 * is resumed writes the images not recorded again.
+	 */
 	@Override
-	public void close(IConversionContext context) {
-		// track conversion event
-		trackConversion();
+	protected boolean isResumable() {
+		return true;
+	}
+
+	@Override
+	protected void flush() throws Exception {
+		writer.flush();
+	}
+
+	@Override
+	public void process(IConversionContext context) throws Exception {
+		super.process(context);
+		writer.flush();
+	}
+
+	@Override
+	public void close(IConversionContext context) throws Exception {
+		try {
+			writer.close();
+		} finally {
+			// track conversion event
+			trackConversion();
+			releaseDataCache();
+		}
 	}
 
 	protected String getExtension() {
@@ -11,10 +11,11 @@ package org.dawnsci.conversion.converters;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
-import org.dawb.common.util.list.SortNatural;
+import org.dawnsci.conversion.converters.util.ConversionJournal;
+import org.dawnsci.conversion.converters.util.FileExpander;
+import org.dawnsci.conversion.converters.util.FrameBatchWriter;
 import org.dawnsci.conversion.converters.util.LocalServiceManager;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
 import org.eclipse.dawnsci.hdf.object.HierarchicalDataFactory;
@@ -24,6 +25,8 @@ import org.eclipse.january.IMonitor;
 import org.eclipse.january.dataset.IDataset;
 import org.eclipse.january.dataset.ILazyDataset;
 import org.eclipse.january.dataset.LazyDataset;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import uk.ac.diamond.scisoft.analysis.io.ImageStackLoader;
 
@@ -36,17 +39,92 @@ import uk.ac.diamond.scisoft.analysis.io.ImageStackLoader;
  */
 public class ImagesToHDFConverter extends AbstractConversion{
 	
+	private static final Logger logger = LoggerFactory.getLogger(ImagesToHDFConverter.class);
 
-	private IHierarchicalDataFile hFile;
 	private String                group;
 	private String                name;
+	private FrameBatchWriter      writer;
+	
+	/**
+	 * False if the journal records frames which are not in the output,
+	 * in which case the stack is written again without checkpoints.
+	 */
+	private boolean               resumable = true;
+	private int                   checkpointed;
 
 	public ImagesToHDFConverter(IConversionContext context) throws Exception {
 		
 		super(context);
 		
+		// We put the many files in one ILazyDataset and set that in the context as an override.
+		ILazyDataset set = getLazyDataset();
+		context.setLazyDataset(set);
+		
+		// The frames written by an earlier run are moved aside and copied to the new stack
+		final File output   = new File(context.getOutputPath());
+		final File previous = new File(output.getAbsolutePath()+".resume");
+		final ConversionJournal journal = getJournal();
+		final int  done     = journal!=null ? journal.getSlicesDone(getCheckpointInput(context), set.getName()) : 0;
+		if (done>0 && output.isFile()) {
+			if (previous.isFile()) {
+				// An earlier resume stopped, its output is incomplete
+				if (!output.delete()) throw new Exception("Cannot delete "+output+" to resume the conversion!");
+			} else if (!output.renameTo(previous)) {
+				throw new Exception("Cannot move "+output+" to resume the conversion!");
+			}
+		}
+		if (done>0 && !previous.isFile()) {
+			logger.warn("{} does not contain the frames recorded in {}, converting all the images", output, journal.getFile());
+			resumable = false;
+		}
+		
 		// We open the file here, and create the group.
-		hFile   = HierarchicalDataFactory.getWriter(context.getOutputPath());
+		IHierarchicalDataFile hFile   = HierarchicalDataFactory.getWriter(context.getOutputPath());
+		try {
+			createGroups(hFile);
+		} finally {
+			// The images are written in batches by the FrameBatchWriter
+			hFile.close();
+		}
+
+		context.addSliceDimension(0, "all");
+		
+		writer = createFrameWriter(context.getOutputPath(), group, name);
+		writer.setFrameCount(set.getShape()[0]);
+		
+		if (resumable && done>0) resume(previous, done);
+	}
+
+	/**
+	 * Copies the frames recorded as written from the output of the earlier run.
+	 */
+	private void resume(File previous, int done) throws Exception {
+		
+		final ILazyDataset frames = LocalServiceManager.getLoaderService().getData(previous.getAbsolutePath(), null).getLazyDataset(writer.getPath());
+		if (frames==null || frames.getShape()[0]<done) throw new Exception(previous+" does not contain the "+done+" frames recorded as written!");
+		
+		final int[] start = new int[frames.getRank()];
+		final int[] stop  = frames.getShape();
+		for (int i = 0; i < done; i++) {
+			start[0] = i;
+			stop[0]  = i+1;
+			writer.append(frames.getSlice(start, stop, null).squeeze());
+		}
+		writer.sync();
+		checkpointed = writer.getWritten();
+		logger.info("Resumed {} at frame {}", context.getOutputPath(), done);
+		if (!previous.delete()) logger.warn("Cannot delete {}", previous);
+	}
+
+	/**
+	 * Frames are recorded in the journal once their batch is written to the file.
+	 */
+	@Override
+	protected boolean isResumable() {
+		return resumable;
+	}
+
+	private void createGroups(IHierarchicalDataFile hFile) throws Exception {
 
 		// We make the group
 		final String datasetNameStr = context.getDatasetNames().get(0);
@@ -65,13 +143,6 @@ public class ImagesToHDFConverter extends AbstractConversion{
 			hFile.setNexusAttribute(group, Nexus.DATA);
 		}
 		name = paths[paths.length-1];
-
-		// We put the many files in one ILazyDataset and set that in the context as an override.
-		ILazyDataset set = getLazyDataset();
-		context.setLazyDataset(set);
-		
-		context.addSliceDimension(0, "all");
-		
 	}
 
 	private ILazyDataset getLazyDataset() throws Exception {
@@ -89,35 +160,31 @@ public class ImagesToHDFConverter extends AbstractConversion{
 				}
 				
 				if (context.getMonitor()!=null && context.getMonitor().isCancelled()) {
-					hFile.close();
 					throw new Exception("Conversion is cancelled!");
 				}
 			}
 		}
 		
-		Collections.sort(paths, new SortNatural<String>(true));
+		FileExpander.sortNatural(paths);
 		ImageStackLoader loader = new ImageStackLoader(paths, context.getMonitor());
 		LazyDataset lazyDataset = new LazyDataset("Folder Stack", loader.getDType(), loader.getShape(), loader);
 		return lazyDataset;
 
 	}
 
-    private boolean first = true;
 	@Override
 	protected void convert(IDataset slice) throws Exception {
-		final String datasetPath = context.getDatasetNames().get(0);
 		
-		String d = hFile.appendDataset(name, slice, group);
-		if (first) {
-			hFile.setNexusAttribute(d, Nexus.SDS);
-			hFile.setAttribute(d, "original_name", datasetPath);
-			first = false;
+		writer.append(slice);
+		if (writer.getWritten()>checkpointed && getJournal()!=null) {
+			writer.sync();
+			for (int i = checkpointed; i < writer.getWritten(); i++) checkpoint(i);
+			checkpointed = writer.getWritten();
 		}
 		
 		IMonitor mon = context.getMonitor();
 		if (mon != null) {
 			if (mon.isCancelled()) {
-				hFile.close();
 				throw new Exception("Conversion is cancelled!");
 			} else {
 				mon.worked(1);
@@ -127,8 +194,21 @@ public class ImagesToHDFConverter extends AbstractConversion{
 	
 	
 	public void close(IConversionContext context) throws Exception{
-		hFile.close();
-		super.close(context);
+		try {
+			writer.close();
+			if (writer.getWritten()>0) {
+				final IHierarchicalDataFile hFile = HierarchicalDataFactory.getWriter(context.getOutputPath());
+				try {
+					final String d = writer.getPath();
+					hFile.setNexusAttribute(d, Nexus.SDS);
+					hFile.setAttribute(d, "original_name", context.getDatasetNames().get(0));
+				} finally {
+					hFile.close();
+				}
+			}
+		} finally {
+			super.close(context);
+		}
 	}
 
 }
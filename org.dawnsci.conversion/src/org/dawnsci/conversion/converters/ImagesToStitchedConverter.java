@@ -9,43 +9,65 @@
 package org.dawnsci.conversion.converters;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
-import org.dawb.common.util.list.SortNatural;
 import org.dawnsci.conversion.ServiceLoader;
+import org.dawnsci.conversion.converters.util.FileExpander;
 import org.dawnsci.conversion.converters.util.LocalServiceManager;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
 import org.eclipse.dawnsci.analysis.api.io.IDataHolder;
 import org.eclipse.dawnsci.analysis.api.roi.IROI;
 import org.eclipse.dawnsci.analysis.dataset.impl.Image;
 import org.eclipse.dawnsci.hdf5.HDF5Utils;
+import org.eclipse.dawnsci.hdf5.HDF5FileFactory;
 import org.eclipse.january.IMonitor;
 import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.DatasetUtils;
 import org.eclipse.january.dataset.IDataset;
 import org.eclipse.january.dataset.ILazyDataset;
 import org.eclipse.january.dataset.ILazyWriteableDataset;
 import org.eclipse.january.dataset.LazyDataset;
+import org.eclipse.january.dataset.Slice;
 import org.eclipse.january.dataset.SliceND;
+import org.eclipse.january.io.ILazyLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import uk.ac.diamond.scisoft.analysis.io.DataHolder;
 import uk.ac.diamond.scisoft.analysis.io.ImageStackLoader;
 import uk.ac.diamond.scisoft.analysis.io.JavaImageSaver;
-import uk.ac.diamond.scisoft.analysis.utils.FileUtils;
 
 /**
  * Converts a directory of images to a stitched image
  * 
+ * When feature association is used the tiles are rotated and cropped as the
+ * stitcher reads them from the original images, and the stitched image is saved
+ * with the image saver. Otherwise, if the output is an HDF5 file, the mosaic is
+ * streamed: each tile is placed using the translations and written to a chunked
+ * dataset as soon as it is read, so only one tile is held in memory whatever
+ * the size of the mosaic. Where tiles overlap the later tile is kept. The tiles
+ * are placed as the image stitcher places them from the same translations, when
+ * it does not associate features, rounded to whole pixels.
+ * 
  * @author Baha El Kassaby
  * 
  */
 public class ImagesToStitchedConverter extends AbstractImageConversion {
 
 	private static final Logger logger = LoggerFactory.getLogger(ImagesToStitchedConverter.class);
-	private ILazyWriteableDataset lazyfile;
+	
+	/**
+	 * Where the mosaic is written in HDF5 output, and the size of its chunks.
+	 */
+	private static final String MOSAIC_GROUP = "/entry/data/";
+	private static final String MOSAIC_NAME  = "stitched";
+	private static final int    MOSAIC_CHUNK = 512;
+	
+	private ILazyWriteableDataset mosaic;
+	private int[][]               positions;
 
 	public ImagesToStitchedConverter() {
 		super(null);
@@ -62,64 +84,237 @@ public class ImagesToStitchedConverter extends AbstractImageConversion {
 		context.addSliceDimension(0, "all");
 	}
 
-	private int idx = 0;
+	@Override
+	protected void iterate(final ILazyDataset         lz, 
+			               final String               nameFrag,
+			               final IConversionContext   context) throws Exception {
+		
+		if (isStreamed()) {
+			super.iterate(lz, nameFrag, context);
+		} else {
+			stitch(lz);
+		}
+	}
+
+	/**
+	 * 
+	 * @return true if the tiles are written to the mosaic one at a time.
+	 */
+	private boolean isStreamed() {
+		final ConversionStitchedBean bean = (ConversionStitchedBean)context.getUserObject();
+		if (bean == null || bean.isFeatureAssociated() || bean.getTranslationsArray()==null) return false;
+		return isH5(new File(context.getOutputPath()));
+	}
 
+	/**
+	 * Writes one tile to the mosaic.
+	 */
 	@Override
 	protected void convert(IDataset slice) throws Exception {
 		if (context.getMonitor() != null && context.getMonitor().isCancelled()) {
 			throw new Exception(getClass().getSimpleName() + " is cancelled");
 		}
-		ConversionStitchedBean conversionBean = (ConversionStitchedBean)context.getUserObject();
-		ILazyDataset lazy = context.getLazyDataset();
-		// Rotate each image by angle degrees
-		double angle = conversionBean.getAngle();
-		IDataset rotatedSlice = ServiceLoader.getImageTransform().rotate(slice, angle);
-
-		if (lazyfile == null)
-			lazyfile = createTempLazyFile(lazy.getShape(), "stitchedconverter.h5");
+		final ConversionStitchedBean conversionBean = (ConversionStitchedBean)context.getUserObject();
+		final Dataset tile = transform(slice, conversionBean.getAngle(), conversionBean.getRoi());
+
+		if (mosaic == null) mosaic = createMosaic(tile.getShapeRef(), conversionBean);
+
+		final int   index = getSliceIndex();
+		final int[] start = positions[index];
+		final int[] stop  = new int[] {start[0]+tile.getShapeRef()[0], start[1]+tile.getShapeRef()[1]};
+		mosaic.setSlice(null, tile, new SliceND(mosaic.getShape(), start, stop, null));
+
+		final IMonitor mon = context.getMonitor();
+		if (mon != null) {
+			mon.subTask("Tile "+(index+1)+" of "+positions.length);
+			mon.worked(1);
+		}
+	}
+
+	/**
+	 * Places the tiles using the translations and creates the dataset to hold them all.
+	 */
+	private ILazyWriteableDataset createMosaic(int[] tileShape, ConversionStitchedBean bean) throws Exception {
 		
-		// crop each image given an elliptical roi
-		IROI roi = conversionBean.getRoi();
-		if (roi != null) {
-			IDataset cropped = Image.maxRectangleFromEllipticalImage(rotatedSlice, roi);
-			//save to temp file
-			appendDataset(lazyfile, cropped, idx, context.getMonitor());
-		} else {
-			//save to temp file
-			appendDataset(lazyfile,rotatedSlice, idx, context.getMonitor());
+		final int[] original = context.getLazyDataset().getShape();
+		positions = getTilePositions(bean.getTranslationsArray(), bean.getRows(), bean.getColumns(), original[0], getPixelsPerMicron(original, bean.getFieldOfView()));
+
+		final int[] shape = new int[2];
+		for (int[] position : positions) {
+			shape[0] = Math.max(shape[0], position[0]+tileShape[0]);
+			shape[1] = Math.max(shape[1], position[1]+tileShape[1]);
+		}
+		final int[] chunks = new int[] {Math.min(MOSAIC_CHUNK, shape[0]), Math.min(MOSAIC_CHUNK, shape[1])};
+		logger.debug("Writing a mosaic of {} tiles with shape {}x{}", original[0], shape[0], shape[1]);
+
+		final File output = new File(context.getOutputPath());
+		if (output.exists()) output.delete();
+		return HDF5Utils.createLazyDataset(output.getAbsolutePath(), MOSAIC_GROUP, MOSAIC_NAME, shape, null, chunks, Dataset.FLOAT32, null, false);
+	}
+
+	/**
+	 * As the image stitcher converts the translations, from the height of the original
+	 * images and the field of view across their diagonal.
+	 * 
+	 * @param original the shape of the stack of original images
+	 * @param fieldOfView in microns
+	 * @return the number of pixels in a micron.
+	 */
+	private static double getPixelsPerMicron(int[] original, double fieldOfView) {
+		return original[1]/(fieldOfView*Math.cos(Math.PI/4));
+	}
+
+	/**
+	 * Follows the convention of the image stitcher without feature association. The
+	 * translations are in microns, as x and y, and are indexed by column then row. The
+	 * tile in a row and column is offset from the first tile by the x translation times
+	 * its column and the y translation times its row, both its own. The tiles are in rows,
+	 * so tile row*columns+column is at translations[column][row].
+	 * 
+	 * @return the position of each tile in the mosaic, as y and x, none of them negative.
+	 */
+	private static int[][] getTilePositions(double[][][] translations, int rows, int columns, int tiles, double pixelsPerMicron) {
+		
+		final double[][] ret = new double[tiles][2];
+		double minY = 0, minX = 0;
+		for (int i = 0; i < tiles; i++) {
+			final int row    = i/columns;
+			final int column = i%columns;
+			if (row>=rows) throw new IllegalArgumentException("There are more images than "+rows+" rows of "+columns+" tiles!");
+			final double[] by = translations[column][row];
+			ret[i][0] = by[1]*pixelsPerMicron*row;
+			ret[i][1] = by[0]*pixelsPerMicron*column;
+			minY = Math.min(minY, ret[i][0]);
+			minX = Math.min(minX, ret[i][1]);
+		}
+		final int[][] positions = new int[tiles][2];
+		for (int i = 0; i < tiles; i++) {
+			positions[i][0] = (int)Math.round(ret[i][0]-minY);
+			positions[i][1] = (int)Math.round(ret[i][1]-minX);
+		}
+		return positions;
+	}
+
+	@Override
+	public void close(IConversionContext context) throws Exception {
+		try {
+			if (mosaic != null) HDF5FileFactory.releaseFile(new File(context.getOutputPath()).getAbsolutePath(), true);
+		} finally {
+			super.close(context);
+		}
+	}
+
+	/**
+	 * Stitches the images with feature association, or the translations if the output is not HDF5.
+	 * The tiles are rotated and cropped as the stitcher reads them rather than copied to a temporary file.
+	 */
+	private void stitch(ILazyDataset lazy) throws Exception {
+		
+		final ConversionStitchedBean conversionBean = (ConversionStitchedBean)context.getUserObject();
+		final ILazyDataset tiles = new LazyDataset("tiles", Dataset.FLOAT32, getTileStackShape(lazy, conversionBean), new TileLoader(lazy, conversionBean.getAngle(), conversionBean.getRoi()));
+		
+		String outputPath = context.getOutputPath();
+		int rows = conversionBean.getRows();
+		int columns = conversionBean.getColumns();
+		boolean useFeatureAssociation = conversionBean.isFeatureAssociated();
+		double fieldOfView = conversionBean.getFieldOfView();
+		double[][][] translationsArray = conversionBean.getTranslationsArray();
+
+		// stitch the stack of images
+		IDataset stitched = ServiceLoader.getImageStitcher().stitch(tiles, rows, columns, fieldOfView, translationsArray, useFeatureAssociation, lazy.getShape(), context.getMonitor());
+
+		stitched.setName("stitched");
+		final File outputFile = new File(outputPath);
+
+		if (!outputFile.getParentFile().exists())
+			outputFile.getParentFile().mkdirs();
+
+		// JavaImageSaver likes 33 but users don't
+		int bits = getBits();
+		if (bits == 32 && getExtension().toLowerCase().startsWith("tif"))
+			bits = 33;
+
+		final JavaImageSaver saver = new JavaImageSaver(
+				outputFile.getAbsolutePath(), getExtension(), bits, true);
+		final DataHolder dh = new DataHolder();
+		dh.addDataset(stitched.getName(), stitched);
+		dh.setFilePath(outputFile.getAbsolutePath());
+		saver.saveFile(dh);
+	}
+
+	/**
+	 * All the tiles have the shape of the first once rotated and cropped.
+	 */
+	private static int[] getTileStackShape(ILazyDataset lazy, ConversionStitchedBean bean) throws Exception {
+		final IDataset first = lazy.getSlice(new Slice(0, 1)).squeeze();
+		final int[]    shape = transform(first, bean.getAngle(), bean.getRoi()).getShape();
+		return new int[] {lazy.getShape()[0], shape[0], shape[1]};
+	}
+
+	/**
+	 * Rotates the image and crops it to the largest rectangle in the roi, if there is one.
+	 */
+	private static Dataset transform(IDataset image, double angle, IROI roi) throws Exception {
+		IDataset rotated = ServiceLoader.getImageTransform().rotate(image, angle);
+		if (roi != null) rotated = Image.maxRectangleFromEllipticalImage(rotated, roi);
+		return DatasetUtils.cast(DatasetUtils.convertToDataset(rotated), Dataset.FLOAT32);
+	}
+
+	/**
+	 * Reads the tiles from the original images, rotated and cropped. The
+	 * last tile is kept as the stitcher may read several slices of it.
+	 */
+	private static class TileLoader implements ILazyLoader {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final transient ILazyDataset images;
+		private final double                 angle;
+		private final transient IROI         roi;
+		
+		private transient Dataset            last;
+		private int                          lastIndex = -1;
+
+		TileLoader(ILazyDataset images, double angle, IROI roi) {
+			this.images = images;
+			this.angle  = angle;
+			this.roi    = roi;
+		}
+
+		@Override
+		public boolean isFileReadable() {
+			return true;
 		}
 
-		int stackSize = lazy.getShape()[0];
-		if (idx == stackSize-1) {
-			String outputPath = context.getOutputPath();
-			int rows = conversionBean.getRows();
-			int columns = conversionBean.getColumns();
-			boolean useFeatureAssociation = conversionBean.isFeatureAssociated();
-			double fieldOfView = conversionBean.getFieldOfView();
-			double[][][] translationsArray = conversionBean.getTranslationsArray();
-
-			// stitch the stack of images
-			IDataset stitched = ServiceLoader.getImageStitcher().stitch(lazyfile, rows, columns, fieldOfView, translationsArray, useFeatureAssociation, lazy.getShape(), context.getMonitor());
-
-			stitched.setName("stitched");
-			final File outputFile = new File(outputPath);
-
-			if (!outputFile.getParentFile().exists())
-				outputFile.getParentFile().mkdirs();
-
-			// JavaImageSaver likes 33 but users don't
-			int bits = getBits();
-			if (bits == 32 && getExtension().toLowerCase().startsWith("tif"))
-				bits = 33;
-
-			final JavaImageSaver saver = new JavaImageSaver(
-					outputFile.getAbsolutePath(), getExtension(), bits, true);
-			final DataHolder dh = new DataHolder();
-			dh.addDataset(stitched.getName(), stitched);
-			dh.setFilePath(outputFile.getAbsolutePath());
-			saver.saveFile(dh);
+		@Override
+		public synchronized IDataset getDataset(IMonitor mon, SliceND slice) throws IOException {
+			
+			final int[]   start  = slice.getStart();
+			final int[]   stop   = slice.getStop();
+			final int[]   step   = slice.getStep();
+			final int[]   shape  = slice.getShape();
+			final Dataset result = DatasetFactory.zeros(shape, Dataset.FLOAT32);
+			try {
+				for (int i = 0; i < shape[0]; i++) {
+					final Dataset tile = getTile(start[0]+i*step[0]);
+					final Dataset part = tile.getSliceView(new Slice(start[1], stop[1], step[1]), new Slice(start[2], stop[2], step[2]));
+					result.setSlice(part.reshape(1, shape[1], shape[2]), new SliceND(result.getShapeRef(), new int[] {i, 0, 0}, new int[] {i+1, shape[1], shape[2]}, null));
+				}
+			} catch (IOException ne) {
+				throw ne;
+			} catch (Exception ne) {
+				throw new IOException("Cannot read tiles "+slice, ne);
+			}
+			return result;
+		}
+
+		private Dataset getTile(int index) throws Exception {
+			if (index!=lastIndex) {
+				last      = transform(images.getSlice(new Slice(index, index+1)).squeeze(), angle, roi);
+				lastIndex = index;
+			}
+			return last;
 		}
-		idx++;
 	}
 
 	private ILazyDataset getLazyDataset() throws Exception {
@@ -152,7 +347,7 @@ public class ImagesToStitchedConverter extends AbstractImageConversion {
 				}
 			}
 		}
-		Collections.sort(paths, new SortNatural<String>(true));
+		FileExpander.sortNatural(paths);
 		ImageStackLoader loader = new ImageStackLoader(paths,
 				context.getMonitor());
 		lazyDataset = new LazyDataset("Folder Stack",
@@ -172,37 +367,6 @@ public class ImagesToStitchedConverter extends AbstractImageConversion {
 		return ((ConversionInfoBean) context.getUserObject()).getBits();
 	}
 
-	/**
-	 * Method that creates an hdf5 file in the temp directory of the OS
-	 * 
-	 * @param name
-	 * @return lazy writable dataset on disk
-	 */
-	private ILazyWriteableDataset createTempLazyFile(int[] newShape, String name) {
-		// save on a temp file
-		String nodepath = "/entry/data/";
-		String file = FileUtils.getTempFilePath(name);
-		File tmpFile = new File(file);
-		if (tmpFile.exists())
-			tmpFile.delete();
-		return HDF5Utils.createLazyDataset(file, nodepath, name, newShape, null, newShape, Dataset.FLOAT32, null, false);
-	}
-
-	/**
-	 * Method that appends a dataset to an existing lazy writable dataset
-	 * 
-	 * @param lazy
-	 * @param data
-	 * @param idx
-	 * @param monitor
-	 * @throws Exception
-	 */
-	private void appendDataset(ILazyWriteableDataset lazy, IDataset data, int idx, IMonitor monitor) throws Exception {
-		SliceND ndSlice = new SliceND(lazy.getShape(), new int[] { idx, 0, 0 },
-				new int[] { (idx + 1), data.getShape()[0], data.getShape()[1] }, null);
-		lazy.setSlice(monitor, data, ndSlice);
-	}
-
 	/**
 	 * To be used as the user object to convey data about the stitched conversion.
 	 *
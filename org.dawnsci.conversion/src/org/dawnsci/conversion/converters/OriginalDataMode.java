@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion.converters;
+
+/**
+ * How the original data is added to the output when processing with
+ * ProcessingOutputType.ORIGINAL_AND_PROCESSED. In each case the original
+ * data is read from the output file with the same paths.
+ */
+public enum OriginalDataMode {
+
+	/**
+	 * The input file is copied to the output before processing starts.
+	 */
+	COPY,
+
+	/**
+	 * The input file is copied on another thread while the processing is written
+	 * to a temporary file, which is then copied into the output.
+	 */
+	COPY_IN_BACKGROUND,
+
+	/**
+	 * The output contains external links to the data in the input file, which
+	 * must not be moved. No data is copied.
+	 */
+	EXTERNAL_LINKS;
+}
@@ -12,14 +12,19 @@ import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import org.dawnsci.conversion.converters.util.ConversionThreads;
+import org.dawnsci.conversion.converters.util.HDF5Merger;
 import org.dawnsci.conversion.converters.util.LocalServiceManager;
+import org.dawnsci.conversion.converters.util.StagedExecutionVisitor;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
 import org.eclipse.dawnsci.analysis.api.conversion.IProcessingConversionInfo;
 import org.eclipse.dawnsci.analysis.api.conversion.ProcessingOutputType;
 import org.eclipse.dawnsci.analysis.api.io.IDataHolder;
 import org.eclipse.dawnsci.analysis.api.io.ILoaderService;
-import org.eclipse.dawnsci.analysis.api.processing.Atomic;
 import org.eclipse.dawnsci.analysis.api.processing.ExecutionType;
 import org.eclipse.dawnsci.analysis.api.processing.IExecutionVisitor;
 import org.eclipse.dawnsci.analysis.api.processing.IOperation;
@@ -45,12 +50,25 @@ public class ProcessConversion extends AbstractConversion {
 	ILoaderService lservice;
 	private final static String PROCESSED = "_processed";
 	private final static String EXT= ".nxs";
+	private final static String PARTIAL = "_partial";
+	/**
+	 * The number of slices processed in parallel which may wait for the operations run in series.
+	 */
+	private final static int STAGE_CAPACITY = 64;
 	
 	public ProcessConversion(IConversionContext context) {
 		super(context);
 		context.setEchoMacro(false); // We do not tell the user about doing this conversion in macros.
 	}
 
+	/**
+	 * The whole dataset is converted at once.
+	 */
+	@Override
+	protected boolean isFollowSupported() {
+		return false;
+	}
+
 	protected void iterate( final ILazyDataset         lz, 
 				            final String               nameFrag,
 				            final IConversionContext   context) throws Exception {
@@ -91,39 +109,107 @@ public class ProcessConversion extends AbstractConversion {
 		//TODO output path
 		
 		// If we need to keep the original data, sort it out here.
-		if (info.getProcessingOutputType() == ProcessingOutputType.ORIGINAL_AND_PROCESSED) {
-			File source = new File(context.getSelectedConversionFile().getAbsolutePath());
-			File dest = new File(full);
-			logger.debug("Copying original data ("+source.getAbsolutePath()+") to output file ("+dest.getAbsolutePath()+")");
-			long start = System.currentTimeMillis();
-			FileUtils.copyNio(source, dest);
-			logger.debug("Copy ran in: " +(System.currentTimeMillis()-start)/1000. + " s : Thread" +Thread.currentThread().toString());
-		}
-		
-		boolean parallel = true;
-		IOperation[] operationSeries = info.getOperationSeries();
-		for (IOperation op : operationSeries) {
-			Atomic atomic = op.getClass().getAnnotation(Atomic.class);
-			if (atomic == null) {
-				parallel = false;
-				break;
-			}
+		final OriginalDataMode mode = info.getProcessingOutputType() == ProcessingOutputType.ORIGINAL_AND_PROCESSED
+				                    ? getOriginalDataMode(context)
+				                    : null;
+		final File source = new File(context.getSelectedConversionFile().getAbsolutePath());
+		final File dest   = new File(full);
+		if (mode == OriginalDataMode.COPY) {
+			copy(source, dest);
 		}
 		
+		// When copying in the background the processing is written to another file first
+		final String processed = mode == OriginalDataMode.COPY_IN_BACKGROUND 
+				               ? outputFolder + File.separator + name + PROCESSED+ timeStamp + PARTIAL + EXT
+				               : full;
 		
 		ExecutionType executionType = info.getExecutionType();
+		IOperation[] operationSeries = info.getOperationSeries();
+		
+		// Atomic operations at the start of the series may run in parallel even if later ones may not.
+		final int atomic = StagedExecutionVisitor.getAtomicCount(operationSeries);
+		final boolean staged = executionType == ExecutionType.PARALLEL && atomic > 0 && atomic < operationSeries.length;
+		if (executionType == ExecutionType.PARALLEL && atomic == 0) {
+			logger.debug("Running the operations in series as the first is not atomic");
+			executionType = ExecutionType.SERIES;
+		}
 		
-		IExecutionVisitor exVisitor = info.getExecutionVisitor(full);
+		IExecutionVisitor exVisitor = info.getExecutionVisitor(processed);
 		
 		if (info.getProcessingOutputType() == ProcessingOutputType.LINK_ORIGINAL && exVisitor instanceof ISavesToFile) {
 			((ISavesToFile)exVisitor).includeLinkTo(context.getSelectedConversionFile().getAbsolutePath());
 		}
 		
+		if (staged) {
+			final StagedExecutionVisitor stages = new StagedExecutionVisitor(exVisitor, operationSeries, STAGE_CAPACITY, context.getMonitor());
+			logger.debug("Running the first "+atomic+" of "+operationSeries.length+" operations in parallel");
+			exVisitor       = stages;
+			operationSeries = stages.getHead();
+		}
+		
 		cc.setMonitor(context.getMonitor());
 		cc.setVisitor(exVisitor);
-		cc.setSeries(info.getOperationSeries());
+		cc.setSeries(operationSeries);
 		cc.setExecutionType(executionType);
-		service.execute(cc);
+		
+		if (mode == OriginalDataMode.COPY_IN_BACKGROUND) {
+			executeWhileCopying(cc, source, dest, new File(processed));
+		} else {
+			service.execute(cc);
+		}
+		
+		if (mode == OriginalDataMode.EXTERNAL_LINKS) {
+			logger.debug("Linking original data ("+source.getAbsolutePath()+") from output file ("+dest.getAbsolutePath()+")");
+			HDF5Merger.link(source.getAbsolutePath(), dest.getAbsolutePath());
+		}
+	}
+	
+	/**
+	 * Copies the original data while the operations run, then writes the processed data
+	 * over the copy, replacing what it replaces when it is written to a copy made first.
+	 */
+	private void executeWhileCopying(IOperationContext cc, final File source, final File dest, File processed) throws Exception {
+		
+		final ExecutorService pool = ConversionThreads.newFixedPool(getClass().getSimpleName()+" copy", 1);
+		try {
+			final Future<?> copy = pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					copy(source, dest);
+					return null;
+				}
+			});
+			try {
+				service.execute(cc);
+			} catch (Exception ne) {
+				// Do not leave the copy writing the output when the processing failed.
+				try {
+					ConversionThreads.get(copy);
+				} catch (Exception copyError) {
+					logger.error("Cannot copy "+source, copyError);
+				}
+				throw ne;
+			}
+			ConversionThreads.get(copy);
+			logger.debug("Copying processed data ("+processed.getAbsolutePath()+") to output file ("+dest.getAbsolutePath()+")");
+			HDF5Merger.overlay(processed.getAbsolutePath(), dest.getAbsolutePath());
+			
+		} finally {
+			pool.shutdown();
+			if (processed.exists() && !processed.delete()) logger.warn("Cannot delete "+processed);
+		}
+	}
+	
+	private static void copy(File source, File dest) throws Exception {
+		logger.debug("Copying original data ("+source.getAbsolutePath()+") to output file ("+dest.getAbsolutePath()+")");
+		long start = System.currentTimeMillis();
+		FileUtils.copyNio(source, dest);
+		logger.debug("Copy ran in: " +(System.currentTimeMillis()-start)/1000. + " s : Thread" +Thread.currentThread().toString());
+	}
+	
+	private static OriginalDataMode getOriginalDataMode(IConversionContext context) {
+		if (!(context instanceof IExtendedConversionContext)) return OriginalDataMode.COPY;
+		return ((IExtendedConversionContext)context).getOriginalDataMode();
 	}
 	
 	protected ILazyDataset getLazyDataset(final File                 path, 
@@ -134,7 +220,7 @@ public class ProcessConversion extends AbstractConversion {
 		if (lazyDataset != null) return lazyDataset;
 		
 
-		final IDataHolder   dh = LocalServiceManager.getLoaderService().getData(path.getAbsolutePath(),null);
+		final IDataHolder   dh = getDataCache().getData(path.getAbsolutePath(),null);
 		context.setSelectedH5Path(dsPath);
 		if (context.getMonitor()!=null) {
 			context.getMonitor().subTask("Process '"+path.getAbsolutePath());
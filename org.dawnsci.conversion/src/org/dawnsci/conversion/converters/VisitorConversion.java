@@ -8,10 +8,15 @@
  */
 package org.dawnsci.conversion.converters;
 
+import java.util.List;
+
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
 import org.eclipse.january.dataset.IDataset;
 
 public class VisitorConversion extends AbstractConversion {
+	
+	private List<String> expandedDatasets;
+	private boolean      expanded;
 
 	public VisitorConversion(IConversionContext context) throws Exception {
 		super(context);
@@ -21,12 +26,22 @@ public class VisitorConversion extends AbstractConversion {
 
 	@Override
 	protected void convert(IDataset slice) throws Exception{
-		context.getConversionVisitor().setExpandedDatasets(getExpandedDatasets());
+		// The inputs do not change during the conversion, so expand them once,
+		// even if nothing matches.
+		if (!expanded) {
+			expandedDatasets = getExpandedDatasets();
+			expanded         = true;
+		}
+		context.getConversionVisitor().setExpandedDatasets(expandedDatasets);
 		context.getConversionVisitor().visit(context, slice);
 	}
 
 	public void close(IConversionContext context) throws Exception{
-		context.getConversionVisitor().close(context);
+		try {
+			context.getConversionVisitor().close(context);
+		} finally {
+			releaseDataCache();
+		}
 	}
 
 }
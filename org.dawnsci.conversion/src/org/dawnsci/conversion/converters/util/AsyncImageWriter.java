@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion.converters.util;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.dawnsci.conversion.converters.util.ConversionMetrics.Phase;
+import org.eclipse.january.dataset.IDataset;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.diamond.scisoft.analysis.io.DataHolder;
+import uk.ac.diamond.scisoft.analysis.io.JavaImageSaver;
+
+/**
+ * Encodes and writes images on a pool of threads so that the conversion can
+ * carry on reading slices while the previous ones are compressed and written.
+ *
+ * At most capacity images are queued or being written, {@link #write(String, String, int, IDataset, String)}
+ * blocks when the queue is full so that a slow disk does not fill the heap with slices.
+ * The first failure is thrown by the next call to write or flush, after which
+ * the images still queued are discarded and further writes fail.
+ */
+public class AsyncImageWriter {
+
+	private static final Logger logger = LoggerFactory.getLogger(AsyncImageWriter.class);
+
+	private final ExecutorService            pool;
+	private final Semaphore                  queue;
+	private final int                        capacity;
+	private final AtomicReference<Exception> error;
+	private boolean                          reported;
+	private volatile ConversionMetrics       metrics;
+
+	/**
+	 * A writer using the default number of threads with a queue of twice that size.
+	 * @param name used to name the threads
+	 */
+	public AsyncImageWriter(String name) {
+		this(name, getDefaultThreadCount(), 2*getDefaultThreadCount());
+	}
+
+	/**
+	 *
+	 * @param name used to name the threads
+	 * @param threads number of images encoded at the same time
+	 * @param capacity maximum number of images queued or being written, at least threads.
+	 */
+	public AsyncImageWriter(String name, int threads, int capacity) {
+		this.pool     = ConversionThreads.newFixedPool(name+" writer", Math.max(1, threads));
+		this.capacity = Math.max(capacity, Math.max(1, threads));
+		this.queue    = new Semaphore(this.capacity);
+		this.error    = new AtomicReference<Exception>();
+	}
+
+	/**
+	 * 
+	 * @param metrics recording the time taken by each write and the size of the images, may be null.
+	 * @return this
+	 */
+	public AsyncImageWriter setMetrics(ConversionMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	/**
+	 * Leaves a processor for the thread reading the slices.
+	 * @return the number of encoding threads used by default.
+	 */
+	public static int getDefaultThreadCount() {
+		return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()-1));
+	}
+
+	/**
+	 * Queues the image to be written, blocking while the queue is full.
+	 * The slice must not be changed by the caller after this call.
+	 *
+	 * @param path of the image file, the parent directory is created if required.
+	 * @param format passed to JavaImageSaver e.g. "tiff"
+	 * @param bits
+	 * @param slice
+	 * @param sourcePath the file the slice came from, may be null.
+	 * @throws Exception if a previous image could not be written.
+	 */
+	public void write(String path, String format, int bits, IDataset slice, String sourcePath) throws Exception {
+		write(path, format, bits, slice, sourcePath, null);
+	}
+
+	/**
+	 * Queues the image to be written, blocking while the queue is full.
+	 * The slice must not be changed by the caller after this call.
+	 *
+	 * @param path of the image file, the parent directory is created if required.
+	 * @param format passed to JavaImageSaver e.g. "tiff"
+	 * @param bits
+	 * @param slice
+	 * @param sourcePath the file the slice came from, may be null.
+	 * @param written run on the writing thread once the image is written, may be null.
+	 * @throws Exception if a previous image could not be written.
+	 */
+	public void write(final String   path,
+			          final String   format,
+			          final int      bits,
+			          final IDataset slice,
+			          final String   sourcePath,
+			          final Runnable written) throws Exception {
+
+		checkError();
+		queue.acquire();
+		if (error.get()!=null) {
+			queue.release();
+			checkError();
+		}
+
+		try {
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (error.get()!=null) return; // Already failed, do not write more.
+						final long start = System.nanoTime();
+						save(path, format, bits, slice, sourcePath);
+						final ConversionMetrics m = metrics;
+						if (m!=null) {
+							m.record(Phase.WRITE, start);
+							m.addBytesWritten(new File(path).length());
+						}
+						if (written!=null) written.run();
+					} catch (Throwable ne) {
+						// Errors such as running out of memory are reported by flush() too
+						final Exception failure = ne instanceof Exception ? (Exception)ne : new Exception("Cannot write image "+path, ne);
+						if (error.compareAndSet(null, failure)) logger.error("Cannot write image "+path, ne);
+					} finally {
+						queue.release();
+					}
+				}
+			});
+		} catch (RuntimeException ne) {
+			queue.release();
+			throw ne;
+		}
+	}
+
+	private static void save(String path, String format, int bits, IDataset slice, String sourcePath) throws Exception {
+
+		final File file = new File(path);
+		if (file.getParentFile()!=null && !file.getParentFile().exists()) file.getParentFile().mkdirs();
+
+		final JavaImageSaver saver = new JavaImageSaver(path, format, bits, true);
+		final DataHolder     dh    = new DataHolder();
+		dh.addDataset(slice.getName(), slice);
+		if (sourcePath!=null) dh.setFilePath(sourcePath);
+		saver.saveFile(dh);
+	}
+
+	/**
+	 * Waits for the queued images to be written.
+	 *
+	 * @throws Exception the first failure, if it has not already been thrown.
+	 */
+	public void flush() throws Exception {
+		queue.acquire(capacity);
+		queue.release(capacity);
+		checkUnreported();
+	}
+
+	/**
+	 * Flushes the queued images and stops the threads.
+	 *
+	 * @throws Exception the first failure, if it has not already been thrown.
+	 */
+	public void close() throws Exception {
+		try {
+			flush();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private void checkError() throws Exception {
+		final Exception ne = error.get();
+		if (ne==null) return;
+		if (!isReported()) throw ne;
+		throw new Exception("Image writing was stopped by an earlier error", ne);
+	}
+
+	/**
+	 * Throws the failure only once so that closing the writer after a failed
+	 * conversion does not hide the original exception.
+	 */
+	private void checkUnreported() throws Exception {
+		final Exception ne = error.get();
+		if (ne!=null && !isReported()) throw ne;
+	}
+
+	/**
+	 * @return true if the failure was already thrown, marking it as thrown.
+	 */
+	private synchronized boolean isReported() {
+		final boolean ret = reported;
+		reported = true;
+		return ret;
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion.converters.util;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.eclipse.dawnsci.analysis.dataset.slicer.SliceFromSeriesMetadata;
+import org.eclipse.dawnsci.hdf5.HDF5File;
+import org.eclipse.dawnsci.hdf5.HDF5FileFactory;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetUtils;
+import org.eclipse.january.dataset.IDataset;
+import org.eclipse.january.dataset.ILazyDataset;
+import org.eclipse.january.dataset.SliceND;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hdf.hdf5lib.H5;
+import hdf.hdf5lib.HDF5Constants;
+
+/**
+ * Reads the slices of a chunked HDF5 dataset in blocks of whole chunks.
+ *
+ * When the slices are thinner than the chunks, for instance images of a stack
+ * chunked 64 frames deep, reading slice by slice decompresses every chunk once for
+ * each slice it contains. Instead this reader loads a block which is one chunk
+ * deep in the outermost chunked slice dimension and covers all of the inner slice
+ * dimensions, a chunk-row, and serves the slices inside it from memory. As the slices
+ * are iterated with the inner dimensions fastest, each chunk is then read once.
+ *
+ * The block is only used if it fits the memory budget, otherwise the next inner
+ * chunked dimension is tried. Slices outside the blocks held cause their block to be
+ * read, so any iteration order gives the same data. The last two blocks are held, so
+ * that threads reading slices either side of a block boundary do not read the blocks
+ * over and over. Blocks are read outside the lock, so a thread reading a block does not
+ * hold up the threads with slices in the blocks already read.
+ */
+public class ChunkedSliceReader {
+
+	private static final Logger logger = LoggerFactory.getLogger(ChunkedSliceReader.class);
+
+	private static final int BLOCKS = 2;
+
+	private final ILazyDataset lz;
+	private final SliceND      range;
+	private final boolean[]    isSliceDim;
+	private final int          blockDim;
+	private final int          chunkLength;
+
+	private final Map<String, Future<Dataset>> blocks;
+	private int                                blockReads;
+
+	private ChunkedSliceReader(ILazyDataset lz, SliceND range, boolean[] isSliceDim, int blockDim, int chunkLength) {
+		this.lz          = lz;
+		this.range       = range;
+		this.isSliceDim  = isSliceDim;
+		this.blockDim    = blockDim;
+		this.chunkLength = chunkLength;
+		this.blocks      = new LinkedHashMap<String, Future<Dataset>>(BLOCKS+1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Future<Dataset>> eldest) {
+				return size()>BLOCKS;
+			}
+		};
+	}
+
+	/**
+	 *
+	 * @param lz the dataset being sliced
+	 * @param range the part of the dataset iterated
+	 * @param dataAxes the dimensions which are whole in each slice
+	 * @param chunking the chunk shape of the dataset, may be null
+	 * @param budget the maximum number of bytes in one block, up to two blocks are held.
+	 * @return a reader, or null if reading slice by slice reads each chunk once anyway or no block fits the budget.
+	 */
+	public static ChunkedSliceReader create(ILazyDataset lz, SliceND range, int[] dataAxes, int[] chunking, long budget) {
+
+		final int[] shape = range.getShape();
+		if (chunking==null || chunking.length!=shape.length) return null;
+		for (int step : range.getStep()) if (step!=1) return null;
+
+		final boolean[] isSliceDim = new boolean[shape.length];
+		Arrays.fill(isSliceDim, true);
+		for (int axis : dataAxes) isSliceDim[axis] = false;
+
+		long sliceBytes = SlicePlan.getItemBytes(lz);
+		for (int i = 0; i < shape.length; i++) if (!isSliceDim[i]) sliceBytes *= shape[i];
+
+		for (int dim = 0; dim < shape.length; dim++) {
+			if (!isSliceDim[dim] || chunking[dim]<2 || shape[dim]<2) continue;
+
+			final int length = Math.min(chunking[dim], shape[dim]);
+			long blockBytes  = sliceBytes*length;
+			for (int i = dim+1; i < shape.length; i++) if (isSliceDim[i]) blockBytes *= shape[i];
+
+			if (blockBytes<=budget) {
+				logger.debug("Reading {} in blocks of {} bytes, {} deep in dimension {}", lz.getName(), blockBytes, length, dim);
+				return new ChunkedSliceReader(lz, range, isSliceDim, dim, chunking[dim]);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the slice from the block containing it, reading the block if it is not held.
+	 * If another thread is reading the block, waits for it.
+	 *
+	 * @param view a view returned by the SliceViewIterator of the dataset.
+	 * @return the slice, with the same metadata as view.getSlice()
+	 * @throws Exception
+	 */
+	public IDataset read(ILazyDataset view) throws Exception {
+
+		final SliceFromSeriesMetadata meta = view.getFirstMetadata(SliceFromSeriesMetadata.class);
+		if (meta==null) return view.getSlice();
+
+		final SliceND slice      = new SliceND(lz.getShape(), meta.getSliceFromInput());
+		final SliceND blockSlice = getBlock(slice);
+		if (!contains(blockSlice, slice)) return view.getSlice();
+
+		final String key = Arrays.toString(blockSlice.getStart());
+		FutureTask<Dataset> read = null;
+		Future<Dataset>     future;
+		synchronized (blocks) {
+			future = blocks.get(key);
+			if (future==null) {
+				read = new FutureTask<Dataset>(new Callable<Dataset>() {
+					@Override
+					public Dataset call() throws Exception {
+						return DatasetUtils.convertToDataset(lz.getSlice(blockSlice));
+					}
+				});
+				future = read;
+				blocks.put(key, future);
+				blockReads++;
+			}
+		}
+
+		final Dataset block;
+		try {
+			if (read!=null) read.run();
+			block = ConversionThreads.get(future);
+		} catch (Exception ne) {
+			synchronized (blocks) { // So that it is read again
+				if (blocks.get(key)==future) blocks.remove(key);
+			}
+			throw ne;
+		}
+
+		final int[] start = slice.getStart().clone();
+		final int[] stop  = slice.getStop().clone();
+		for (int i = 0; i < start.length; i++) {
+			start[i] -= blockSlice.getStart()[i];
+			stop[i]  -= blockSlice.getStart()[i];
+		}
+		final Dataset data = block.getSlice(start, stop, slice.getStep());
+		data.setMetadata(meta);
+		data.setName(view.getName());
+		return data;
+	}
+
+	private SliceND getBlock(SliceND slice) {
+
+		final int[] start = slice.getStart().clone();
+		final int[] stop  = slice.getStop().clone();
+
+		final int chunkStart = (start[blockDim]/chunkLength)*chunkLength;
+		start[blockDim] = Math.max(range.getStart()[blockDim], chunkStart);
+		stop[blockDim]  = Math.min(range.getStop()[blockDim],  chunkStart+chunkLength);
+
+		for (int i = blockDim+1; i < start.length; i++) {
+			if (!isSliceDim[i]) continue;
+			start[i] = range.getStart()[i];
+			stop[i]  = range.getStop()[i];
+		}
+		return new SliceND(lz.getShape(), start, stop, null);
+	}
+
+	private static boolean contains(SliceND block, SliceND slice) {
+		for (int i = 0; i < slice.getStart().length; i++) {
+			if (slice.getStart()[i]<block.getStart()[i]) return false;
+			if (slice.getStop()[i]>block.getStop()[i])   return false;
+		}
+		return true;
+	}
+
+	/**
+	 *
+	 * @return the number of blocks read so far.
+	 */
+	public int getBlockReads() {
+		synchronized (blocks) {
+			return blockReads;
+		}
+	}
+
+	/**
+	 * Reads the chunk shape of a dataset.
+	 *
+	 * @param filePath
+	 * @param dataPath
+	 * @param rank of the dataset
+	 * @return the chunk shape or null if the dataset is not chunked or cannot be read.
+	 */
+	public static int[] getChunking(String filePath, String dataPath, int rank) {
+
+		HDF5File file = null;
+		long dataset = -1, plist = -1;
+		try {
+			file    = HDF5FileFactory.acquireFile(filePath, false);
+			dataset = H5.H5Dopen(file.getID(), dataPath, HDF5Constants.H5P_DEFAULT);
+			plist   = H5.H5Dget_create_plist(dataset);
+			if (H5.H5Pget_layout(plist)!=HDF5Constants.H5D_CHUNKED) return null;
+
+			final long[] dims = new long[rank];
+			if (H5.H5Pget_chunk(plist, rank, dims)!=rank) return null;
+
+			final int[] chunking = new int[rank];
+			for (int i = 0; i < rank; i++) chunking[i] = (int)dims[i];
+			return chunking;
+
+		} catch (Exception ne) {
+			logger.debug("Cannot read the chunking of "+dataPath+" in "+filePath, ne);
+			return null;
+		} finally {
+			try {
+				if (plist>=0)   H5.H5Pclose(plist);
+				if (dataset>=0) H5.H5Dclose(dataset);
+			} catch (Exception ne) {
+				logger.debug("Cannot close "+dataPath+" in "+filePath, ne);
+			}
+			if (file!=null) {
+				try {
+					HDF5FileFactory.releaseFile(filePath);
+				} catch (Exception ne) {
+					logger.debug("Cannot release "+filePath, ne);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion.converters.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the input files and slices which have been converted, so that a conversion
+ * which is stopped can be run again without repeating the work already done.
+ *
+ * The journal is a text file with one line per completed file or slice, which is
+ * appended to as the conversion runs. Lines are passed to the operating system as they
+ * are written and forced to the disk at least once a second and whenever a file is
+ * completed, so little work is lost if the machine stops. Only lines ending with a
+ * new line are read, and a partly written last line is cut off when the journal is
+ * opened again so that the entries appended after it start on a line of their own.
+ *
+ * Entries are only recorded once their output has been written, it is for the
+ * conversion to decide when that is. All methods may be called from any thread.
+ */
+public class ConversionJournal implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(ConversionJournal.class);
+
+	private static final Charset UTF8       = Charset.forName("UTF-8");
+	private static final String  FILE       = "F";
+	private static final String  SLICE      = "S";
+	private static final long    SYNC_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final File                           file;
+	private final Set<String>                    files  = new HashSet<String>();
+	private final Map<String, Map<String,BitSet>> slices = new HashMap<String, Map<String,BitSet>>();
+
+	private FileOutputStream stream;
+	private Writer           out;
+	private long             synced = System.nanoTime();
+
+	private ConversionJournal(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Reads the journal if it exists, and opens it to record more entries.
+	 *
+	 * @param file
+	 * @return the journal, which must be closed.
+	 * @throws IOException
+	 */
+	public static ConversionJournal open(File file) throws IOException {
+		final ConversionJournal journal = new ConversionJournal(file);
+		if (file.exists()) journal.read();
+		if (file.getParentFile()!=null) file.getParentFile().mkdirs();
+		journal.stream = new FileOutputStream(file, true);
+		journal.out    = new OutputStreamWriter(journal.stream, UTF8);
+		return journal;
+	}
+
+	private void read() throws IOException {
+		truncate();
+		int count = 0;
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), UTF8)) {
+			String line;
+			while ((line = reader.readLine())!=null) {
+				final String[] cols = line.split("\t");
+				try {
+					if (cols.length==2 && FILE.equals(cols[0])) {
+						files.add(cols[1]);
+					} else if (cols.length==4 && SLICE.equals(cols[0])) {
+						getSlices(cols[1], cols[2]).set(Integer.parseInt(cols[3]));
+					} else {
+						continue;
+					}
+					count++;
+				} catch (NumberFormatException ne) {
+					continue; // Not written by the journal
+				}
+			}
+		}
+		logger.info("Resuming conversion from {} with {} entries", file, count);
+	}
+
+	/**
+	 * Cuts off anything after the last new line, which was being written when the
+	 * conversion stopped.
+	 */
+	private void truncate() throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			final long       length = channel.size();
+			final ByteBuffer buffer = ByteBuffer.allocate(4096);
+			long end = length;
+			search: while (end>0) {
+				final long start = Math.max(0, end-buffer.capacity());
+				buffer.clear();
+				buffer.limit((int)(end-start));
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, start+buffer.position())<0) throw new IOException("Cannot read "+file);
+				}
+				for (int i = buffer.limit()-1; i >= 0; i--) {
+					if (buffer.get(i)=='\n') {
+						end = start+i+1;
+						break search;
+					}
+				}
+				end = start;
+			}
+			if (end<length) {
+				logger.warn("Removing {} bytes written partly to {}", length-end, file);
+				channel.truncate(end);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return the file the journal is written to.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 *
+	 * @param input
+	 * @return true if all the slices of the input file have been converted.
+	 */
+	public synchronized boolean isFileDone(String input) {
+		return files.contains(input);
+	}
+
+	/**
+	 *
+	 * @param input
+	 * @param dataset
+	 * @param index
+	 * @return true if the slice has been converted.
+	 */
+	public synchronized boolean isSliceDone(String input, String dataset, int index) {
+		final Map<String,BitSet> sets = slices.get(input);
+		if (sets==null) return false;
+		final BitSet done = sets.get(dataset);
+		return done!=null && done.get(index);
+	}
+
+	/**
+	 *
+	 * @param input
+	 * @param dataset
+	 * @return the number of slices converted before the first which has not been.
+	 */
+	public synchronized int getSlicesDone(String input, String dataset) {
+		final Map<String,BitSet> sets = slices.get(input);
+		if (sets==null || !sets.containsKey(dataset)) return 0;
+		return sets.get(dataset).nextClearBit(0);
+	}
+
+	/**
+	 * Records that all the slices of the input file have been converted.
+	 *
+	 * @param input
+	 * @throws IOException
+	 */
+	public synchronized void fileDone(String input) throws IOException {
+		if (!files.add(input)) return;
+		slices.remove(input);
+		write(FILE+"\t"+input);
+		sync();
+	}
+
+	/**
+	 * Records that the slice has been converted.
+	 *
+	 * @param input
+	 * @param dataset
+	 * @param index
+	 * @throws IOException
+	 */
+	public synchronized void sliceDone(String input, String dataset, int index) throws IOException {
+		final BitSet done = getSlices(input, dataset);
+		if (done.get(index)) return;
+		done.set(index);
+		write(SLICE+"\t"+input+"\t"+dataset+"\t"+index);
+		if (System.nanoTime()-synced>SYNC_NANOS) sync();
+	}
+
+	private BitSet getSlices(String input, String dataset) {
+		Map<String,BitSet> sets = slices.get(input);
+		if (sets==null) {
+			sets = new HashMap<String,BitSet>(3);
+			slices.put(input, sets);
+		}
+		BitSet done = sets.get(dataset);
+		if (done==null) {
+			done = new BitSet();
+			sets.put(dataset, done);
+		}
+		return done;
+	}
+
+	private void write(String line) throws IOException {
+		if (out==null) throw new IOException("The journal "+file+" is closed!");
+		out.write(line);
+		out.write('\n');
+		out.flush();
+	}
+
+	/**
+	 * Forces the entries recorded to the disk.
+	 * @throws IOException
+	 */
+	public synchronized void sync() throws IOException {
+		if (stream==null) return;
+		stream.getChannel().force(false);
+		synced = System.nanoTime();
+	}
+
+	/**
+	 *
+	 * @return true once the journal has been closed or deleted, when no more entries may be recorded.
+	 */
+	public synchronized boolean isClosed() {
+		return out==null;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (out==null) return;
+		try {
+			sync();
+		} finally {
+			out.close();
+			out    = null;
+			stream = null;
+		}
+	}
+
+	/**
+	 * Closes and deletes the journal, once the conversion has completed.
+	 * @throws IOException
+	 */
+	public synchronized void delete() throws IOException {
+		close();
+		Files.deleteIfExists(file.toPath());
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion.converters.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the input files converted to an output directory with their size, modification
+ * time and a hash of their content, and the outputs written for them. When the conversion
+ * is run again the inputs which have not changed and whose outputs still exist are skipped.
+ *
+ * An input is unchanged if it has the same size and either the same modification time or,
+ * when it has been touched or copied, the same hash. The hash is a CRC of the whole file,
+ * which is only read when its modification time has changed. A sampled hash of the start,
+ * middle and end of the file may be chosen instead so that it costs at most a few reads,
+ * which detects files rewritten or appended to but not every change to the same number of
+ * bytes in the middle of a file.
+ *
+ * The manifest also records the settings of the conversion, if they are different the
+ * inputs recorded are converted again. It is written as a text file when saved, by writing
+ * a new file and renaming it, so the manifest on the disk is always complete. All methods
+ * may be called from any thread.
+ */
+public class ConversionManifest {
+
+	private static final Logger logger = LoggerFactory.getLogger(ConversionManifest.class);
+
+	private static final Charset UTF8     = Charset.forName("UTF-8");
+	private static final String  SETTINGS = "#";
+	private static final int     SAMPLE   = 1024*1024;
+
+	/**
+	 * An input file as it was when it was converted.
+	 */
+	public static final class Entry {
+
+		private final long         size;
+		private final long         modified;
+		private final long         hash;
+		private final List<String> outputs;
+
+		Entry(long size, long modified, long hash, List<String> outputs) {
+			this.size     = size;
+			this.modified = modified;
+			this.hash     = hash;
+			this.outputs  = Collections.unmodifiableList(outputs);
+		}
+		public long getSize() {
+			return size;
+		}
+		public long getModified() {
+			return modified;
+		}
+		public long getHash() {
+			return hash;
+		}
+		public List<String> getOutputs() {
+			return outputs;
+		}
+	}
+
+	private final File               file;
+	private final String             settings;
+	private final boolean            sampled;
+	private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+	private boolean                  changed;
+
+	private ConversionManifest(File file, String settings, boolean sampled) {
+		this.file     = file;
+		this.sampled  = sampled;
+		// Hashes of one kind cannot be compared with the other
+		this.settings = (settings+(sampled ? " hash=sampled" : " hash=full")).replace('\n', ' ').replace('\t', ' ');
+	}
+
+	/**
+	 * Reads the manifest if it exists, hashing the whole of each input. The entries
+	 * recorded with other settings are discarded.
+	 *
+	 * @param file
+	 * @param settings which change the outputs written for an input, for instance the scheme and datasets converted.
+	 * @return the manifest
+	 * @throws IOException
+	 */
+	public static ConversionManifest open(File file, String settings) throws IOException {
+		return open(file, settings, false);
+	}
+
+	/**
+	 * Reads the manifest if it exists. The entries recorded with other settings are discarded.
+	 *
+	 * @param file
+	 * @param settings which change the outputs written for an input, for instance the scheme and datasets converted.
+	 * @param sampled true to hash only the start, middle and end of the inputs, see {@link #hash(File, boolean)}.
+	 * @return the manifest
+	 * @throws IOException
+	 */
+	public static ConversionManifest open(File file, String settings, boolean sampled) throws IOException {
+		final ConversionManifest manifest = new ConversionManifest(file, settings, sampled);
+		if (file.exists()) manifest.read();
+		return manifest;
+	}
+
+	private void read() throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), UTF8)) {
+			String line = reader.readLine();
+			if (line==null || !line.equals(SETTINGS+"\t"+settings)) {
+				logger.info("The settings of the conversion have changed, all the inputs of {} will be converted", file);
+				changed = true;
+				return;
+			}
+			while ((line = reader.readLine())!=null) {
+				final String[] cols = line.split("\t");
+				if (cols.length<5) continue;
+				try {
+					final List<String> outputs = new ArrayList<String>(cols.length-4);
+					for (int i = 4; i < cols.length; i++) outputs.add(cols[i]);
+					entries.put(cols[0], new Entry(Long.parseLong(cols[1]), Long.parseLong(cols[2]), Long.parseLong(cols[3]), outputs));
+				} catch (NumberFormatException ne) {
+					logger.warn("Ignoring the entry of {} in {}", cols[0], file);
+				}
+			}
+		}
+		logger.debug("Read {} inputs from {}", entries.size(), file);
+	}
+
+	/**
+	 *
+	 * @return the file the manifest is saved to.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 *
+	 * @param input
+	 * @return the entry recorded for the input, or null.
+	 */
+	public synchronized Entry getEntry(File input) {
+		return entries.get(input.getAbsolutePath());
+	}
+
+	/**
+	 * Hashes the input only if its modification time is not the one recorded.
+	 *
+	 * @param input
+	 * @return true if the input has not changed since its outputs were recorded and they all exist.
+	 * @throws IOException
+	 */
+	public boolean isUnchanged(File input) throws IOException {
+		final Entry entry = getEntry(input);
+		if (entry==null || !input.isFile()) return false;
+		if (entry.size!=input.length())     return false;
+		for (String output : entry.outputs) {
+			if (!new File(output).exists()) return false;
+		}
+		final long modified = input.lastModified();
+		if (entry.modified==modified) return true;
+
+		if (entry.hash!=hash(input, sampled)) return false;
+		synchronized (this) { // The next run does not need to hash it
+			if (entries.get(input.getAbsolutePath())==entry) {
+				entries.put(input.getAbsolutePath(), new Entry(entry.size, modified, entry.hash, new ArrayList<String>(entry.outputs)));
+				changed = true;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Records the input as converted, with its size, modification time and hash as they are now.
+	 *
+	 * @param input
+	 * @param outputs the files or directories written for the input, must not be empty.
+	 * @throws IOException
+	 */
+	public void record(File input, List<File> outputs) throws IOException {
+		if (outputs==null || outputs.isEmpty()) throw new IllegalArgumentException("The outputs of "+input+" must be recorded!");
+		if (!isRecordable(input.getAbsolutePath())) return;
+		final List<String> paths = new ArrayList<String>(outputs.size());
+		for (File output : outputs) {
+			if (!isRecordable(output.getAbsolutePath())) return;
+			paths.add(output.getAbsolutePath());
+		}
+		final Entry entry = new Entry(input.length(), input.lastModified(), hash(input, sampled), paths);
+		synchronized (this) {
+			entries.put(input.getAbsolutePath(), entry);
+			changed = true;
+		}
+	}
+
+	private static boolean isRecordable(String path) {
+		return path.indexOf('\t')<0 && path.indexOf('\n')<0;
+	}
+
+	/**
+	 * Forgets the input, for instance because its conversion failed.
+	 *
+	 * @param input
+	 */
+	public synchronized void remove(File input) {
+		if (entries.remove(input.getAbsolutePath())!=null) changed = true;
+	}
+
+	/**
+	 *
+	 * @param input
+	 * @param sampled
+	 * @return the CRC of the whole file, or if sampled of the first, middle and last megabyte of the file, which are the whole file if it is smaller.
+	 * @throws IOException
+	 */
+	public static long hash(File input, boolean sampled) throws IOException {
+		final CRC32 crc = new CRC32();
+		try (RandomAccessFile in = new RandomAccessFile(input, "r")) {
+			final long   length = in.length();
+			final byte[] buffer = new byte[(int)Math.min(SAMPLE, length)];
+			if (!sampled || length<=3L*SAMPLE) {
+				for (long pos = 0; pos < length; pos+=buffer.length) {
+					final int size = (int)Math.min(buffer.length, length-pos);
+					in.readFully(buffer, 0, size);
+					crc.update(buffer, 0, size);
+				}
+			} else {
+				for (long pos : new long[]{0, length/2-SAMPLE/2, length-SAMPLE}) {
+					in.seek(pos);
+					in.readFully(buffer);
+					crc.update(buffer);
+				}
+			}
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Writes the manifest if entries have changed since it was read or last saved.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		if (!changed) return;
+		if (file.getParentFile()!=null) file.getParentFile().mkdirs();
+		final File tmp = new File(file.getAbsolutePath()+".tmp");
+		try (BufferedWriter out = Files.newBufferedWriter(tmp.toPath(), UTF8)) {
+			out.write(SETTINGS+"\t"+settings);
+			out.newLine();
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				final Entry entry = e.getValue();
+				out.write(e.getKey()+"\t"+entry.size+"\t"+entry.modified+"\t"+entry.hash);
+				for (String output : entry.outputs) out.write("\t"+output);
+				out.newLine();
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		changed = false;
+		logger.debug("Saved {} inputs to {}", entries.size(), file);
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion.converters.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts the work done by a conversion and the time spent in each phase, so that
+ * slow conversions can be tuned. One instance is shared by all the threads of a
+ * conversion, recording is lock free and costs two calls to System.nanoTime().
+ *
+ * <pre>
+ * final long start = System.nanoTime();
+ * ... read the slice
+ * metrics.record(Phase.READ, start);
+ * </pre>
+ *
+ * The metrics may be published as an MBean with {@link #register(String)}.
+ */
+public class ConversionMetrics implements ConversionMetricsMBean {
+
+	/**
+	 * The phases of a conversion. The time of the phases may add up to more than the
+	 * elapsed time when files or slices are converted concurrently.
+	 */
+	public enum Phase {
+		/** Matching the file path regular expressions to files */
+		EXPAND,
+		/** Opening the input files and reading their dataset names */
+		OPEN,
+		/** Reading slices from the input */
+		READ,
+		/** Converting slices, including any writing done by convert(...) */
+		CONVERT,
+		/** Writing the output, which may be on other threads */
+		WRITE;
+	}
+
+	/**
+	 * Histograms have one bucket per power of two nanoseconds.
+	 */
+	private static final int BUCKETS = 40;
+
+	private final AtomicLong[]      counts  = new AtomicLong[Phase.values().length];
+	private final AtomicLong[]      nanos   = new AtomicLong[Phase.values().length];
+	private final AtomicLong[]      max     = new AtomicLong[Phase.values().length];
+	private final AtomicLongArray[] buckets = new AtomicLongArray[Phase.values().length];
+
+	private final AtomicLong files        = new AtomicLong();
+	private final AtomicLong slices       = new AtomicLong();
+	private final AtomicLong bytesRead    = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private volatile long    started      = System.nanoTime();
+
+	private ObjectName name;
+
+	public ConversionMetrics() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i]  = new AtomicLong();
+			nanos[i]   = new AtomicLong();
+			max[i]     = new AtomicLong();
+			buckets[i] = new AtomicLongArray(BUCKETS);
+		}
+	}
+
+	/**
+	 * Records the time since start in the phase.
+	 *
+	 * @param phase
+	 * @param start from System.nanoTime()
+	 * @return the time now, so that consecutive phases may be recorded with one call each.
+	 */
+	public long record(Phase phase, long start) {
+		final long now  = System.nanoTime();
+		final long time = Math.max(0, now-start);
+		final int  i    = phase.ordinal();
+		counts[i].incrementAndGet();
+		nanos[i].addAndGet(time);
+		buckets[i].incrementAndGet(Math.min(BUCKETS-1, 63-Long.numberOfLeadingZeros(Math.max(1, time))));
+		long m;
+		while (time>(m = max[i].get()) && !max[i].compareAndSet(m, time));
+		return now;
+	}
+
+	public void addFile() {
+		files.incrementAndGet();
+	}
+
+	public void addSlice() {
+		slices.incrementAndGet();
+	}
+
+	public void addBytesRead(long bytes) {
+		bytesRead.addAndGet(bytes);
+	}
+
+	public void addBytesWritten(long bytes) {
+		bytesWritten.addAndGet(bytes);
+	}
+
+	/**
+	 *
+	 * @param phase
+	 * @return the number of times the phase was recorded.
+	 */
+	public long getCount(Phase phase) {
+		return counts[phase.ordinal()].get();
+	}
+
+	/**
+	 *
+	 * @param phase
+	 * @param unit
+	 * @return the total time spent in the phase.
+	 */
+	public long getTime(Phase phase, TimeUnit unit) {
+		return unit.convert(nanos[phase.ordinal()].get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 *
+	 * @param phase
+	 * @param unit
+	 * @return the longest time recorded for the phase.
+	 */
+	public long getMaxTime(Phase phase, TimeUnit unit) {
+		return unit.convert(max[phase.ordinal()].get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 *
+	 * @param phase
+	 * @param fraction between 0 and 1, for instance 0.99
+	 * @return an upper bound, to within a factor of two, of the time within which that fraction of the phase's records completed, in nanoseconds.
+	 */
+	public long getPercentile(Phase phase, double fraction) {
+		final AtomicLongArray histogram = buckets[phase.ordinal()];
+		final long total = getCount(phase);
+		if (total==0) return 0;
+		final long target = (long)Math.ceil(total*fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += histogram.get(i);
+			if (seen>=target) return 1L<<(i+1);
+		}
+		return max[phase.ordinal()].get();
+	}
+
+	@Override
+	public long getFiles() {
+		return files.get();
+	}
+
+	@Override
+	public long getSlices() {
+		return slices.get();
+	}
+
+	@Override
+	public double getSlicesPerSecond() {
+		final double seconds = (System.nanoTime()-started)/1e9;
+		return seconds>0 ? slices.get()/seconds : 0;
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	@Override
+	public long getExpandMillis() {
+		return getTime(Phase.EXPAND, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public long getOpenMillis() {
+		return getTime(Phase.OPEN, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public long getReadMillis() {
+		return getTime(Phase.READ, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public long getConvertMillis() {
+		return getTime(Phase.CONVERT, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public long getWriteMillis() {
+		return getTime(Phase.WRITE, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i].set(0);
+			nanos[i].set(0);
+			max[i].set(0);
+			for (int j = 0; j < BUCKETS; j++) buckets[i].set(j, 0);
+		}
+		files.set(0);
+		slices.set(0);
+		bytesRead.set(0);
+		bytesWritten.set(0);
+		started = System.nanoTime();
+	}
+
+	/**
+	 * Publishes the metrics with the platform MBean server.
+	 *
+	 * @param type used in the object name, for instance the conversion scheme.
+	 * @throws Exception
+	 */
+	public synchronized void register(String type) throws Exception {
+		if (name!=null) return;
+		final ObjectName objectName = new ObjectName("org.dawnsci.conversion:type="+ObjectName.quote(type)+",id="+System.identityHashCode(this));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		name = objectName;
+	}
+
+	/**
+	 * Removes the metrics from the platform MBean server, if they were registered.
+	 * @throws Exception
+	 */
+	public synchronized void unregister() throws Exception {
+		if (name==null) return;
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(name)) server.unregisterMBean(name);
+		name = null;
+	}
+
+	@Override
+	public String getSummary() {
+		return toString();
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder buf = new StringBuilder();
+		buf.append(files.get()).append(" files, ").append(slices.get()).append(" slices (");
+		buf.append(String.format("%.1f", getSlicesPerSecond())).append("/s), ");
+		buf.append(bytesRead.get()).append(" bytes read, ").append(bytesWritten.get()).append(" bytes written");
+		for (Phase phase : Phase.values()) {
+			if (getCount(phase)==0) continue;
+			buf.append(", ").append(phase.name().toLowerCase()).append(' ').append(getTime(phase, TimeUnit.MILLISECONDS)).append("ms");
+		}
+		return buf.toString();
+	}
+}
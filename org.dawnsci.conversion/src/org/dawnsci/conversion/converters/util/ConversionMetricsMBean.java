@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion.converters.util;
+
+/**
+ * The attributes of {@link ConversionMetrics} published with JMX.
+ * Times are in milliseconds.
+ */
+public interface ConversionMetricsMBean {
+
+	public long getFiles();
+	public long getSlices();
+	public double getSlicesPerSecond();
+	public long getBytesRead();
+	public long getBytesWritten();
+
+	public long getExpandMillis();
+	public long getOpenMillis();
+	public long getReadMillis();
+	public long getConvertMillis();
+	public long getWriteMillis();
+
+	public String getSummary();
+	public void reset();
+}
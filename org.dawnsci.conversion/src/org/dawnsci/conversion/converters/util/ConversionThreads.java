@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion.converters.util;
+
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread pools used by the conversions. The threads are daemon threads
+ * so that a conversion which is abandoned does not stop the VM exiting.
+ */
+public class ConversionThreads {
+
+	/**
+	 *
+	 * @param name used to name the threads, normally the conversion class name.
+	 * @param threads
+	 * @return a fixed size pool of daemon threads.
+	 */
+	public static ExecutorService newFixedPool(final String name, int threads) {
+		return Executors.newFixedThreadPool(threads, newFactory(name));
+	}
+
+	/**
+	 * For tasks whose number is bounded by the caller.
+	 *
+	 * @param name used to name the threads.
+	 * @return a pool of daemon threads which are created as needed and kept for a minute when idle.
+	 */
+	public static ExecutorService newCachedPool(final String name) {
+		return Executors.newCachedThreadPool(newFactory(name));
+	}
+
+	private static ThreadFactory newFactory(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(0);
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, name+" worker "+count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Waits for the future and throws the original exception if its task failed.
+	 *
+	 * @param future
+	 * @return the result of the task.
+	 * @throws Exception
+	 */
+	public static <T> T get(Future<T> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException ne) {
+			final Throwable cause = ne.getCause();
+			if (cause instanceof Exception) throw (Exception)cause;
+			if (cause instanceof Error)     throw (Error)cause;
+			throw ne;
+		}
+	}
+
+	/**
+	 * Cancels any of the futures which have not yet run. Those running are not
+	 * interrupted, so that a task is never stopped half way through writing.
+	 *
+	 * @param futures
+	 */
+	public static void cancel(Collection<? extends Future<?>> futures) {
+		for (Future<?> future : futures) future.cancel(false);
+		futures.clear();
+	}
+
+	/**
+	 * Shuts the pool down and waits for the tasks running to finish. If the
+	 * thread waiting is interrupted it stops waiting and stays interrupted.
+	 *
+	 * @param pool
+	 */
+	public static void shutdown(ExecutorService pool) {
+		pool.shutdown();
+		try {
+			while (!pool.awaitTermination(1, TimeUnit.SECONDS)) continue;
+		} catch (InterruptedException ne) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion.converters.util;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.dawnsci.analysis.api.io.IDataHolder;
+import org.eclipse.january.IMonitor;
+
+/**
+ * Cache of the data holders opened during one conversion, so that each input file
+ * is opened once rather than once for the names, once for the data and again
+ * when the datasets are expanded.
+ *
+ * Entries are keyed by the absolute path and are reloaded if the file's modification
+ * time or length changes. Only the most recently used holders are kept as a batch
+ * may contain thousands of files.
+ */
+public class DataHolderCache {
+
+	private static final int DEFAULT_SIZE = 16;
+
+	private final Map<String, Entry> holders;
+	private final AtomicLong hits   = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+
+	public DataHolderCache() {
+		this(DEFAULT_SIZE);
+	}
+
+	/**
+	 *
+	 * @param size the maximum number of data holders to keep open.
+	 */
+	public DataHolderCache(final int size) {
+		this.holders = new LinkedHashMap<String, Entry>(size+1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size()>size;
+			}
+		};
+	}
+
+	/**
+	 * Get the data holder for the file, loading it with the loader service
+	 * only if it is not already in the cache.
+	 *
+	 * @param path
+	 * @param monitor may be null
+	 * @return the holder, may be null if the loader service cannot read the file.
+	 * @throws Exception
+	 */
+	public IDataHolder getData(String path, IMonitor monitor) throws Exception {
+
+		final File   file     = new File(path);
+		final String key      = file.getAbsolutePath();
+		final long   modified = file.lastModified();
+		final long   length   = file.length();
+
+		synchronized (holders) {
+			final Entry entry = holders.get(key);
+			if (entry!=null && entry.modified==modified && entry.length==length) {
+				hits.incrementAndGet();
+				return entry.holder;
+			}
+		}
+
+		misses.incrementAndGet();
+		final IDataHolder holder = LocalServiceManager.getLoaderService().getData(key, monitor);
+		if (holder!=null) {
+			synchronized (holders) {
+				holders.put(key, new Entry(holder, modified, length));
+			}
+		}
+		return holder;
+	}
+
+	/**
+	 *
+	 * @param path
+	 * @return the dataset names in the file, never null.
+	 * @throws Exception
+	 */
+	public List<String> getDataNames(String path) throws Exception {
+		final IDataHolder dh = getData(path, null);
+		if (dh == null || dh.getNames() == null) return Collections.emptyList();
+		return Arrays.asList(dh.getNames());
+	}
+
+	/**
+	 * Releases the data holders, the counters are kept.
+	 */
+	public void clear() {
+		synchronized (holders) {
+			holders.clear();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		return "DataHolderCache [hits=" + hits + ", misses=" + misses + "]";
+	}
+
+	private static final class Entry {
+		final IDataHolder holder;
+		final long        modified;
+		final long        length;
+		Entry(IDataHolder holder, long modified, long length) {
+			this.holder   = holder;
+			this.modified = modified;
+			this.length   = length;
+		}
+	}
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion.converters.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Expands a conversion file path of the form "directory/regexp" to the files
+ * it matches. The last segment of the path is a regular expression matched against
+ * the file names or, if it starts with "glob:", a glob. An empty last segment
+ * matches everything in the directory.
+ *
+ * The directory is read with a {@link DirectoryStream} so the files may be
+ * consumed as they are found using {@link #open()} rather than listing the whole
+ * directory first. A directory stream may or may not return the files created while
+ * it is read, so when the conversion writes into the directory the files must be
+ * listed first, see {@link #setSnapshot(boolean)}. A missing directory expands to no files.
+ */
+public class FileExpander {
+
+	private static final Logger logger = LoggerFactory.getLogger(FileExpander.class);
+
+	private static final String GLOB = "glob:";
+
+	private final Path        dir;
+	private final String      expression;
+	private final Pattern     pattern;
+	private final PathMatcher glob;
+	private boolean           recursive;
+	private boolean           sorted;
+	private boolean           snapshot;
+
+	/**
+	 *
+	 * @param path of the form "directory/regexp", \ is allowed as the separator.
+	 */
+	public FileExpander(String path) {
+		path = path.replace('\\', '/');
+		final int sep = path.lastIndexOf('/');
+		this.dir        = Paths.get(sep<0 ? "." : sep==0 ? "/" : path.substring(0, sep));
+		this.expression = path.substring(sep+1);
+
+		if (expression.isEmpty()) {
+			this.pattern = null;
+			this.glob    = null;
+		} else if (expression.startsWith(GLOB)) {
+			this.pattern = null;
+			this.glob    = FileSystems.getDefault().getPathMatcher(expression);
+		} else {
+			this.pattern = compile(expression);
+			this.glob    = null;
+		}
+	}
+
+	private static Pattern compile(String regexp) {
+		try {
+			return Pattern.compile(regexp);
+		} catch (PatternSyntaxException ne) {
+			// Names like 'data(1.h5' are not legal expressions, match them literally.
+			return Pattern.compile(Pattern.quote(regexp));
+		}
+	}
+
+	/**
+	 * @param recursive true to also match files in the sub-directories. Only files
+	 * are returned when recursive, otherwise matching directories are also returned.
+	 * @return this
+	 */
+	public FileExpander setRecursive(boolean recursive) {
+		this.recursive = recursive;
+		return this;
+	}
+
+	/**
+	 * @param sorted true to return the files in natural order of their names. The
+	 * directory must then be read completely before the first file is returned.
+	 * @return this
+	 */
+	public FileExpander setSorted(boolean sorted) {
+		this.sorted = sorted;
+		return this;
+	}
+
+	/**
+	 * @param snapshot true to list the directory completely before the first file is
+	 * returned by {@link #open()}, so that files created while they are converted, for
+	 * instance the output of the conversion, are not returned.
+	 * @return this
+	 */
+	public FileExpander setSnapshot(boolean snapshot) {
+		this.snapshot = snapshot;
+		return this;
+	}
+
+	/**
+	 *
+	 * @param path
+	 * @return true if the path is in the directory expanded or, if recursive, in one of its sub-directories.
+	 * @throws IOException
+	 */
+	public boolean isExpanded(String path) throws IOException {
+		final File file      = new File(path).getCanonicalFile();
+		final File directory = dir.toFile().getCanonicalFile();
+		if (recursive) return file.toPath().startsWith(directory.toPath());
+		return directory.equals(file.getParentFile()) || directory.equals(file);
+	}
+
+	/**
+	 *
+	 * @return all the files matched, never null.
+	 * @throws IOException
+	 */
+	public List<File> list() throws IOException {
+		final List<File> files = new ArrayList<File>(89);
+		try (ExpandedFiles it = new ExpandedFiles()) {
+			while (it.hasNext()) files.add(it.next());
+		}
+		return sorted ? sortFiles(files) : files;
+	}
+
+	/**
+	 * Iterate the files as they are read from the directory, unless sorted or a
+	 * snapshot. The result must be closed, it is suitable for try-with-resources.
+	 *
+	 * @return the matched files
+	 * @throws IOException
+	 */
+	public Expansion open() throws IOException {
+		if (sorted || snapshot) return new ListedFiles(list());
+		return new ExpandedFiles();
+	}
+
+	private boolean matches(Path file) {
+		final Path name = file.getFileName();
+		if (name == null) return false;
+		if (glob!=null)   return glob.matches(name);
+		if (pattern==null) return true;
+		final String fileName = name.toString();
+		return pattern.matcher(fileName).matches() || fileName.equals(expression);
+	}
+
+	/**
+	 * Files matched by the expander which must be closed after use.
+	 */
+	public interface Expansion extends Iterator<File>, Iterable<File>, Closeable {
+
+	}
+
+	private class ExpandedFiles implements Expansion {
+
+		private final Deque<DirectoryStream<Path>> streams   = new ArrayDeque<DirectoryStream<Path>>();
+		private final Deque<Iterator<Path>>        iterators = new ArrayDeque<Iterator<Path>>();
+		private File next;
+
+		ExpandedFiles() throws IOException {
+			if (Files.isDirectory(dir)) push(dir);
+		}
+
+		private void push(Path directory) throws IOException {
+			final DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+			streams.push(stream);
+			iterators.push(stream.iterator());
+		}
+
+		private File advance() throws IOException {
+			while (!iterators.isEmpty()) {
+				final Iterator<Path> it = iterators.peek();
+				if (!it.hasNext()) {
+					iterators.pop();
+					streams.pop().close();
+					continue;
+				}
+				final Path file = it.next();
+				if (recursive && Files.isDirectory(file)) {
+					try {
+						push(file);
+					} catch (IOException ne) {
+						logger.warn("Cannot read directory "+file, ne);
+					}
+					continue;
+				}
+				if (matches(file)) return file.toFile();
+			}
+			return null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next==null) {
+				try {
+					next = advance();
+				} catch (IOException ne) {
+					throw new IllegalStateException("Cannot read "+dir, ne);
+				}
+			}
+			return next!=null;
+		}
+
+		@Override
+		public File next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			final File ret = next;
+			next = null;
+			return ret;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Cannot remove expanded files!");
+		}
+
+		@Override
+		public Iterator<File> iterator() {
+			return this;
+		}
+
+		@Override
+		public void close() throws IOException {
+			iterators.clear();
+			while (!streams.isEmpty()) streams.pop().close();
+		}
+	}
+
+	private static class ListedFiles implements Expansion {
+
+		private final Iterator<File> delegate;
+
+		ListedFiles(List<File> files) {
+			this.delegate = files.iterator();
+		}
+		@Override
+		public boolean hasNext() {
+			return delegate.hasNext();
+		}
+		@Override
+		public File next() {
+			return delegate.next();
+		}
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Cannot remove expanded files!");
+		}
+		@Override
+		public Iterator<File> iterator() {
+			return this;
+		}
+		@Override
+		public void close() {
+			// Nothing to release
+		}
+	}
+
+	/**
+	 * Sorts the files by name in the same natural order as SortNatural but
+	 * parsing each name once rather than on every comparison.
+	 *
+	 * @param files
+	 * @return the files sorted
+	 */
+	public static List<File> sortFiles(List<File> files) {
+		final NaturalKey[] keys = new NaturalKey[files.size()];
+		for (int i = 0; i < keys.length; i++) {
+			final File file = files.get(i);
+			keys[i] = new NaturalKey(file.getName(), file);
+		}
+		Arrays.sort(keys);
+		final List<File> ret = new ArrayList<File>(keys.length);
+		for (NaturalKey key : keys) ret.add((File)key.value);
+		return ret;
+	}
+
+	/**
+	 * Sorts the paths in place in natural order, parsing each path once.
+	 *
+	 * @param paths
+	 */
+	public static void sortNatural(List<String> paths) {
+		final NaturalKey[] keys = new NaturalKey[paths.size()];
+		for (int i = 0; i < keys.length; i++) keys[i] = new NaturalKey(paths.get(i), paths.get(i));
+		Arrays.sort(keys);
+		for (int i = 0; i < keys.length; i++) paths.set(i, (String)keys[i].value);
+	}
+
+	/**
+	 * The name split into runs of digits and of other characters. Runs of
+	 * digits are compared by value, with the number of leading zeros used
+	 * to break ties.
+	 */
+	private static final class NaturalKey implements Comparable<NaturalKey> {
+
+		private final Object   value;
+		private final String[] tokens;
+		private final boolean[] numeric;
+		private final int      zeros;
+
+		NaturalKey(String name, Object value) {
+			this.value = value;
+
+			final List<String>  toks = new ArrayList<String>(7);
+			final List<Boolean> nums = new ArrayList<Boolean>(7);
+			int lastZeros = 0;
+			int i = 0;
+			while (i < name.length()) {
+				final boolean digit = Character.isDigit(name.charAt(i));
+				int j = i;
+				while (j < name.length() && Character.isDigit(name.charAt(j)) == digit) j++;
+				String tok = name.substring(i, j);
+				if (digit) {
+					int z = 0;
+					while (z < tok.length()-1 && tok.charAt(z)=='0') z++;
+					lastZeros = z;
+					tok = tok.substring(z);
+				}
+				toks.add(tok);
+				nums.add(digit);
+				i = j;
+			}
+			this.tokens  = toks.toArray(new String[toks.size()]);
+			this.numeric = new boolean[nums.size()];
+			for (int k = 0; k < numeric.length; k++) numeric[k] = nums.get(k);
+			this.zeros = lastZeros;
+		}
+
+		@Override
+		public int compareTo(NaturalKey other) {
+			final int size = Math.min(tokens.length, other.tokens.length);
+			for (int i = 0; i < size; i++) {
+				final String a = tokens[i];
+				final String b = other.tokens[i];
+				int result;
+				if (numeric[i] && other.numeric[i]) {
+					result = a.length()-b.length();
+					if (result==0) result = a.compareTo(b);
+				} else {
+					result = a.compareTo(b);
+				}
+				if (result!=0) return result;
+			}
+			if (tokens.length!=other.tokens.length) return tokens.length-other.tokens.length;
+			return zeros-other.zeros;
+		}
+	}
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion.converters.util;
+
+import java.util.Arrays;
+
+import org.dawnsci.conversion.converters.util.ConversionMetrics.Phase;
+import org.eclipse.dawnsci.hdf5.HDF5File;
+import org.eclipse.dawnsci.hdf5.HDF5FileFactory;
+import org.eclipse.dawnsci.hdf5.HDF5Utils;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.DatasetUtils;
+import org.eclipse.january.dataset.IDataset;
+import org.eclipse.january.dataset.ILazyWriteableDataset;
+import org.eclipse.january.dataset.SliceND;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hdf.hdf5lib.H5;
+import hdf.hdf5lib.HDF5Constants;
+
+/**
+ * Appends frames to a stack in an HDF5 file, for instance images to a 3D dataset.
+ *
+ * Rather than extending the dataset by one frame for each image, the frames are copied
+ * into a buffer which is written as one hyperslab when it is full or when the writer
+ * is flushed. The dataset is chunked by whole frames and the buffer holds a whole
+ * number of chunks, so each write covers complete chunks.
+ *
+ * The dataset is created with the type and shape of the first frame when the first
+ * batch is written. Every frame must have the same shape as the first.
+ *
+ * The chunks may be compressed with the deflate filter, in which case the dataset is
+ * created and written with the HDF5 library directly, as the lazy writing API does not
+ * set filters. Only frames of numbers can be compressed.
+ */
+public class FrameBatchWriter {
+
+	private static final Logger logger = LoggerFactory.getLogger(FrameBatchWriter.class);
+
+	/**
+	 * Default size of one chunk and of one write.
+	 */
+	private static final long CHUNK_BYTES = 1024*1024;
+	private static final long BATCH_BYTES = 16*1024*1024;
+
+	private final String filePath;
+	private final String parentPath;
+	private final String name;
+
+	private int chunkFrames;
+	private int batchFrames;
+	private int frameCount = -1;
+	private int deflateLevel;
+	private ConversionMetrics metrics;
+
+	private ILazyWriteableDataset lazy;
+	private Dataset               buffer;
+	private int[]                 frameShape;
+	private int                   buffered;
+	private int                   written;
+	private boolean               created;
+
+	/**
+	 *
+	 * @param filePath the HDF5 file, which must not be open for writing elsewhere while frames are written.
+	 * @param parentPath the group, which is created if necessary.
+	 * @param name of the dataset
+	 */
+	public FrameBatchWriter(String filePath, String parentPath, String name) {
+		this.filePath   = filePath;
+		this.parentPath = parentPath.endsWith("/") ? parentPath : parentPath+"/";
+		this.name       = name;
+	}
+
+	/**
+	 * @param frames the number of frames in one chunk of the dataset, by default chunks are about 1MB.
+	 * @return this
+	 */
+	public FrameBatchWriter setChunkFrames(int frames) {
+		checkNotStarted();
+		this.chunkFrames = Math.max(1, frames);
+		return this;
+	}
+
+	/**
+	 * @param frames the number of frames buffered before they are written, rounded up to
+	 * a whole number of chunks. By default about 16MB is buffered.
+	 * @return this
+	 */
+	public FrameBatchWriter setBatchFrames(int frames) {
+		checkNotStarted();
+		this.batchFrames = Math.max(1, frames);
+		return this;
+	}
+
+	/**
+	 * @param count the total number of frames if it is known, so that the dataset
+	 * is created with a fixed size. Otherwise the first dimension is unlimited.
+	 * @return this
+	 */
+	public FrameBatchWriter setFrameCount(int count) {
+		checkNotStarted();
+		this.frameCount = count;
+		return this;
+	}
+
+	/**
+	 * @param level of the deflate filter the chunks are compressed with, from 1, fastest,
+	 * to 9, smallest. The default 0 does not compress.
+	 * @return this
+	 */
+	public FrameBatchWriter setDeflateLevel(int level) {
+		checkNotStarted();
+		if (level<0 || level>9) throw new IllegalArgumentException("The deflate level must be from 0 to 9, not "+level);
+		this.deflateLevel = level;
+		return this;
+	}
+
+	/**
+	 * @param metrics recording the time taken by each write and the bytes written, may be null.
+	 * @return this
+	 */
+	public FrameBatchWriter setMetrics(ConversionMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	private void checkNotStarted() {
+		if (buffer!=null) throw new IllegalStateException("The writer for "+name+" has already started!");
+	}
+
+	/**
+	 * Copies the frame into the buffer, writing the buffer if it is full.
+	 *
+	 * @param frame
+	 * @throws Exception
+	 */
+	public void append(IDataset frame) throws Exception {
+
+		final Dataset data = DatasetUtils.convertToDataset(frame);
+		if (buffer==null) createBuffer(data);
+
+		if (!Arrays.equals(frameShape, data.getShape())) {
+			throw new IllegalArgumentException("Frame of shape "+Arrays.toString(data.getShape())+" cannot be added to "+name+" of frame shape "+Arrays.toString(frameShape));
+		}
+
+		final int[] start = new int[frameShape.length+1];
+		final int[] stop  = prepend(buffered+1, frameShape);
+		start[0] = buffered;
+		buffer.setSlice(data.reshape(prepend(1, frameShape)), new SliceND(buffer.getShapeRef(), start, stop, null));
+		buffered++;
+
+		if (buffered==buffer.getShapeRef()[0]) flush();
+	}
+
+	private void createBuffer(Dataset first) {
+
+		frameShape = first.getShape();
+		final long frameBytes = Math.max(1, (long)first.getSize()*first.getItemBytes());
+
+		if (chunkFrames<1) chunkFrames = (int)Math.max(1, CHUNK_BYTES/frameBytes);
+		if (batchFrames<1) batchFrames = (int)Math.max(1, BATCH_BYTES/frameBytes);
+		if (frameCount>0)  {
+			chunkFrames = Math.min(chunkFrames, frameCount);
+			batchFrames = Math.min(batchFrames, frameCount);
+		}
+		// Whole chunks only
+		batchFrames = ((batchFrames+chunkFrames-1)/chunkFrames)*chunkFrames;
+
+		buffer = DatasetFactory.zeros(first.getElementsPerItem(), prepend(batchFrames, frameShape), first.getDType());
+		logger.debug("Writing {} in batches of {} frames with {} frames per chunk", name, batchFrames, chunkFrames);
+	}
+
+	/**
+	 * Writes the buffered frames.
+	 *
+	 * @throws Exception
+	 */
+	public void flush() throws Exception {
+
+		if (buffered==0) return;
+
+		final long time = System.nanoTime();
+		final int[] start = new int[frameShape.length+1];
+		final int[] stop  = prepend(buffered, frameShape);
+		final Dataset batch = buffered==batchFrames ? buffer : buffer.getSliceView(start, stop, null);
+
+		if (deflateLevel>0) {
+			writeDeflated();
+		} else {
+			if (lazy==null) {
+				final int[] maxShape = prepend(frameCount>0 ? frameCount : ILazyWriteableDataset.UNLIMITED, frameShape);
+				final int[] chunks   = prepend(chunkFrames, frameShape);
+				lazy = HDF5Utils.createLazyDataset(filePath, parentPath, name, prepend(buffered, frameShape), maxShape, chunks, buffer.getDType(), null, false);
+			}
+			start[0] = written;
+			stop[0]  = written+buffered;
+			lazy.setSlice(null, batch, new SliceND(lazy.getShape(), lazy.getMaxShape(), start, stop, null));
+		}
+		if (metrics!=null) {
+			metrics.record(Phase.WRITE, time);
+			metrics.addBytesWritten((long)batch.getSize()*batch.getItemBytes());
+		}
+
+		written += buffered;
+		buffered = 0;
+	}
+
+	/**
+	 * Writes the buffered frames to the dataset, creating it with the deflate filter
+	 * the first time.
+	 */
+	private void writeDeflated() throws Exception {
+
+		final long memType = getMemoryType(buffer);
+		final HDF5File file = HDF5FileFactory.acquireFile(filePath, true);
+		long dataset = -1, fspace = -1, mspace = -1;
+		try {
+			if (!created) {
+				dataset = createDeflated(file.getID(), memType);
+				created = true;
+			} else {
+				dataset = H5.H5Dopen(file.getID(), getPath(), HDF5Constants.H5P_DEFAULT);
+			}
+			if (frameCount<=0) H5.H5Dset_extent(dataset, toLong(prepend(written+buffered, frameShape)));
+
+			final long[] count = toLong(prepend(buffered, frameShape));
+			final long[] start = new long[count.length];
+			start[0] = written;
+			fspace = H5.H5Dget_space(dataset);
+			H5.H5Sselect_hyperslab(fspace, HDF5Constants.H5S_SELECT_SET, start, null, count, null);
+
+			// The frames buffered are at the start of the buffer
+			mspace = H5.H5Screate_simple(count.length, toLong(buffer.getShapeRef()), null);
+			H5.H5Sselect_hyperslab(mspace, HDF5Constants.H5S_SELECT_SET, new long[count.length], null, count, null);
+			H5.H5Dwrite(dataset, memType, mspace, fspace, HDF5Constants.H5P_DEFAULT, buffer.getBuffer());
+
+		} finally {
+			try {
+				if (mspace>=0)  H5.H5Sclose(mspace);
+				if (fspace>=0)  H5.H5Sclose(fspace);
+				if (dataset>=0) H5.H5Dclose(dataset);
+			} finally {
+				HDF5FileFactory.releaseFile(filePath);
+			}
+		}
+	}
+
+	private long createDeflated(long fid, long memType) throws Exception {
+
+		// The parent groups, as the lazy writing API creates them
+		String group = "";
+		for (String part : parentPath.split("/")) {
+			if (part.isEmpty()) continue;
+			group = group+"/"+part;
+			if (!H5.H5Lexists(fid, group, HDF5Constants.H5P_DEFAULT)) {
+				H5.H5Gclose(H5.H5Gcreate(fid, group, HDF5Constants.H5P_DEFAULT, HDF5Constants.H5P_DEFAULT, HDF5Constants.H5P_DEFAULT));
+			}
+		}
+
+		final long[] dims    = toLong(prepend(frameCount>0 ? frameCount : 0, frameShape));
+		final long[] maxDims = toLong(prepend(frameCount>0 ? frameCount : 0, frameShape));
+		if (frameCount<=0) maxDims[0] = HDF5Constants.H5S_UNLIMITED;
+
+		long space = -1, plist = -1;
+		try {
+			space = H5.H5Screate_simple(dims.length, dims, maxDims);
+			plist = H5.H5Pcreate(HDF5Constants.H5P_DATASET_CREATE);
+			H5.H5Pset_chunk(plist, dims.length, toLong(prepend(chunkFrames, frameShape)));
+			H5.H5Pset_deflate(plist, deflateLevel);
+			return H5.H5Dcreate(fid, getPath(), memType, space, HDF5Constants.H5P_DEFAULT, plist, HDF5Constants.H5P_DEFAULT);
+		} finally {
+			if (plist>=0) H5.H5Pclose(plist);
+			if (space>=0) H5.H5Sclose(space);
+		}
+	}
+
+	private long getMemoryType(Dataset data) {
+		if (data.getElementsPerItem()==1) {
+			switch (data.getDType()) {
+			case Dataset.INT8:    return HDF5Constants.H5T_NATIVE_INT8;
+			case Dataset.INT16:   return HDF5Constants.H5T_NATIVE_INT16;
+			case Dataset.INT32:   return HDF5Constants.H5T_NATIVE_INT32;
+			case Dataset.INT64:   return HDF5Constants.H5T_NATIVE_INT64;
+			case Dataset.FLOAT32: return HDF5Constants.H5T_NATIVE_FLOAT;
+			case Dataset.FLOAT64: return HDF5Constants.H5T_NATIVE_DOUBLE;
+			}
+		}
+		throw new IllegalArgumentException("Only frames of numbers can be compressed, "+name+" cannot be.");
+	}
+
+	/**
+	 * Writes the buffered frames and the caches of the HDF5 library, so that
+	 * the frames written are complete in the file if the process stops.
+	 *
+	 * @throws Exception
+	 */
+	public void sync() throws Exception {
+
+		flush();
+		if (lazy==null && !created) return;
+		final HDF5File file = HDF5FileFactory.acquireFile(filePath, true);
+		try {
+			H5.H5Fflush(file.getID(), HDF5Constants.H5F_SCOPE_LOCAL);
+		} finally {
+			HDF5FileFactory.releaseFile(filePath);
+		}
+	}
+
+	/**
+	 * Writes any buffered frames and closes the file.
+	 *
+	 * @throws Exception
+	 */
+	public void close() throws Exception {
+		try {
+			flush();
+		} finally {
+			buffer = null;
+			if (lazy!=null || created) HDF5FileFactory.releaseFile(filePath, true);
+		}
+	}
+
+	/**
+	 * @return the full path to the dataset in the file.
+	 */
+	public String getPath() {
+		return parentPath+name;
+	}
+
+	/**
+	 * @return the number of frames written to the file so far.
+	 */
+	public int getWritten() {
+		return written;
+	}
+
+	private static long[] toLong(int[] shape) {
+		final long[] ret = new long[shape.length];
+		for (int i = 0; i < shape.length; i++) ret[i] = shape[i];
+		return ret;
+	}
+
+	private static int[] prepend(int first, int[] shape) {
+		final int[] ret = new int[shape.length+1];
+		ret[0] = first;
+		System.arraycopy(shape, 0, ret, 1, shape.length);
+		return ret;
+	}
+}
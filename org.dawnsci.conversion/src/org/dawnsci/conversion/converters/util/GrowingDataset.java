@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion.converters.util;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.january.IMonitor;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.IDataset;
+import org.eclipse.january.dataset.ILazyDataset;
+import org.eclipse.january.dataset.LazyDataset;
+import org.eclipse.january.dataset.SliceND;
+import org.eclipse.january.io.ILazyLoader;
+
+import hdf.hdf5lib.H5;
+import hdf.hdf5lib.HDF5Constants;
+
+/**
+ * A dataset in an HDF5 file which is still being written, for instance by a
+ * detector writing a scan in SWMR mode.
+ *
+ * The data holders of the loader service keep the shape the dataset had when the
+ * file was opened, so the current shape is read from the file itself. The file is
+ * opened again each time the shape is read, to read SWMR if it is written so, and
+ * the dataset is refreshed. A file opened once would otherwise keep the metadata it
+ * was opened with. {@link #getLazyDataset()} then reads slices anywhere within that
+ * shape from the file as it was opened, until {@link #close()}.
+ *
+ * Integers are read as the smallest signed type which holds all their values, as
+ * the loader service does.
+ */
+public class GrowingDataset implements ILazyLoader {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String filePath;
+	private final String dataPath;
+
+	private int   dtype = -1;
+	private long  memType;
+	private int[] shape;
+	private long  fid   = -1;
+
+	/**
+	 *
+	 * @param filePath
+	 * @param dataPath
+	 */
+	public GrowingDataset(String filePath, String dataPath) {
+		this.filePath = filePath;
+		this.dataPath = dataPath;
+	}
+
+	/**
+	 * Opens the file again and reads the shape of the dataset as it is now.
+	 *
+	 * @return the shape
+	 * @throws Exception if the dataset cannot be read.
+	 */
+	public synchronized int[] refreshShape() throws Exception {
+
+		close();
+		final long file = getFile();
+		long dataset = -1, space = -1, type = -1;
+		try {
+			dataset = H5.H5Dopen(file, dataPath, HDF5Constants.H5P_DEFAULT);
+			try {
+				H5.H5Drefresh(dataset);
+			} catch (Exception ne) {
+				// Only files opened to read SWMR can be refreshed
+			}
+			if (dtype<0) {
+				type = H5.H5Dget_type(dataset);
+				setType(type);
+			}
+			space = H5.H5Dget_space(dataset);
+			final int    rank = H5.H5Sget_simple_extent_ndims(space);
+			final long[] dims = new long[rank];
+			H5.H5Sget_simple_extent_dims(space, dims, null);
+
+			shape = new int[rank];
+			for (int i = 0; i < rank; i++) shape[i] = (int)dims[i];
+			return shape.clone();
+
+		} finally {
+			if (type>=0)    H5.H5Tclose(type);
+			if (space>=0)   H5.H5Sclose(space);
+			if (dataset>=0) H5.H5Dclose(dataset);
+		}
+	}
+
+	/**
+	 *
+	 * @return the file as it was last opened, opening it if it is not.
+	 * @throws Exception
+	 */
+	private long getFile() throws Exception {
+		if (fid<0) {
+			try {
+				fid = H5.H5Fopen(filePath, HDF5Constants.H5F_ACC_RDONLY | HDF5Constants.H5F_ACC_SWMR_READ, HDF5Constants.H5P_DEFAULT);
+			} catch (Exception ne) {
+				// Not written SWMR, or open already in this process without it
+				fid = H5.H5Fopen(filePath, HDF5Constants.H5F_ACC_RDONLY, HDF5Constants.H5P_DEFAULT);
+			}
+		}
+		return fid;
+	}
+
+	/**
+	 * Closes the file, which is opened again when it is next read. While the file is
+	 * open read only, it cannot be opened to write by this process.
+	 *
+	 * @throws Exception
+	 */
+	public synchronized void close() throws Exception {
+		if (fid<0) return;
+		try {
+			H5.H5Fclose(fid);
+		} finally {
+			fid = -1;
+		}
+	}
+
+	private void setType(long type) throws Exception {
+
+		final int  cls  = H5.H5Tget_class(type);
+		final long size = H5.H5Tget_size(type);
+		if (cls==HDF5Constants.H5T_FLOAT) {
+			dtype   = size>4 ? Dataset.FLOAT64 : Dataset.FLOAT32;
+			memType = size>4 ? HDF5Constants.H5T_NATIVE_DOUBLE : HDF5Constants.H5T_NATIVE_FLOAT;
+
+		} else if (cls==HDF5Constants.H5T_INTEGER) {
+			final boolean unsigned = H5.H5Tget_sign(type)==HDF5Constants.H5T_SGN_NONE;
+			final long    bytes    = unsigned ? 2*size : size;
+			if (bytes<=1) {
+				dtype = Dataset.INT8;  memType = HDF5Constants.H5T_NATIVE_INT8;
+			} else if (bytes<=2) {
+				dtype = Dataset.INT16; memType = HDF5Constants.H5T_NATIVE_INT16;
+			} else if (bytes<=4) {
+				dtype = Dataset.INT32; memType = HDF5Constants.H5T_NATIVE_INT32;
+			} else {
+				dtype = Dataset.INT64; memType = HDF5Constants.H5T_NATIVE_INT64;
+			}
+		} else {
+			throw new Exception("Cannot follow "+dataPath+" in "+filePath+", only numbers can be read while the file is written.");
+		}
+	}
+
+	/**
+	 *
+	 * @return a lazy dataset with the shape last read by {@link #refreshShape()}
+	 * @throws Exception
+	 */
+	public synchronized ILazyDataset getLazyDataset() throws Exception {
+		if (shape==null) refreshShape();
+		return new LazyDataset(dataPath, dtype, shape.clone(), this);
+	}
+
+	/**
+	 * Opens the file again to look for the path, which may name a group, a dataset or
+	 * an attribute, as path@name.
+	 *
+	 * @param path
+	 * @return true if the path exists in the file.
+	 * @throws Exception
+	 */
+	public synchronized boolean exists(String path) throws Exception {
+
+		final int    at       = path.lastIndexOf('@');
+		final String object   = at>-1 ? path.substring(0, at) : path;
+		final String attrName = at>-1 ? path.substring(at+1) : null;
+
+		close();
+		final long file = getFile();
+		if (!linkExists(file, object)) return false;
+		if (attrName==null) return true;
+		return H5.H5Aexists_by_name(file, object.isEmpty() ? "/" : object, attrName, HDF5Constants.H5P_DEFAULT);
+	}
+
+	/**
+	 * H5Lexists fails rather than returning false if a parent group is missing.
+	 */
+	private static boolean linkExists(long fid, String path) throws Exception {
+		String parent = "";
+		for (String name : path.split("/")) {
+			if (name.isEmpty()) continue;
+			parent = parent+"/"+name;
+			if (!H5.H5Lexists(fid, parent, HDF5Constants.H5P_DEFAULT)) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean isFileReadable() {
+		return new File(filePath).canRead();
+	}
+
+	@Override
+	public synchronized IDataset getDataset(IMonitor mon, SliceND slice) throws IOException {
+
+		final int[]  sshape = slice.getShape();
+		final int[]  start  = slice.getStart();
+		final int[]  step   = slice.getStep();
+		final long[] fstart = new long[sshape.length];
+		final long[] fstep  = new long[sshape.length];
+		final long[] count  = new long[sshape.length];
+		for (int i = 0; i < sshape.length; i++) {
+			if (step[i]<1) throw new IOException("Cannot read "+dataPath+" backwards");
+			fstart[i] = start[i];
+			fstep[i]  = step[i];
+			count[i]  = sshape[i];
+		}
+
+		final Dataset data = DatasetFactory.zeros(sshape, dtype);
+		if (data.getSize()==0) return data;
+
+		long dataset = -1, fspace = -1, mspace = -1;
+		try {
+			dataset = H5.H5Dopen(getFile(), dataPath, HDF5Constants.H5P_DEFAULT);
+			fspace  = H5.H5Dget_space(dataset);
+			H5.H5Sselect_hyperslab(fspace, HDF5Constants.H5S_SELECT_SET, fstart, fstep, count, null);
+			mspace  = H5.H5Screate_simple(count.length, count, null);
+			H5.H5Dread(dataset, memType, mspace, fspace, HDF5Constants.H5P_DEFAULT, data.getBuffer());
+			return data;
+
+		} catch (Exception ne) {
+			throw new IOException("Cannot read "+slice+" of "+dataPath+" in "+filePath, ne);
+		} finally {
+			try {
+				if (mspace>=0)  H5.H5Sclose(mspace);
+				if (fspace>=0)  H5.H5Sclose(fspace);
+				if (dataset>=0) H5.H5Dclose(dataset);
+			} catch (Exception ne) {
+				throw new IOException("Cannot close "+dataPath+" in "+filePath, ne);
+			}
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion.converters.util;
+
+import java.io.File;
+
+import org.eclipse.dawnsci.hdf5.HDF5File;
+import org.eclipse.dawnsci.hdf5.HDF5FileFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hdf.hdf5lib.H5;
+import hdf.hdf5lib.HDF5Constants;
+import hdf.hdf5lib.structs.H5G_info_t;
+import hdf.hdf5lib.structs.H5O_info_t;
+
+/**
+ * Adds the contents of one HDF5 file to another, either by copying the objects or by
+ * creating external links to them. Groups present in both files are merged, the
+ * members of the source group missing from the destination group are added, as are
+ * the attributes of the source group. Objects already in the destination are only
+ * replaced by {@link #overlay(String, String)}.
+ *
+ * In either case the source data is then read from the destination file with the
+ * same paths as in the source file.
+ */
+public class HDF5Merger {
+
+	private static final Logger logger = LoggerFactory.getLogger(HDF5Merger.class);
+
+	private HDF5Merger() {
+		// Static methods only
+	}
+
+	/**
+	 * Copies the objects of source missing from dest into dest.
+	 *
+	 * @param source
+	 * @param dest must exist
+	 * @throws Exception
+	 */
+	public static void copy(String source, String dest) throws Exception {
+		merge(source, dest, false, false);
+	}
+
+	/**
+	 * Copies all the objects of source into dest, as if source had been written into dest.
+	 * Objects of dest with the same path as an object of source are replaced, except groups
+	 * which are merged, and the attributes of source groups replace those of the same name.
+	 *
+	 * @param source
+	 * @param dest must exist
+	 * @throws Exception
+	 */
+	public static void overlay(String source, String dest) throws Exception {
+		merge(source, dest, false, true);
+	}
+
+	/**
+	 * Creates external links in dest to the objects of source missing from dest.
+	 * The source file must stay where it is for the links to be read.
+	 *
+	 * @param source
+	 * @param dest must exist
+	 * @throws Exception
+	 */
+	public static void link(String source, String dest) throws Exception {
+		merge(source, dest, true, false);
+	}
+
+	private static void merge(String source, String dest, boolean link, boolean replace) throws Exception {
+
+		final String sourcePath = new File(source).getAbsolutePath();
+		HDF5File from = null, to = null;
+		try {
+			from = HDF5FileFactory.acquireFile(source, false);
+			to   = HDF5FileFactory.acquireFile(dest, true);
+			mergeAttributes(from.getID(), to.getID(), "/", replace);
+			merge(sourcePath, from.getID(), to.getID(), "/", link, replace);
+		} finally {
+			if (to!=null)   HDF5FileFactory.releaseFile(dest, true);
+			if (from!=null) HDF5FileFactory.releaseFile(source, true);
+		}
+	}
+
+	private static void merge(String sourcePath, long from, long to, String group, boolean link, boolean replace) throws Exception {
+
+		final long gid = H5.H5Gopen(from, group, HDF5Constants.H5P_DEFAULT);
+		try {
+			final H5G_info_t info = H5.H5Gget_info(gid);
+			for (long i = 0; i < info.nlinks; i++) {
+
+				final String name = H5.H5Lget_name_by_idx(gid, ".", HDF5Constants.H5_INDEX_NAME, HDF5Constants.H5_ITER_INC, i, HDF5Constants.H5P_DEFAULT);
+				final String path = group+name;
+
+				final boolean exists = H5.H5Lexists(to, path, HDF5Constants.H5P_DEFAULT);
+				if (exists && isGroup(from, path) && isGroup(to, path)) {
+					mergeAttributes(from, to, path, replace);
+					merge(sourcePath, from, to, path+"/", link, replace);
+					continue;
+				}
+				if (exists) {
+					if (!replace) continue;
+					H5.H5Ldelete(to, path, HDF5Constants.H5P_DEFAULT);
+				}
+				if (link) {
+					H5.H5Lcreate_external(sourcePath, path, to, path, HDF5Constants.H5P_DEFAULT, HDF5Constants.H5P_DEFAULT);
+				} else {
+					H5.H5Ocopy(from, path, to, path, HDF5Constants.H5P_DEFAULT, HDF5Constants.H5P_DEFAULT);
+				}
+			}
+		} finally {
+			H5.H5Gclose(gid);
+		}
+	}
+
+	/**
+	 * Copies the attributes of an object of source to the object with the same path in dest.
+	 */
+	private static void mergeAttributes(long from, long to, String path, boolean replace) throws Exception {
+
+		final long fromId = H5.H5Oopen(from, path, HDF5Constants.H5P_DEFAULT);
+		try {
+			final long toId = H5.H5Oopen(to, path, HDF5Constants.H5P_DEFAULT);
+			try {
+				final H5O_info_t info = H5.H5Oget_info(fromId);
+				for (long i = 0; i < info.num_attrs; i++) {
+					final long aid = H5.H5Aopen_by_idx(fromId, ".", HDF5Constants.H5_INDEX_NAME, HDF5Constants.H5_ITER_INC, i, HDF5Constants.H5P_DEFAULT, HDF5Constants.H5P_DEFAULT);
+					try {
+						final String name = H5.H5Aget_name(aid);
+						if (H5.H5Aexists(toId, name)) {
+							if (!replace) continue;
+							H5.H5Adelete(toId, name);
+						}
+						copyAttribute(aid, toId, name, path);
+					} finally {
+						H5.H5Aclose(aid);
+					}
+				}
+			} finally {
+				H5.H5Oclose(toId);
+			}
+		} finally {
+			H5.H5Oclose(fromId);
+		}
+	}
+
+	/**
+	 * Copies an attribute of fixed size values or of variable length strings, as NeXus attributes are.
+	 */
+	private static void copyAttribute(long aid, long toId, String name, String path) throws Exception {
+
+		final long tid = H5.H5Aget_type(aid);
+		final long sid = H5.H5Aget_space(aid);
+		try {
+			final int     type = H5.H5Tget_class(tid);
+			final boolean vls  = H5.H5Tis_variable_str(tid);
+			if (!vls && (type==HDF5Constants.H5T_VLEN || type==HDF5Constants.H5T_REFERENCE)) {
+				logger.warn("Cannot copy the attribute {} of {}", name, path);
+				return;
+			}
+			final int     count = (int)Math.max(1, H5.H5Sget_simple_extent_npoints(sid));
+			final long    cid   = H5.H5Acreate(toId, name, tid, sid, HDF5Constants.H5P_DEFAULT, HDF5Constants.H5P_DEFAULT);
+			try {
+				if (vls) {
+					final String[] values = new String[count];
+					H5.H5AreadVL(aid, tid, values);
+					H5.H5AwriteVL(cid, tid, values);
+				} else {
+					final byte[] values = new byte[(int)H5.H5Tget_size(tid)*count];
+					H5.H5Aread(aid, tid, values);
+					H5.H5Awrite(cid, tid, values);
+				}
+			} finally {
+				H5.H5Aclose(cid);
+			}
+		} finally {
+			H5.H5Sclose(sid);
+			H5.H5Tclose(tid);
+		}
+	}
+
+	private static boolean isGroup(long fid, String path) throws Exception {
+		final H5O_info_t info = H5.H5Oget_info_by_name(fid, path, HDF5Constants.H5P_DEFAULT);
+		return info.type==HDF5Constants.H5O_TYPE_GROUP;
+	}
+}
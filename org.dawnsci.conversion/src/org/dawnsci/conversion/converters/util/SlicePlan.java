@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion.converters.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.january.dataset.ILazyDataset;
+
+/**
+ * The blocks a dataset is read in when the conversion does not say how to slice it.
+ *
+ * If the whole dataset fits in the memory budget it is read at once. Otherwise the
+ * leading dimensions are sliced, one index at a time, until the remaining trailing
+ * dimensions fit. The last dimension is never sliced, so a one dimensional dataset
+ * is always read whole.
+ */
+public class SlicePlan {
+
+	/**
+	 * The fraction of the maximum heap used when no budget is given, leaving room
+	 * for the copies made by the conversion.
+	 */
+	private static final int  HEAP_FRACTION  = 4;
+	private static final long DEFAULT_BUDGET = 1024L*1024*1024;
+
+	private final int[] shape;
+	private final int   itemBytes;
+	private final long  budget;
+	private final int   sliceRank;
+
+	private SlicePlan(int[] shape, int itemBytes, long budget, int sliceRank) {
+		this.shape     = shape;
+		this.itemBytes = itemBytes;
+		this.budget    = budget;
+		this.sliceRank = sliceRank;
+	}
+
+	/**
+	 *
+	 * @param lz
+	 * @param budget the number of bytes one block may use, if 0 or less a quarter of the maximum heap is used.
+	 * @return the plan for reading the dataset
+	 */
+	public static SlicePlan create(ILazyDataset lz, long budget) {
+		return create(lz.getShape(), getItemBytes(lz), budget);
+	}
+
+	/**
+	 *
+	 * @param shape
+	 * @param itemBytes
+	 * @param budget the number of bytes one block may use, if 0 or less a quarter of the maximum heap is used.
+	 * @return the plan for reading a dataset of this shape
+	 */
+	public static SlicePlan create(int[] shape, int itemBytes, long budget) {
+
+		if (budget<=0) budget = getDefaultBudget();
+
+		int sliceRank = 0;
+		while (sliceRank<shape.length-1 && getBytes(shape, sliceRank, itemBytes)>budget) {
+			sliceRank++;
+		}
+		return new SlicePlan(shape, itemBytes, budget, sliceRank);
+	}
+
+	/**
+	 * @return a quarter of the maximum heap, or 1GB if the heap is not limited.
+	 */
+	public static long getDefaultBudget() {
+		final long max = Runtime.getRuntime().maxMemory();
+		return max==Long.MAX_VALUE ? DEFAULT_BUDGET : max/HEAP_FRACTION;
+	}
+
+	/**
+	 *
+	 * @return true if the dataset can be read as one block.
+	 */
+	public boolean isWhole() {
+		return sliceRank==0;
+	}
+
+	/**
+	 *
+	 * @return true if one block is larger than the budget, which happens when the last dimension alone does not fit.
+	 */
+	public boolean isOverBudget() {
+		return getBlockBytes()>budget;
+	}
+
+	/**
+	 *
+	 * @return the slice dimensions to iterate the blocks, null if the dataset is read whole.
+	 */
+	public Map<Integer, String> getSliceDimensions() {
+		if (isWhole()) return null;
+		final Map<Integer, String> dims = new HashMap<Integer, String>(sliceRank);
+		for (int i = 0; i < sliceRank; i++) dims.put(i, "all");
+		return Collections.unmodifiableMap(dims);
+	}
+
+	/**
+	 *
+	 * @return the number of bytes read in each block.
+	 */
+	public long getBlockBytes() {
+		return getBytes(shape, sliceRank, itemBytes);
+	}
+
+	/**
+	 *
+	 * @return the number of blocks read.
+	 */
+	public long getBlockCount() {
+		long count = 1;
+		for (int i = 0; i < sliceRank; i++) count *= shape[i];
+		return count;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	private static long getBytes(int[] shape, int from, int itemBytes) {
+		long bytes = itemBytes;
+		for (int i = from; i < shape.length; i++) bytes *= shape[i];
+		return bytes;
+	}
+
+	/**
+	 *
+	 * @param lz
+	 * @return the number of bytes used by one item of the dataset when it is loaded.
+	 */
+	public static int getItemBytes(ILazyDataset lz) {
+		final Class<?> clazz = lz.getElementClass();
+		final int elementBytes;
+		if (clazz==Byte.class || clazz==Boolean.class) {
+			elementBytes = 1;
+		} else if (clazz==Short.class) {
+			elementBytes = 2;
+		} else if (clazz==Integer.class || clazz==Float.class) {
+			elementBytes = 4;
+		} else {
+			elementBytes = 8; // Longs, doubles and references
+		}
+		return elementBytes*Math.max(1, lz.getElementsPerItem());
+	}
+
+	@Override
+	public String toString() {
+		if (isWhole()) return "whole "+Arrays.toString(shape)+" ("+getBlockBytes()+" bytes, budget "+budget+")";
+		return getBlockCount()+" blocks of "+Arrays.toString(Arrays.copyOfRange(shape, sliceRank, shape.length))
+				+" from "+Arrays.toString(shape)+" ("+getBlockBytes()+" bytes each, budget "+budget+")";
+	}
+}
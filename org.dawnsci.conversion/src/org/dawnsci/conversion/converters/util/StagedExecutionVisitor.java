@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.conversion.converters.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.eclipse.dawnsci.analysis.api.processing.Atomic;
+import org.eclipse.dawnsci.analysis.api.processing.IExecutionVisitor;
+import org.eclipse.dawnsci.analysis.api.processing.IOperation;
+import org.eclipse.dawnsci.analysis.api.processing.OperationData;
+import org.eclipse.dawnsci.analysis.api.processing.OperationException;
+import org.eclipse.dawnsci.analysis.api.processing.OperationRank;
+import org.eclipse.dawnsci.analysis.api.processing.model.IOperationModel;
+import org.eclipse.dawnsci.analysis.dataset.operations.AbstractOperation;
+import org.eclipse.dawnsci.analysis.dataset.slicer.SliceFromSeriesMetadata;
+import org.eclipse.january.IMonitor;
+import org.eclipse.january.dataset.IDataset;
+import org.eclipse.january.dataset.ILazyDataset;
+
+/**
+ * Runs the operations after the first one which is not {@link Atomic} in slice order,
+ * so that the atomic operations before it can be executed in parallel.
+ *
+ * The operation service executes the atomic head of the series in parallel with
+ * this visitor. The results are reordered by slice number and passed one at a time
+ * to a single thread, which runs the rest of the series and gives the result to
+ * the visitor writing the output. At most capacity results wait to be consumed, the
+ * threads running the head block until there is room.
+ *
+ * The operations of the head are given to the service as atomic operations delegating
+ * to them, so that a slice for which one of them returns null or fails is still posted,
+ * as a slice without a result which the consumer skips.
+ * Otherwise the consumer would wait for it and the threads running the head would block
+ * for ever once capacity later results were waiting. Results still waiting when the
+ * service closes the visitor are consumed in order even if some slices are missing.
+ */
+@SuppressWarnings("rawtypes")
+public class StagedExecutionVisitor implements IExecutionVisitor {
+
+	private final IExecutionVisitor visitor;
+	private final IOperation[]      series;
+	private final IOperation[]      tail;
+	private final int               capacity;
+	private final IMonitor          monitor;
+
+	/**
+	 * Posted for a slice which the head gave no result for.
+	 */
+	private static final OperationData SKIPPED = new OperationData((IDataset)null);
+
+	private final IOperation[]      head;
+	private final Map<IOperation, IOperation> originals = new IdentityHashMap<IOperation, IOperation>();
+
+	private final Map<Integer, OperationData> results = new HashMap<Integer, OperationData>();
+	private int                     next;
+	private boolean                 finished;
+	private volatile Exception      error;
+	private volatile boolean        cancelled;
+
+	private ExecutorService         consumer;
+	private Future<Void>            consuming;
+
+	/**
+	 *
+	 * @param visitor which writes the output of the whole series
+	 * @param series the whole series
+	 * @param capacity the maximum number of results waiting for the rest of the series
+	 * @param monitor
+	 */
+	public StagedExecutionVisitor(IExecutionVisitor visitor, IOperation[] series, int capacity, IMonitor monitor) {
+		final int atomic = getAtomicCount(series);
+		if (atomic==0 || atomic==series.length) throw new IllegalArgumentException("The series must start with atomic operations and contain at least one which is not atomic!");
+		this.visitor  = visitor;
+		this.series   = series;
+		this.tail     = Arrays.copyOfRange(series, atomic, series.length);
+		this.capacity = Math.max(1, capacity);
+		this.monitor  = monitor;
+		this.head     = new IOperation[atomic];
+		for (int i = 0; i < atomic; i++) {
+			head[i] = new Staged(series[i]);
+			originals.put(head[i], series[i]);
+		}
+	}
+
+	/**
+	 *
+	 * @param series
+	 * @return the number of operations at the start of the series marked {@link Atomic}
+	 */
+	public static int getAtomicCount(IOperation[] series) {
+		for (int i = 0; i < series.length; i++) {
+			if (series[i].getClass().getAnnotation(Atomic.class)==null) return i;
+		}
+		return series.length;
+	}
+
+	/**
+	 *
+	 * @return the operations which may be run in parallel by the operation service, delegating
+	 *         to the operations of the series so that the slices they give no result for are
+	 *         posted to this visitor.
+	 */
+	public IOperation[] getHead() {
+		return head.clone();
+	}
+
+	/**
+	 * An atomic operation of the head, which delegates to the operation of the series
+	 * and posts the slice as skipped if the operation returns null or throws. It is an
+	 * operation like the others for the service, rather than a proxy of one.
+	 */
+	@Atomic
+	private final class Staged extends AbstractOperation<IOperationModel, OperationData> {
+
+		private final IOperation op;
+
+		Staged(IOperation op) {
+			this.op = op;
+		}
+
+		@Override
+		public OperationData execute(IDataset slice, IMonitor mon) throws OperationException {
+			final int index = getSliceNumber(slice);
+			final OperationData ret;
+			try {
+				ret = op.execute(slice, mon);
+			} catch (OperationException | RuntimeException ne) {
+				try {
+					skip(index);
+				} catch (Exception ignored) {
+					// The failure of the operation is the one reported
+				}
+				throw ne;
+			}
+			if (ret==null) {
+				try {
+					skip(index);
+				} catch (Exception ne) {
+					throw new OperationException(this, ne);
+				}
+			}
+			return ret;
+		}
+
+		@Override
+		protected OperationData process(IDataset input, IMonitor mon) throws OperationException {
+			return execute(input, mon);
+		}
+
+		@Override
+		public String getId() {
+			return op.getId();
+		}
+
+		@Override
+		public String getName() {
+			return op.getName();
+		}
+
+		@Override
+		public IOperationModel getModel() {
+			return op.getModel();
+		}
+
+		@Override
+		public void setModel(IOperationModel model) {
+			op.setModel(model);
+		}
+
+		@Override
+		public OperationRank getInputRank() {
+			return op.getInputRank();
+		}
+
+		@Override
+		public OperationRank getOutputRank() {
+			return op.getOutputRank();
+		}
+
+		@Override
+		public void init() {
+			op.init();
+		}
+
+		@Override
+		public void dispose() {
+			op.dispose();
+		}
+
+		@Override
+		public boolean isStoreOutput() {
+			return op.isStoreOutput();
+		}
+
+		@Override
+		public void setStoreOutput(boolean storeOutput) {
+			op.setStoreOutput(storeOutput);
+		}
+
+		@Override
+		public boolean isPassUnmodifiedData() {
+			return op.isPassUnmodifiedData();
+		}
+
+		@Override
+		public void setPassUnmodifiedData(boolean passUnmodifiedData) {
+			op.setPassUnmodifiedData(passUnmodifiedData);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void init(IOperation[] head, ILazyDataset data) throws Exception {
+		visitor.init(series, data);
+		for (IOperation op : tail) op.init();
+
+		consumer  = ConversionThreads.newFixedPool(getClass().getSimpleName(), 1);
+		consuming = consumer.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					consume();
+				} catch (Exception ne) {
+					error = ne;
+					synchronized (StagedExecutionVisitor.this) {
+						StagedExecutionVisitor.this.notifyAll();
+					}
+					throw ne;
+				}
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void executed(OperationData result, IMonitor mon) throws Exception {
+		post(getSliceNumber(result.getData()), result);
+	}
+
+	/**
+	 * Posts a slice which the head gave no result for, so that the consumer does not wait for it.
+	 */
+	private void skip(int index) throws Exception {
+		post(index, SKIPPED);
+	}
+
+	private void post(int index, OperationData result) throws Exception {
+		synchronized (this) {
+			// The result the consumer needs next is always accepted
+			while (index>=next+capacity && error==null && !cancelled) wait();
+			if (cancelled) return;
+			if (error!=null) throw new Exception("The operations after the parallel ones have failed", error);
+			results.put(index, result);
+			notifyAll();
+		}
+	}
+
+	/**
+	 *
+	 * @return the number of the slice, which is needed to put the results in order.
+	 */
+	private static int getSliceNumber(IDataset data) {
+		final SliceFromSeriesMetadata meta = data!=null ? data.getFirstMetadata(SliceFromSeriesMetadata.class) : null;
+		if (meta==null || meta.getSliceInfo()==null) throw new IllegalArgumentException("The slices must have "+SliceFromSeriesMetadata.class.getSimpleName()+" to be put in order!");
+		return meta.getSliceInfo().getSliceNumber();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void notify(IOperation intermeadiateData, OperationData data) {
+		// The visitor was given the operations of the series
+		final IOperation original = originals.get(intermeadiateData);
+		visitor.notify(original!=null ? original : intermeadiateData, data);
+	}
+
+	/**
+	 * Runs the rest of the series on the results in slice order.
+	 */
+	@SuppressWarnings("unchecked")
+	private void consume() throws Exception {
+		while (true) {
+			OperationData result;
+			synchronized (this) {
+				while (!results.containsKey(next)) {
+					if (finished) {
+						if (results.isEmpty()) return;
+						next = Collections.min(results.keySet()); // A slice was skipped
+						break;
+					}
+					wait();
+				}
+				result = results.remove(next++);
+				notifyAll();
+			}
+			if (result==SKIPPED) continue;
+
+			if (monitor!=null && monitor.isCancelled()) {
+				synchronized (this) {
+					cancelled = true;
+					results.clear();
+					notifyAll();
+				}
+				return;
+			}
+			for (IOperation op : tail) {
+				result = op.execute(result.getData(), monitor);
+				if (result==null) break;
+				visitor.notify(op, result);
+			}
+			if (result!=null) visitor.executed(result, monitor);
+		}
+	}
+
+	@Override
+	public void close() throws Exception {
+		try {
+			synchronized (this) {
+				finished = true;
+				notifyAll();
+			}
+			if (consuming!=null) ConversionThreads.get(consuming);
+		} finally {
+			if (consumer!=null) consumer.shutdownNow();
+			for (IOperation op : tail) op.dispose();
+			visitor.close();
+		}
+	}
+}
@@ -3,6 +3,7 @@ package org.dawnsci.conversion.schemes;
 import java.util.Arrays;
 
 import org.eclipse.dawnsci.analysis.api.conversion.IConversion;
+import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
 import org.eclipse.dawnsci.analysis.api.conversion.IConversionScheme;
 
 public abstract class AbstractConversionScheme implements IConversionScheme {
@@ -74,6 +75,18 @@ public abstract class AbstractConversionScheme implements IConversionScheme {
 		return nexusSourceAllowed;
 	}
 	
+	/**
+	 * Override to return true if the conversion writes separate output for
+	 * each input file, so that several files may be converted at the same
+	 * time, each by its own conversion.
+	 * 
+	 * @param context
+	 * @return false by default
+	 */
+	public boolean isFileParallelSupported(IConversionContext context) {
+		return false;
+	}
+	
 	public String getDescription() {
 		final StringBuilder buf = new StringBuilder();
 		buf.append("Conversion Name:\t");
@@ -1,9 +1,15 @@
 package org.dawnsci.conversion.schemes;
 
 import org.dawnsci.conversion.converters.AsciiConvert1D;
+import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
 
 public class AsciiConvert1DScheme extends AbstractConversionScheme {
 	public AsciiConvert1DScheme() {
 		super(AsciiConvert1D.class, " ascii from 1D data", true,  1);
 	}
+
+	@Override
+	public boolean isFileParallelSupported(IConversionContext context) {
+		return true;
+	}
 }
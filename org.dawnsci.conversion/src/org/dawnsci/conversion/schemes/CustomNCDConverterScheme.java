@@ -1,9 +1,15 @@
 package org.dawnsci.conversion.schemes;
 
 import org.dawnsci.conversion.converters.CustomNCDConverter;
+import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
 
 public class CustomNCDConverterScheme extends AbstractConversionScheme {
 	public CustomNCDConverterScheme() {
 		super(CustomNCDConverter.class, " ascii from NCD data", true, 1,2,3,4,5,6);
 	}
+
+	@Override
+	public boolean isFileParallelSupported(IConversionContext context) {
+		return true;
+	}
 }
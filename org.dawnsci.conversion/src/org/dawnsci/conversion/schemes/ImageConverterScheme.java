@@ -1,9 +1,20 @@
 package org.dawnsci.conversion.schemes;
 
+import java.util.List;
+
+import org.dawnsci.conversion.converters.AbstractImageConversion;
 import org.dawnsci.conversion.converters.ImageConverter;
+import org.eclipse.dawnsci.analysis.api.conversion.IConversionContext;
 
 public class ImageConverterScheme extends AbstractConversionScheme {
 	public ImageConverterScheme() {
 		super(ImageConverter.class, " image files from image stack", true, false, 2,3,4,5);
 	}
+
+	@Override
+	public boolean isFileParallelSupported(IConversionContext context) {
+		// A directory of images is converted as one stack.
+		final List<String> names = context.getDatasetNames();
+		return names==null || !names.contains(AbstractImageConversion.IMAGE_STACK);
+	}
 }
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.io.h5;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.dawnsci.analysis.api.io.SliceObject;
+import org.eclipse.dawnsci.hdf.object.H5Utils;
+import org.eclipse.dawnsci.hdf.object.HierarchicalDataFactory;
+import org.eclipse.dawnsci.hdf.object.IHierarchicalDataFile;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class H5FilePoolTest {
+
+	private static final int FRAMES = 64;
+	private static final int SIZE   = 64;
+
+	private static File stack;
+
+	@BeforeClass
+	public static void writeStack() throws Exception {
+		stack = H5TestFiles.createFile("H5FilePoolTest");
+		// A tree of metadata makes the file slower to open, as NeXus files are
+		H5TestFiles.writeStack(stack, FRAMES, SIZE, 2000);
+	}
+
+	@After
+	public void resetPool() {
+		H5FilePool.setInstance(null);
+	}
+
+	/**
+	 * Files read through the default pool are closed once read, so they
+	 * may be written at once by the same VM.
+	 */
+	@Test
+	public void testWriteAfterRead() throws Exception {
+		final File file = H5TestFiles.createFile("H5FilePoolTest_write");
+		H5TestFiles.writeStack(file, 2, 4, 0);
+
+		final SliceObject frame = createFrame(file, 1, 2, 4);
+		assertEquals(1, new H5Loader().slice(frame, null).getInt(0, 0, 0));
+		assertEquals(0, H5FilePool.getInstance().getOpenCount());
+
+		final IHierarchicalDataFile writer = HierarchicalDataFactory.getWriter(file.getAbsolutePath());
+		try {
+			writer.createDataset("written", DatasetFactory.createRange(0, 4, 1, Dataset.FLOAT64), writer.group("entry"));
+		} finally {
+			writer.close();
+		}
+		assertEquals(1, new H5Loader().slice(frame, null).getInt(0, 0, 0));
+		assertTrue(file.delete());
+	}
+
+	@Test
+	public void testReuse() throws Exception {
+
+		final H5FilePool pool = new H5FilePool(4, 60000);
+		final H5FilePool.Handle first = pool.acquire(stack.getAbsolutePath());
+		first.getDataset("/entry/data/data");
+		pool.release(first);
+
+		final H5FilePool.Handle second = pool.acquire(stack.getAbsolutePath());
+		assertSame(first, second);
+		pool.release(second);
+		assertEquals(1, pool.getOpenedCount());
+		assertEquals(1, pool.getReuseCount());
+
+		// Modified files are opened again
+		stack.setLastModified(stack.lastModified()+2000);
+		final H5FilePool.Handle third = pool.acquire(stack.getAbsolutePath());
+		assertNotSame(first, third);
+		pool.release(third);
+		assertEquals(2, pool.getOpenedCount());
+		pool.clear();
+	}
+
+	@Test
+	public void testLimits() throws Exception {
+
+		final H5FilePool pool = new H5FilePool(2, 100);
+		final List<File> files = new ArrayList<File>();
+		for (int i = 0; i < 3; i++) {
+			final File file = H5TestFiles.createFile("H5FilePoolTest_limits");
+			H5TestFiles.writeStack(file, 2, 4, 0);
+			files.add(file);
+		}
+		for (File file : files) {
+			final H5FilePool.Handle handle = pool.acquire(file.getAbsolutePath());
+			handle.getDataset("/entry/data/data");
+			pool.release(handle);
+			assertTrue(pool.getOpenCount()<=2);
+		}
+
+		final long start = System.currentTimeMillis();
+		while (pool.getOpenCount()>0 && System.currentTimeMillis()-start<5000) Thread.sleep(20);
+		assertEquals("Idle files must be closed", 0, pool.getOpenCount());
+	}
+
+	@Test
+	public void testSlice() throws Exception {
+		H5FilePool.setInstance(new H5FilePool(32, 30000));
+		final H5Loader loader = new H5Loader();
+		for (int i = 0; i < FRAMES; i+=7) {
+			final SliceObject frame = createFrame(i);
+			final Dataset pooled   = loader.slice(frame, null);
+			final Dataset unpooled = sliceUnpooled(frame);
+			assertArrayEquals(new int[]{1, SIZE, SIZE}, pooled.getShape());
+			assertEquals(i, pooled.getInt(0, SIZE-1, SIZE-1));
+			assertEquals(unpooled, pooled);
+		}
+	}
+
+	/**
+	 * Threads reading the same dataset with the default pool, which keeps no files open,
+	 * must each read the slice they asked for although the reader of the file is shared.
+	 */
+	@Test
+	public void testConcurrentSlices() throws Exception {
+
+		final H5Loader        loader  = new H5Loader();
+		final ExecutorService threads = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int t = 0; t < 8; t++) {
+				final long seed = t;
+				results.add(threads.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						final Random random = new Random(seed);
+						for (int i = 0; i < 100; i++) {
+							final int   index  = random.nextInt(FRAMES-4);
+							final int   frames = 1+random.nextInt(4);
+							final int   size   = 1+random.nextInt(SIZE);
+							final SliceObject slice = createFrame(index);
+							slice.setSliceStop(new int[]{index+frames, size, size});
+							final Dataset data = loader.slice(slice, null);
+							assertArrayEquals(new int[]{frames, size, size}, data.getShape());
+							for (int f = 0; f < frames; f++) {
+								assertEquals(index+f, data.getInt(f, 0, 0));
+								assertEquals(index+f, data.getInt(f, size-1, size-1));
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) result.get();
+		} finally {
+			threads.shutdown();
+		}
+		assertEquals(0, H5FilePool.getInstance().getOpenCount());
+	}
+
+	/**
+	 * Slice reads per second with 1, 4 and 16 threads each reading random frames
+	 * through one loader, with the file pool and as slices were read before it.
+	 */
+	@Test
+	public void testThroughput() throws Exception {
+
+		H5FilePool.setInstance(new H5FilePool(32, 30000));
+		final int reads = 400;
+		for (int threads : new int[]{1, 4, 16}) {
+			final double unpooled = getReadsPerSecond(threads, reads, false);
+			final double pooled   = getReadsPerSecond(threads, reads, true);
+			System.out.println(String.format("%2d threads: %8.0f slices/s pooled, %8.0f slices/s opening the file for each slice, %.1f times faster",
+					                         threads, pooled, unpooled, pooled/unpooled));
+			if (threads==1) assertTrue("Keeping the file open must be faster", pooled>unpooled);
+		}
+		System.out.println(H5FilePool.getInstance());
+	}
+
+	private double getReadsPerSecond(int threads, final int reads, final boolean pooled) throws Exception {
+
+		final H5Loader loader = new H5Loader();
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<Void>> results = new ArrayList<Future<Void>>();
+			final long start = System.nanoTime();
+			for (int t = 0; t < threads; t++) {
+				final long seed = t;
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						final Random random = new Random(seed);
+						for (int i = 0; i < reads; i++) {
+							final SliceObject frame = createFrame(random.nextInt(FRAMES));
+							if (pooled) {
+								loader.slice(frame, null);
+							} else {
+								sliceUnpooled(frame);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) result.get();
+			return threads*reads/((System.nanoTime()-start)/1e9);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static SliceObject createFrame(int index) {
+		return createFrame(stack, index, FRAMES, SIZE);
+	}
+
+	private static SliceObject createFrame(File file, int index, int frames, int size) {
+		final SliceObject so = new SliceObject();
+		so.setPath(file.getAbsolutePath());
+		so.setName("/entry/data/data");
+		so.setSlicedShape(new int[]{frames, size, size});
+		so.setSliceStart(new int[]{index, 0, 0});
+		so.setSliceStop(new int[]{index+1, size, size});
+		so.setSliceStep(new int[]{1, 1, 1});
+		return so;
+	}
+
+	private static final Object LOCK = new Object();
+
+	/**
+	 * How slices were read before the pool, opening the file for each slice. The
+	 * slice method was synchronized on the loader, which the threads share here.
+	 */
+	private static Dataset sliceUnpooled(SliceObject bean) throws Exception {
+		synchronized (LOCK) {
+			IHierarchicalDataFile file = null;
+			try {
+				file = HierarchicalDataFactory.getReader(bean.getPath());
+				final hdf.object.Dataset dataset = (hdf.object.Dataset)file.getData(bean.getName());
+				if (dataset.getStartDims()==null) dataset.getMetadata();
+				final long[] start    = dataset.getStartDims();
+				final long[] stride   = dataset.getStride();
+				final long[] selected = dataset.getSelectedDims();
+				for (int i = 0; i < selected.length; i++) {
+					start[i]    = bean.getSliceStart()[i];
+					stride[i]   = bean.getSliceStep()[i];
+					selected[i] = bean.getSliceStop()[i]-bean.getSliceStart()[i];
+				}
+				return H5Utils.getSet(dataset.read(), selected, dataset);
+			} finally {
+				if (file!=null) file.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.io.h5;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.eclipse.dawnsci.hdf.object.HierarchicalDataFactory;
+import org.eclipse.dawnsci.hdf.object.HierarchicalInfo;
+import org.eclipse.dawnsci.hdf.object.IHierarchicalDataFile;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.metadata.IMetadata;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.io.DataHolder;
+
+public class H5LazyMetadataTest {
+
+	private static final int DATASETS = 10000;
+	private static final String DATA  = "/entry/data/data";
+
+	private static File large;
+
+	@BeforeClass
+	public static void writeLarge() throws Exception {
+		large = H5TestFiles.createFile("H5LazyMetadataTest");
+		H5TestFiles.writeStack(large, 4, 8, DATASETS);
+	}
+
+	@Test
+	public void testListNames() throws Exception {
+		final List<String> names = H5Loader.listDatasetNames(large.getAbsolutePath());
+		assertEquals(DATASETS+1, names.size());
+		assertTrue(names.contains(DATA));
+		assertTrue(names.contains("/entry/instrument/group999/value9999"));
+	}
+
+	@Test
+	public void testShapes() throws Exception {
+		final H5Loader loader = new H5Loader(large.getAbsolutePath());
+		loader.loadMetadata(null);
+		final IMetadata meta = loader.getMetadata();
+		assertEquals(DATASETS+1, meta.getDataNames().size());
+		assertArrayEquals(new int[]{4, 8, 8}, meta.getDataShapes().get(DATA));
+		assertEquals(256, meta.getDataSizes().get(DATA).intValue());
+		assertArrayEquals(new int[]{10}, meta.getDataShapes().get("/entry/instrument/group0/value0"));
+	}
+
+	@Test
+	public void testLoadFile() throws Exception {
+		final H5Loader loader = new H5Loader(large.getAbsolutePath());
+		final DataHolder holder = loader.loadFile();
+		assertArrayEquals(new int[]{4, 8, 8}, holder.getLazyDataset(DATA).getShape());
+		assertArrayEquals(new int[]{4, 8, 8}, holder.getMetadata().getDataShapes().get(DATA));
+	}
+
+	@Test
+	public void testErrors() throws Exception {
+		final File file = H5TestFiles.createFile("H5LazyMetadataTest_errors");
+		final IHierarchicalDataFile hFile = HierarchicalDataFactory.getWriter(file.getAbsolutePath());
+		try {
+			final String data = hFile.group("data", hFile.group("entry"));
+			hFile.createDataset("data",   DatasetFactory.createRange(0, 10, 1, Dataset.FLOAT64), data);
+			hFile.createDataset("errors", DatasetFactory.createRange(10, 20, 1, Dataset.FLOAT64), data);
+		} finally {
+			hFile.close();
+		}
+
+		final Dataset set = new H5Loader().loadSet(file.getAbsolutePath(), DATA, null);
+		assertEquals(10, set.getErrors().getDouble(0), 0);
+		assertEquals(19, set.getErrors().getDouble(9), 0);
+	}
+
+	/**
+	 * Times reading the metadata of the file and the shape of one dataset, as the data
+	 * browser does when a file is opened, with the metadata of every dataset read as it
+	 * was before and resolved when it is asked for.
+	 */
+	@Test
+	public void testOpenTime() throws Exception {
+
+		// The shapes are read from the file kept open after listing the datasets
+		H5FilePool.setInstance(new H5FilePool(32, 30000));
+		final String path = large.getAbsolutePath();
+		final int    opens = 5;
+
+		long start = System.nanoTime();
+		for (int i = 0; i < opens; i++) {
+			final HierarchicalInfo info = getDatasetInformation(path);
+			assertArrayEquals(new int[]{4, 8, 8}, info.getDataSetShapes().get(DATA));
+		}
+		final double eager = (System.nanoTime()-start)/1e6/opens;
+
+		H5FilePool.getInstance().close(path);
+		start = System.nanoTime();
+		for (int i = 0; i < opens; i++) {
+			final H5Loader loader = new H5Loader(path);
+			loader.loadMetadata(null);
+			assertArrayEquals(new int[]{4, 8, 8}, loader.getMetadata().getDataShapes().get(DATA));
+		}
+		final double lazy = (System.nanoTime()-start)/1e6/opens;
+
+		H5FilePool.getInstance().close(path);
+		start = System.nanoTime();
+		for (int i = 0; i < opens; i++) {
+			assertEquals(DATASETS+1, H5Loader.listDatasetNames(path).size());
+		}
+		final double names = (System.nanoTime()-start)/1e6/opens;
+
+		System.out.println(String.format("Opening a file of %d datasets took %.0fms reading all their metadata, %.0fms reading it on demand and %.0fms listing the names",
+				                         DATASETS, eager, lazy, names));
+		assertTrue("Reading metadata on demand must be faster", lazy<eager);
+		assertTrue("Listing the names must be faster", names<eager);
+		H5FilePool.setInstance(null);
+	}
+
+	/**
+	 * How the metadata was read before, walking the whole file each time it was opened.
+	 */
+	private static HierarchicalInfo getDatasetInformation(String path) throws Exception {
+		IHierarchicalDataFile file = null;
+		try {
+			file = HierarchicalDataFactory.getReader(path);
+			return file.getDatasetInformation(IHierarchicalDataFile.NUMBER_ARRAY);
+		} finally {
+			if (file!=null) file.close();
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.io.h5;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import org.eclipse.dawnsci.hdf.object.HierarchicalDataFactory;
+import org.eclipse.dawnsci.hdf.object.IHierarchicalDataFile;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.ILazyDataset;
+import org.eclipse.january.metadata.IMetadata;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.io.DataHolder;
+
+public class H5MetadataIndexTest {
+
+	private static final int    DATASETS = 10000;
+	private static final String DATA     = "/entry/data/data";
+
+	private static File file;
+	private static File dir;
+
+	@BeforeClass
+	public static void writeFile() throws Exception {
+		file = H5TestFiles.createFile("H5MetadataIndexTest");
+		final IHierarchicalDataFile hFile = HierarchicalDataFactory.getWriter(file.getAbsolutePath());
+		try {
+			final String entry = hFile.group("entry");
+			final String data  = hFile.group("data", entry);
+			final Dataset stack = DatasetFactory.zeros(new int[]{4, 8, 8}, Dataset.INT32);
+			stack.fill(7);
+			final String d = hFile.createDataset("data", stack, data);
+			hFile.setAttribute(d, "signal", "1");
+			hFile.setAttribute(d, "units", "counts");
+			hFile.setAttribute(d, "original_name", "stack");
+			hFile.createDataset("errors", DatasetFactory.ones(new int[]{4, 8, 8}, Dataset.FLOAT64), data);
+			H5TestFiles.writeMetadata(hFile, hFile.group("instrument", entry), DATASETS);
+		} finally {
+			hFile.close();
+		}
+
+		dir = Files.createTempDirectory("H5MetadataIndexTest").toFile();
+		dir.deleteOnExit();
+	}
+
+	private static H5MetadataIndex createIndex(String... attributes) {
+		return new H5MetadataIndex(dir, Arrays.asList(attributes));
+	}
+
+	@Test
+	public void testIndex() throws Exception {
+		final H5MetadataIndex       index = createIndex("signal", "units");
+		final H5MetadataIndex.Entry entry = index.getEntry(file.getAbsolutePath(), null);
+		assertTrue(index.getIndexFile(file.getCanonicalFile()).exists());
+
+		assertEquals(DATASETS+2, entry.getNames().size());
+		final H5MetadataIndex.DatasetInfo data = entry.getDataset(DATA);
+		assertArrayEquals(new int[]{4, 8, 8}, data.getShape());
+		assertEquals(Dataset.INT32, data.getDType());
+		assertEquals("counts", data.getAttributes().get("units"));
+		assertEquals("1", data.getAttributes().get("signal"));
+		assertNull("Only the attributes chosen are indexed", data.getAttributes().get("original_name"));
+		assertArrayEquals(new int[]{10}, entry.getDataset("/entry/instrument/group999/value9999").getShape());
+
+		// Read back from the index
+		final H5MetadataIndex.Entry read = index.getEntry(file.getAbsolutePath(), null);
+		assertEquals(entry.getNames(), read.getNames());
+		assertArrayEquals(data.getShape(), read.getDataset(DATA).getShape());
+		assertArrayEquals(data.getChunks(), read.getDataset(DATA).getChunks());
+		assertEquals(data.getAttributes(), read.getDataset(DATA).getAttributes());
+	}
+
+	/**
+	 * An index which is current is used without reading the file, which is shown by
+	 * overwriting the copy indexed while keeping its size and modification time.
+	 */
+	@Test
+	public void testNotRead() throws Exception {
+		final File copy = H5TestFiles.createFile("H5MetadataIndexTest_copy");
+		Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		final long modified = copy.lastModified();
+
+		final H5MetadataIndex index = createIndex("units");
+		index.getEntry(copy.getAbsolutePath(), null);
+
+		try (RandomAccessFile raf = new RandomAccessFile(copy, "rw")) {
+			raf.write(new byte[(int)Math.min(raf.length(), 4096)]);
+		}
+		copy.setLastModified(modified);
+
+		final H5Loader loader = new H5Loader(copy.getAbsolutePath());
+		loader.setMetadataIndex(index);
+		loader.loadMetadata(null);
+		final IMetadata meta = loader.getMetadata();
+		assertEquals(DATASETS+2, meta.getDataNames().size());
+		assertArrayEquals(new int[]{4, 8, 8}, meta.getDataShapes().get(DATA));
+		assertEquals("counts", meta.getMetaValue(DATA+"@units"));
+	}
+
+	@Test
+	public void testStale() throws Exception {
+		final File copy = H5TestFiles.createFile("H5MetadataIndexTest_stale");
+		Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		final H5MetadataIndex index = createIndex("units");
+		final long before = index.getEntry(copy.getAbsolutePath(), null).getModified();
+
+		copy.setLastModified(before+2000);
+		final H5MetadataIndex.Entry entry = index.getEntry(copy.getAbsolutePath(), null);
+		assertTrue(before!=entry.getModified());
+		assertTrue(entry.isCurrent());
+
+		// Choosing other attributes indexes the file again
+		final H5MetadataIndex.Entry other = createIndex("units", "signal").getEntry(copy.getAbsolutePath(), null);
+		assertEquals("1", other.getDataset(DATA).getAttributes().get("signal"));
+	}
+
+	@Test
+	public void testLoadFile() throws Exception {
+		final H5Loader loader = new H5Loader(file.getAbsolutePath());
+		loader.setMetadataIndex(createIndex("units"));
+		final DataHolder holder = loader.loadFile();
+
+		final ILazyDataset lazy = holder.getLazyDataset(DATA);
+		assertArrayEquals(new int[]{4, 8, 8}, lazy.getShape());
+		assertEquals(7, lazy.getSlice(new int[]{1, 0, 0}, new int[]{2, 8, 8}, null).getInt(0, 3, 3));
+		assertEquals(1, lazy.getSlice(new int[]{1, 0, 0}, new int[]{2, 8, 8}, null).getErrors().getDouble(0, 3, 3), 0);
+		assertEquals("counts", holder.getMetadata().getMetaValue(DATA+"@units"));
+	}
+
+	/**
+	 * Times listing the datasets of a file opened again with their shapes, walking the
+	 * file each time as before and from its index.
+	 */
+	@Test
+	public void testOpenTime() throws Exception {
+
+		final String path  = file.getAbsolutePath();
+		final int    opens = 5;
+
+		final H5MetadataIndex index = createIndex("units", "signal");
+		index.getEntry(path, null);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < opens; i++) {
+			IHierarchicalDataFile hFile = null;
+			try {
+				hFile = HierarchicalDataFactory.getReader(path);
+				assertArrayEquals(new int[]{4, 8, 8}, hFile.getDatasetInformation(IHierarchicalDataFile.NUMBER_ARRAY).getDataSetShapes().get(DATA));
+			} finally {
+				if (hFile!=null) hFile.close();
+			}
+		}
+		final double scanned = (System.nanoTime()-start)/1e6/opens;
+
+		start = System.nanoTime();
+		for (int i = 0; i < opens; i++) {
+			final H5Loader loader = new H5Loader(path);
+			loader.setMetadataIndex(index);
+			loader.loadMetadata(null);
+			assertArrayEquals(new int[]{4, 8, 8}, loader.getMetadata().getDataShapes().get(DATA));
+		}
+		final double indexed = (System.nanoTime()-start)/1e6/opens;
+
+		System.out.println(String.format("Listing %d datasets took %.0fms walking the file and %.1fms from its index of %d bytes",
+				                         DATASETS, scanned, indexed, index.getIndexFile(file.getCanonicalFile()).length()));
+		assertTrue("Reading the index must be faster than walking the file", indexed<scanned);
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.io.h5;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.january.IMonitor;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.SliceND;
+import org.junit.Test;
+
+/**
+ * The frames are read from a stand-in for a slow disk, which takes as long
+ * to read a frame as the caller takes to process it.
+ */
+public class H5ReadAheadTest {
+
+	private static final int  FRAMES = 40;
+	private static final int  SIZE   = 32;
+	private static final long READ   = 20;
+	private static final long WORK   = 20;
+
+	@Test
+	public void testSequential() throws Exception {
+
+		final long without = walk(createLoader(0), false);
+		final long with    = walk(createLoader(4), false);
+		System.out.println("Reading "+FRAMES+" frames in order took "+without+"ms, "+with+"ms reading ahead");
+		assertTrue("Reading ahead must overlap reading and processing", with<0.75*without);
+	}
+
+	@Test
+	public void testRandom() throws Exception {
+
+		final SlowLoader loader = createLoader(4);
+		final long before = H5ReadAhead.getReadCount();
+		walk(loader, true);
+		System.out.println("Reading "+FRAMES+" frames in random order read "+(H5ReadAhead.getReadCount()-before)+" frames ahead");
+		// A shuffle may step evenly now and then, which reads a few frames ahead
+		assertTrue("Random reads must not be read ahead", loader.reads.get()<=FRAMES+8);
+	}
+
+	@Test
+	public void testBudget() throws Exception {
+
+		// Room for two frames
+		final SlowLoader loader = createLoader(8);
+		loader.setReadAhead(8, 2L*SIZE*SIZE*4);
+		walk(loader, false);
+		assertTrue(loader.maxAhead.get()<=2);
+	}
+
+	/**
+	 * Slices are shared by the cache and the read ahead, so changing the slice returned
+	 * must not change the one returned next time.
+	 */
+	@Test
+	public void testChangedSlice() throws Exception {
+
+		final SlowLoader loader = createLoader(4);
+		for (int i = 0; i < 6; i++) {
+			final SliceND frame = new SliceND(new int[]{FRAMES, SIZE, SIZE}, new int[]{i, 0, 0}, new int[]{i+1, SIZE, SIZE}, new int[]{1, 1, 1});
+			final Dataset data  = loader.getDataset(null, frame);
+			final String  name  = data.getName();
+			data.setName("changed");
+			data.squeeze();
+
+			// From the cache, read ahead after the first frames
+			final Dataset again = loader.getDataset(null, frame);
+			assertEquals(name, again.getName());
+			assertArrayEquals(new int[]{1, SIZE, SIZE}, again.getShape());
+			assertEquals(i, again.getInt(0, 0, 0));
+		}
+		assertTrue("The slices must be read once", loader.reads.get()<=6+4);
+	}
+
+	private static SlowLoader createLoader(int slices) {
+		final SlowLoader loader = new SlowLoader("/slow/disk/H5ReadAheadTest_"+System.nanoTime()+".nxs");
+		loader.setReadAhead(slices, 64L*1024*1024);
+		return loader;
+	}
+
+	/**
+	 *
+	 * @return the milliseconds taken to read and process the frames.
+	 */
+	private static long walk(SlowLoader loader, boolean random) throws Exception {
+		final List<Integer> order = new ArrayList<Integer>(FRAMES);
+		for (int i = 0; i < FRAMES; i++) order.add(i);
+		if (random) Collections.shuffle(order, new Random(1));
+
+		final long start = System.currentTimeMillis();
+		for (int i : order) {
+			final SliceND frame = new SliceND(new int[]{FRAMES, SIZE, SIZE}, new int[]{i, 0, 0}, new int[]{i+1, SIZE, SIZE}, new int[]{1, 1, 1});
+			final Dataset data  = loader.getDataset(null, frame);
+			assertEquals(i, data.getInt(0, 0, 0));
+			Thread.sleep(WORK);
+		}
+		return System.currentTimeMillis()-start;
+	}
+
+	private static final class SlowLoader extends H5LazyLoader {
+
+		private static final long serialVersionUID = 1L;
+
+		final AtomicInteger reads    = new AtomicInteger();
+		final AtomicInteger maxAhead = new AtomicInteger();
+		private volatile int last;
+
+		SlowLoader(String path) {
+			super(path, "/entry/data/data");
+		}
+
+		@Override
+		public Dataset getDataset(IMonitor mon, SliceND slice) throws java.io.IOException {
+			last = slice.getStart()[0];
+			return super.getDataset(mon, slice);
+		}
+
+		@Override
+		protected Dataset readSlice(SliceND slice, IMonitor mon) throws Exception {
+			reads.incrementAndGet();
+			final int index = slice.getStart()[0];
+			final int ahead = index-last;
+			int max;
+			while (ahead>(max = maxAhead.get()) && !maxAhead.compareAndSet(max, ahead));
+
+			Thread.sleep(READ);
+			final Dataset frame = DatasetFactory.zeros(slice.getShape(), Dataset.INT32);
+			frame.fill(index);
+			return frame;
+		}
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.io.h5;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+import org.eclipse.january.dataset.SliceND;
+import org.junit.Test;
+
+public class H5SliceCacheTest {
+
+	private static final String MISSING = "/no/such/file.h5";
+	private static final String DATA    = "/entry/data/data";
+
+	/**
+	 * 200 integers and the overhead of an entry.
+	 */
+	private static final long ENTRY = 200*4+256;
+
+	/**
+	 * Room for three entries in each stripe.
+	 */
+	private static H5SliceCache createCache() {
+		return new H5SliceCache(16*3*ENTRY);
+	}
+
+	private static Dataset createSlice(int size) {
+		return DatasetFactory.zeros(new int[]{size}, Dataset.INT32);
+	}
+
+	private static H5SliceCache.Key createKey(String file, int index) {
+		return new H5SliceCache.Key(file, DATA, new SliceND(new int[]{1000000}, new int[]{index}, new int[]{index+1}, null));
+	}
+
+	/**
+	 * @return keys which are all in the same stripe.
+	 */
+	private static List<H5SliceCache.Key> createStripeKeys(int count) {
+		final List<H5SliceCache.Key> keys = new ArrayList<H5SliceCache.Key>(count);
+		for (int i = 0; keys.size() < count; i++) {
+			final H5SliceCache.Key key = createKey(MISSING, i);
+			if (H5SliceCache.getStripeIndex(key)==0) keys.add(key);
+		}
+		return keys;
+	}
+
+	@Test
+	public void testEvictionOrder() throws Exception {
+		final H5SliceCache cache = createCache();
+		final List<H5SliceCache.Key> keys = createStripeKeys(4);
+
+		for (int i = 0; i < 3; i++) cache.put(keys.get(i), createSlice(200), 0);
+		assertEquals(3, cache.getSize());
+		assertEquals(3*ENTRY, cache.getBytes());
+
+		// The first is used again, so the second is the least recently used
+		assertTrue(cache.get(keys.get(0))!=null);
+		cache.put(keys.get(3), createSlice(200), 0);
+
+		assertEquals(1, cache.getEvictionCount());
+		assertTrue(cache.contains(keys.get(0)));
+		assertFalse(cache.contains(keys.get(1)));
+		assertTrue(cache.contains(keys.get(2)));
+		assertTrue(cache.contains(keys.get(3)));
+		assertEquals(3*ENTRY, cache.getBytes());
+
+		// A larger slice makes room for itself by evicting the two least recently used
+		cache.put(createStripeKeys(5).get(4), createSlice(400), 0);
+		assertEquals(3, cache.getEvictionCount());
+		assertFalse(cache.contains(keys.get(0)));
+		assertFalse(cache.contains(keys.get(2)));
+		assertTrue(cache.contains(keys.get(3)));
+		assertEquals(ENTRY+400*4+256, cache.getBytes());
+	}
+
+	@Test
+	public void testTooLarge() throws Exception {
+		final H5SliceCache cache = createCache();
+		final List<H5SliceCache.Key> keys = createStripeKeys(2);
+
+		cache.put(keys.get(0), createSlice(200), 0);
+		// Larger than the three entries a stripe holds
+		cache.put(keys.get(1), createSlice(1000), 0);
+
+		assertFalse(cache.contains(keys.get(1)));
+		assertTrue("Nothing is evicted for a slice which is not cached", cache.contains(keys.get(0)));
+		assertEquals(0, cache.getEvictionCount());
+		assertEquals(ENTRY, cache.getBytes());
+
+		final H5SliceCache off = new H5SliceCache(0);
+		off.put(keys.get(0), createSlice(1), 0);
+		assertEquals(0, off.getSize());
+	}
+
+	@Test
+	public void testModified() throws Exception {
+		final File file = File.createTempFile("H5SliceCacheTest", ".h5");
+		file.deleteOnExit();
+		final String path = file.getAbsolutePath();
+
+		final H5SliceCache     cache = createCache();
+		final H5SliceCache.Key key   = createKey(path, 0);
+		final Dataset          slice = createSlice(200);
+		cache.put(key, slice, H5SliceCache.getModified(path));
+		assertSame(slice, cache.get(key));
+
+		assertTrue(file.setLastModified(file.lastModified()+2000));
+		assertNull("A slice of a file changed must be read again", cache.get(key));
+		assertFalse(cache.contains(key));
+		assertEquals(1, cache.getInvalidationCount());
+		assertEquals(0, cache.getBytes());
+	}
+
+	@Test
+	public void testInvalidate() throws Exception {
+		final H5SliceCache cache = createCache();
+		cache.put(createKey("/data/a.h5", 0), createSlice(10), 0);
+		cache.put(createKey("/data/a.h5", 1), createSlice(10), 0);
+		cache.put(createKey("/data/b.h5", 0), createSlice(10), 0);
+
+		cache.invalidate("/data/a.h5");
+		assertEquals(1, cache.getSize());
+		assertEquals(2, cache.getInvalidationCount());
+		assertFalse(cache.contains(createKey("/data/a.h5", 0)));
+		assertTrue(cache.contains(createKey("/data/b.h5", 0)));
+		assertEquals(10*4+256, cache.getBytes());
+	}
+
+	@Test
+	public void testCounters() throws Exception {
+		final H5SliceCache cache = createCache();
+		final H5SliceCache.Key key = createKey(MISSING, 0);
+
+		assertNull(cache.get(key));
+		cache.put(key, createSlice(200), 0);
+		cache.get(key);
+		cache.get(key);
+		assertNull(cache.get(createKey(MISSING, 1)));
+
+		assertEquals(2, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+		assertEquals(0, cache.getEvictionCount());
+		assertEquals(0, cache.getInvalidationCount());
+
+		// contains does not count
+		cache.contains(key);
+		assertEquals(2, cache.getHitCount());
+
+		cache.clear();
+		assertEquals(0, cache.getSize());
+		assertEquals(2, cache.getHitCount());
+	}
+
+	/**
+	 * Threads getting and putting slices of a small cache, which keeps its bytes within
+	 * bounds and counts every get.
+	 */
+	@Test(timeout=60000)
+	public void testConcurrent() throws Exception {
+		final H5SliceCache    cache   = createCache();
+		final int             threads = 8;
+		final int             gets    = 20000;
+		final ExecutorService pool    = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < threads; t++) {
+				final Random random = new Random(t);
+				results.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						int hits = 0;
+						for (int i = 0; i < gets; i++) {
+							final H5SliceCache.Key key = createKey(MISSING, random.nextInt(100));
+							Dataset slice = cache.get(key);
+							if (slice==null) {
+								slice = createSlice(200);
+								cache.put(key, slice, 0);
+							} else {
+								hits++;
+							}
+							assertEquals(200, slice.getSize());
+						}
+						return hits;
+					}
+				}));
+			}
+			long hits = 0;
+			for (Future<Integer> result : results) hits += result.get();
+
+			assertEquals(hits, cache.getHitCount());
+			assertEquals((long)threads*gets, cache.getHitCount()+cache.getMissCount());
+			assertTrue(cache.getEvictionCount()>0);
+			assertTrue(cache.getBytes()<=cache.getMaxBytes());
+			assertEquals(cache.getSize()*ENTRY, cache.getBytes());
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.io.h5;
+
+import java.io.File;
+
+import org.eclipse.dawnsci.hdf.object.HierarchicalDataFactory;
+import org.eclipse.dawnsci.hdf.object.IHierarchicalDataFile;
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.DatasetFactory;
+
+/**
+ * Writes the files read by the tests.
+ */
+class H5TestFiles {
+
+	/**
+	 *
+	 * @param name
+	 * @return a temporary .nxs file which does not exist yet and is deleted on exit.
+	 * @throws Exception
+	 */
+	static File createFile(String name) throws Exception {
+		final File file = File.createTempFile(name, ".nxs");
+		file.delete();
+		file.deleteOnExit();
+		return file;
+	}
+
+	/**
+	 * Writes /entry/data/data, a stack of frames each filled with its index, and a tree
+	 * of small datasets in /entry/instrument as a detector's metadata would be.
+	 *
+	 * @param file
+	 * @param frames
+	 * @param size of the square frames
+	 * @param metadata the number of small datasets
+	 * @throws Exception
+	 */
+	static void writeStack(File file, int frames, int size, int metadata) throws Exception {
+		final IHierarchicalDataFile hFile = HierarchicalDataFactory.getWriter(file.getAbsolutePath());
+		try {
+			final String entry = hFile.group("entry");
+			final String data  = hFile.group("data", entry);
+			final Dataset stack = DatasetFactory.zeros(new int[]{frames, size, size}, Dataset.INT32);
+			for (int i = 0; i < frames; i++) {
+				for (int y = 0; y < size; y++) {
+					for (int x = 0; x < size; x++) stack.set(i, i, y, x);
+				}
+			}
+			hFile.createDataset("data", stack, data);
+			writeMetadata(hFile, hFile.group("instrument", entry), metadata);
+		} finally {
+			hFile.close();
+		}
+	}
+
+	/**
+	 * Writes datasets of ten values, ten to a group.
+	 */
+	static void writeMetadata(IHierarchicalDataFile hFile, String parent, int count) throws Exception {
+		String group = null;
+		for (int i = 0; i < count; i++) {
+			if (i%10==0) group = hFile.group("group"+(i/10), parent);
+			hFile.createDataset("value"+i, DatasetFactory.createRange(i, i+10, 1, Dataset.FLOAT64), group);
+		}
+	}
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.io.h5;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.dawnsci.hdf.object.HierarchicalDataFactory;
+import org.eclipse.dawnsci.hdf.object.IHierarchicalDataFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the HDF5 files read by the H5 loaders open between reads, as opening a NeXus
+ * file with a large tree costs milliseconds. Files are shared by reference count: a
+ * file is acquired for each read and released after it. Files which have not been
+ * used for the idle timeout are closed, as are the files least recently used when more
+ * than the maximum are open. A file is opened again if it has been modified since it
+ * was opened.
+ *
+ * A dataset must be locked while it is read, because the datasets of the object layer
+ * keep the selection being read and the reader of a file is shared in the VM, whether
+ * or not the pool keeps the file open. The locks are therefore kept by the VM, striped
+ * by file and dataset name, rather than by the handles. Different datasets may be read
+ * at the same time, the HDF5 library then decides which of its calls run concurrently.
+ *
+ * Files are opened to read, so a file must be closed with {@link #close(String)} before
+ * it is written in the same VM. As the writers of DAWN open files without the pool, the
+ * pool used by the loaders keeps no files open unless it is asked to: by default each file
+ * is closed as soon as it is released. The maximum is set with the system property
+ * org.dawnsci.io.h5.maxOpenFiles (default 0, files are not kept open) and the idle timeout
+ * with org.dawnsci.io.h5.fileIdleMillis (default 30s).
+ */
+public class H5FilePool {
+
+	private static final Logger logger = LoggerFactory.getLogger(H5FilePool.class);
+
+	private static H5FilePool instance;
+
+	private static final int             LOCKS = 64;
+	private static final ReentrantLock[] locks = new ReentrantLock[LOCKS];
+	static {
+		for (int i = 0; i < LOCKS; i++) locks[i] = new ReentrantLock();
+	}
+
+	/**
+	 *
+	 * @param path of the file
+	 * @param name of the dataset
+	 * @return the lock held to read the dataset, the same for every handle and pool.
+	 */
+	static ReentrantLock getLock(String path, String name) {
+		final int h = (new File(path).getAbsolutePath()+"#"+name).hashCode();
+		return locks[(h & 0x7fffffff) % LOCKS];
+	}
+
+	/**
+	 *
+	 * @return the pool used by the H5 loaders of this VM.
+	 */
+	public static synchronized H5FilePool getInstance() {
+		if (instance==null) {
+			instance = new H5FilePool(Integer.getInteger("org.dawnsci.io.h5.maxOpenFiles", 0),
+					                  Long.getLong("org.dawnsci.io.h5.fileIdleMillis", 30000L));
+		}
+		return instance;
+	}
+
+	/**
+	 * Replaces the pool used by the H5 loaders, closing the files of the last one.
+	 *
+	 * @param pool
+	 */
+	static synchronized void setInstance(H5FilePool pool) {
+		if (instance!=null) instance.clear();
+		instance = pool;
+	}
+
+	/**
+	 * A file acquired from the pool, which must be released once it has been read.
+	 */
+	public static final class Handle {
+
+		private final String path;
+		private final long   modified;
+		private final Map<String, DatasetHandle> datasets = new HashMap<String, DatasetHandle>(7);
+
+		// Guarded by the pool
+		private int     refs;
+		private long    used;
+		private boolean retired;
+
+		// Guarded by this
+		private IHierarchicalDataFile file;
+
+		Handle(String path, long modified) {
+			this.path     = path;
+			this.modified = modified;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * Opens the file the first time it is called.
+		 *
+		 * @return the file, which must not be closed.
+		 * @throws Exception
+		 */
+		public synchronized IHierarchicalDataFile getFile() throws Exception {
+			if (file==null) file = HierarchicalDataFactory.getReader(path);
+			return file;
+		}
+
+		/**
+		 * The dataset must be locked while it is read, and its selection set back as
+		 * it was before it is unlocked.
+		 *
+		 * @param name path of the dataset in the file
+		 * @return the dataset, with its type and shape read.
+		 * @throws Exception
+		 */
+		public DatasetHandle getDataset(String name) throws Exception {
+			final IHierarchicalDataFile file = getFile();
+			synchronized (this) {
+				DatasetHandle handle = datasets.get(name);
+				if (handle==null) {
+					// Initialising the dataset sets its selection, which another handle may be reading
+					final ReentrantLock lock = getLock(path, name);
+					lock.lock();
+					try {
+						final hdf.object.Dataset dataset = (hdf.object.Dataset)file.getData(name);
+						if (dataset==null) throw new Exception("There is no dataset "+name+" in "+path);
+						if (dataset.getStartDims()==null) dataset.init();
+						handle = new DatasetHandle(dataset, lock);
+					} finally {
+						lock.unlock();
+					}
+					datasets.put(name, handle);
+				}
+				return handle;
+			}
+		}
+
+		private synchronized void close() {
+			datasets.clear();
+			if (file==null) return;
+			try {
+				file.close();
+			} catch (Exception ne) {
+				logger.error("Cannot close "+path, ne);
+			} finally {
+				file = null;
+			}
+		}
+	}
+
+	/**
+	 * A dataset of a file in the pool, with the lock which must be held to read it.
+	 */
+	public static final class DatasetHandle {
+
+		private final hdf.object.Dataset dataset;
+		private final ReentrantLock      lock;
+
+		DatasetHandle(hdf.object.Dataset dataset, ReentrantLock lock) {
+			this.dataset = dataset;
+			this.lock    = lock;
+		}
+
+		public hdf.object.Dataset getDataset() {
+			return dataset;
+		}
+
+		public void lock() {
+			lock.lock();
+		}
+
+		public void unlock() {
+			lock.unlock();
+		}
+	}
+
+	private final int  maxFiles;
+	private final long idleMillis;
+
+	// Guarded by this, in order of last use
+	private final LinkedHashMap<String, Handle> handles = new LinkedHashMap<String, Handle>(16, 0.75f, true);
+	private ScheduledExecutorService reaper;
+
+	private long opened, reused;
+
+	/**
+	 *
+	 * @param maxFiles the number of files kept open, more may be open while they are being read.
+	 *                 0 to close each file once it is released.
+	 * @param idleMillis the time after which a file which is not read is closed.
+	 */
+	public H5FilePool(int maxFiles, long idleMillis) {
+		this.maxFiles   = Math.max(0, maxFiles);
+		this.idleMillis = Math.max(1, idleMillis);
+	}
+
+	/**
+	 *
+	 * @param path
+	 * @return the file, opened when it is first read, which must be released.
+	 */
+	public Handle acquire(String path) {
+		final long modified = new File(path).lastModified();
+		final List<Handle> closing = new ArrayList<Handle>(1);
+		final Handle handle;
+		synchronized (this) {
+			if (maxFiles==0) {
+				// Not kept, closed when it is released
+				final Handle single = new Handle(path, modified);
+				single.refs    = 1;
+				single.retired = true;
+				opened++;
+				return single;
+			}
+			Handle current = handles.get(path);
+			if (current!=null && current.modified!=modified) {
+				handles.remove(path);
+				retire(current, closing);
+				current = null;
+			}
+			if (current==null) {
+				current = new Handle(path, modified);
+				handles.put(path, current);
+				opened++;
+				evict(closing);
+			} else {
+				reused++;
+			}
+			current.refs++;
+			current.used = System.currentTimeMillis();
+			handle = current;
+			if (reaper==null) startReaper();
+		}
+		for (Handle h : closing) h.close();
+		return handle;
+	}
+
+	/**
+	 *
+	 * @param handle acquired from this pool.
+	 */
+	public void release(Handle handle) {
+		boolean close = false;
+		synchronized (this) {
+			handle.refs--;
+			handle.used = System.currentTimeMillis();
+			if (handle.retired && handle.refs==0) close = true;
+		}
+		if (close) handle.close();
+	}
+
+	/**
+	 * Closes the file once the reads in progress have released it.
+	 *
+	 * @param path
+	 */
+	public void close(String path) {
+		final List<Handle> closing = new ArrayList<Handle>(1);
+		synchronized (this) {
+			final Handle handle = handles.remove(path);
+			if (handle!=null) retire(handle, closing);
+		}
+		for (Handle h : closing) h.close();
+	}
+
+	/**
+	 * Closes all the files once the reads in progress have released them.
+	 */
+	public void clear() {
+		final List<Handle> closing = new ArrayList<Handle>();
+		synchronized (this) {
+			for (Handle handle : handles.values()) retire(handle, closing);
+			handles.clear();
+		}
+		for (Handle h : closing) h.close();
+	}
+
+	private void retire(Handle handle, List<Handle> closing) {
+		handle.retired = true;
+		if (handle.refs==0) closing.add(handle);
+	}
+
+	/**
+	 * Retires the files least recently used which are not being read, until no more than the maximum are open.
+	 */
+	private void evict(List<Handle> closing) {
+		final Iterator<Handle> it = handles.values().iterator();
+		int open = handles.size();
+		while (open>maxFiles && it.hasNext()) {
+			final Handle handle = it.next();
+			if (handle.refs>0) continue;
+			it.remove();
+			retire(handle, closing);
+			open--;
+		}
+	}
+
+	private void closeIdle() {
+		final List<Handle> closing = new ArrayList<Handle>();
+		synchronized (this) {
+			final long now = System.currentTimeMillis();
+			final Iterator<Handle> it = handles.values().iterator();
+			while (it.hasNext()) {
+				final Handle handle = it.next();
+				if (handle.refs>0 || now-handle.used<idleMillis) continue;
+				it.remove();
+				retire(handle, closing);
+			}
+		}
+		if (!closing.isEmpty()) logger.debug("Closing {} files which have not been read for {}ms", closing.size(), idleMillis);
+		for (Handle h : closing) h.close();
+	}
+
+	private void startReaper() {
+		reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "H5 file pool reaper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final long period = Math.max(1, idleMillis/2);
+		reaper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				closeIdle();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 *
+	 * @return the number of files the pool holds.
+	 */
+	public synchronized int getOpenCount() {
+		return handles.size();
+	}
+
+	/**
+	 *
+	 * @return the number of times a file was acquired which was already open.
+	 */
+	public synchronized long getReuseCount() {
+		return reused;
+	}
+
+	/**
+	 *
+	 * @return the number of times a file was opened.
+	 */
+	public synchronized long getOpenedCount() {
+		return opened;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "H5 file pool "+handles.size()+" of "+maxFiles+" files, opened "+opened+" times and reused "+reused+" times";
+	}
+}
@@ -40,6 +40,15 @@ public class H5LazyDataset extends LazyDataset {
 			  new H5LazyLoader(set.getFile(), set.getFullName()));
 	}
 	
+	/**
+	 * Makes the dataset from its index, without opening the file.
+	 * @param filePath
+	 * @param info of the dataset in the {@link H5MetadataIndex} of the file
+	 */
+	public H5LazyDataset(final String filePath, final H5MetadataIndex.DatasetInfo info) {
+		super(info.getName(), info.getDType(), info.getShape(), new H5LazyLoader(filePath, info.getName()));
+	}
+	
 	public Dataset getCompleteData(IMonitor monitor) throws Exception {
 		return ((H5LazyLoader)this.loader).getCompleteData(monitor);
 	}
@@ -10,10 +10,10 @@ package org.dawnsci.io.h5;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.eclipse.dawnsci.analysis.api.io.SliceObject;
 import org.eclipse.dawnsci.hdf.object.H5Utils;
@@ -24,9 +24,13 @@ import org.eclipse.january.dataset.Dataset;
 import org.eclipse.january.dataset.SliceND;
 import org.eclipse.january.io.ILazyLoader;
 
+/**
+ * Reads slices of a dataset in an HDF5 file. The slices are cached in the
+ * {@link H5SliceCache} shared by all the loaders. When the slices are read in
+ * order along the first dimension the next ones are read ahead, see {@link H5ReadAhead}.
+ */
 public class H5LazyLoader implements ILazyLoader {
 
-	private Map<SliceObject,Reference<Dataset>> cache;
 	/**
 	 * 
 	 */
@@ -35,6 +39,9 @@ public class H5LazyLoader implements ILazyLoader {
 	private String   path; // file path
 	private String   fullPath; // dataset path within file
 	private H5Loader loader;
+	private int      readAheadSlices = H5ReadAhead.DEFAULT_SLICES;
+	private long     readAheadBytes  = H5ReadAhead.DEFAULT_BYTES;
+	private transient H5ReadAhead readAhead;
 
 	/**
 	 * @param path file path
@@ -45,7 +52,23 @@ public class H5LazyLoader implements ILazyLoader {
 		this.loader   = new H5Loader();
 		this.path     = path;
 		this.fullPath = fullPath;
-		this.cache    = new HashMap<SliceObject, Reference<Dataset>>(31);
+	}
+
+	/**
+	 * 
+	 * @param slices the most slices to read ahead, 0 not to read ahead.
+	 * @param bytes the most bytes the slices read ahead may use.
+	 */
+	public synchronized void setReadAhead(int slices, long bytes) {
+		if (readAhead!=null) readAhead.cancel();
+		this.readAheadSlices = slices;
+		this.readAheadBytes  = bytes;
+		this.readAhead       = null;
+	}
+	
+	private synchronized H5ReadAhead getReadAhead() {
+		if (readAhead==null) readAhead = new H5ReadAhead(this, path, fullPath, readAheadSlices, readAheadBytes);
+		return readAhead;
 	}
 
 	@Override
@@ -65,6 +88,52 @@ public class H5LazyLoader implements ILazyLoader {
 			}
 		}
 		
+		final H5ReadAhead      ahead  = getReadAhead();
+		final H5SliceCache     cache  = H5SliceCache.getInstance();
+		final H5SliceCache.Key key    = new H5SliceCache.Key(path, fullPath, slice);
+		Dataset set = cache.get(key);
+		if (set==null) set = getReadAhead(ahead.take(key));
+		
+		if (set==null) {
+			try {
+				// Read before the slice so that a change while it is read drops it
+				final long modified = H5SliceCache.getModified(path);
+				set = readSlice(slice, mon);
+				cache.put(key, set, modified);
+			} catch (Exception e) {
+				throw new IOException("Cannot slice "+path+", "+fullPath, e);
+			}
+		}
+		ahead.accessed(slice, set);
+		// The slice is shared with the cache, the caller may change its name, shape and metadata
+		return set.getView(true);
+	}
+	
+	/**
+	 * Waits for a slice being read ahead.
+	 * 
+	 * @return the slice, or null if it was not read.
+	 */
+	private Dataset getReadAhead(Future<Dataset> future) throws IOException {
+		if (future==null) return null;
+		try {
+			return future.get();
+		} catch (CancellationException | ExecutionException ne) {
+			return null; // Read by the caller
+		} catch (InterruptedException ne) {
+			throw new InterruptedIOException("Interrupted reading "+path+", "+fullPath);
+		}
+	}
+	
+	/**
+	 * Reads the slice from the file, without the cache.
+	 * 
+	 * @param slice
+	 * @param mon
+	 * @return the slice
+	 * @throws Exception
+	 */
+	protected Dataset readSlice(SliceND slice, IMonitor mon) throws Exception {
 		final SliceObject so = new SliceObject();
 		so.setPath(path);
 		so.setName(fullPath);
@@ -72,20 +141,7 @@ public class H5LazyLoader implements ILazyLoader {
 		so.setSliceStart(slice.getStart());
 		so.setSliceStop(slice.getStop());
 		so.setSliceStep(slice.getStep());
-		
-		if (cache.containsKey(so)) {
-			final Reference<Dataset> sr = cache.get(so);
-			if (sr.get()!=null) {
-				return sr.get();
-			}
-		}
-		try {
-			Dataset set = loader.slice(so, mon);
-			cache.put(so, new SoftReference<Dataset>(set));
-			return set;
-		} catch (Exception e) {
-			throw new IOException("Cannot slice "+path+", "+fullPath, e);
-		}	
+		return loader.slice(so, mon);
 	}
 
 	protected Dataset getCompleteData(IMonitor mon) throws Exception {
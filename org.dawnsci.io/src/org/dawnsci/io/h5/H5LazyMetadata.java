@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.io.h5;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.dawnsci.hdf.object.HierarchicalDataFactory;
+import org.eclipse.dawnsci.hdf.object.HierarchicalDataUtils;
+import org.eclipse.dawnsci.hdf.object.IHierarchicalDataFile;
+import org.eclipse.january.MetadataException;
+import org.eclipse.january.metadata.IMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.diamond.scisoft.analysis.io.MetaDataAdapter;
+
+/**
+ * The metadata of an HDF5 file, which only holds the names of its datasets when it is
+ * created. The shape of a dataset is read from the file the first time it is asked for,
+ * so looking at one dataset of a NeXus file with thousands does not read them all. The
+ * attributes of the file are read the first time one is asked for.
+ *
+ * Made from a {@link H5MetadataIndex}, it also holds the shapes and the attributes indexed,
+ * so that the file is only read for the other attributes.
+ */
+class H5LazyMetadata extends MetaDataAdapter {
+
+	private static final long serialVersionUID = IMetadata.serialVersionUID;
+
+	private static final Logger logger = LoggerFactory.getLogger(H5LazyMetadata.class);
+
+	private final String              filePath;
+	private final Set<String>         names;
+	private final Map<String, int[]>  shapes = new ConcurrentHashMap<String, int[]>();
+	private final Set<String>         indexedAttributes;
+	private final Map<String, String> indexedValues;
+	private Map<String, Object>       attributeValues;
+
+	/**
+	 *
+	 * @param filePath
+	 * @param names of the datasets
+	 */
+	H5LazyMetadata(String filePath, List<String> names) {
+		this.filePath = filePath;
+		this.names    = Collections.unmodifiableSet(new LinkedHashSet<String>(names));
+		this.indexedAttributes = Collections.emptySet();
+		this.indexedValues     = Collections.emptyMap();
+	}
+
+	/**
+	 *
+	 * @param filePath
+	 * @param entry the index of the file
+	 */
+	H5LazyMetadata(String filePath, H5MetadataIndex.Entry entry) {
+		this.filePath = filePath;
+		this.names    = Collections.unmodifiableSet(new LinkedHashSet<String>(entry.getNames()));
+		this.indexedAttributes = new HashSet<String>(entry.getAttributeNames());
+		this.indexedValues     = new HashMap<String, String>();
+		for (String name : names) {
+			final H5MetadataIndex.DatasetInfo info = entry.getDataset(name);
+			shapes.put(name, info.getShape());
+			for (Map.Entry<String, String> e : info.getAttributes().entrySet()) {
+				indexedValues.put(name+"@"+e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Records the shape of a dataset already read, so that it is not read again.
+	 *
+	 * @param name
+	 * @param shape
+	 */
+	void setShape(String name, int[] shape) {
+		if (names.contains(name) && shape!=null) shapes.put(name, shape);
+	}
+
+	/**
+	 *
+	 * @param name
+	 * @return the shape of the dataset, read from the file if it has not been yet.
+	 * @throws Exception
+	 */
+	int[] getShape(String name) throws Exception {
+		int[] shape = shapes.get(name);
+		if (shape==null) {
+			shape = H5Loader.getShape(filePath, name);
+			shapes.put(name, shape);
+		}
+		return shape;
+	}
+
+	@Override
+	public Collection<String> getMetaNames() throws MetadataException {
+		return Collections.unmodifiableCollection(getAttributeValues().keySet());
+	}
+
+	@Override
+	public String getMetaValue(String fullAttributeKey) throws MetadataException {
+		if (isIndexed(fullAttributeKey)) return indexedValues.get(fullAttributeKey);
+		return HierarchicalDataUtils.extractValue(getAttributeValues().get(fullAttributeKey));
+	}
+
+	@Override
+	public Collection<String> getDataNames() {
+		return names;
+	}
+
+	@Override
+	public Map<String, Integer> getDataSizes() {
+		return new DatasetMap<Integer>() {
+			@Override
+			protected Integer resolve(String name) throws Exception {
+				int size = 1;
+				for (int i : getShape(name)) size *= i;
+				return size;
+			}
+		};
+	}
+
+	@Override
+	public Map<String, int[]> getDataShapes() {
+		return new DatasetMap<int[]>() {
+			@Override
+			protected int[] resolve(String name) throws Exception {
+				return getShape(name);
+			}
+		};
+	}
+
+	/**
+	 *
+	 * @param fullAttributeKey
+	 * @return true if the attribute is of a dataset indexed and of a name indexed, so if the index does not have it the dataset does not either.
+	 */
+	private boolean isIndexed(String fullAttributeKey) {
+		final int at = fullAttributeKey!=null ? fullAttributeKey.lastIndexOf('@') : -1;
+		if (at<0) return false;
+		return names.contains(fullAttributeKey.substring(0, at)) && indexedAttributes.contains(fullAttributeKey.substring(at+1));
+	}
+
+	private synchronized Map<String, Object> getAttributeValues() throws MetadataException {
+		if (attributeValues==null) {
+			IHierarchicalDataFile file = null;
+			try {
+				file = HierarchicalDataFactory.getReader(filePath);
+				attributeValues = file.getAttributeValues();
+			} catch (Exception e) {
+				throw new MetadataException(e);
+			} finally {
+				if (file!=null)
+					try {
+						file.close();
+					} catch (Exception e) {
+						throw new MetadataException("Could not close file", e);
+					}
+			}
+		}
+		return attributeValues;
+	}
+
+	/**
+	 * An unmodifiable map keyed by the names of the datasets, which resolves the value of
+	 * a dataset when it is got. Iterating over the entries resolves them all.
+	 */
+	private abstract class DatasetMap<V> extends AbstractMap<String, V> {
+
+		protected abstract V resolve(String name) throws Exception;
+
+		@Override
+		public boolean containsKey(Object key) {
+			return names.contains(key);
+		}
+
+		@Override
+		public V get(Object key) {
+			if (!names.contains(key)) return null;
+			try {
+				return resolve((String)key);
+			} catch (Exception ne) {
+				logger.error("Cannot read "+key+" in "+filePath, ne);
+				return null;
+			}
+		}
+
+		@Override
+		public Set<String> keySet() {
+			return names;
+		}
+
+		@Override
+		public int size() {
+			return names.size();
+		}
+
+		@Override
+		public Set<Map.Entry<String, V>> entrySet() {
+			final Map<String, V> all = new LinkedHashMap<String, V>(names.size());
+			for (String name : names) all.put(name, get(name));
+			return Collections.unmodifiableMap(all).entrySet();
+		}
+	}
+}
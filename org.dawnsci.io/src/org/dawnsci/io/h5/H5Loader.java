@@ -10,22 +10,21 @@ package org.dawnsci.io.h5;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.dawb.common.util.io.FileUtils;
 import org.eclipse.dawnsci.analysis.api.io.ScanFileHolderException;
 import org.eclipse.dawnsci.analysis.api.io.SliceObject;
 import org.eclipse.dawnsci.hdf.object.H5Utils;
 import org.eclipse.dawnsci.hdf.object.HierarchicalDataFactory;
-import org.eclipse.dawnsci.hdf.object.HierarchicalDataUtils;
-import org.eclipse.dawnsci.hdf.object.HierarchicalInfo;
 import org.eclipse.dawnsci.hdf.object.IHierarchicalDataFile;
 import org.eclipse.january.IMonitor;
-import org.eclipse.january.MetadataException;
 import org.eclipse.january.dataset.Dataset;
 import org.eclipse.january.dataset.ILazyDataset;
 import org.eclipse.january.dataset.LazyDataset;
@@ -33,8 +32,13 @@ import org.eclipse.january.metadata.IMetadata;
 
 import uk.ac.diamond.scisoft.analysis.io.AbstractFileLoader;
 import uk.ac.diamond.scisoft.analysis.io.DataHolder;
-import uk.ac.diamond.scisoft.analysis.io.MetaDataAdapter;
 
+/**
+ * Loads HDF5 and NeXus files. The datasets are loaded lazily, and the metadata of a
+ * dataset is only read when it is asked for, as NeXus files may hold thousands of them.
+ * If there is a {@link H5MetadataIndex} the datasets and their metadata are listed from
+ * the index of the file, without opening it, unless the index is stale.
+ */
 public class H5Loader extends AbstractFileLoader {
 
 	public final static List<String> EXT;
@@ -65,10 +69,19 @@ public class H5Loader extends AbstractFileLoader {
 		this.fileName = path;
 	}
 
+	private H5MetadataIndex index = H5MetadataIndex.getInstance();
+
+	/**
+	 * 
+	 * @param index used to list the datasets, or null to walk the file each time it is loaded.
+	 */
+	public void setMetadataIndex(H5MetadataIndex index) {
+		this.index = index;
+	}
+
 	@Override
 	protected void clearMetadata() {
-		if (metaInfo != null)
-			metaInfo.clear();
+		metadata = null;
 	}
 
 	@Override
@@ -79,6 +92,8 @@ public class H5Loader extends AbstractFileLoader {
 	@Override
 	public DataHolder loadFile(IMonitor mon) throws ScanFileHolderException {
 		
+		if (index!=null) return loadIndexed(mon);
+		
 		final DataHolder holder = new DataHolder();
 		IHierarchicalDataFile file = null;
 		try {
@@ -93,7 +108,9 @@ public class H5Loader extends AbstractFileLoader {
 			}
 
 			if (loadMetadata) {
-				metaInfo = file.getDatasetInformation(IHierarchicalDataFile.NUMBER_ARRAY);
+				// The shapes are known from the datasets, there is no need to walk the file again
+				metadata = new H5LazyMetadata(fileName, fullPaths);
+				for (String fullPath : fullPaths) metadata.setShape(fullPath, sets.get(fullPath).getShape());
 				holder.setMetadata(getMetadata());
 			}
 			return holder;
@@ -109,43 +126,95 @@ public class H5Loader extends AbstractFileLoader {
 		}
 	}
 
-	protected synchronized Dataset slice(SliceObject bean, IMonitor mon) throws Exception {
-		IHierarchicalDataFile file = null;
+	/**
+	 * Makes the lazy datasets from the index of the file, the file is only read if
+	 * it has to be indexed.
+	 */
+	private DataHolder loadIndexed(IMonitor mon) throws ScanFileHolderException {
 		try {
-			file = HierarchicalDataFactory.getReader(bean.getPath());
-			final hdf.object.Dataset dataset = (hdf.object.Dataset)file.getData(bean.getName());
-			
-			if (dataset.getStartDims()==null) dataset.getMetadata();
-  		    long[] start    = dataset.getStartDims(); // the off set of the selection
-			long[] stride   = dataset.getStride(); // the stride of the dataset
-			long[] selected = dataset.getSelectedDims(); // the selected size of the dataet
-			
+			final H5MetadataIndex.Entry entry = index.getEntry(fileName, mon);
 			if (mon!=null) mon.worked(1);
-			for (int i = 0; i < selected.length; i++) {
-				start[i] = bean.getSliceStart()[i];
-			}
-			for (int i = 0; i < stride.length; i++) {
-				stride[i] = bean.getSliceStep()[i];
+			
+			final DataHolder                 holder    = new DataHolder();
+			final Map<String, H5LazyDataset> sets      = new HashMap<String, H5LazyDataset>();
+			final List<String>               fullPaths = entry.getNames();
+			for (String fullPath : fullPaths) {
+				sets.put(fullPath, new H5LazyDataset(fileName, entry.getDataset(fullPath)));
 			}
-			for (int i = 0; i < selected.length; i++) {
-				selected[i] = bean.getSliceStop()[i]-bean.getSliceStart()[i];
+			for (String fullPath : fullPaths) {
+				final H5LazyDataset lazy  = sets.get(fullPath);
+				final H5LazyDataset error = sets.get(getErrorPath(fullPath));
+				if (error!=null) lazy.setErrors(error);
+				holder.addDataset(fullPath, lazy);
+				if (mon!=null) mon.worked(1);
 			}
 
-			if (mon!=null) mon.worked(1);
-			final Object    val  = dataset.read(); // Appears in stack traces of VM exists
-			if (mon!=null) mon.worked(1);
-			Dataset aset = H5Utils.getSet(val,selected,dataset);
+			if (loadMetadata) {
+				metadata = new H5LazyMetadata(fileName, entry);
+				holder.setMetadata(getMetadata());
+			}
+			return holder;
 			
-			// Reset dims
-			resetDims(dataset);
-			if (mon!=null) mon.worked(1);
-			return aset;
-           
+		} catch (Exception ne) {
+			throw new ScanFileHolderException(ne.getMessage());
+		}
+	}
+
+	/**
+	 * Reads the slice from a file acquired from the {@link H5FilePool}. Slices of
+	 * different datasets may be read concurrently.
+	 */
+	protected Dataset slice(SliceObject bean, IMonitor mon) throws Exception {
+		final H5FilePool        pool   = H5FilePool.getInstance();
+		final H5FilePool.Handle handle = pool.acquire(bean.getPath());
+		try {
+			final H5FilePool.DatasetHandle dh = handle.getDataset(bean.getName());
+			dh.lock();
+			try {
+				final hdf.object.Dataset dataset = dh.getDataset();
+				
+	  		    long[] start    = dataset.getStartDims(); // the off set of the selection
+				long[] stride   = dataset.getStride(); // the stride of the dataset
+				long[] selected = dataset.getSelectedDims(); // the selected size of the dataet
+				
+				if (mon!=null) mon.worked(1);
+				for (int i = 0; i < selected.length; i++) {
+					start[i] = bean.getSliceStart()[i];
+				}
+				for (int i = 0; i < stride.length; i++) {
+					stride[i] = bean.getSliceStep()[i];
+				}
+				for (int i = 0; i < selected.length; i++) {
+					selected[i] = bean.getSliceStop()[i]-bean.getSliceStart()[i];
+				}
+	
+				try {
+					if (mon!=null) mon.worked(1);
+					final Object    val  = dataset.read(); // Appears in stack traces of VM exists
+					if (mon!=null) mon.worked(1);
+					Dataset aset = H5Utils.getSet(val,selected,dataset);
+					if (mon!=null) mon.worked(1);
+					return aset;
+				} finally {
+					// The dataset is kept open, so the whole of it is selected again
+					resetSelection(dataset);
+				}
+			} finally {
+				dh.unlock();
+			}
 		} finally {
-			if (file!=null) file.close();
+			pool.release(handle);
 		}
 	}
 
+	private void resetSelection(hdf.object.Dataset dataset) {
+		final long[] start  = dataset.getStartDims();
+		final long[] stride = dataset.getStride();
+		if (start!=null)  Arrays.fill(start, 0);
+		if (stride!=null) Arrays.fill(stride, 1);
+		resetDims(dataset);
+	}
+
 	protected void resetDims(hdf.object.Dataset dataset) {
 		long[] selected = dataset.getSelectedDims(); // the selected size of the dataet
 		long[] dims     = dataset.getDims();
@@ -170,13 +239,13 @@ public class H5Loader extends AbstractFileLoader {
 
 			Dataset ret =  H5Utils.getSet(val,set);
 			
+			// The errors are only read if they are asked for
 			final String errorPath = getErrorPath(fullPath);
 			if (errorPath!=null) {
 				final hdf.object.Dataset errSet = (hdf.object.Dataset)file.getData(errorPath);
 				if (errSet!=null) {
-					resetDims(errSet);
-					final Object  errVal = errSet.read(); // Dangerous if data large!
-					ret.setErrors(H5Utils.getSet(errVal,errSet));
+					errSet.init();
+					ret.setErrors(new H5LazyDataset(errSet));
 				}
 			}
 			
@@ -200,21 +269,23 @@ public class H5Loader extends AbstractFileLoader {
 	private static Map<String, ILazyDataset> getSets(final IHierarchicalDataFile file, List<String> fullPaths, IMonitor mon) throws Exception {
 		
 		final Map<String, ILazyDataset> ret = new HashMap<String,ILazyDataset>(fullPaths.size());
+		final Set<String>               all = new HashSet<String>(fullPaths);
 		for (String fullPath : fullPaths) {
 			if (mon!=null) mon.worked(1);
 			
 			if (ret.containsKey(fullPath)) continue;
 			
+			// Only the type and shape are read, the attributes are read when asked for
 			final hdf.object.Dataset      set = (hdf.object.Dataset)file.getData(fullPath);
-			set.getMetadata();
+			set.init();
 			final LazyDataset  lazy   = new H5LazyDataset(set);
 			ret.put(fullPath, lazy);
 			
 			final String errorPath = getErrorPath(fullPath);
-			if (fullPaths.contains(errorPath)) {
+			if (all.contains(errorPath)) {
 				final hdf.object.Dataset error = (hdf.object.Dataset)file.getData(errorPath);
 				if (error!=null) {
-					error.getMetadata();
+					error.init();
 					final LazyDataset errLazy = new H5LazyDataset(error);
 					lazy.setErrors(errLazy);
 					ret.put(errorPath, errLazy);
@@ -233,92 +304,94 @@ public class H5Loader extends AbstractFileLoader {
 	}
 
 
-	private HierarchicalInfo metaInfo;
+	/**
+	 * Lists the datasets of the file without opening them, which is much faster than
+	 * {@link IHierarchicalDataFile#getDatasetNames(int)} on files with many datasets.
+	 * The datasets are not filtered by type, so strings and scalars are listed too.
+	 * 
+	 * @param path of the file
+	 * @return the full paths of the datasets
+	 * @throws Exception
+	 */
+	public static List<String> listDatasetNames(String path) throws Exception {
+		final H5FilePool        pool   = H5FilePool.getInstance();
+		final H5FilePool.Handle handle = pool.acquire(path);
+		try {
+			final List<String> names = new ArrayList<String>();
+			final Object root = handle.getFile().getData("/");
+			if (root instanceof hdf.object.Group) addDatasetNames((hdf.object.Group)root, names);
+			return names;
+		} finally {
+			pool.release(handle);
+		}
+	}
+
+	private static void addDatasetNames(hdf.object.Group group, List<String> names) {
+		for (hdf.object.HObject member : group.getMemberList()) {
+			if (member instanceof hdf.object.Group) {
+				addDatasetNames((hdf.object.Group)member, names);
+			} else if (member instanceof hdf.object.Dataset) {
+				names.add(member.getFullName());
+			}
+		}
+	}
 
+	/**
+	 * Reads the shape of one dataset from a file acquired from the {@link H5FilePool}.
+	 * 
+	 * @param path of the file
+	 * @param fullPath of the dataset in the file
+	 * @return the shape of the dataset
+	 * @throws Exception
+	 */
+	public static int[] getShape(String path, String fullPath) throws Exception {
+		final H5FilePool        pool   = H5FilePool.getInstance();
+		final H5FilePool.Handle handle = pool.acquire(path);
+		try {
+			return H5Utils.getInt(handle.getDataset(fullPath).getDataset().getDims());
+		} finally {
+			pool.release(handle);
+		}
+	}
+
+	private H5LazyMetadata metadata;
+
+	/**
+	 * Lists the numeric datasets of the file, their shapes and the attributes
+	 * of the file are read when they are asked for. With a {@link H5MetadataIndex}
+	 * the datasets, their shapes and the attributes indexed are read from the index.
+	 */
 	@Override
 	public void loadMetadata(IMonitor mon) throws IOException {
 		
-		IHierarchicalDataFile file = null;
+		if (index!=null) {
+			try {
+				metadata = new H5LazyMetadata(fileName, index.getEntry(fileName, mon));
+				return;
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		}
+		
+		final H5FilePool        pool   = H5FilePool.getInstance();
+		final H5FilePool.Handle handle = pool.acquire(fileName);
 		try {
-			file = HierarchicalDataFactory.getReader(fileName);
+			final IHierarchicalDataFile file = handle.getFile();
 			if (mon!=null) mon.worked(1);
 			
-			metaInfo = file.getDatasetInformation(IHierarchicalDataFile.NUMBER_ARRAY);
+			metadata = new H5LazyMetadata(fileName, file.getDatasetNames(IHierarchicalDataFile.NUMBER_ARRAY));
 		} catch (Exception e) {
 			throw new IOException(e);
 			
 		} finally {
-			if (file!=null)
-				try {
-					file.close();
-				} catch (Exception e) {
-					throw new IOException("Could not close file", e);
-				}
+			pool.release(handle);
 		}
 		
 	}
 
 	@Override
 	public IMetadata getMetadata() {
-		
- 		return new MetaDataAdapter() {
-			private static final long serialVersionUID = IMetadata.serialVersionUID;
-			private Map<String, Object> attributeValues;
-			
-			@Override
-			public Collection<String> getMetaNames() throws MetadataException {
-				/**
-				 * We lazy load the meta data attributes as it's not always needed.
-				 */
-				if (attributeValues==null) readAttributes();
-				return Collections.unmodifiableCollection(attributeValues.keySet());
-			}
-
-			@Override
-			public String getMetaValue(String fullAttributeKey) throws MetadataException {
-				/**
-				 * We lazy load the meta data attributes as it's not always needed.
-				 */
-				if (attributeValues==null) readAttributes();
-				return HierarchicalDataUtils.extractValue(attributeValues.get(fullAttributeKey));
-			}
-			
-			@Override
-			public Collection<String> getDataNames() {
-				return Collections.unmodifiableCollection(metaInfo.getDataSetNames());
-			}
-
-			@Override
-			public Map<String, Integer> getDataSizes() {
-				return Collections.unmodifiableMap(metaInfo.getDataSetSizes());
-			}
-
-			@Override
-			public Map<String, int[]> getDataShapes() {
-				return Collections.unmodifiableMap(metaInfo.getDataSetShapes());
-			}
-			
-			private void readAttributes() throws MetadataException {
-				if (attributeValues==null) {
-					IHierarchicalDataFile file = null;
-					try {
-						file = HierarchicalDataFactory.getReader(fileName);
-						
-						attributeValues = file.getAttributeValues();
-					} catch (Exception e) {
-						throw new MetadataException(e);
-					} finally {
-						if (file!=null)
-							try {
-								file.close();
-							} catch (Exception e) {
-								throw new MetadataException("Could not close file", e);
-							}
-					}
-				
-				}
-			}
-		};
+		return metadata;
 	}
 
 }
@@ -0,0 +1,441 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.io.h5;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.eclipse.dawnsci.hdf.object.H5Utils;
+import org.eclipse.dawnsci.hdf.object.HierarchicalDataFactory;
+import org.eclipse.dawnsci.hdf.object.HierarchicalDataUtils;
+import org.eclipse.dawnsci.hdf.object.IHierarchicalDataFile;
+import org.eclipse.january.IMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An index on disk of the numeric datasets of HDF5 files, so that a file opened again
+ * is listed without walking its tree. For each dataset the index holds its name, type,
+ * shape, chunk layout and a few of its attributes, by default those NeXus uses to plot it.
+ *
+ * An index is kept for the canonical path of a file with its size and modification time.
+ * When the file no longer has that size and time the index is stale, and the file is
+ * scanned and indexed again. The index of a file is written to a new file which is then
+ * renamed, so an index read is always complete.
+ *
+ * The index is off unless the system property org.dawnsci.io.h5.metadataIndex is set.
+ * With "cache" the indices are kept in a directory of the user's, ~/.dawn/h5index unless
+ * org.dawnsci.io.h5.metadataIndexDir is set. With "sidecar" each index is kept next to its
+ * file, as a hidden .h5index file. The attributes indexed are set as a comma separated list
+ * with org.dawnsci.io.h5.metadataIndexAttributes.
+ */
+public class H5MetadataIndex {
+
+	private static final Logger logger = LoggerFactory.getLogger(H5MetadataIndex.class);
+
+	private static final int     MAGIC   = 0x48354958; // H5IX
+	private static final int     VERSION = 1;
+	private static final String  EXTENSION = ".h5index";
+	private static final Charset UTF8      = Charset.forName("UTF-8");
+
+	private static final String  DEFAULT_ATTRIBUTES = "units,long_name,signal,axes,axis,primary,interpretation";
+
+	private static H5MetadataIndex instance;
+	private static boolean         configured;
+
+	/**
+	 *
+	 * @return the index set with the system properties, or null if there is none.
+	 */
+	public static synchronized H5MetadataIndex getInstance() {
+		if (!configured) {
+			configured = true;
+			final String mode = System.getProperty("org.dawnsci.io.h5.metadataIndex");
+			final List<String> attributes = Arrays.asList(System.getProperty("org.dawnsci.io.h5.metadataIndexAttributes", DEFAULT_ATTRIBUTES).split("\\s*,\\s*"));
+			if ("cache".equals(mode)) {
+				final String dir = System.getProperty("org.dawnsci.io.h5.metadataIndexDir",
+						                              System.getProperty("user.home")+File.separator+".dawn"+File.separator+"h5index");
+				instance = new H5MetadataIndex(new File(dir), attributes);
+			} else if ("sidecar".equals(mode)) {
+				instance = new H5MetadataIndex(null, attributes);
+			} else if (mode!=null && !"none".equals(mode)) {
+				logger.warn("Unknown org.dawnsci.io.h5.metadataIndex {}, the HDF5 files will not be indexed", mode);
+			}
+			if (instance!=null) logger.debug("Indexing HDF5 files in {}", dir(instance.dir));
+		}
+		return instance;
+	}
+
+	private static String dir(File dir) {
+		return dir!=null ? dir.getAbsolutePath() : "sidecar files";
+	}
+
+	/**
+	 * A numeric dataset of a file.
+	 */
+	public static final class DatasetInfo {
+
+		private final String              name;
+		private final int                 dtype;
+		private final int[]               shape;
+		private final int[]               chunks;
+		private final Map<String, String> attributes;
+
+		DatasetInfo(String name, int dtype, int[] shape, int[] chunks, Map<String, String> attributes) {
+			this.name       = name;
+			this.dtype      = dtype;
+			this.shape      = shape;
+			this.chunks     = chunks;
+			this.attributes = Collections.unmodifiableMap(attributes);
+		}
+
+		/**
+		 *
+		 * @return the full path of the dataset in the file.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 *
+		 * @return the type of the dataset, one of the types of {@link org.eclipse.january.dataset.Dataset}.
+		 */
+		public int getDType() {
+			return dtype;
+		}
+
+		public int[] getShape() {
+			return shape.clone();
+		}
+
+		/**
+		 *
+		 * @return the shape of the chunks, or null if the dataset is not chunked.
+		 */
+		public int[] getChunks() {
+			return chunks!=null ? chunks.clone() : null;
+		}
+
+		/**
+		 *
+		 * @return the attributes indexed which the dataset has, by name.
+		 */
+		public Map<String, String> getAttributes() {
+			return attributes;
+		}
+	}
+
+	/**
+	 * The index of a file.
+	 */
+	public static final class Entry {
+
+		private final String                   path;
+		private final long                     size;
+		private final long                     modified;
+		private final Set<String>              attributes;
+		private final Map<String, DatasetInfo> datasets;
+
+		Entry(String path, long size, long modified, Set<String> attributes, List<DatasetInfo> datasets) {
+			this.path       = path;
+			this.size       = size;
+			this.modified   = modified;
+			this.attributes = attributes;
+			final Map<String, DatasetInfo> map = new LinkedHashMap<String, DatasetInfo>(datasets.size());
+			for (DatasetInfo info : datasets) map.put(info.getName(), info);
+			this.datasets = Collections.unmodifiableMap(map);
+		}
+
+		/**
+		 *
+		 * @return the canonical path of the file.
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getModified() {
+			return modified;
+		}
+
+		/**
+		 *
+		 * @return the names of the attributes indexed, which a dataset without them does not have.
+		 */
+		public Set<String> getAttributeNames() {
+			return attributes;
+		}
+
+		/**
+		 *
+		 * @return the full paths of the numeric datasets, in the order the file lists them.
+		 */
+		public List<String> getNames() {
+			return new ArrayList<String>(datasets.keySet());
+		}
+
+		/**
+		 *
+		 * @param name full path of the dataset in the file
+		 * @return the dataset, or null if the file has no numeric dataset of that name.
+		 */
+		public DatasetInfo getDataset(String name) {
+			return datasets.get(name);
+		}
+
+		/**
+		 *
+		 * @return true if the file still has the size and modification time it was indexed with.
+		 */
+		public boolean isCurrent() {
+			final File file = new File(path);
+			return file.length()==size && file.lastModified()==modified;
+		}
+	}
+
+	private final File        dir;
+	private final Set<String> attributes; // Sorted, as they are written
+
+	/**
+	 *
+	 * @param dir directory of the indices, or null to keep each index next to its file.
+	 * @param attributes the names of the attributes of the datasets to index.
+	 */
+	public H5MetadataIndex(File dir, Collection<String> attributes) {
+		this.dir        = dir;
+		this.attributes = Collections.unmodifiableSet(new TreeSet<String>(attributes));
+	}
+
+	/**
+	 * Reads the index of the file, or if it has none or it is stale scans the file
+	 * and writes its index. An index which cannot be written is logged and returned.
+	 *
+	 * @param path of the file
+	 * @param mon
+	 * @return the index of the file.
+	 * @throws Exception if the file cannot be read.
+	 */
+	public Entry getEntry(String path, IMonitor mon) throws Exception {
+		final File file  = new File(path).getCanonicalFile();
+		final File index = getIndexFile(file);
+		Entry entry = read(index, file);
+		if (entry!=null) return entry;
+
+		entry = scan(file, mon);
+		try {
+			write(index, entry);
+		} catch (IOException ne) {
+			logger.warn("Cannot write the index of "+file+" to "+index, ne);
+		}
+		return entry;
+	}
+
+	/**
+	 *
+	 * @param file canonical file
+	 * @return the file the index of the file is kept in.
+	 */
+	File getIndexFile(File file) {
+		if (dir==null) return new File(file.getParentFile(), "."+file.getName()+EXTENSION);
+		return new File(dir, file.getName()+"_"+Integer.toHexString(file.getPath().hashCode())+EXTENSION);
+	}
+
+	/**
+	 * Removes the index of the file, for instance because it is being written.
+	 *
+	 * @param path of the file
+	 * @throws IOException
+	 */
+	public void remove(String path) throws IOException {
+		Files.deleteIfExists(getIndexFile(new File(path).getCanonicalFile()).toPath());
+	}
+
+	/**
+	 * Walks the tree of the file, as the loader does when there is no index.
+	 */
+	private Entry scan(File file, IMonitor mon) throws Exception {
+		final long size     = file.length();
+		final long modified = file.lastModified();
+
+		IHierarchicalDataFile hFile = null;
+		try {
+			hFile = HierarchicalDataFactory.getReader(file.getAbsolutePath());
+			final List<String>      names    = hFile.getDatasetNames(IHierarchicalDataFile.NUMBER_ARRAY);
+			final List<DatasetInfo> datasets = new ArrayList<DatasetInfo>(names.size());
+			for (String name : names) {
+				if (mon!=null) mon.worked(1);
+				final hdf.object.Dataset set = (hdf.object.Dataset)hFile.getData(name);
+				set.init();
+				final long[] chunks = set.getChunkSize();
+				datasets.add(new DatasetInfo(name, H5Utils.getDataType(set.getDatatype()), H5Utils.getInt(set.getDims()),
+						                     chunks!=null ? H5Utils.getInt(chunks) : null, getAttributes(set)));
+			}
+			logger.debug("Indexed {} datasets of {}", datasets.size(), file);
+			return new Entry(file.getPath(), size, modified, attributes, datasets);
+		} finally {
+			if (hFile!=null) hFile.close();
+		}
+	}
+
+	private Map<String, String> getAttributes(hdf.object.Dataset set) throws Exception {
+		final Map<String, String> ret = new LinkedHashMap<String, String>(3);
+		if (attributes.isEmpty()) return ret;
+		final List<?> meta = set.getMetadata();
+		if (meta==null) return ret;
+		for (Object o : meta) {
+			if (!(o instanceof hdf.object.Attribute)) continue;
+			final hdf.object.Attribute attribute = (hdf.object.Attribute)o;
+			if (!attributes.contains(attribute.getName())) continue;
+			final String value = HierarchicalDataUtils.extractValue(attribute.getValue());
+			if (value!=null) ret.put(attribute.getName(), value);
+		}
+		return ret;
+	}
+
+	/**
+	 *
+	 * @return the index, or null if there is none or it is not the current index of the file.
+	 */
+	private Entry read(File index, File file) {
+		if (!index.exists()) return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index.toPath())))) {
+			if (in.readInt()!=MAGIC || in.readByte()!=VERSION) return null;
+			final String path     = in.readUTF();
+			final long   size     = in.readLong();
+			final long   modified = in.readLong();
+			if (!path.equals(file.getPath()) || size!=file.length() || modified!=file.lastModified()) {
+				logger.debug("The index of {} is stale", file);
+				return null;
+			}
+			final Set<String> names = new TreeSet<String>();
+			final int         count = in.readUnsignedShort();
+			for (int i = 0; i < count; i++) names.add(in.readUTF());
+			if (!names.equals(attributes)) return null; // Indexed with other attributes
+
+			final int sets = in.readInt();
+			final List<DatasetInfo> datasets = new ArrayList<DatasetInfo>(sets);
+			String name = "";
+			for (int i = 0; i < sets; i++) {
+				// Names are stored as the length of the start they share with the last name and the rest
+				name = name.substring(0, in.readUnsignedShort())+in.readUTF();
+				final int   dtype  = in.readShort();
+				final int[] shape  = readInts(in);
+				final int[] chunks = readInts(in);
+				final int   attrs  = in.readUnsignedShort();
+				final Map<String, String> attributes = new LinkedHashMap<String, String>(attrs);
+				for (int a = 0; a < attrs; a++) attributes.put(in.readUTF(), readString(in));
+				datasets.add(new DatasetInfo(name, dtype, shape, chunks.length>0 ? chunks : null, attributes));
+			}
+			return new Entry(path, size, modified, attributes, datasets);
+
+		} catch (IOException | RuntimeException ne) {
+			logger.debug("Cannot read the index "+index+", "+file+" will be indexed again", ne);
+			return null;
+		}
+	}
+
+	private void write(File index, Entry entry) throws IOException {
+		if (index.getParentFile()!=null) index.getParentFile().mkdirs();
+		final File tmp = File.createTempFile(index.getName(), ".tmp", index.getParentFile());
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+				out.writeInt(MAGIC);
+				out.writeByte(VERSION);
+				out.writeUTF(entry.getPath());
+				out.writeLong(entry.getSize());
+				out.writeLong(entry.getModified());
+				out.writeShort(entry.attributes.size());
+				for (String attribute : entry.attributes) out.writeUTF(attribute);
+
+				out.writeInt(entry.datasets.size());
+				String last = "";
+				for (DatasetInfo info : entry.datasets.values()) {
+					final int shared = getShared(last, info.name);
+					out.writeShort(shared);
+					out.writeUTF(info.name.substring(shared));
+					out.writeShort(info.dtype);
+					writeInts(out, info.shape);
+					writeInts(out, info.chunks);
+					out.writeShort(info.attributes.size());
+					for (Map.Entry<String, String> e : info.attributes.entrySet()) {
+						out.writeUTF(e.getKey());
+						writeString(out, e.getValue());
+					}
+					last = info.name;
+				}
+			}
+			Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp.toPath());
+		}
+	}
+
+	private static int getShared(String a, String b) {
+		final int max = Math.min(0xffff, Math.min(a.length(), b.length()));
+		int i = 0;
+		while (i<max && a.charAt(i)==b.charAt(i)) i++;
+		return i;
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		if (values==null) {
+			out.writeByte(0);
+			return;
+		}
+		out.writeByte(values.length);
+		for (int v : values) out.writeInt(v);
+	}
+
+	private static int[] readInts(DataInputStream in) throws IOException {
+		final int[] values = new int[in.readUnsignedByte()];
+		for (int i = 0; i < values.length; i++) values[i] = in.readInt();
+		return values;
+	}
+
+	/**
+	 * Attribute values may be longer than {@link DataOutputStream#writeUTF(String)} allows.
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		final byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		final byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	@Override
+	public String toString() {
+		return "H5 metadata index in "+dir(dir);
+	}
+}
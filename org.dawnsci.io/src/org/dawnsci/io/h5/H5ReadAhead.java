@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.io.h5;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.SliceND;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads ahead the slices of a dataset which is being read in order along its first
+ * dimension, as conversions, the gallery and processing read stacks of frames. Once
+ * two steps of the same size have been read, the next slices are read on a background
+ * I/O thread into the {@link H5SliceCache} while the caller works on the current one.
+ *
+ * The slices read ahead are limited by number and bytes. A read which does not follow
+ * on cancels those not yet read. There is one I/O thread for all the datasets, as the
+ * HDF5 library reads one slice at a time anyway.
+ *
+ * The defaults are set with the system properties org.dawnsci.io.h5.readAheadSlices
+ * (default 4, 0 not to read ahead) and org.dawnsci.io.h5.readAheadBytes (default 64MB).
+ */
+class H5ReadAhead {
+
+	private static final Logger logger = LoggerFactory.getLogger(H5ReadAhead.class);
+
+	static final int  DEFAULT_SLICES = Integer.getInteger("org.dawnsci.io.h5.readAheadSlices", 4);
+	static final long DEFAULT_BYTES  = Long.getLong("org.dawnsci.io.h5.readAheadBytes", 64L*1024*1024);
+
+	private static final ExecutorService IO = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			final Thread thread = new Thread(r, "H5 read ahead");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private static final AtomicLong reads     = new AtomicLong();
+	private static final AtomicLong cancelled = new AtomicLong();
+
+	/**
+	 * A slice being read ahead.
+	 */
+	private static final class Pending {
+		final int              index;
+		final Future<Dataset>  future;
+		Pending(int index, Future<Dataset> future) {
+			this.index  = index;
+			this.future = future;
+		}
+	}
+
+	private final H5LazyLoader loader;
+	private final String       path;
+	private final String       fullPath;
+	private final int          maxSlices;
+	private final long         maxBytes;
+
+	// Guarded by this
+	private final Map<H5SliceCache.Key, Pending> pending = new HashMap<H5SliceCache.Key, Pending>(7);
+	private SliceND last;
+	private int     delta;
+	private int     run;
+	private long    sliceBytes;
+
+	H5ReadAhead(H5LazyLoader loader, String path, String fullPath, int maxSlices, long maxBytes) {
+		this.loader    = loader;
+		this.path      = path;
+		this.fullPath  = fullPath;
+		this.maxSlices = Math.max(0, maxSlices);
+		this.maxBytes  = Math.max(0, maxBytes);
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return the slice if it is being read ahead, which the caller then waits for, otherwise null.
+	 */
+	synchronized Future<Dataset> take(H5SliceCache.Key key) {
+		final Pending p = pending.remove(key);
+		return p!=null ? p.future : null;
+	}
+
+	/**
+	 * Records the slice read by the caller, and reads ahead if it follows on from the last.
+	 *
+	 * @param slice
+	 * @param data the slice, used to estimate the bytes of the slices read ahead.
+	 */
+	synchronized void accessed(SliceND slice, Dataset data) {
+		if (maxSlices<1) return;
+		if (data!=null) sliceBytes = (long)data.getSize()*data.getItemBytes();
+
+		final Integer step = getStep(last, slice);
+		if (step!=null && step==0) return; // The same slice again
+		if (step!=null && run>0 && step==delta) {
+			run++;
+		} else {
+			cancel();
+			run   = step!=null ? 1 : 0;
+			delta = step!=null ? step : 0;
+		}
+		last = slice;
+		if (run<2) return;
+
+		dropBehind(slice.getStart()[0]);
+		final int ahead = sliceBytes>0 ? (int)Math.min(maxSlices, maxBytes/sliceBytes) : maxSlices;
+		final int size  = slice.getSourceShape()[0];
+		for (int k = 1; k <= ahead; k++) {
+			final int[] start = slice.getStart().clone();
+			final int[] stop  = slice.getStop().clone();
+			start[0] += k*delta;
+			stop[0]  += k*delta;
+			if (Math.min(start[0], stop[0])<0 || Math.max(start[0], stop[0])>size) break;
+
+			final SliceND next = new SliceND(slice.getSourceShape(), start, stop, slice.getStep());
+			final H5SliceCache.Key key = new H5SliceCache.Key(path, fullPath, next);
+			if (pending.containsKey(key) || H5SliceCache.getInstance().contains(key)) continue;
+			pending.put(key, new Pending(start[0], IO.submit(new Callable<Dataset>() {
+				@Override
+				public Dataset call() throws Exception {
+					final long    modified = H5SliceCache.getModified(path);
+					final Dataset set      = loader.readSlice(next, null);
+					H5SliceCache.getInstance().put(key, set, modified);
+					reads.incrementAndGet();
+					return set;
+				}
+			})));
+		}
+	}
+
+	/**
+	 *
+	 * @return the step along the first dimension from the last slice, or null if the slice does not follow on from it.
+	 */
+	private static Integer getStep(SliceND last, SliceND slice) {
+		if (last==null) return null;
+		final int[] start = slice.getStart(), lstart = last.getStart();
+		final int[] stop  = slice.getStop(),  lstop  = last.getStop();
+		if (start.length<1 || start.length!=lstart.length) return null;
+		if (!Arrays.equals(slice.getStep(), last.getStep())) return null;
+		if (!Arrays.equals(slice.getSourceShape(), last.getSourceShape())) return null;
+		for (int i = 1; i < start.length; i++) {
+			if (start[i]!=lstart[i] || stop[i]!=lstop[i]) return null;
+		}
+		final int step = start[0]-lstart[0];
+		return stop[0]-lstop[0]==step ? step : null;
+	}
+
+	/**
+	 * Forgets the slices read ahead which the reads have passed.
+	 */
+	private void dropBehind(int index) {
+		final Iterator<Pending> it = pending.values().iterator();
+		while (it.hasNext()) {
+			final Pending p = it.next();
+			if (delta>0 ? p.index>index : p.index<index) continue;
+			p.future.cancel(false);
+			it.remove();
+		}
+	}
+
+	/**
+	 * Cancels the slices read ahead which have not been read yet.
+	 */
+	synchronized void cancel() {
+		if (pending.isEmpty()) return;
+		final List<Pending> ps = new ArrayList<Pending>(pending.values());
+		pending.clear();
+		int count = 0;
+		for (Pending p : ps) if (p.future.cancel(false)) count++;
+		cancelled.addAndGet(count);
+		if (count>0) logger.trace("Cancelled reading {} slices of {} ahead", count, fullPath);
+	}
+
+	/**
+	 *
+	 * @return the number of slices read ahead by all datasets.
+	 */
+	static long getReadCount() {
+		return reads.get();
+	}
+
+	/**
+	 *
+	 * @return the number of slices which were to be read ahead but were cancelled before they were read.
+	 */
+	static long getCancelledCount() {
+		return cancelled.get();
+	}
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2017 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.io.h5;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.january.dataset.Dataset;
+import org.eclipse.january.dataset.SliceND;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The slices read by all the H5 lazy datasets, up to a number of bytes. When it is full
+ * the slices least recently used are evicted. Slices are cached with the modification time
+ * of their file and are dropped when it changes, so a file which is rewritten is read again.
+ *
+ * The cache is split into stripes by key, each with its own lock and a share of the bytes,
+ * so that threads reading different slices rarely wait for each other. Least recently used
+ * is therefore per stripe rather than over the whole cache.
+ *
+ * The datasets returned are the ones cached, so the loaders give their callers views
+ * of them, which may be renamed, reshaped or given metadata without changing the cache.
+ *
+ * The size is set with the system property org.dawnsci.io.h5.sliceCacheBytes, by default
+ * an eighth of the maximum heap up to 512MB. 0 turns the cache off.
+ */
+public class H5SliceCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(H5SliceCache.class);
+
+	private static final int STRIPES = 16;
+
+	/**
+	 * An estimate of the memory used by an entry besides the data.
+	 */
+	private static final int OVERHEAD = 256;
+
+	private static H5SliceCache instance;
+
+	/**
+	 *
+	 * @return the cache shared by the H5 lazy datasets of this VM.
+	 */
+	public static synchronized H5SliceCache getInstance() {
+		if (instance==null) {
+			final long def = Math.min(512L*1024*1024, Runtime.getRuntime().maxMemory()/8);
+			instance = new H5SliceCache(Long.getLong("org.dawnsci.io.h5.sliceCacheBytes", def));
+			logger.debug("Caching H5 slices up to {} bytes", instance.maxBytes);
+		}
+		return instance;
+	}
+
+	/**
+	 * Identifies a slice of a dataset in a file.
+	 */
+	public static final class Key {
+
+		private final String file;
+		private final String dataset;
+		private final int[]  start;
+		private final int[]  stop;
+		private final int[]  step;
+		private final int    hash;
+
+		/**
+		 *
+		 * @param file path of the file
+		 * @param dataset path of the dataset in the file
+		 * @param slice
+		 */
+		public Key(String file, String dataset, SliceND slice) {
+			this.file    = file;
+			this.dataset = dataset;
+			this.start   = slice.getStart().clone();
+			this.stop    = slice.getStop().clone();
+			this.step    = slice.getStep().clone();
+
+			int h = file.hashCode();
+			h = 31*h + dataset.hashCode();
+			h = 31*h + Arrays.hashCode(start);
+			h = 31*h + Arrays.hashCode(stop);
+			h = 31*h + Arrays.hashCode(step);
+			this.hash = h;
+		}
+
+		public String getFile() {
+			return file;
+		}
+
+		public String getDataset() {
+			return dataset;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			final Key other = (Key)obj;
+			return hash==other.hash && file.equals(other.file) && dataset.equals(other.dataset)
+				&& Arrays.equals(start, other.start) && Arrays.equals(stop, other.stop) && Arrays.equals(step, other.step);
+		}
+
+		@Override
+		public String toString() {
+			return file+" "+dataset+" "+Arrays.toString(start)+":"+Arrays.toString(stop)+":"+Arrays.toString(step);
+		}
+	}
+
+	private static final class Entry {
+		final Dataset data;
+		final long    modified;
+		final long    bytes;
+		Entry(Dataset data, long modified, long bytes) {
+			this.data     = data;
+			this.modified = modified;
+			this.bytes    = bytes;
+		}
+	}
+
+	private static final class Stripe {
+		final ReentrantLock    lock    = new ReentrantLock();
+		final Map<Key, Entry>  entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+		long                   bytes;
+	}
+
+	private final long     maxBytes;
+	private final long     stripeBytes;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	private final AtomicLong hits          = new AtomicLong();
+	private final AtomicLong misses        = new AtomicLong();
+	private final AtomicLong evictions     = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 *
+	 * @param maxBytes the most the slices cached may use, 0 not to cache.
+	 */
+	public H5SliceCache(long maxBytes) {
+		this.maxBytes    = Math.max(0, maxBytes);
+		this.stripeBytes = this.maxBytes/STRIPES;
+		for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+	}
+
+	private Stripe getStripe(Key key) {
+		return stripes[getStripeIndex(key)];
+	}
+
+	static int getStripeIndex(Key key) {
+		final int h = key.hash ^ (key.hash>>>16);
+		return (h & 0x7fffffff) % STRIPES;
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return the slice, or null if it is not cached or its file has changed since it was.
+	 */
+	public Dataset get(Key key) {
+		final Stripe stripe = getStripe(key);
+		Entry entry;
+		stripe.lock.lock();
+		try {
+			entry = stripe.entries.get(key);
+		} finally {
+			stripe.lock.unlock();
+		}
+		if (entry!=null && entry.modified!=getModified(key.file)) {
+			remove(stripe, key, entry);
+			invalidations.incrementAndGet();
+			entry = null;
+		}
+		if (entry==null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.data;
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return true if the slice is cached, whether or not its file has changed. The use of the slice is not recorded.
+	 */
+	public boolean contains(Key key) {
+		final Stripe stripe = getStripe(key);
+		stripe.lock.lock();
+		try {
+			return stripe.entries.containsKey(key);
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * Caches the slice, evicting the slices least recently used from its stripe to make room.
+	 * Slices larger than a stripe's share of the cache are not cached.
+	 *
+	 * @param key
+	 * @param data read from the file.
+	 * @param modified the modification time of the file before the slice was read.
+	 */
+	public void put(Key key, Dataset data, long modified) {
+		final long bytes = (long)data.getSize()*data.getItemBytes()+OVERHEAD;
+		if (bytes>stripeBytes) return;
+
+		final Stripe stripe = getStripe(key);
+		stripe.lock.lock();
+		try {
+			final Entry previous = stripe.entries.put(key, new Entry(data, modified, bytes));
+			if (previous!=null) stripe.bytes -= previous.bytes;
+			stripe.bytes += bytes;
+
+			final Iterator<Entry> it = stripe.entries.values().iterator();
+			while (stripe.bytes>stripeBytes && it.hasNext()) {
+				final Entry eldest = it.next();
+				it.remove();
+				stripe.bytes -= eldest.bytes;
+				evictions.incrementAndGet();
+			}
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	private void remove(Stripe stripe, Key key, Entry entry) {
+		stripe.lock.lock();
+		try {
+			if (stripe.entries.get(key)==entry) {
+				stripe.entries.remove(key);
+				stripe.bytes -= entry.bytes;
+			}
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops the slices of the file, for instance because it is being written.
+	 *
+	 * @param file path of the file
+	 */
+	public void invalidate(String file) {
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				final Iterator<Map.Entry<Key, Entry>> it = stripe.entries.entrySet().iterator();
+				while (it.hasNext()) {
+					final Map.Entry<Key, Entry> e = it.next();
+					if (!e.getKey().file.equals(file)) continue;
+					it.remove();
+					stripe.bytes -= e.getValue().bytes;
+					invalidations.incrementAndGet();
+				}
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Drops all the slices, the counters are not reset.
+	 */
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				stripe.entries.clear();
+				stripe.bytes = 0;
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param file
+	 * @return the modification time of the file, which slices are cached with.
+	 */
+	public static long getModified(String file) {
+		return new File(file).lastModified();
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 *
+	 * @return the bytes used by the slices cached.
+	 */
+	public long getBytes() {
+		long total = 0;
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				total += stripe.bytes;
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 *
+	 * @return the number of slices cached.
+	 */
+	public int getSize() {
+		int total = 0;
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				total += stripe.entries.size();
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+		return total;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 *
+	 * @return the number of slices evicted to make room for others.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 *
+	 * @return the number of slices dropped because their file changed or was invalidated.
+	 */
+	public long getInvalidationCount() {
+		return invalidations.get();
+	}
+
+	@Override
+	public String toString() {
+		return "H5 slice cache "+getSize()+" slices, "+getBytes()+" of "+maxBytes+" bytes, "+hits.get()+" hits, "+
+	           misses.get()+" misses, "+evictions.get()+" evictions, "+invalidations.get()+" invalidations";
+	}
+}